@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>
+ * Measures compressing and decompressing a tweet with each codec, with and
+ * without a dictionary trained by {@link DictionaryTrainer}. The setup
+ * prints the compression ratio, the bytes of the tweets serialized in full
+ * over their compressed bytes.
+ * </p>
+ * <p>
+ * The tweets are a mix from the {@link TweetCorpus}, or read from the file
+ * named by the sampleFile parameter, which has one tweet per line: the
+ * screen name, a tab and the text. The dictionary is trained on the first
+ * half of the tweets and measured on the second half, so the ratios are not
+ * flattered by tweets it has already seen.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	private static final int CORPUS_SIZE = 1024;
+	private static final int DICTIONARY_ID = 1;
+
+	@Param({ "DEFLATE", "LZ" })
+	public TweetCodec codec;
+
+	@Param({ "false", "true" })
+	public boolean trained;
+
+	@Param({ "" })
+	public String sampleFile;
+
+	private TweetDictionary dictionary;
+	private Tweet[] tweets;
+	private ByteBuffer[] encoded;
+	private int next;
+
+	@Setup
+	public void setUp() throws Exception {
+		List<Tweet> sample = sampleFile.isEmpty() ? TweetCorpus.generate(
+				TweetCorpus.Kind.MIXED, 2 * CORPUS_SIZE) : DictionaryTrainer
+				.readSample(new File(sampleFile));
+		if (sample.size() < 2) {
+			throw new IllegalArgumentException(
+					"The sample needs at least 2 tweets");
+		}
+		List<Tweet> training = sample.subList(0, sample.size() / 2);
+		List<Tweet> measured = sample.subList(sample.size() / 2,
+				sample.size());
+
+		if (trained) {
+			dictionary = DictionaryTrainer.train(DICTIONARY_ID, training);
+			TweetDictionary.register(dictionary);
+		}
+		tweets = measured.toArray(new Tweet[measured.size()]);
+		encoded = new ByteBuffer[tweets.length];
+		long rawBytes = 0;
+		long bytes = 0;
+		for (int i = 0; i < tweets.length; i++) {
+			rawBytes += TweetSerializer.toBytes(tweets[i], TweetProfile.FULL)
+					.remaining();
+			encoded[i] = TweetSerializer.toBytes(tweets[i], TweetProfile.FULL,
+					codec, dictionary);
+			bytes += encoded[i].remaining();
+		}
+		System.out.println(String.format(
+				"%s %s: %d tweets, %d bytes, ratio %.2f", codec,
+				trained ? "with dictionary" : "without dictionary",
+				tweets.length, bytes, (double) rawBytes / bytes));
+	}
+
+	private int nextIndex() {
+		int index = next++;
+		if (next == tweets.length) {
+			next = 0;
+		}
+		return index;
+	}
+
+	@Benchmark
+	public ByteBuffer compress() throws Exception {
+		return TweetSerializer.toBytes(tweets[nextIndex()], TweetProfile.FULL,
+				codec, dictionary);
+	}
+
+	@Benchmark
+	public void decompress(Blackhole blackhole) throws Exception {
+		Tweet tweet = TweetSerializer.fromBytes(encoded[nextIndex()]
+				.duplicate());
+		blackhole.consume(tweet.getId());
+		blackhole.consume(tweet.getText());
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Measures mapping a tweet to the DynamoDB item {@link PersistentStore}
+ * writes, and an item read back from the table to a tweet, in each
+ * {@link PersistentStore.ItemLayout}.
+ *
+ * @author dselman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemMappingBenchmark {
+
+	private static final int CORPUS_SIZE = 1024;
+
+	@Param({ "SHORT", "LONG", "GEO", "RETWEET" })
+	public TweetCorpus.Kind kind;
+
+	@Param({ "ATTRIBUTES", "BLOB" })
+	public PersistentStore.ItemLayout layout;
+
+	private Tweet[] tweets;
+	private Map<String, AttributeValue>[] items;
+	private int next;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		List<Tweet> corpus = TweetCorpus.generate(kind, CORPUS_SIZE);
+		tweets = corpus.toArray(new Tweet[CORPUS_SIZE]);
+		items = new Map[CORPUS_SIZE];
+		for (int i = 0; i < CORPUS_SIZE; i++) {
+			items[i] = PersistentStore.newItem(tweets[i], layout);
+		}
+	}
+
+	private int nextIndex() {
+		return next++ & (CORPUS_SIZE - 1);
+	}
+
+	@Benchmark
+	public Map<String, AttributeValue> newItem() {
+		return PersistentStore.newItem(tweets[nextIndex()], layout);
+	}
+
+	@Benchmark
+	public Tweet toTweet() {
+		return PersistentStore.toTweet(items[nextIndex()]);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * <p>
+ * Measures {@link TweetamoRecordProcessor} processing a batch of records
+ * from {@code getRecords} until every tweet in it has been stored, with an
+ * {@link InMemoryTweetStore} in place of DynamoDB. This covers
+ * deaggregation, decoding, batching, item mapping and the recent tweets
+ * buffer, on the threads the server uses for them.
+ * </p>
+ * <p>
+ * Scores are per tweet. Duplicate suppression is off, since every batch
+ * holds the same tweets; the records get new sequence numbers each time.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(RecordProcessingBenchmark.TWEETS_PER_BATCH)
+public class RecordProcessingBenchmark {
+
+	static final int TWEETS_PER_BATCH = 500;
+	private static final String SHARD_ID = "shardId-000000000000";
+	private static final long STORE_TIMEOUT_SECONDS = 30;
+
+	private static final IRecordProcessorCheckpointer CHECKPOINTER = new IRecordProcessorCheckpointer() {
+		@Override
+		public void checkpoint() {
+		}
+	};
+
+	/** Whether the tweets are packed into aggregated records */
+	@Param({ "false", "true" })
+	public boolean aggregated;
+
+	private InMemoryTweetStore store;
+	private TweetamoRecordProcessor processor;
+	private File deadLetterDirectory;
+	private final List<String> partitionKeys = new ArrayList<String>();
+	private final List<ByteBuffer> payloads = new ArrayList<ByteBuffer>();
+	private long sequenceNumber;
+	private long expectedStored;
+
+	@Setup
+	public void setUp() throws Exception {
+		deadLetterDirectory = File.createTempFile("tweetamo-benchmark", "");
+		deadLetterDirectory.delete();
+		TweetProcessorConfiguration configuration = new TweetProcessorConfiguration()
+				.withDeadLetterDirectory(deadLetterDirectory.getPath())
+				.withDedupeExpectedIds(0);
+		store = new InMemoryTweetStore();
+		processor = (TweetamoRecordProcessor) new TweetamoRecordProcessorFactory(
+				configuration, store).createProcessor();
+		processor.initialize(SHARD_ID);
+
+		AggregatedRecord.Builder builder = new AggregatedRecord.Builder(
+				TweetProducerConfiguration.DEFAULT_MAX_AGGREGATED_RECORD_BYTES);
+		for (Tweet tweet : TweetCorpus.generate(TweetCorpus.Kind.MIXED,
+				TWEETS_PER_BATCH)) {
+			ByteBuffer data = TweetSerializer.toBytes(tweet,
+					TweetSerializer.getDefaultProfile(),
+					TweetSerializer.getDefaultCodec(), null);
+			if (!aggregated) {
+				addPayload(tweet.getScreenName(), data);
+			} else if (!builder.add(tweet.getScreenName(), data)) {
+				addPayload(builder.getPartitionKey(), builder.build());
+				builder = new AggregatedRecord.Builder(
+						TweetProducerConfiguration.DEFAULT_MAX_AGGREGATED_RECORD_BYTES);
+				builder.add(tweet.getScreenName(), data);
+			}
+		}
+		if (!builder.isEmpty()) {
+			addPayload(builder.getPartitionKey(), builder.build());
+		}
+	}
+
+	private void addPayload(String partitionKey, ByteBuffer data) {
+		partitionKeys.add(partitionKey);
+		payloads.add(data);
+	}
+
+	@Benchmark
+	public long processRecords() throws Exception {
+		List<Record> records = new ArrayList<Record>(payloads.size());
+		for (int i = 0; i < payloads.size(); i++) {
+			records.add(new Record().withData(payloads.get(i).duplicate())
+					.withPartitionKey(partitionKeys.get(i))
+					.withSequenceNumber(Long.toString(++sequenceNumber)));
+		}
+		processor.processRecords(records, CHECKPOINTER);
+		expectedStored += TWEETS_PER_BATCH;
+		if (!store.awaitStored(expectedStored, STORE_TIMEOUT_SECONDS,
+				TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Only " + store.getStoredCount()
+					+ " of " + expectedStored + " tweets stored");
+		}
+		return store.getAttributeCount();
+	}
+
+	@TearDown
+	public void tearDown() {
+		processor.shutdown(CHECKPOINTER, ShutdownReason.ZOMBIE);
+		File[] deadLetters = deadLetterDirectory.listFiles();
+		if (deadLetters != null) {
+			for (File deadLetter : deadLetters) {
+				deadLetter.delete();
+			}
+		}
+		deadLetterDirectory.delete();
+	}
+}
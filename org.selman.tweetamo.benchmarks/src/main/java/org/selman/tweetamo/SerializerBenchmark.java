@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link TweetSerializer} encoding and decoding a tweet, for each
+ * kind of tweet in the {@link TweetCorpus} and each codec. The decoding
+ * benchmarks read the text of the tweet, since a view defers the work of
+ * decoding it until then.
+ *
+ * @author dselman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+	// a power of two, so the next tweet is picked with a mask
+	private static final int CORPUS_SIZE = 1024;
+
+	@Param({ "SHORT", "LONG", "GEO", "RETWEET" })
+	public TweetCorpus.Kind kind;
+
+	@Param({ "NONE", "DEFLATE", "LZ" })
+	public TweetCodec codec;
+
+	private Tweet[] tweets;
+	private ByteBuffer[] encoded;
+	private int next;
+
+	@Setup
+	public void setUp() throws Exception {
+		List<Tweet> corpus = TweetCorpus.generate(kind, CORPUS_SIZE);
+		tweets = corpus.toArray(new Tweet[CORPUS_SIZE]);
+		encoded = new ByteBuffer[CORPUS_SIZE];
+		for (int i = 0; i < CORPUS_SIZE; i++) {
+			encoded[i] = TweetSerializer.toBytes(tweets[i], TweetProfile.FULL,
+					codec, null);
+		}
+	}
+
+	private int nextIndex() {
+		return next++ & (CORPUS_SIZE - 1);
+	}
+
+	@Benchmark
+	public ByteBuffer toBytes() throws Exception {
+		return TweetSerializer.toBytes(tweets[nextIndex()], TweetProfile.FULL,
+				codec, null);
+	}
+
+	@Benchmark
+	public void fromBytes(Blackhole blackhole) throws Exception {
+		Tweet tweet = TweetSerializer.fromBytes(encoded[nextIndex()]
+				.duplicate());
+		blackhole.consume(tweet.getId());
+		blackhole.consume(tweet.getText());
+	}
+
+	@Benchmark
+	public void view(Blackhole blackhole) throws Exception {
+		Tweet tweet = TweetSerializer.view(encoded[nextIndex()]);
+		blackhole.consume(tweet.getId());
+		blackhole.consume(tweet.getText());
+	}
+}
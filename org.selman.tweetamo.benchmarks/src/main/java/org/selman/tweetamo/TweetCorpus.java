@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * Generates tweets shaped like the ones the client receives, so benchmarks
+ * measure realistic field sizes and character sets. Each kind of tweet
+ * stresses a different part of the serializer: short chatter, long tweets
+ * with links, hashtags and non-ASCII text, geo-tagged tweets, and retweets
+ * that carry the id of the retweeted status.
+ * </p>
+ * <p>
+ * The tweets are generated from a fixed seed, so every run of a benchmark
+ * sees the same corpus.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class TweetCorpus {
+
+	public enum Kind {
+		SHORT, LONG, GEO, RETWEET, MIXED
+	}
+
+	private static final long SEED = 20131209L;
+	private static final long START_MILLIS = 1386547200000L;
+
+	private static final String[] SCREEN_NAMES = { "rugbyfan", "dselman",
+			"AllBlacks", "EnglandRugby", "SkySportsRugby", "le_rugby_fr",
+			"planetrugby", "mum_of_three_1987", "_xx_", "BBCSport" };
+	private static final String[] SOURCES = {
+			"web",
+			"<a href=\"http://twitter.com/download/iphone\" rel=\"nofollow\">Twitter for iPhone</a>",
+			"<a href=\"http://twitter.com/download/android\" rel=\"nofollow\">Twitter for Android</a>",
+			"<a href=\"http://www.hootsuite.com\" rel=\"nofollow\">HootSuite</a>" };
+	private static final String[] WORDS = { "rugby", "match", "try",
+			"scrum", "what", "a", "game", "today", "the", "lineout", "ref",
+			"half", "time", "score", "great", "win", "for", "lads", "come",
+			"on", "six", "nations", "world", "cup", "essai", "m\u00eal\u00e9e", "\u00fcber",
+			"\ud83d\ude02", "\ud83c\udfc9", "!!", "?" };
+	private static final String[] HASHTAGS = { "#rugby", "#SixNations",
+			"#RWC2015", "#AllBlacks", "#COYR", "#XVdeFrance" };
+
+	private TweetCorpus() {
+	}
+
+	/**
+	 * @return count tweets of the kind, with ids counting up from 1
+	 */
+	static List<Tweet> generate(Kind kind, int count) {
+		Random random = new Random(SEED + kind.ordinal());
+		List<Tweet> tweets = new ArrayList<Tweet>(count);
+		Kind[] kinds = { Kind.SHORT, Kind.LONG, Kind.GEO, Kind.RETWEET };
+		for (int i = 0; i < count; i++) {
+			Kind k = kind == Kind.MIXED ? kinds[random.nextInt(kinds.length)]
+					: kind;
+			tweets.add(generate(k, 400000000000000000L + i, random));
+		}
+		return tweets;
+	}
+
+	private static Tweet generate(Kind kind, long id, Random random) {
+		long createdAt = START_MILLIS + id % 1000000 * 37;
+		int user = random.nextInt(SCREEN_NAMES.length);
+		String screenName = SCREEN_NAMES[user];
+		long userId = 10000000L + user * 7919L;
+		String userName = screenName.replace('_', ' ');
+		String source = SOURCES[random.nextInt(SOURCES.length)];
+		boolean geo = false;
+		double latitude = 0;
+		double longitude = 0;
+		long retweetedStatusId = -1L;
+		long retweetCount = 0L;
+		String text;
+
+		switch (kind) {
+		case SHORT:
+			text = words(random, 3 + random.nextInt(6), 60);
+			break;
+		case LONG:
+			text = words(random, 30, 100) + " "
+					+ HASHTAGS[random.nextInt(HASHTAGS.length)]
+					+ " http://t.co/" + Long.toString(random.nextLong() >>> 16, 36);
+			break;
+		case GEO:
+			text = words(random, 5 + random.nextInt(10), 100);
+			geo = true;
+			latitude = -45 + random.nextDouble() * 100;
+			longitude = -120 + random.nextDouble() * 300;
+			break;
+		case RETWEET:
+			String prefix = "RT @"
+					+ SCREEN_NAMES[random.nextInt(SCREEN_NAMES.length)] + ": ";
+			text = prefix + words(random, 20, 140 - prefix.length());
+			retweetedStatusId = id - 1 - random.nextInt(100000);
+			retweetCount = 1 + random.nextInt(5000);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown kind " + kind);
+		}
+
+		return new CompactTweet(id, createdAt, geo, latitude, longitude,
+				screenName, text, userId, userName, source, -1L,
+				retweetedStatusId, retweetCount);
+	}
+
+	private static String words(Random random, int count, int maxLength) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			String word = WORDS[random.nextInt(WORDS.length)];
+			if (sb.length() + word.length() + 1 > maxLength) {
+				break;
+			}
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(word);
+		}
+		return sb.toString();
+	}
+}
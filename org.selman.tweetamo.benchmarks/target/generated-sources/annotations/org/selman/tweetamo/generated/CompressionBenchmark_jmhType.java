@@ -0,0 +1,4 @@
+package org.selman.tweetamo.generated;
+public class CompressionBenchmark_jmhType extends CompressionBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.selman.tweetamo.generated;
+public class ItemMappingBenchmark_jmhType extends ItemMappingBenchmark_jmhType_B3 {
+}
+
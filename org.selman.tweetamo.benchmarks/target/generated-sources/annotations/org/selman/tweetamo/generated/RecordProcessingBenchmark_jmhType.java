@@ -0,0 +1,4 @@
+package org.selman.tweetamo.generated;
+public class RecordProcessingBenchmark_jmhType extends RecordProcessingBenchmark_jmhType_B3 {
+}
+
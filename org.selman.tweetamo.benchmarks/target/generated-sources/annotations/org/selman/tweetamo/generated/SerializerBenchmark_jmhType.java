@@ -0,0 +1,4 @@
+package org.selman.tweetamo.generated;
+public class SerializerBenchmark_jmhType extends SerializerBenchmark_jmhType_B3 {
+}
+
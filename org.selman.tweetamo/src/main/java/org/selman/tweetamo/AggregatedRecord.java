@@ -0,0 +1,311 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Packs many serialized tweets into a single Kinesis record, and unpacks
+ * them again on the server. The layout is:
+ * </p>
+ *
+ * <pre>
+ * magic (0xF3) | version | key count | partition keys... |
+ * entry count | (key index, length, data)... | CRC32
+ * </pre>
+ * <p>
+ * Counts, indexes and lengths are variable length integers, partition keys
+ * are length prefixed UTF-8 and the CRC32 (4 bytes, big endian) covers
+ * everything before it. The magic byte can't start a record written with
+ * Java serialization, so legacy single-tweet records are told apart by
+ * {@link #isAggregated(ByteBuffer)}.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class AggregatedRecord {
+
+	public static final byte MAGIC = (byte) 0xF3;
+	public static final byte VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHECKSUM_SIZE = 4;
+
+	private AggregatedRecord() {
+	}
+
+	/**
+	 * @return true if the data starts with the aggregated record header
+	 */
+	public static boolean isAggregated(ByteBuffer data) {
+		return data.remaining() >= 2 && data.get(data.position()) == MAGIC;
+	}
+
+	/**
+	 * Unpacks an aggregated record. The data of each entry is a slice of the
+	 * record data, not a copy. The position of the buffer is not changed.
+	 *
+	 * @param data
+	 *            the record data
+	 * @return the entries in the order they were added
+	 * @throws IOException
+	 *             if the record is truncated, has an unknown version or
+	 *             fails its checksum
+	 */
+	public static List<Entry> deaggregate(ByteBuffer data) throws IOException {
+		ByteBuffer in = data.duplicate();
+		if (in.remaining() < 2 + CHECKSUM_SIZE || in.get() != MAGIC) {
+			throw new IOException("Not an aggregated record");
+		}
+
+		int checksumPosition = in.limit() - CHECKSUM_SIZE;
+		long expected = in.getInt(checksumPosition) & 0xFFFFFFFFL;
+		if (checksum(data, checksumPosition) != expected) {
+			throw new IOException("Aggregated record failed checksum");
+		}
+		in.limit(checksumPosition);
+
+		try {
+			byte version = in.get();
+			if (version != VERSION) {
+				throw new IOException("Unsupported aggregated record version "
+						+ version);
+			}
+
+			int keyCount = VarInts.readInt(in);
+			String[] keys = new String[keyCount];
+			for (int i = 0; i < keyCount; i++) {
+				int length = VarInts.readInt(in);
+				keys[i] = decode(in, length);
+			}
+
+			int entryCount = VarInts.readInt(in);
+			List<Entry> entries = new ArrayList<Entry>(entryCount);
+			for (int i = 0; i < entryCount; i++) {
+				int keyIndex = VarInts.readInt(in);
+				int length = VarInts.readInt(in);
+				if (keyIndex >= keyCount || length > in.remaining()) {
+					throw new IOException("Corrupt aggregated record entry " + i);
+				}
+				ByteBuffer entryData = in.slice();
+				entryData.limit(length);
+				in.position(in.position() + length);
+				entries.add(new Entry(keys[keyIndex], entryData));
+			}
+			return entries;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated aggregated record");
+		}
+	}
+
+	private static String decode(ByteBuffer in, int length) throws IOException {
+		if (length > in.remaining()) {
+			throw new IOException("Truncated aggregated record");
+		}
+		String value;
+		if (in.hasArray()) {
+			value = new String(in.array(), in.arrayOffset() + in.position(),
+					length, UTF8);
+		} else {
+			byte[] bytes = new byte[length];
+			in.duplicate().get(bytes);
+			value = new String(bytes, UTF8);
+		}
+		in.position(in.position() + length);
+		return value;
+	}
+
+	private static long checksum(ByteBuffer data, int end) {
+		CRC32 crc = new CRC32();
+		int length = end - data.position();
+		if (data.hasArray()) {
+			crc.update(data.array(), data.arrayOffset() + data.position(),
+					length);
+		} else {
+			byte[] bytes = new byte[length];
+			data.duplicate().get(bytes);
+			crc.update(bytes, 0, length);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * A tweet unpacked from an aggregated record.
+	 */
+	public static final class Entry {
+		private final String partitionKey;
+		private final ByteBuffer data;
+
+		Entry(String partitionKey, ByteBuffer data) {
+			this.partitionKey = partitionKey;
+			this.data = data;
+		}
+
+		public String getPartitionKey() {
+			return partitionKey;
+		}
+
+		public ByteBuffer getData() {
+			return data;
+		}
+	}
+
+	/**
+	 * Accumulates tweets until the aggregated record would exceed its
+	 * maximum size. Not thread safe.
+	 */
+	public static final class Builder {
+		private final int maxBytes;
+		private final List<String> keys = new ArrayList<String>();
+		private final Map<String, Integer> keyIndexes = new HashMap<String, Integer>();
+		private final List<ByteBuffer> data = new ArrayList<ByteBuffer>();
+		private final List<Integer> dataKeys = new ArrayList<Integer>();
+		private int keyBytes;
+		private int entryBytes;
+
+		/**
+		 * @param maxBytes
+		 *            maximum size of the aggregated record
+		 */
+		public Builder(int maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		/**
+		 * Adds a tweet if it fits. The first tweet is always accepted, even
+		 * if it is larger than the maximum size on its own.
+		 *
+		 * @return false if the record is full
+		 */
+		public boolean add(String partitionKey, ByteBuffer tweet) {
+			Integer keyIndex = keyIndexes.get(partitionKey);
+			int newKeyBytes = keyBytes;
+			int newKeyCount = keys.size();
+			if (keyIndex == null) {
+				int length = partitionKey.getBytes(UTF8).length;
+				newKeyBytes += VarInts.sizeOf(length) + length;
+				newKeyCount++;
+			}
+			int index = keyIndex == null ? keys.size() : keyIndex;
+			int length = tweet.remaining();
+			int newEntryBytes = entryBytes + VarInts.sizeOf(index)
+					+ VarInts.sizeOf(length) + length;
+
+			if (!data.isEmpty()
+					&& size(newKeyCount, newKeyBytes, data.size() + 1,
+							newEntryBytes) > maxBytes) {
+				return false;
+			}
+
+			if (keyIndex == null) {
+				keyIndexes.put(partitionKey, index);
+				keys.add(partitionKey);
+			}
+			keyBytes = newKeyBytes;
+			entryBytes = newEntryBytes;
+			data.add(tweet.duplicate());
+			dataKeys.add(index);
+			return true;
+		}
+
+		public boolean isEmpty() {
+			return data.isEmpty();
+		}
+
+		/**
+		 * @return the number of tweets added
+		 */
+		public int size() {
+			return data.size();
+		}
+
+		/**
+		 * @return the size of the record that {@link #build()} would return
+		 */
+		public int getSizeInBytes() {
+			return size(keys.size(), keyBytes, data.size(), entryBytes);
+		}
+
+		/**
+		 * @return the partition key to send the record with: the key of the
+		 *         first tweet added
+		 */
+		public String getPartitionKey() {
+			return keys.isEmpty() ? null : keys.get(0);
+		}
+
+		/**
+		 * @return the aggregated record
+		 */
+		public ByteBuffer build() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					getSizeInBytes());
+			try {
+				out.write(MAGIC);
+				out.write(VERSION);
+				VarInts.write(out, keys.size());
+				for (String key : keys) {
+					byte[] bytes = key.getBytes(UTF8);
+					VarInts.write(out, bytes.length);
+					out.write(bytes);
+				}
+				VarInts.write(out, data.size());
+				for (int i = 0; i < data.size(); i++) {
+					ByteBuffer tweet = data.get(i);
+					VarInts.write(out, dataKeys.get(i));
+					VarInts.write(out, tweet.remaining());
+					if (tweet.hasArray()) {
+						out.write(tweet.array(),
+								tweet.arrayOffset() + tweet.position(),
+								tweet.remaining());
+					} else {
+						byte[] bytes = new byte[tweet.remaining()];
+						tweet.duplicate().get(bytes);
+						out.write(bytes);
+					}
+				}
+			} catch (IOException e) {
+				// ByteArrayOutputStream does not throw
+				throw new IllegalStateException(e);
+			}
+
+			byte[] record = new byte[out.size() + CHECKSUM_SIZE];
+			byte[] body = out.toByteArray();
+			System.arraycopy(body, 0, record, 0, body.length);
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			ByteBuffer.wrap(record).putInt(body.length, (int) crc.getValue());
+			return ByteBuffer.wrap(record);
+		}
+
+		private static int size(int keyCount, int keyBytes, int entryCount,
+				int entryBytes) {
+			return 2 + VarInts.sizeOf(keyCount) + keyBytes
+					+ VarInts.sizeOf(entryCount) + entryBytes + CHECKSUM_SIZE;
+		}
+	}
+}
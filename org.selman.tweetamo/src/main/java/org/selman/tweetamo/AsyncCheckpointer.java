@@ -0,0 +1,326 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+
+/**
+ * <p>
+ * Checkpoints a shard on a thread of its own, so that neither waiting for
+ * the pipeline to store the records nor retrying a throttled checkpoint holds
+ * up {@link TweetamoRecordProcessor#processRecords processRecords}.
+ * </p>
+ * <p>
+ * The KCL checkpointer can only checkpoint the last record it has delivered,
+ * so a checkpoint is only written once the pipeline has stored everything
+ * delivered so far. The KCL moves its notion of the last delivered record
+ * just before it calls processRecords, before the processor can report the
+ * delivery, so between two calls a checkpoint could cover records the
+ * pipeline hasn't seen yet. Checkpoints are therefore only written while
+ * processRecords runs, between {@link #delivered} and {@link #returned},
+ * when the last delivered record is known. The checkpoint thread holds the
+ * same lock while it checks the pipeline and writes the checkpoint, so no
+ * delivery can slip in between.
+ * </p>
+ * <p>
+ * While a checkpoint is waiting, {@link #returned(long)} holds the processor
+ * back until it has been written or given up. No records are delivered
+ * meanwhile, so the checkpoint waits for a fixed target rather than chasing
+ * the records that keep arriving, and a pipeline that falls behind slows
+ * the reads of the shard down instead of letting the records since the last
+ * checkpoint pile up. A checkpoint whose records aren't stored within the
+ * drain timeout is given up, never written early, and counted as skipped in
+ * the {@link Metrics} of the shard.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+class AsyncCheckpointer {
+
+	private static final Log LOG = LogFactory.getLog(AsyncCheckpointer.class);
+
+	private final String shardId;
+	private final RecordPipeline pipeline;
+	private final CheckpointStrategy strategy;
+	private final DuplicateFilter duplicateFilter;
+	private final long drainTimeoutMillis;
+	private final long retryBaseMillis;
+	private final long retryMaxMillis;
+	private final int maxAttempts;
+	private final LatencyHistogram checkpointLatency;
+	private final Metrics.Counter checkpointsSkipped;
+
+	private final ExecutorService executor;
+	private final AtomicBoolean pending = new AtomicBoolean();
+
+	private final Object lock = new Object();
+	private IRecordProcessorCheckpointer checkpointer;
+	private String deliveredSequenceNumber;
+	private boolean inProcessRecords;
+	private volatile boolean shutdown;
+	// when the current checkpoint first tried to write, 0 if it hasn't
+	private long firstAttemptMillis;
+
+	/**
+	 * @param shardId
+	 *            the shard, for logging and to name the thread
+	 * @param pipeline
+	 *            the pipeline storing the records of the shard
+	 * @param strategy
+	 *            told the outcome of every checkpoint
+	 * @param duplicateFilter
+	 *            the duplicate filter of the shard, rotated after every
+	 *            checkpoint, or null
+	 * @param drainTimeoutMillis
+	 *            how long to wait for the pipeline to store the delivered
+	 *            records before giving up on a checkpoint
+	 * @param retryBaseMillis
+	 *            first delay before retrying a throttled checkpoint
+	 * @param retryMaxMillis
+	 *            longest delay before retrying a throttled checkpoint
+	 * @param maxAttempts
+	 *            attempts before giving up on a checkpoint
+	 */
+	AsyncCheckpointer(final String shardId, RecordPipeline pipeline,
+			CheckpointStrategy strategy, DuplicateFilter duplicateFilter,
+			long drainTimeoutMillis, long retryBaseMillis,
+			long retryMaxMillis, int maxAttempts) {
+		this.shardId = shardId;
+		this.checkpointLatency = Metrics.histogram(Metrics.CHECKPOINT, shardId);
+		this.checkpointsSkipped = Metrics.counter(Metrics.CHECKPOINTS_SKIPPED,
+				shardId);
+		this.pipeline = pipeline;
+		this.strategy = strategy;
+		this.duplicateFilter = duplicateFilter;
+		this.drainTimeoutMillis = drainTimeoutMillis;
+		this.retryBaseMillis = retryBaseMillis;
+		this.retryMaxMillis = retryMaxMillis;
+		this.maxAttempts = maxAttempts;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tweetamo-checkpoint-" + shardId);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Called by processRecords before it hands the records to the pipeline.
+	 *
+	 * @param sequenceNumber
+	 *            the sequence number of the last record delivered
+	 * @param checkpointer
+	 *            the checkpointer passed to processRecords
+	 */
+	void delivered(String sequenceNumber,
+			IRecordProcessorCheckpointer checkpointer) {
+		synchronized (lock) {
+			this.checkpointer = checkpointer;
+			if (sequenceNumber != null) {
+				deliveredSequenceNumber = sequenceNumber;
+			}
+			inProcessRecords = true;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Called by processRecords just before it returns.
+	 */
+	void returned() {
+		returned(0);
+	}
+
+	/**
+	 * Called by processRecords just before it returns. If a checkpoint is
+	 * waiting, waits up to maxWaitMillis for it to be written or given up
+	 * first, so that no more records are delivered in the meantime.
+	 */
+	void returned(long maxWaitMillis) {
+		synchronized (lock) {
+			long deadline = System.currentTimeMillis() + maxWaitMillis;
+			try {
+				while (pending.get() && !shutdown) {
+					long waitMillis = deadline - System.currentTimeMillis();
+					if (waitMillis <= 0) {
+						break;
+					}
+					lock.wait(waitMillis);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				inProcessRecords = false;
+			}
+		}
+	}
+
+	/**
+	 * Starts a checkpoint on the checkpoint thread, unless one is already in
+	 * progress.
+	 */
+	void request() {
+		if (shutdown || !pending.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (InterruptedException e) {
+					LOG.debug("Checkpoint interrupted for shard " + shardId);
+				} finally {
+					synchronized (lock) {
+						pending.set(false);
+						lock.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the checkpoint thread, interrupting a checkpoint in progress.
+	 * {@link #checkpoint()} can still be called on another thread.
+	 */
+	void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		shutdown = true;
+		executor.shutdownNow();
+		executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Checkpoints on the calling thread once the delivered records are
+	 * stored and processRecords is running, retrying throttled checkpoints
+	 * with backoff. Gives up if that doesn't happen within the drain
+	 * timeout. The strategy is told how long the writes took, not counting
+	 * the wait for the pipeline.
+	 *
+	 * @return true if the checkpoint was written
+	 */
+	boolean checkpoint() throws InterruptedException {
+		firstAttemptMillis = 0;
+		boolean succeeded = false;
+		try {
+			succeeded = checkpointWhenStored();
+			if (succeeded && duplicateFilter != null) {
+				// records before the checkpoint won't be replayed
+				LOG.info("Shard " + shardId + ": " + duplicateFilter);
+				duplicateFilter.rotate();
+			}
+			return succeeded;
+		} finally {
+			long now = System.currentTimeMillis();
+			long latencyMillis = firstAttemptMillis == 0 ? 0 : now
+					- firstAttemptMillis;
+			if (succeeded) {
+				checkpointLatency.record(TimeUnit.MILLISECONDS
+						.toNanos(latencyMillis));
+			} else {
+				checkpointsSkipped.increment();
+			}
+			strategy.checkpointed(now, latencyMillis, succeeded);
+		}
+	}
+
+	private boolean checkpointWhenStored() throws InterruptedException {
+		Backoff backoff = new Backoff(retryBaseMillis, retryMaxMillis);
+		int attempt = 0;
+		long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+		while (true) {
+			String target;
+			synchronized (lock) {
+				target = deliveredSequenceNumber;
+			}
+			long remainingMillis = deadline - System.currentTimeMillis();
+			if (target != null
+					&& !pipeline.awaitDurable(target,
+							Math.max(0L, remainingMillis),
+							TimeUnit.MILLISECONDS)) {
+				LOG.info("Records for shard " + shardId
+						+ " not yet stored, postponing checkpoint");
+				return false;
+			}
+
+			synchronized (lock) {
+				// more records may have been delivered while waiting
+				if (deliveredSequenceNumber != null
+						&& !deliveredSequenceNumber.equals(target)) {
+					continue;
+				}
+				// between calls the KCL may already have moved on to
+				// records the pipeline hasn't been given
+				if (!inProcessRecords) {
+					remainingMillis = deadline - System.currentTimeMillis();
+					if (remainingMillis <= 0) {
+						LOG.info("No window to checkpoint shard " + shardId
+								+ ", postponing checkpoint");
+						return false;
+					}
+					lock.wait(remainingMillis);
+					continue;
+				}
+				if (attempt++ == 0) {
+					firstAttemptMillis = System.currentTimeMillis();
+				}
+				LOG.info("Checkpointing shard " + shardId);
+				try {
+					checkpointer.checkpoint();
+					return true;
+				} catch (ShutdownException se) {
+					// Ignore checkpoint if the processor instance has been
+					// shutdown (fail over).
+					LOG.info("Caught shutdown exception, skipping checkpoint.",
+							se);
+					return false;
+				} catch (InvalidStateException e) {
+					// This indicates an issue with the DynamoDB table (check
+					// for table, provisioned IOPS).
+					LOG.error(
+							"Cannot save checkpoint to the DynamoDB table used by the KinesisClientLibrary.",
+							e);
+					return false;
+				} catch (ThrottlingException e) {
+					if (attempt == maxAttempts) {
+						LOG.error("Checkpoint failed after " + attempt
+								+ " attempts.", e);
+						return false;
+					}
+					LOG.info("Transient issue when checkpointing - attempt "
+							+ attempt + " of " + maxAttempts, e);
+				}
+			}
+			backoff.sleep();
+			deadline = System.currentTimeMillis() + drainTimeoutMillis;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * Exponential backoff with jitter. The ceiling doubles with every attempt,
+ * from the base delay up to the maximum, and each delay is a random value
+ * between half the ceiling and the ceiling. The randomness keeps callers that
+ * failed together, such as the processors of several shards during an
+ * outage, from retrying in lockstep.
+ * </p>
+ * <p>
+ * A backoff is not thread safe; use one per retry loop.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class Backoff {
+
+	private final long baseMillis;
+	private final long maxMillis;
+	private int attempts;
+
+	public Backoff(long baseMillis, long maxMillis) {
+		if (baseMillis < 0 || maxMillis < baseMillis) {
+			throw new IllegalArgumentException("Invalid backoff " + baseMillis
+					+ " to " + maxMillis + " ms");
+		}
+		this.baseMillis = baseMillis;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * @return the delay before the next attempt, in milliseconds
+	 */
+	public long nextDelayMillis() {
+		long ceiling = baseMillis << Math.min(attempts, 30);
+		if (ceiling <= 0 || ceiling > maxMillis) {
+			ceiling = maxMillis;
+		}
+		attempts++;
+		long half = ceiling / 2;
+		return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+	}
+
+	/**
+	 * Sleeps for the next delay.
+	 */
+	public void sleep() throws InterruptedException {
+		Thread.sleep(nextDelayMillis());
+	}
+
+	/**
+	 * @return the number of delays handed out since the last reset
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void reset() {
+		attempts = 0;
+	}
+}
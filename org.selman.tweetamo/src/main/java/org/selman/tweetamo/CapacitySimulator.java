@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+
+/**
+ * <p>
+ * Shows how the {@link CapacityTuner} sizes the write capacity of the status
+ * table to the writes, without AWS. A {@link PersistentStore} writes to a
+ * {@link LocalDynamoDB} stand-in at the given rate for the first half of
+ * the run and at a tenth of it for the second half, and every second the
+ * capacity of the table and its indexes is printed with the units consumed,
+ * the writes throttled and the limit of the write limiter.
+ * </p>
+ * <p>
+ * The server settings are read from an optional properties file, so the
+ * capacity bounds and the tuning interval can be tried out. The tuner runs
+ * every 5 seconds unless the file sets another interval.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class CapacitySimulator {
+
+	private static final Log LOG = LogFactory.getLog(CapacitySimulator.class);
+
+	// How long the stand-in's table stays UPDATING after an update
+	private static final long UPDATE_MILLIS = 2000L;
+	private static final long TUNE_INTERVAL_MILLIS = 5000L;
+	private static final long WRITE_INTERVAL_MILLIS = 100L;
+
+	private final LocalDynamoDB dynamoDB = new LocalDynamoDB(UPDATE_MILLIS);
+	private final PersistentStore store;
+	private final int tweetsPerSecond;
+	private final long durationMillis;
+	private long nextId = 1;
+	private long storedCount;
+
+	CapacitySimulator(TweetProcessorConfiguration configuration,
+			int tweetsPerSecond, long durationMillis) throws Exception {
+		this.store = new PersistentStore(dynamoDB.getClient(), configuration);
+		this.tweetsPerSecond = tweetsPerSecond;
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * @param args
+	 *            the tweets written a second, the seconds to run for and an
+	 *            optional properties file with the server settings
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: java "
+					+ CapacitySimulator.class.getName()
+					+ " <tweetsPerSecond> <seconds> <propertiesFile>");
+			System.exit(1);
+		}
+
+		Properties properties = new Properties();
+		if (args.length == 3) {
+			FileInputStream inputStream = new FileInputStream(args[2]);
+			try {
+				properties.load(inputStream);
+			} finally {
+				inputStream.close();
+			}
+		}
+		TweetProcessorConfiguration configuration = TweetProcessorConfiguration
+				.fromProperties(properties);
+		if (!properties
+				.containsKey(ConfigKeys.STORE_DYNAMO_TUNE_INTERVAL_MILLIS_KEY)) {
+			configuration.withStoreDynamoTuneIntervalMillis(TUNE_INTERVAL_MILLIS);
+		}
+		LOG.info("Using " + configuration);
+
+		CapacitySimulator simulator = new CapacitySimulator(configuration,
+				Integer.parseInt(args[0]),
+				TimeUnit.SECONDS.toMillis(Long.parseLong(args[1])));
+		try {
+			simulator.run();
+		} finally {
+			simulator.store.close();
+		}
+		System.exit(0);
+	}
+
+	void run() throws Exception {
+		long start = System.currentTimeMillis();
+		long nextWrite = start;
+		long nextReport = start + 1000L;
+		while (true) {
+			long now = System.currentTimeMillis();
+			long elapsed = now - start;
+			if (elapsed >= durationMillis) {
+				break;
+			}
+			if (now >= nextReport) {
+				report(elapsed);
+				nextReport = now + 1000L;
+			}
+			if (now < nextWrite) {
+				Thread.sleep(Math.min(nextWrite, nextReport) - now);
+				continue;
+			}
+			// a tenth of the load for the second half, so capacity goes down
+			int rate = elapsed < durationMillis / 2 ? tweetsPerSecond
+					: Math.max(1, tweetsPerSecond / 10);
+			write((int) Math.max(1L, rate * WRITE_INTERVAL_MILLIS / 1000L));
+			nextWrite += WRITE_INTERVAL_MILLIS;
+		}
+		System.out.println("Simulation finished: " + dynamoDB.getWriteCount()
+				+ " items written, " + dynamoDB.getThrottledCount()
+				+ " throttled");
+	}
+
+	private void write(int count) throws Exception {
+		List<Tweet> tweets = new ArrayList<Tweet>(count);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			long id = nextId++;
+			tweets.add(new CompactTweet(id, now, "user" + (id % 1000),
+					"Simulated tweet " + id, false, 0, 0));
+		}
+		WriteResult result = store.addAll(tweets);
+		storedCount += count - result.getUnprocessed().size()
+				- result.getRejected().size();
+	}
+
+	private void report(long elapsedMillis) {
+		TableDescription table = dynamoDB
+				.getClient()
+				.describeTable(
+						new DescribeTableRequest()
+								.withTableName(PersistentStore.TABLE_NAME))
+				.getTable();
+		StringBuilder capacity = new StringBuilder();
+		capacity.append(table.getTableStatus()).append(" table=")
+				.append(table.getProvisionedThroughput()
+						.getWriteCapacityUnits());
+		if (table.getGlobalSecondaryIndexes() != null) {
+			for (GlobalSecondaryIndexDescription index : table
+					.getGlobalSecondaryIndexes()) {
+				capacity.append(' ').append(index.getIndexName()).append('=')
+						.append(index.getProvisionedThroughput()
+								.getWriteCapacityUnits());
+			}
+		}
+		WriteConcurrencyLimiter limiter = store.getWriteLimiter();
+		System.out.println(String.format(
+				"%6ds stored=%d | %.1f units/s | throttled=%d limit=%d | %s",
+				TimeUnit.MILLISECONDS.toSeconds(elapsedMillis), storedCount,
+				limiter.getUnitsPerSecond(), dynamoDB.getThrottledCount(),
+				limiter.getLimit(), capacity));
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexUpdate;
+import com.amazonaws.services.dynamodbv2.model.IndexStatus;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.UpdateGlobalSecondaryIndexAction;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
+
+/**
+ * <p>
+ * Sizes the write capacity of a DynamoDB table and of its global secondary
+ * indexes to the writes going through its {@link WriteConcurrencyLimiter}.
+ * Every tweet written to the table is written to each index too, so they all
+ * need the same write capacity: an index with less holds back every write
+ * to the table. The tuner gives them all the same capacity, enough for the
+ * units consumed a second to use 60% of it, and never less than the minimum
+ * or more than the maximum configured.
+ * </p>
+ * <p>
+ * Each {@link #tune()} looks at the units consumed and the writes throttled
+ * since the previous one. Capacity goes up when writes were throttled or
+ * used more than 80% of it, at most doubling per update as DynamoDB allows.
+ * It goes down when less than 30% was used, but DynamoDB only allows a few
+ * decreases a day, so they are spread over the day: a table or index is
+ * decreased at most once every 6 hours and never once it has had its 4
+ * decreases of the day. Nothing changes while the table or an index is
+ * being updated. Read capacity is left as configured.
+ * </p>
+ * <p>
+ * The tuner also tells the limiter the capacity in force after each update,
+ * so the writes are paced to it. It talks to DynamoDB through the
+ * {@link AmazonDynamoDB} interface, so it can be run against a stand-in.
+ * </p>
+ * <p>
+ * The limiter only counts the writes of its own JVM, so the tuner must only
+ * run where that JVM is the only one writing to the table. With several
+ * writers, each would size the table to its own share of the writes, shrink
+ * it below what they need together and spend the day's decreases on it.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class CapacityTuner implements Closeable {
+
+	private static final Log LOG = LogFactory.getLog(CapacityTuner.class);
+
+	// the decreases DynamoDB allows a table, and each index, a day
+	static final int MAX_DECREASES_PER_DAY = 4;
+	private static final long DECREASE_INTERVAL_MILLIS = TimeUnit.DAYS
+			.toMillis(1) / MAX_DECREASES_PER_DAY;
+	private static final double TARGET_UTILIZATION = 0.6;
+	private static final double SCALE_UP_UTILIZATION = 0.8;
+	private static final double SCALE_DOWN_UTILIZATION = 0.3;
+	// a decrease has to be worth one of the day's few
+	private static final double MIN_DECREASE_RATIO = 0.8;
+
+	private final AmazonDynamoDB dynamoDB;
+	private final String tableName;
+	private final WriteConcurrencyLimiter limiter;
+	private final long minWriteUnits;
+	private final long maxWriteUnits;
+	private ScheduledExecutorService executor;
+
+	private long lastTuneMillis = System.currentTimeMillis();
+	private double lastConsumedUnits;
+	private long lastThrottledCount;
+
+	/**
+	 * @param dynamoDB
+	 *            the client of the table
+	 * @param tableName
+	 *            the table
+	 * @param limiter
+	 *            the limiter every write to the table goes through
+	 * @param minWriteUnits
+	 *            the least write capacity of the table and of each index
+	 * @param maxWriteUnits
+	 *            the most write capacity of the table and of each index
+	 */
+	public CapacityTuner(AmazonDynamoDB dynamoDB, String tableName,
+			WriteConcurrencyLimiter limiter, long minWriteUnits,
+			long maxWriteUnits) {
+		if (minWriteUnits < 1 || maxWriteUnits < minWriteUnits) {
+			throw new IllegalArgumentException("Invalid write capacity "
+					+ minWriteUnits + " to " + maxWriteUnits);
+		}
+		this.dynamoDB = dynamoDB;
+		this.tableName = tableName;
+		this.limiter = limiter;
+		this.minWriteUnits = minWriteUnits;
+		this.maxWriteUnits = maxWriteUnits;
+		this.lastConsumedUnits = limiter.getConsumedUnits();
+		this.lastThrottledCount = limiter.getThrottledCount();
+	}
+
+	/**
+	 * Tunes the table every interval on a thread of its own.
+	 */
+	public synchronized void start(long intervalMillis) {
+		if (executor != null) {
+			return;
+		}
+		LOG.info("Tuning the write capacity of " + tableName + " between "
+				+ minWriteUnits + " and " + maxWriteUnits + " every "
+				+ intervalMillis + " ms");
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "tweetamo-capacity-tuner");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tune();
+				} catch (RuntimeException e) {
+					LOG.warn("Failed to tune the capacity of " + tableName, e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Compares the writes since the last call with the capacity of the table
+	 * and its indexes, and updates the table if the capacity should change.
+	 *
+	 * @return true if the table was updated
+	 */
+	public synchronized boolean tune() {
+		long now = System.currentTimeMillis();
+		double consumedUnits = limiter.getConsumedUnits();
+		long throttledCount = limiter.getThrottledCount();
+		double seconds = Math.max(1L, now - lastTuneMillis) / 1000.0;
+		double unitsPerSecond = (consumedUnits - lastConsumedUnits) / seconds;
+		long throttled = throttledCount - lastThrottledCount;
+		lastTuneMillis = now;
+		lastConsumedUnits = consumedUnits;
+		lastThrottledCount = throttledCount;
+
+		TableDescription table = dynamoDB.describeTable(
+				new DescribeTableRequest().withTableName(tableName))
+				.getTable();
+		List<Capacity> capacities = capacitiesOf(table);
+		long provisioned = 0;
+		long least = Long.MAX_VALUE;
+		long most = 0;
+		boolean active = TableStatus.ACTIVE.toString().equals(
+				table.getTableStatus());
+		for (Capacity capacity : capacities) {
+			provisioned += capacity.writeUnits;
+			least = Math.min(least, capacity.writeUnits);
+			most = Math.max(most, capacity.writeUnits);
+			active &= capacity.active;
+		}
+		limiter.setProvisionedUnits(provisioned);
+		if (!active) {
+			LOG.debug("Not tuning " + tableName + " while it is updated");
+			return false;
+		}
+
+		// every write goes to the table and to each index alike
+		double unitsPerSecondEach = unitsPerSecond / capacities.size();
+		long wanted = clamp((long) Math.ceil(unitsPerSecondEach
+				/ TARGET_UTILIZATION));
+		if (throttled > 0
+				|| unitsPerSecondEach > SCALE_UP_UTILIZATION * least) {
+			// the writes are held to the capacity, so they may want more
+			// than they consumed
+			wanted = clamp(Math.max(wanted, least < most ? most : 2 * least));
+		} else if (unitsPerSecondEach >= SCALE_DOWN_UTILIZATION * least) {
+			wanted = Math.max(wanted, most);
+		}
+
+		List<Capacity> changes = new ArrayList<Capacity>();
+		for (Capacity capacity : capacities) {
+			long writeUnits = capacity.writeUnits;
+			if (wanted > writeUnits) {
+				writeUnits = Math.min(wanted, 2 * writeUnits);
+			} else if (wanted < writeUnits * MIN_DECREASE_RATIO
+					&& capacity.mayDecrease(now)) {
+				writeUnits = wanted;
+			}
+			if (writeUnits != capacity.writeUnits) {
+				changes.add(capacity.withWriteUnits(writeUnits));
+			}
+		}
+		if (changes.isEmpty()) {
+			return false;
+		}
+		LOG.info("Changing the write capacity of " + tableName + " to "
+				+ changes + ": " + String.format("%.1f", unitsPerSecond)
+				+ " units consumed a second of " + provisioned + ", "
+				+ throttled + " writes throttled");
+		try {
+			dynamoDB.updateTable(newUpdate(changes));
+			return true;
+		} catch (AmazonClientException e) {
+			LOG.warn("Failed to update the capacity of " + tableName, e);
+			return false;
+		}
+	}
+
+	private long clamp(long writeUnits) {
+		return Math.max(minWriteUnits, Math.min(maxWriteUnits, writeUnits));
+	}
+
+	private List<Capacity> capacitiesOf(TableDescription table) {
+		List<Capacity> capacities = new ArrayList<Capacity>();
+		capacities.add(new Capacity(null, table.getProvisionedThroughput(),
+				true));
+		if (table.getGlobalSecondaryIndexes() != null) {
+			for (GlobalSecondaryIndexDescription index : table
+					.getGlobalSecondaryIndexes()) {
+				capacities.add(new Capacity(index.getIndexName(), index
+						.getProvisionedThroughput(), IndexStatus.ACTIVE
+						.toString().equals(index.getIndexStatus())));
+			}
+		}
+		return capacities;
+	}
+
+	private UpdateTableRequest newUpdate(List<Capacity> changes) {
+		UpdateTableRequest request = new UpdateTableRequest()
+				.withTableName(tableName);
+		List<GlobalSecondaryIndexUpdate> indexUpdates = new ArrayList<GlobalSecondaryIndexUpdate>();
+		for (Capacity change : changes) {
+			ProvisionedThroughput throughput = new ProvisionedThroughput()
+					.withReadCapacityUnits(change.readUnits)
+					.withWriteCapacityUnits(change.writeUnits);
+			if (change.indexName == null) {
+				request.setProvisionedThroughput(throughput);
+			} else {
+				indexUpdates.add(new GlobalSecondaryIndexUpdate()
+						.withUpdate(new UpdateGlobalSecondaryIndexAction()
+								.withIndexName(change.indexName)
+								.withProvisionedThroughput(throughput)));
+			}
+		}
+		if (!indexUpdates.isEmpty()) {
+			request.setGlobalSecondaryIndexUpdates(indexUpdates);
+		}
+		return request;
+	}
+
+	/**
+	 * Stops tuning.
+	 */
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * The capacity of the table, or of one of its indexes.
+	 */
+	private static final class Capacity {
+		private final String indexName;
+		private final long readUnits;
+		private final long writeUnits;
+		private final long decreasesToday;
+		private final Date lastDecrease;
+		private final boolean active;
+
+		Capacity(String indexName, ProvisionedThroughputDescription throughput,
+				boolean active) {
+			this(indexName, throughput.getReadCapacityUnits(), throughput
+					.getWriteCapacityUnits(),
+					throughput.getNumberOfDecreasesToday() == null ? 0
+							: throughput.getNumberOfDecreasesToday(),
+					throughput.getLastDecreaseDateTime(), active);
+		}
+
+		private Capacity(String indexName, long readUnits, long writeUnits,
+				long decreasesToday, Date lastDecrease, boolean active) {
+			this.indexName = indexName;
+			this.readUnits = readUnits;
+			this.writeUnits = writeUnits;
+			this.decreasesToday = decreasesToday;
+			this.lastDecrease = lastDecrease;
+			this.active = active;
+		}
+
+		boolean mayDecrease(long now) {
+			return decreasesToday < MAX_DECREASES_PER_DAY
+					&& (lastDecrease == null || now - lastDecrease.getTime() >= DECREASE_INTERVAL_MILLIS);
+		}
+
+		Capacity withWriteUnits(long writeUnits) {
+			return new Capacity(indexName, readUnits, writeUnits,
+					decreasesToday, lastDecrease, active);
+		}
+
+		@Override
+		public String toString() {
+			return (indexName == null ? "table" : indexName) + "="
+					+ writeUnits;
+		}
+	}
+}
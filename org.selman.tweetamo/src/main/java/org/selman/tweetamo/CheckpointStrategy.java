@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+/**
+ * <p>
+ * Decides when a {@link TweetamoRecordProcessor} checkpoints. Checkpointing
+ * often keeps the replay after a failover short but writes to the KCL lease
+ * table, which is throttled like any other DynamoDB table; checkpointing
+ * rarely does the opposite.
+ * </p>
+ * <p>
+ * The processor reports every batch it is handed with
+ * {@link #recordsProcessed(int, long)} and the outcome of every checkpoint
+ * with {@link #checkpointed(long, long, boolean)}, which may come from another
+ * thread.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public abstract class CheckpointStrategy {
+
+	public enum Type {
+		/** Every so many milliseconds */
+		TIME,
+		/** Every so many records */
+		COUNT,
+		/** Every so many bytes of record data */
+		BYTES,
+		/**
+		 * Every so many milliseconds, the interval growing with the latency
+		 * of checkpoints and backing off when they fail
+		 */
+		ADAPTIVE
+	}
+
+	// adaptive checkpoints may take up to 1/200th of the time
+	private static final long ADAPTIVE_LATENCY_FACTOR = 200L;
+	// weight of the latest latency in the moving average
+	private static final double ADAPTIVE_LATENCY_WEIGHT = 0.3;
+
+	private long lastCheckpointMillis = System.currentTimeMillis();
+	private long recordsSinceCheckpoint;
+	private long bytesSinceCheckpoint;
+
+	/**
+	 * @return the strategy the configuration asks for
+	 */
+	public static CheckpointStrategy create(
+			TweetProcessorConfiguration configuration) {
+		switch (configuration.getCheckpointStrategy()) {
+		case COUNT:
+			return everyRecords(configuration.getCheckpointRecords());
+		case BYTES:
+			return everyBytes(configuration.getCheckpointBytes());
+		case ADAPTIVE:
+			return adaptive(configuration.getCheckpointMinIntervalMillis(),
+					configuration.getCheckpointIntervalMillis());
+		default:
+			return everyMillis(configuration.getCheckpointIntervalMillis());
+		}
+	}
+
+	public static CheckpointStrategy everyMillis(final long intervalMillis) {
+		return new CheckpointStrategy() {
+			@Override
+			protected boolean isDue(long now, long millis, long records,
+					long bytes) {
+				return millis >= intervalMillis;
+			}
+
+			@Override
+			public String toString() {
+				return "every " + intervalMillis + " ms";
+			}
+		};
+	}
+
+	public static CheckpointStrategy everyRecords(final long records) {
+		return new CheckpointStrategy() {
+			@Override
+			protected boolean isDue(long now, long millis, long count,
+					long bytes) {
+				return count >= records;
+			}
+
+			@Override
+			public String toString() {
+				return "every " + records + " records";
+			}
+		};
+	}
+
+	public static CheckpointStrategy everyBytes(final long bytes) {
+		return new CheckpointStrategy() {
+			@Override
+			protected boolean isDue(long now, long millis, long records,
+					long count) {
+				return count >= bytes;
+			}
+
+			@Override
+			public String toString() {
+				return "every " + bytes + " bytes";
+			}
+		};
+	}
+
+	/**
+	 * @param minIntervalMillis
+	 *            the shortest interval, used while checkpoints are fast
+	 * @param maxIntervalMillis
+	 *            the longest interval
+	 */
+	public static CheckpointStrategy adaptive(long minIntervalMillis,
+			long maxIntervalMillis) {
+		return new Adaptive(minIntervalMillis, maxIntervalMillis);
+	}
+
+	/**
+	 * Counts the records handed to the processor.
+	 *
+	 * @param records
+	 *            number of records
+	 * @param bytes
+	 *            size of their data
+	 */
+	public synchronized void recordsProcessed(int records, long bytes) {
+		recordsSinceCheckpoint += records;
+		bytesSinceCheckpoint += bytes;
+	}
+
+	/**
+	 * @return true if it is time to checkpoint
+	 */
+	public synchronized boolean isDue(long now) {
+		if (recordsSinceCheckpoint == 0) {
+			// nothing new to checkpoint
+			return false;
+		}
+		return isDue(now, now - lastCheckpointMillis, recordsSinceCheckpoint,
+				bytesSinceCheckpoint);
+	}
+
+	protected abstract boolean isDue(long now, long millisSinceCheckpoint,
+			long recordsSinceCheckpoint, long bytesSinceCheckpoint);
+
+	/**
+	 * Reports the outcome of a checkpoint. The counts start again after a
+	 * successful one; after a failed one the checkpoint stays due.
+	 *
+	 * @param now
+	 *            when the checkpoint finished
+	 * @param latencyMillis
+	 *            how long it took, including retries
+	 * @param succeeded
+	 *            whether it was written
+	 */
+	public synchronized void checkpointed(long now, long latencyMillis,
+			boolean succeeded) {
+		if (succeeded) {
+			lastCheckpointMillis = now;
+			recordsSinceCheckpoint = 0;
+			bytesSinceCheckpoint = 0;
+		}
+	}
+
+	private static final class Adaptive extends CheckpointStrategy {
+		private final long minIntervalMillis;
+		private final long maxIntervalMillis;
+		private final Backoff failureBackoff;
+		private long intervalMillis;
+		private long retryAfterMillis;
+		private double averageLatencyMillis = -1;
+
+		Adaptive(long minIntervalMillis, long maxIntervalMillis) {
+			this.minIntervalMillis = minIntervalMillis;
+			this.maxIntervalMillis = maxIntervalMillis;
+			this.failureBackoff = new Backoff(minIntervalMillis,
+					maxIntervalMillis);
+			this.intervalMillis = minIntervalMillis;
+		}
+
+		@Override
+		protected boolean isDue(long now, long millis, long records, long bytes) {
+			return millis >= intervalMillis && now >= retryAfterMillis;
+		}
+
+		@Override
+		public synchronized void checkpointed(long now, long latencyMillis,
+				boolean succeeded) {
+			super.checkpointed(now, latencyMillis, succeeded);
+			if (succeeded) {
+				failureBackoff.reset();
+				retryAfterMillis = 0;
+				averageLatencyMillis = averageLatencyMillis < 0 ? latencyMillis
+						: ADAPTIVE_LATENCY_WEIGHT * latencyMillis
+								+ (1 - ADAPTIVE_LATENCY_WEIGHT)
+								* averageLatencyMillis;
+				intervalMillis = Math.max(minIntervalMillis, Math.min(
+						maxIntervalMillis,
+						(long) (averageLatencyMillis * ADAPTIVE_LATENCY_FACTOR)));
+			} else {
+				retryAfterMillis = now + failureBackoff.nextDelayMillis();
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "adaptive, every " + intervalMillis + " ms";
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Stops callers from hammering a service that is failing. After a number of
+ * consecutive failures the breaker opens and {@link #acquire()} blocks its
+ * callers. When the open interval has passed a single trial call is let
+ * through: if it succeeds the breaker closes, otherwise it opens again for a
+ * longer, jittered, interval.
+ * </p>
+ * <p>
+ * Callers must report the outcome of every call they were let through with
+ * {@link #recordSuccess()} or {@link #recordFailure()}. A breaker is meant to
+ * be shared by everything that calls the same service.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class CircuitBreaker {
+
+	private static final Log LOG = LogFactory.getLog(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+	private final int failureThreshold;
+	private final Backoff openInterval;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openUntilMillis;
+	private boolean trialInProgress;
+	private long openCount;
+
+	/**
+	 * @param name
+	 *            name of the protected service, for logging
+	 * @param failureThreshold
+	 *            consecutive failures that open the breaker
+	 * @param openMillis
+	 *            how long the breaker first stays open
+	 * @param maxOpenMillis
+	 *            the longest the breaker stays open after repeated failed
+	 *            trials
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long openMillis,
+			long maxOpenMillis) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openInterval = new Backoff(openMillis, maxOpenMillis);
+	}
+
+	/**
+	 * Waits until a call may be made.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (true) {
+			if (state == State.CLOSED) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (state == State.OPEN && now >= openUntilMillis) {
+				state = State.HALF_OPEN;
+				LOG.info("Circuit breaker for " + name + " half open");
+			}
+			if (state == State.HALF_OPEN && !trialInProgress) {
+				trialInProgress = true;
+				return;
+			}
+			long wait = state == State.OPEN ? openUntilMillis - now
+					: TimeUnit.SECONDS.toMillis(1);
+			wait(Math.max(1L, wait));
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		trialInProgress = false;
+		if (state != State.CLOSED) {
+			LOG.info("Circuit breaker for " + name + " closed");
+			state = State.CLOSED;
+			openInterval.reset();
+			notifyAll();
+		}
+	}
+
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		boolean trialFailed = trialInProgress;
+		trialInProgress = false;
+		if (trialFailed || state == State.HALF_OPEN
+				|| (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			long openMillis = openInterval.nextDelayMillis();
+			openUntilMillis = System.currentTimeMillis() + openMillis;
+			state = State.OPEN;
+			openCount++;
+			LOG.warn("Circuit breaker for " + name + " open for "
+					+ openMillis + " ms after " + consecutiveFailures
+					+ " consecutive failures");
+		}
+		notifyAll();
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the number of times the breaker has opened
+	 */
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CircuitBreaker [name=" + name + ", state=" + state
+				+ ", consecutiveFailures=" + consecutiveFailures + "]";
+	}
+}
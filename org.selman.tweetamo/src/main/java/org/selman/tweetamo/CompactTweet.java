@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+/**
+ * An immutable {@link Tweet} holding its fields in memory.
+ *
+ * @author dselman
+ *
+ */
+public final class CompactTweet implements Tweet {
+
+	private final long id;
+	private final long createdAt;
+	private final boolean geoLocation;
+	private final double latitude;
+	private final double longitude;
+	private final String screenName;
+	private final String text;
+	private final long userId;
+	private final String userName;
+	private final String source;
+	private final long inReplyToStatusId;
+	private final long retweetedStatusId;
+	private final long retweetCount;
+
+	CompactTweet(long id, long createdAt, boolean geoLocation,
+			double latitude, double longitude, String screenName, String text,
+			long userId, String userName, String source,
+			long inReplyToStatusId, long retweetedStatusId, long retweetCount) {
+		this.id = id;
+		this.createdAt = createdAt;
+		this.geoLocation = geoLocation;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.screenName = screenName;
+		this.text = text;
+		this.userId = userId;
+		this.userName = userName;
+		this.source = source;
+		this.inReplyToStatusId = inReplyToStatusId;
+		this.retweetedStatusId = retweetedStatusId;
+		this.retweetCount = retweetCount;
+	}
+
+	/**
+	 * Creates a tweet with just the fields kept by {@link PersistentStore}.
+	 */
+	public CompactTweet(long id, long createdAt, String screenName,
+			String text, boolean geoLocation, double latitude, double longitude) {
+		this(id, createdAt, geoLocation, latitude, longitude, screenName, text,
+				-1L, null, null, -1L, -1L, 0L);
+	}
+
+	/**
+	 * @return a copy of the tweet that no longer depends on the object or
+	 *         buffer it was read from
+	 */
+	public static CompactTweet copyOf(Tweet tweet) {
+		if (tweet instanceof CompactTweet) {
+			return (CompactTweet) tweet;
+		}
+		return new CompactTweet(tweet.getId(), tweet.getCreatedAt(),
+				tweet.hasGeoLocation(), tweet.getLatitude(),
+				tweet.getLongitude(), tweet.getScreenName(), tweet.getText(),
+				tweet.getUserId(), tweet.getUserName(), tweet.getSource(),
+				tweet.getInReplyToStatusId(), tweet.getRetweetedStatusId(),
+				tweet.getRetweetCount());
+	}
+
+	@Override
+	public long getId() {
+		return id;
+	}
+
+	@Override
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	@Override
+	public boolean hasGeoLocation() {
+		return geoLocation;
+	}
+
+	@Override
+	public double getLatitude() {
+		return latitude;
+	}
+
+	@Override
+	public double getLongitude() {
+		return longitude;
+	}
+
+	@Override
+	public String getScreenName() {
+		return screenName;
+	}
+
+	@Override
+	public String getText() {
+		return text;
+	}
+
+	@Override
+	public long getUserId() {
+		return userId;
+	}
+
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	@Override
+	public String getSource() {
+		return source;
+	}
+
+	@Override
+	public long getInReplyToStatusId() {
+		return inReplyToStatusId;
+	}
+
+	@Override
+	public long getRetweetedStatusId() {
+		return retweetedStatusId;
+	}
+
+	@Override
+	public long getRetweetCount() {
+		return retweetCount;
+	}
+
+	@Override
+	public String toString() {
+		return "CompactTweet [id=" + id + ", createdAt=" + createdAt
+				+ ", screenName=" + screenName + ", text=" + text + "]";
+	}
+}
@@ -40,6 +40,349 @@ public class ConfigKeys {
      * Value is one of LATEST (most recent data) or TRIM_HORIZON (oldest available data).
      */
     public static final String INITIAL_POSITION_IN_STREAM_KEY = "initialPositionInStream";
+
+    /**
+     * Maximum number of tweets the client buffers in memory before it starts dropping them.
+     */
+    public static final String PRODUCER_QUEUE_CAPACITY_KEY = "producerQueueCapacity";
+
+    /**
+     * Maximum number of records the client sends to Kinesis in one batch.
+     */
+    public static final String PRODUCER_MAX_BATCH_RECORDS_KEY = "producerMaxBatchRecords";
+
+    /**
+     * Maximum size of a batch in bytes (record data plus partition keys).
+     */
+    public static final String PRODUCER_MAX_BATCH_BYTES_KEY = "producerMaxBatchBytes";
+
+    /**
+     * Maximum time in milliseconds a tweet waits for its batch to fill before the batch is sent anyway.
+     */
+    public static final String PRODUCER_LINGER_MILLIS_KEY = "producerLingerMillis";
+
+    /**
+     * Maximum number of batches being sent to Kinesis at the same time.
+     */
+    public static final String PRODUCER_MAX_IN_FLIGHT_KEY = "producerMaxInFlight";
+
+    /**
+     * Number of times the records of a batch that failed to send are retried before they are dropped.
+     */
+    public static final String PRODUCER_MAX_RETRIES_KEY = "producerMaxRetries";
+
+    /**
+     * Milliseconds to wait, with jitter, before the first retry of a failed batch, doubled for each further retry.
+     */
+    public static final String PRODUCER_RETRY_BACKOFF_MILLIS_KEY = "producerRetryBackoffMillis";
+
+    /**
+     * Whether the client packs many tweets into each Kinesis record (true or false).
+     */
+    public static final String PRODUCER_AGGREGATION_ENABLED_KEY = "producerAggregationEnabled";
+
+    /**
+     * Maximum size in bytes of a Kinesis record holding many tweets.
+     */
+    public static final String PRODUCER_MAX_AGGREGATED_RECORD_BYTES_KEY = "producerMaxAggregatedRecordBytes";
+
+    /**
+     * Directory of the journal the producer spills tweets to when it can't send them, sent once Kinesis recovers
+     * (empty for no journal, in which case such tweets are dropped).
+     */
+    public static final String PRODUCER_SPILL_DIRECTORY_KEY = "producerSpillDirectory";
+
+    /**
+     * Size in bytes of each memory-mapped segment file of the spill journal.
+     */
+    public static final String PRODUCER_SPILL_SEGMENT_BYTES_KEY = "producerSpillSegmentBytes";
+
+    /**
+     * Most disk space in bytes the spill journal may take; tweets are dropped beyond it.
+     */
+    public static final String PRODUCER_SPILL_MAX_BYTES_KEY = "producerSpillMaxBytes";
+
+    /**
+     * How often in milliseconds the producer describes the stream to route tweets to its shards (0 to route them by
+     * partition key only and never spread hot screen names).
+     */
+    public static final String PRODUCER_SHARD_MAP_REFRESH_MILLIS_KEY = "producerShardMapRefreshMillis";
+
+    /**
+     * Share of an even split of the tweets over the shards above which the tweets of a screen name are spread over
+     * all shards, e.g. 0.5 for a screen name sending more than half of what each shard would get.
+     */
+    public static final String PRODUCER_HOT_KEY_SHARE_KEY = "producerHotKeyShare";
+
+    /**
+     * Number of screen names whose rates the producer tracks to find hot ones.
+     */
+    public static final String PRODUCER_HOT_KEY_CAPACITY_KEY = "producerHotKeyCapacity";
+
+    /**
+     * Records a second the producer sends to each shard, at most (0 not to govern the rate; needs the shard map).
+     */
+    public static final String PRODUCER_SHARD_RECORDS_PER_SECOND_KEY = "producerShardRecordsPerSecond";
+
+    /**
+     * Bytes a second the producer sends to each shard, at most.
+     */
+    public static final String PRODUCER_SHARD_BYTES_PER_SECOND_KEY = "producerShardBytesPerSecond";
+
+    /**
+     * What the producer does with a record its shard can't take yet: BLOCK, SPILL or DROP.
+     */
+    public static final String PRODUCER_THROTTLE_POLICY_KEY = "producerThrottlePolicy";
+
+    /**
+     * Fields the client writes for each tweet. Value is one of FULL (all fields), STORE (only the fields
+     * kept in DynamoDB) or a comma separated list of TweetField names.
+     */
+    public static final String SERIALIZER_PROFILE_KEY = "serializerProfile";
+
+    /**
+     * Compression applied by the client to each tweet. Value is one of NONE, DEFLATE or LZ.
+     */
+    public static final String SERIALIZER_CODEC_KEY = "serializerCodec";
+
+    /**
+     * Compression dictionary files, trained with DictionaryTrainer. The client compresses with the first one;
+     * the server registers all of them so it can read records compressed with any of them.
+     */
+    public static final String SERIALIZER_DICTIONARY_KEY = "serializerDictionary";
+
+    /**
+     * Directory where the server keeps records it could not process, for replay with DeadLetterReplayer.
+     */
+    public static final String PROCESSOR_DEAD_LETTER_DIRECTORY_KEY = "processorDeadLetterDirectory";
+
+    /**
+     * Initial delay in milliseconds before retrying a failed write to DynamoDB.
+     */
+    public static final String PROCESSOR_RETRY_BASE_MILLIS_KEY = "processorRetryBaseMillis";
+
+    /**
+     * Longest delay in milliseconds between retries of a failed write to DynamoDB.
+     */
+    public static final String PROCESSOR_RETRY_MAX_MILLIS_KEY = "processorRetryMaxMillis";
+
+    /**
+     * Consecutive failed writes to DynamoDB after which all shards pause writing.
+     */
+    public static final String PROCESSOR_BREAKER_FAILURE_THRESHOLD_KEY = "processorBreakerFailureThreshold";
+
+    /**
+     * How long in milliseconds writing first pauses once DynamoDB keeps failing.
+     */
+    public static final String PROCESSOR_BREAKER_OPEN_MILLIS_KEY = "processorBreakerOpenMillis";
+
+    /**
+     * Longest pause in milliseconds when DynamoDB keeps failing.
+     */
+    public static final String PROCESSOR_BREAKER_MAX_OPEN_MILLIS_KEY = "processorBreakerMaxOpenMillis";
+
+    /**
+     * Minutes of processed tweets the server keeps in memory for the recent tweets report.
+     */
+    public static final String PROCESSOR_RECENT_TWEETS_MINUTES_KEY = "processorRecentTweetsMinutes";
+
+    /**
+     * Most processed tweets kept in memory for each minute.
+     */
+    public static final String PROCESSOR_RECENT_TWEETS_PER_MINUTE_KEY = "processorRecentTweetsPerMinute";
+
+    /**
+     * Tweets each shard is expected to store between checkpoints, used to size its duplicate filter. 0 turns
+     * duplicate suppression off.
+     */
+    public static final String PROCESSOR_DEDUPE_EXPECTED_IDS_KEY = "processorDedupeExpectedIds";
+
+    /**
+     * Ids of stored tweets each shard remembers exactly, to drop replayed records without reading DynamoDB.
+     */
+    public static final String PROCESSOR_DEDUPE_RECENT_IDS_KEY = "processorDedupeRecentIds";
+
+    /**
+     * When the server checkpoints: time, count, bytes or adaptive (see CheckpointStrategy.Type).
+     */
+    public static final String PROCESSOR_CHECKPOINT_STRATEGY_KEY = "processorCheckpointStrategy";
+
+    /**
+     * Milliseconds between checkpoints with the time strategy, and the longest interval with the adaptive one.
+     */
+    public static final String PROCESSOR_CHECKPOINT_INTERVAL_MILLIS_KEY = "processorCheckpointIntervalMillis";
+
+    /**
+     * Shortest interval in milliseconds between checkpoints with the adaptive strategy.
+     */
+    public static final String PROCESSOR_CHECKPOINT_MIN_INTERVAL_MILLIS_KEY = "processorCheckpointMinIntervalMillis";
+
+    /**
+     * Records between checkpoints with the count strategy.
+     */
+    public static final String PROCESSOR_CHECKPOINT_RECORDS_KEY = "processorCheckpointRecords";
+
+    /**
+     * Bytes of record data between checkpoints with the bytes strategy.
+     */
+    public static final String PROCESSOR_CHECKPOINT_BYTES_KEY = "processorCheckpointBytes";
+
+    /**
+     * Most records the server reads from a shard at once (at most 10000).
+     */
+    public static final String FETCH_MAX_RECORDS_KEY = "fetchMaxRecords";
+
+    /**
+     * Milliseconds the server waits between reads of a shard; also the first pause after an empty read.
+     */
+    public static final String FETCH_IDLE_TIME_BETWEEN_READS_MILLIS_KEY = "fetchIdleTimeBetweenReadsMillis";
+
+    /**
+     * Longest pause in milliseconds between reads of a shard that keeps coming back empty.
+     */
+    public static final String FETCH_MAX_IDLE_MILLIS_KEY = "fetchMaxIdleMillis";
+
+    /**
+     * How old in milliseconds the newest tweet read from a shard may be before the shard counts as behind and is
+     * read without pausing.
+     */
+    public static final String FETCH_BEHIND_THRESHOLD_MILLIS_KEY = "fetchBehindThresholdMillis";
+
+    /**
+     * Whether the server's processors see empty reads (true or false), which they need to back off on quiet shards.
+     */
+    public static final String FETCH_DELIVER_EMPTY_BATCHES_KEY = "fetchDeliverEmptyBatches";
+
+    /**
+     * Where the server stores tweets: dynamodb (the default) or local, log files on local disk (see
+     * TweetStores.Backend).
+     */
+    public static final String STORE_BACKEND_KEY = "storeBackend";
+
+    /**
+     * Directory of the log files of the local store.
+     */
+    public static final String STORE_DIRECTORY_KEY = "storeDirectory";
+
+    /**
+     * Size in bytes at which the local store starts a new log file.
+     */
+    public static final String STORE_SEGMENT_BYTES_KEY = "storeSegmentBytes";
+
+    /**
+     * Whether the local store forces each write to disk before acknowledging it (true or false).
+     */
+    public static final String STORE_SYNC_KEY = "storeSync";
+
+    /**
+     * Region of the DynamoDB table, e.g. us-east-1.
+     */
+    public static final String STORE_DYNAMO_REGION_KEY = "storeDynamoRegion";
+
+    /**
+     * Read capacity units the DynamoDB table is created with.
+     */
+    public static final String STORE_DYNAMO_READ_CAPACITY_KEY = "storeDynamoReadCapacity";
+
+    /**
+     * Write capacity units the DynamoDB table is created with.
+     */
+    public static final String STORE_DYNAMO_WRITE_CAPACITY_KEY = "storeDynamoWriteCapacity";
+
+    /**
+     * Share of the write capacity of the DynamoDB table and its indexes the writes are paced to, e.g. 0.9.
+     */
+    public static final String STORE_DYNAMO_WRITE_UTILIZATION_KEY = "storeDynamoWriteUtilization";
+
+    /**
+     * Read capacity units the indexes of the DynamoDB table are created with. They are created with the write
+     * capacity of the table, since every write to the table is also a write to each index.
+     */
+    public static final String STORE_DYNAMO_INDEX_READ_CAPACITY_KEY = "storeDynamoIndexReadCapacity";
+
+    /**
+     * Most write capacity units the capacity tuner gives the DynamoDB table or one of its indexes. The tuner never
+     * goes below storeDynamoWriteCapacity.
+     */
+    public static final String STORE_DYNAMO_MAX_WRITE_CAPACITY_KEY = "storeDynamoMaxWriteCapacity";
+
+    /**
+     * Milliseconds between two runs of the capacity tuner, which sizes the write capacity of the DynamoDB table and
+     * its indexes to the writes (0, the default, to leave the capacity as it is). The tuner only sees the writes of
+     * its own server, so turn it on for a single server writing to the table, never for several.
+     */
+    public static final String STORE_DYNAMO_TUNE_INTERVAL_MILLIS_KEY = "storeDynamoTuneIntervalMillis";
+
+    /**
+     * Layout of the tweets written to the DynamoDB table: attributes (the default), an attribute per field, or blob,
+     * the tweet compressed into one binary attribute. Tweets are read in either layout. A table created while it is
+     * blob projects little more than its keys into its indexes.
+     */
+    public static final String STORE_DYNAMO_ITEM_LAYOUT_KEY = "storeDynamoItemLayout";
+
+    /**
+     * Port of the HTTP endpoint serving the client's or the server's metrics at /metrics, in the Prometheus text
+     * format (0, the default, for no endpoint). The metrics are also registered with JMX.
+     */
+    public static final String METRICS_HTTP_PORT_KEY = "metricsHttpPort";
+
+    /**
+     * Number of shards of the in-memory stream the load generator runs against.
+     */
+    public static final String LOAD_SHARDS_KEY = "loadShards";
+
+    /**
+     * Synthetic tweets the load generator sends per second.
+     */
+    public static final String LOAD_RATE_KEY = "loadRate";
+
+    /**
+     * How long the load generator sends tweets for, in seconds.
+     */
+    public static final String LOAD_DURATION_SECONDS_KEY = "loadDurationSeconds";
+
+    /**
+     * Mean length of the text of a synthetic tweet, in characters.
+     */
+    public static final String LOAD_TEXT_MEAN_LENGTH_KEY = "loadTextMeanLength";
+
+    /**
+     * Standard deviation of the length of the text of a synthetic tweet; lengths are kept between 1 and 140.
+     */
+    public static final String LOAD_TEXT_STDDEV_LENGTH_KEY = "loadTextStdDevLength";
+
+    /**
+     * Number of distinct screen names the synthetic tweets are sent from.
+     */
+    public static final String LOAD_SCREEN_NAMES_KEY = "loadScreenNames";
+
+    /**
+     * Exponent of the Zipf distribution of the screen names over the synthetic tweets; 0 spreads them evenly,
+     * higher values send more of the tweets from the most active names.
+     */
+    public static final String LOAD_ZIPF_EXPONENT_KEY = "loadZipfExponent";
+
+    /**
+     * Fraction of the synthetic tweets that are geo-tagged, from 0 to 1.
+     */
+    public static final String LOAD_GEO_RATIO_KEY = "loadGeoRatio";
+
+    /**
+     * File of recorded tweets the load generator replays instead of generating tweets, one per line: the creation
+     * time in ms since the epoch, the screen name and the text, separated by tabs, optionally followed by a latitude
+     * and a longitude.
+     */
+    public static final String LOAD_REPLAY_FILE_KEY = "loadReplayFile";
+
+    /**
+     * How much faster than recorded the tweets of the replay file are sent, e.g. 1 for real time or 10.
+     */
+    public static final String LOAD_REPLAY_SPEED_KEY = "loadReplaySpeed";
+
+    /**
+     * How often the load generator reports its progress, in seconds.
+     */
+    public static final String LOAD_REPORT_INTERVAL_SECONDS_KEY = "loadReportIntervalSeconds";
     
     private ConfigKeys() {        
     }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A record, or a tweet from an aggregated record, that could not be
+ * processed. It keeps the raw bytes so that it can be replayed once the
+ * cause has been fixed.
+ *
+ * @author dselman
+ *
+ */
+public final class DeadLetter {
+
+	private final String shardId;
+	private final String sequenceNumber;
+	private final String partitionKey;
+	private final long timestamp;
+	private final String reason;
+	private final byte[] data;
+
+	public DeadLetter(String shardId, String sequenceNumber,
+			String partitionKey, long timestamp, String reason, byte[] data) {
+		this.shardId = shardId;
+		this.sequenceNumber = sequenceNumber;
+		this.partitionKey = partitionKey;
+		this.timestamp = timestamp;
+		this.reason = reason;
+		this.data = data;
+	}
+
+	/**
+	 * Creates a dead letter for the remaining bytes of a buffer, now.
+	 */
+	public static DeadLetter of(String shardId, String sequenceNumber,
+			String partitionKey, String reason, ByteBuffer data) {
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return new DeadLetter(shardId, sequenceNumber, partitionKey,
+				System.currentTimeMillis(), reason, bytes);
+	}
+
+	public String getShardId() {
+		return shardId;
+	}
+
+	public String getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	public String getPartitionKey() {
+		return partitionKey;
+	}
+
+	/**
+	 * @return when the record was dead lettered, in ms since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return "DeadLetter [shardId=" + shardId + ", sequenceNumber="
+				+ sequenceNumber + ", reason=" + reason + ", size="
+				+ data.length + "]";
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+
+/**
+ * <p>
+ * Puts the records kept by a {@link FileDeadLetterSink} back on the stream,
+ * typically once the bug or outage that made them fail has been fixed. Files
+ * that have been replayed completely are renamed with a
+ * <code>.replayed</code> suffix so they are not replayed twice; a file that
+ * fails part way is left in place and can be replayed again, since storing a
+ * tweet twice is harmless.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class DeadLetterReplayer {
+
+	private static final Log LOG = LogFactory.getLog(DeadLetterReplayer.class);
+
+	private static final int MAX_ATTEMPTS = 10;
+
+	private final AmazonKinesis kinesis;
+	private final String streamName;
+
+	public DeadLetterReplayer(AmazonKinesis kinesis, String streamName) {
+		this.kinesis = kinesis;
+		this.streamName = streamName;
+	}
+
+	/**
+	 * @param args
+	 *            a dead letter file or directory, and optionally the stream
+	 *            name
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java "
+					+ DeadLetterReplayer.class.getName()
+					+ " <deadLetterFileOrDirectory> [streamName]");
+			System.exit(1);
+		}
+		String streamName = args.length > 1 ? args[1]
+				: TweetamoClient.STREAM_NAME;
+		DeadLetterReplayer replayer = new DeadLetterReplayer(
+				new AmazonKinesisClient(
+						new ClasspathPropertiesFileCredentialsProvider()),
+				streamName);
+
+		File location = new File(args[0]);
+		File[] files = location.isDirectory() ? location
+				.listFiles(new FileFilter() {
+					@Override
+					public boolean accept(File file) {
+						return file.getName().endsWith(
+								FileDeadLetterSink.FILE_SUFFIX);
+					}
+				}) : new File[] { location };
+
+		int exitCode = 0;
+		for (File file : files) {
+			try {
+				int count = replayer.replay(file);
+				System.out.println("Replayed " + count + " records from "
+						+ file);
+			} catch (Exception e) {
+				LOG.error("Failed to replay " + file, e);
+				exitCode = 1;
+			}
+		}
+		System.exit(exitCode);
+	}
+
+	/**
+	 * Replays the dead letters in a file and renames it once they have all
+	 * been put on the stream.
+	 *
+	 * @return the number of records replayed
+	 */
+	public int replay(File file) throws IOException, InterruptedException {
+		List<DeadLetter> deadLetters = FileDeadLetterSink.read(file);
+		for (DeadLetter deadLetter : deadLetters) {
+			put(deadLetter);
+		}
+		File replayed = new File(file.getPath() + ".replayed");
+		if (!file.renameTo(replayed)) {
+			throw new IOException("Replayed " + file
+					+ " but couldn't rename it to " + replayed);
+		}
+		return deadLetters.size();
+	}
+
+	private void put(DeadLetter deadLetter) throws InterruptedException {
+		String partitionKey = deadLetter.getPartitionKey();
+		if (partitionKey == null || partitionKey.isEmpty()) {
+			partitionKey = deadLetter.getSequenceNumber();
+		} else {
+			// the tweets of a hot screen name were spread over the shards;
+			// replayed ones go back to the screen name's own shard
+			partitionKey = ShardPartitioner.unsalt(partitionKey);
+		}
+		PutRecordRequest putRecordRequest = new PutRecordRequest()
+				.withStreamName(streamName)
+				.withData(ByteBuffer.wrap(deadLetter.getData()))
+				.withPartitionKey(partitionKey);
+
+		Backoff backoff = new Backoff(100L, 10000L);
+		while (true) {
+			try {
+				kinesis.putRecord(putRecordRequest);
+				return;
+			} catch (AmazonClientException e) {
+				if (!Failures.isTransient(e)
+						|| backoff.getAttempts() >= MAX_ATTEMPTS - 1) {
+					throw e;
+				}
+				LOG.debug("Retrying replay of " + deadLetter, e);
+				backoff.sleep();
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+
+/**
+ * Where records that could not be processed are kept, so that a bad record
+ * does not stall its shard and is not lost either.
+ *
+ * @author dselman
+ *
+ */
+public interface DeadLetterSink {
+
+	/**
+	 * Stores a dead letter. When this returns the dead letter must be
+	 * durable, since the record will be checkpointed past.
+	 */
+	void write(DeadLetter deadLetter) throws IOException;
+
+	void close() throws IOException;
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Trains a compression dictionary from a sample of tweets and saves it for
+ * use by the client and server (see
+ * {@link ConfigKeys#SERIALIZER_DICTIONARY_KEY}).
+ * </p>
+ * <p>
+ * The sample file has one tweet per line: the screen name, a tab and the
+ * text. The CompressionBenchmark of the benchmarks module measures a
+ * dictionary trained from the same kind of file.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class DictionaryTrainer {
+
+	private DictionaryTrainer() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: java "
+					+ DictionaryTrainer.class.getName()
+					+ " <sampleFile> <dictionaryFile> [dictionaryId]");
+			System.exit(1);
+		}
+
+		List<Tweet> tweets = readSample(new File(args[0]));
+		if (tweets.isEmpty()) {
+			System.err.println("The sample has no tweets");
+			System.exit(1);
+		}
+		int dictionaryId = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		long start = System.nanoTime();
+		TweetDictionary dictionary = train(dictionaryId, tweets);
+		System.out.println("Trained " + dictionary + " from " + tweets.size()
+				+ " tweets in " + (System.nanoTime() - start) / 1000000
+				+ " ms");
+		dictionary.save(new File(args[1]));
+		System.out.println("Saved dictionary to " + args[1]);
+	}
+
+	/**
+	 * Trains a dictionary of the default size from tweets serialized in
+	 * full.
+	 */
+	static TweetDictionary train(int id, List<Tweet> tweets)
+			throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		for (Tweet tweet : tweets) {
+			ByteBuffer data = TweetSerializer.toBytes(tweet, TweetProfile.FULL);
+			byte[] bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+			samples.add(bytes);
+		}
+		return TweetDictionary.train(id, samples, TweetDictionary.DEFAULT_SIZE);
+	}
+
+	/**
+	 * Reads a sample file, skipping lines without a screen name.
+	 */
+	static List<Tweet> readSample(File file) throws IOException {
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), TweetSerializer.UTF8));
+		try {
+			long id = 380000000000000000L;
+			long createdAt = System.currentTimeMillis();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab <= 0) {
+					continue;
+				}
+				tweets.add(new CompactTweet(id++, createdAt++, line.substring(
+						0, tab), line.substring(tab + 1), false, 0, 0));
+			}
+		} finally {
+			reader.close();
+		}
+		return tweets;
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Remembers the ids of the tweets a shard has stored since its last
+ * checkpoint, so that the records the KCL replays after a lease moves or a
+ * checkpoint is missed don't cost a second write.
+ * </p>
+ * <p>
+ * Ids go into a Bloom filter, which takes about 10 bits per id, and into a
+ * small exact LRU of the most recent ids. A tweet whose id is in the LRU is
+ * a duplicate. One that the Bloom filter knows but the LRU has forgotten is
+ * only a probable duplicate, since the Bloom filter gives false positives,
+ * and has to be {@link #confirm confirmed} before it is dropped; dropping it
+ * on the Bloom filter's word alone could lose a tweet.
+ * </p>
+ * <p>
+ * The Bloom filter has two generations. A checkpoint {@link #rotate rotates}
+ * them: records before the checkpoint before last can't be replayed any
+ * more, so their generation is discarded. A generation that fills up before
+ * a checkpoint is rotated too, which keeps the false positive rate near its
+ * target at the cost of forgetting older ids.
+ * </p>
+ * <p>
+ * Each shard has its own filter, which outlives the processor of the shard so
+ * that it is still there if the lease comes back to this worker.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class DuplicateFilter {
+
+	public enum Verdict {
+		/** Never seen */
+		NEW,
+		/** Seen for sure */
+		DUPLICATE,
+		/** The Bloom filter has seen it, or an id that hashes the same */
+		PROBABLE_DUPLICATE
+	}
+
+	private final int expectedIds;
+	private final double targetFalsePositiveRate;
+
+	private BloomFilter current;
+	private BloomFilter previous;
+	private final LinkedHashMap<Long, Boolean> recent;
+
+	private long checkedCount;
+	private long newCount;
+	private long duplicateCount;
+	private long probableCount;
+	private long falsePositiveCount;
+	private long rotationCount;
+
+	/**
+	 * @param expectedIds
+	 *            ids stored between checkpoints; a generation holding more is
+	 *            rotated early
+	 * @param targetFalsePositiveRate
+	 *            the false positive rate of a full generation
+	 * @param lruCapacity
+	 *            the number of ids remembered exactly
+	 */
+	public DuplicateFilter(int expectedIds, double targetFalsePositiveRate,
+			final int lruCapacity) {
+		this.expectedIds = expectedIds;
+		this.targetFalsePositiveRate = targetFalsePositiveRate;
+		this.current = new BloomFilter(expectedIds, targetFalsePositiveRate);
+		this.recent = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+				return size() > lruCapacity;
+			}
+		};
+	}
+
+	/**
+	 * @return whether a tweet with the id has been stored
+	 */
+	public synchronized Verdict check(long id) {
+		checkedCount++;
+		if (recent.get(id) != null) {
+			duplicateCount++;
+			return Verdict.DUPLICATE;
+		}
+		if (current.mightContain(id)
+				|| (previous != null && previous.mightContain(id))) {
+			probableCount++;
+			return Verdict.PROBABLE_DUPLICATE;
+		}
+		newCount++;
+		return Verdict.NEW;
+	}
+
+	/**
+	 * Records whether a {@link Verdict#PROBABLE_DUPLICATE probable duplicate}
+	 * turned out to be stored already, which is how the false positive rate
+	 * is measured.
+	 */
+	public synchronized void confirm(long id, boolean stored) {
+		if (stored) {
+			duplicateCount++;
+			recent.put(id, Boolean.TRUE);
+		} else {
+			falsePositiveCount++;
+		}
+	}
+
+	/**
+	 * Remembers that a tweet has been stored.
+	 */
+	public synchronized void add(long id) {
+		if (current.getCount() >= expectedIds) {
+			rotate();
+		}
+		current.add(id);
+		recent.put(id, Boolean.TRUE);
+	}
+
+	/**
+	 * Starts a new generation, forgetting the ids of the oldest one. Called
+	 * after each checkpoint.
+	 */
+	public synchronized void rotate() {
+		previous = current;
+		current = new BloomFilter(expectedIds, targetFalsePositiveRate);
+		rotationCount++;
+	}
+
+	public synchronized long getCheckedCount() {
+		return checkedCount;
+	}
+
+	/**
+	 * @return the number of ids found to be duplicates, exactly or after
+	 *         confirmation
+	 */
+	public synchronized long getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	public synchronized long getProbableCount() {
+		return probableCount;
+	}
+
+	public synchronized long getFalsePositiveCount() {
+		return falsePositiveCount;
+	}
+
+	public synchronized long getRotationCount() {
+		return rotationCount;
+	}
+
+	/**
+	 * @return the share of the new ids the Bloom filter mistook for
+	 *         duplicates, as measured by {@link #confirm}
+	 */
+	public synchronized double getFalsePositiveRate() {
+		long negatives = newCount + falsePositiveCount;
+		return negatives == 0 ? 0 : (double) falsePositiveCount / negatives;
+	}
+
+	/**
+	 * @return the false positive rate the Bloom filter should have at its
+	 *         current fill
+	 */
+	public synchronized double getExpectedFalsePositiveRate() {
+		double rate = current.getFalsePositiveRate();
+		if (previous != null) {
+			rate = 1 - (1 - rate) * (1 - previous.getFalsePositiveRate());
+		}
+		return rate;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DuplicateFilter [checked=" + checkedCount + ", duplicates="
+				+ duplicateCount + ", probable=" + probableCount
+				+ ", falsePositives=" + falsePositiveCount
+				+ ", falsePositiveRate="
+				+ String.format("%.5f", getFalsePositiveRate())
+				+ ", expectedFalsePositiveRate="
+				+ String.format("%.5f", getExpectedFalsePositiveRate())
+				+ ", rotations=" + rotationCount + ", lruSize="
+				+ recent.size() + "]";
+	}
+
+	/**
+	 * A Bloom filter of longs, using double hashing of a 64 bit mix of the
+	 * id to derive the bit positions.
+	 */
+	static final class BloomFilter {
+		private final long[] bits;
+		private final int bitCount;
+		private final int hashCount;
+		private int count;
+
+		BloomFilter(int expectedIds, double falsePositiveRate) {
+			// m = -n ln p / (ln 2)^2, k = m / n ln 2
+			long m = (long) Math.ceil(-expectedIds
+					* Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+			this.bitCount = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE));
+			this.hashCount = Math.max(1,
+					(int) Math.round((double) bitCount / expectedIds
+							* Math.log(2)));
+			this.bits = new long[(bitCount + 63) >>> 6];
+		}
+
+		void add(long id) {
+			long hash = mix(id);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 0; i < hashCount; i++) {
+				int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+				bits[bit >>> 6] |= 1L << bit;
+			}
+			count++;
+		}
+
+		boolean mightContain(long id) {
+			long hash = mix(id);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 0; i < hashCount; i++) {
+				int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+				if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return (1 - e^(-kn/m))^k
+		 */
+		double getFalsePositiveRate() {
+			return Math.pow(
+					1 - Math.exp(-(double) hashCount * count / bitCount),
+					hashCount);
+		}
+
+		/**
+		 * The finalizer of MurmurHash3, so that ids close together don't
+		 * set bits close together.
+		 */
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Sorts failures into transient ones, which may succeed if retried, and
+ * deterministic ones, which will fail again however often they are retried.
+ *
+ * @author dselman
+ *
+ */
+final class Failures {
+
+	private Failures() {
+	}
+
+	/**
+	 * @return true if retrying the failed operation may succeed
+	 */
+	static boolean isTransient(Throwable t) {
+		if (isThrottling(t)) {
+			return true;
+		}
+		if (t instanceof AmazonServiceException) {
+			AmazonServiceException ase = (AmazonServiceException) t;
+			// 4xx means the request itself was rejected
+			return ase.getStatusCode() >= 500
+					|| ase.getErrorType() == AmazonServiceException.ErrorType.Service;
+		}
+		// the request didn't reach the service, e.g. a network problem
+		return t instanceof AmazonClientException || t instanceof IOException;
+	}
+
+	/**
+	 * @return true if the service refused the request because the caller
+	 *         exceeded its provisioned or request rate
+	 */
+	static boolean isThrottling(Throwable t) {
+		if (!(t instanceof AmazonServiceException)) {
+			return false;
+		}
+		String errorCode = ((AmazonServiceException) t).getErrorCode();
+		return errorCode != null
+				&& (errorCode.contains("Throttl")
+						|| errorCode.equals("ProvisionedThroughputExceededException")
+						|| errorCode.equals("RequestLimitExceeded"));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+/**
+ * <p>
+ * Paces the reads of a shard. The KCL reads a shard by calling GetRecords,
+ * handing the records to processRecords and waiting for it to return before
+ * reading again, so how long processRecords takes sets the pace. The
+ * controller works out how long the processor should pause before returning:
+ * </p>
+ * <ul>
+ * <li>while the shard is behind, not at all, so it is read as fast as the
+ * KCL idle time and the stream's read limits allow;</li>
+ * <li>while it is caught up and records keep coming, not at all either, to
+ * keep the delay between a tweet and its storage short;</li>
+ * <li>while reads come back empty, for longer and longer, from the minimum
+ * to the maximum idle time, so a quiet shard doesn't use up read
+ * capacity.</li>
+ * </ul>
+ * <p>
+ * The KCL and the AWS SDK used here don't report MillisBehindLatest, so how
+ * far behind a shard is comes from the age of its newest tweet when it was
+ * decoded. An empty read while the shard is behind, which happens while
+ * reading across gaps in old data, doesn't count as caught up.
+ * </p>
+ * <p>
+ * A controller is used by the single thread calling processRecords.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+class FetchController {
+
+	private final int maxRecords;
+	private final long minIdleMillis;
+	private final long maxIdleMillis;
+	private final long behindThresholdMillis;
+
+	private long idleMillis;
+	private long emptyReads;
+	private boolean behind;
+
+	/**
+	 * @param maxRecords
+	 *            the most records a read returns; a full read means the
+	 *            shard is behind
+	 * @param minIdleMillis
+	 *            the first pause after an empty read
+	 * @param maxIdleMillis
+	 *            the longest pause
+	 * @param behindThresholdMillis
+	 *            how old the newest tweet may be for the shard to count as
+	 *            caught up
+	 */
+	FetchController(int maxRecords, long minIdleMillis, long maxIdleMillis,
+			long behindThresholdMillis) {
+		this.maxRecords = maxRecords;
+		this.minIdleMillis = minIdleMillis;
+		this.maxIdleMillis = maxIdleMillis;
+		this.behindThresholdMillis = behindThresholdMillis;
+	}
+
+	/**
+	 * @param records
+	 *            the number of records the last read returned
+	 * @param lagMillis
+	 *            how far behind the shard is, or -1 if not known
+	 * @param elapsedMillis
+	 *            how long the records took to process, which counts toward
+	 *            the pause
+	 * @return how long to pause before returning from processRecords
+	 */
+	long pauseMillis(int records, long lagMillis, long elapsedMillis) {
+		behind = records >= maxRecords || lagMillis >= behindThresholdMillis;
+		if (records > 0 || behind) {
+			idleMillis = 0;
+			emptyReads = 0;
+			return 0;
+		}
+		emptyReads++;
+		idleMillis = idleMillis == 0 ? minIdleMillis : Math.min(maxIdleMillis,
+				idleMillis * 2);
+		return Math.max(0, idleMillis - elapsedMillis);
+	}
+
+	boolean isBehind() {
+		return behind;
+	}
+
+	@Override
+	public String toString() {
+		return "FetchController [behind=" + behind + ", idleMillis="
+				+ idleMillis + ", emptyReads=" + emptyReads + "]";
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Appends dead letters to files in a local directory, one file per shard
+ * named <code>&lt;shardId&gt;.dlq</code>. Each write is synced to disk before
+ * it returns.
+ * </p>
+ * <p>
+ * The files can be read back with {@link #read(File)} and replayed with the
+ * {@link DeadLetterReplayer}.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class FileDeadLetterSink implements DeadLetterSink {
+
+	private static final Log LOG = LogFactory.getLog(FileDeadLetterSink.class);
+
+	public static final String FILE_SUFFIX = ".dlq";
+
+	private static final int ENTRY_MAGIC = 0x444C5131; // "DLQ1"
+	private static final int MAX_REASON_LENGTH = 1000;
+
+	private final File directory;
+	private final Map<String, FileOutputStream> files = new HashMap<String, FileOutputStream>();
+
+	/**
+	 * @param directory
+	 *            where the files are written, created when the first dead
+	 *            letter arrives
+	 */
+	public FileDeadLetterSink(File directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public synchronized void write(DeadLetter deadLetter) throws IOException {
+		FileOutputStream file = files.get(deadLetter.getShardId());
+		if (file == null) {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Can't create dead letter directory "
+						+ directory);
+			}
+			file = new FileOutputStream(new File(directory,
+					fileName(deadLetter.getShardId())), true);
+			files.put(deadLetter.getShardId(), file);
+		}
+
+		// write the entry in one piece so a crash can only truncate the tail
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				deadLetter.getData().length + 128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(ENTRY_MAGIC);
+		out.writeUTF(nullToEmpty(deadLetter.getShardId()));
+		out.writeUTF(nullToEmpty(deadLetter.getSequenceNumber()));
+		out.writeUTF(nullToEmpty(deadLetter.getPartitionKey()));
+		out.writeLong(deadLetter.getTimestamp());
+		String reason = nullToEmpty(deadLetter.getReason());
+		out.writeUTF(reason.length() > MAX_REASON_LENGTH ? reason.substring(0,
+				MAX_REASON_LENGTH) : reason);
+		out.writeInt(deadLetter.getData().length);
+		out.write(deadLetter.getData());
+		out.flush();
+
+		bytes.writeTo(file);
+		file.flush();
+		file.getFD().sync();
+		LOG.warn("Dead lettered " + deadLetter);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for (FileOutputStream file : files.values()) {
+			file.close();
+		}
+		files.clear();
+	}
+
+	/**
+	 * Reads the dead letters in a file. A partly written entry at the end of
+	 * the file is ignored.
+	 */
+	public static List<DeadLetter> read(File file) throws IOException {
+		List<DeadLetter> deadLetters = new ArrayList<DeadLetter>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			while (true) {
+				int magic;
+				try {
+					magic = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (magic != ENTRY_MAGIC) {
+					throw new IOException("Corrupt dead letter file " + file);
+				}
+				try {
+					String shardId = in.readUTF();
+					String sequenceNumber = in.readUTF();
+					String partitionKey = in.readUTF();
+					long timestamp = in.readLong();
+					String reason = in.readUTF();
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					deadLetters.add(new DeadLetter(shardId, sequenceNumber,
+							partitionKey, timestamp, reason, data));
+				} catch (EOFException e) {
+					LOG.warn("Ignoring truncated entry at the end of " + file);
+					break;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return deadLetters;
+	}
+
+	static String fileName(String shardId) {
+		return shardId.replaceAll("[^A-Za-z0-9_.-]", "_") + FILE_SUFFIX;
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+}
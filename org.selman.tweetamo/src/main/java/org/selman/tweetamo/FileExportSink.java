@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Writes exported tweets to local files as JSON, one tweet per line and one
+ * file per segment, named <code>segment-&lt;n&gt;.json</code>. Files are
+ * appended to, so a resumed export continues the files of the export that
+ * crashed.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class FileExportSink implements TweetExportSink {
+
+	private final File directory;
+	private final ConcurrentMap<Integer, Writer> writers = new ConcurrentHashMap<Integer, Writer>();
+
+	public FileExportSink(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create export directory " + directory);
+		}
+		this.directory = directory;
+	}
+
+	@Override
+	public void write(int segment, List<Tweet> tweets) throws IOException {
+		Writer writer = writers.get(segment);
+		if (writer == null) {
+			writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(new File(directory, String.format(
+							"segment-%04d.json", segment)), true),
+					TweetSerializer.UTF8));
+			writers.put(segment, writer);
+		}
+
+		StringBuilder line = new StringBuilder(256);
+		for (Tweet tweet : tweets) {
+			line.setLength(0);
+			line.append("{\"id\":").append(tweet.getId());
+			line.append(",\"createdAt\":").append(tweet.getCreatedAt());
+			if (tweet.hasGeoLocation()) {
+				line.append(",\"lat\":").append(tweet.getLatitude());
+				line.append(",\"long\":").append(tweet.getLongitude());
+			}
+			appendString(line, "screenName", tweet.getScreenName());
+			appendString(line, "text", tweet.getText());
+			line.append("}\n");
+			writer.write(line.toString());
+		}
+		// the page must be on disk before the progress past it is saved
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (Writer writer : writers.values()) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		writers.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static void appendString(StringBuilder line, String name,
+			String value) {
+		if (value == null) {
+			return;
+		}
+		line.append(",\"").append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				line.append("\\\"");
+				break;
+			case '\\':
+				line.append("\\\\");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case '\t':
+				line.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					line.append(String.format("\\u%04x", (int) c));
+				} else {
+					line.append(c);
+				}
+			}
+		}
+		line.append('"');
+	}
+}
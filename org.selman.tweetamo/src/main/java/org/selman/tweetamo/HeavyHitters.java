@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Finds the most frequent keys of a stream in a fixed amount of memory with
+ * the Space-Saving algorithm. Up to capacity keys are counted; a key that
+ * isn't counted takes the place of the key with the smallest count and
+ * inherits that count as its possible error. Any key seen more often than
+ * total / capacity times is guaranteed to be counted.
+ * </p>
+ * <p>
+ * {@link #decay()} halves every count, so that the counts follow the recent
+ * rate of each key rather than its all-time total. Not thread safe.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+final class HeavyHitters {
+
+	private final int capacity;
+	private final Map<String, Counter> counters;
+	private long total;
+
+	/**
+	 * @param capacity
+	 *            the most keys counted
+	 */
+	HeavyHitters(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		this.capacity = capacity;
+		this.counters = new HashMap<String, Counter>(capacity * 2);
+	}
+
+	/**
+	 * Counts an occurrence of a key.
+	 *
+	 * @return the number of occurrences of the key that are certain, at
+	 *         least 1
+	 */
+	long add(String key) {
+		total++;
+		Counter counter = counters.get(key);
+		if (counter == null) {
+			if (counters.size() < capacity) {
+				counter = new Counter();
+			} else {
+				counter = evictSmallest();
+				counter.error = counter.count;
+			}
+			counters.put(key, counter);
+		}
+		counter.count++;
+		return counter.count - counter.error;
+	}
+
+	private Counter evictSmallest() {
+		Map.Entry<String, Counter> smallest = null;
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			if (smallest == null
+					|| entry.getValue().count < smallest.getValue().count) {
+				smallest = entry;
+			}
+		}
+		counters.remove(smallest.getKey());
+		return smallest.getValue();
+	}
+
+	/**
+	 * @return the number of occurrences of the key that are certain, 0 if
+	 *         the key isn't counted
+	 */
+	long getGuaranteedCount(String key) {
+		Counter counter = counters.get(key);
+		return counter == null ? 0 : counter.count - counter.error;
+	}
+
+	/**
+	 * @return the number of occurrences of all keys
+	 */
+	long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return the keys with at least a number of certain occurrences
+	 */
+	List<String> getKeysAbove(long count) {
+		List<String> keys = new ArrayList<String>();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			if (entry.getValue().count - entry.getValue().error >= count) {
+				keys.add(entry.getKey());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Halves every count, forgetting the keys left with none.
+	 */
+	void decay() {
+		total /= 2;
+		for (Iterator<Counter> i = counters.values().iterator(); i.hasNext();) {
+			Counter counter = i.next();
+			counter.count /= 2;
+			counter.error /= 2;
+			if (counter.count == 0) {
+				i.remove();
+			}
+		}
+	}
+
+	private static class Counter {
+		long count;
+		long error;
+	}
+}
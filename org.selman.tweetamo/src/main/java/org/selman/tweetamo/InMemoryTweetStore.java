@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * A {@link TweetStore} that maps tweets to DynamoDB items as
+ * {@link PersistentStore} does but then only counts them, so benchmarks and load tests of record
+ * processing measure the processor rather than DynamoDB. No tweet is ever
+ * reported as stored already, and queries return nothing. The store can
+ * also record how long after its creation each tweet was written.
+ *
+ * @author dselman
+ *
+ */
+class InMemoryTweetStore implements TweetStore {
+
+	private final LatencyHistogram endToEndLatency;
+	private final Object lock = new Object();
+	private long storedCount;
+	private long attributeCount;
+
+	InMemoryTweetStore() {
+		this(null);
+	}
+
+	/**
+	 * @param endToEndLatency
+	 *            where the time from the creation of each tweet to its write
+	 *            is recorded, or null
+	 */
+	InMemoryTweetStore(LatencyHistogram endToEndLatency) {
+		this.endToEndLatency = endToEndLatency;
+	}
+
+	@Override
+	public void add(Tweet tweet) {
+		attributeCount += PersistentStore.newItem(tweet).size();
+		if (endToEndLatency != null) {
+			recordLatency(tweet, System.currentTimeMillis());
+		}
+		stored(1);
+	}
+
+	@Override
+	public WriteResult addAll(Collection<? extends Tweet> tweets) {
+		long attributes = 0;
+		for (Tweet tweet : tweets) {
+			Map<String, AttributeValue> item = PersistentStore.newItem(tweet);
+			attributes += item.size();
+		}
+		if (endToEndLatency != null) {
+			long now = System.currentTimeMillis();
+			for (Tweet tweet : tweets) {
+				recordLatency(tweet, now);
+			}
+		}
+		attributeCount += attributes;
+		stored(tweets.size());
+		return new WriteResult();
+	}
+
+	@Override
+	public Set<Long> getStoredIds(Collection<Long> ids) {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public List<Tweet> getSince(long timestamp, int limit) {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public List<Tweet> getLatestTweetsForScreenName(String screenName,
+			long timestamp) {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	private void recordLatency(Tweet tweet, long now) {
+		endToEndLatency.record(TimeUnit.MILLISECONDS.toNanos(now
+				- tweet.getCreatedAt()));
+	}
+
+	private void stored(int count) {
+		synchronized (lock) {
+			storedCount += count;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return the number of tweets stored so far
+	 */
+	long getStoredCount() {
+		synchronized (lock) {
+			return storedCount;
+		}
+	}
+
+	/**
+	 * @return the number of attributes of the items mapped so far, which
+	 *         keeps the mapping from being optimized away
+	 */
+	long getAttributeCount() {
+		return attributeCount;
+	}
+
+	/**
+	 * Waits until at least count tweets have been stored.
+	 *
+	 * @return false if the timeout elapsed first
+	 */
+	boolean awaitStored(long count, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (lock) {
+			while (storedCount < count) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+			}
+			return true;
+		}
+	}
+}
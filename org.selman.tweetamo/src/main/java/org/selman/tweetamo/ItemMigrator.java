@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.File;
+
+/**
+ * <p>
+ * Moves the tweet table to the blob layout of {@link PersistentStore}:
+ * rewrites every item still in the attributes layout with its tweet
+ * compressed into a single attribute. Items written in the meantime by
+ * processors already writing the blob layout are left alone.
+ * </p>
+ * <p>
+ * Like an export, the migration reads the table with a parallel scan and
+ * saves its progress, so it is resumed where it stopped by running it again
+ * with the same progress file and number of segments.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class ItemMigrator {
+
+	private ItemMigrator() {
+	}
+
+	/**
+	 * Migrates the tweet table to the blob layout.
+	 *
+	 * @param args
+	 *            the progress file, optionally followed by the number of
+	 *            segments and the maximum read capacity units per second
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println("Usage: java " + ItemMigrator.class.getName()
+					+ " <progressFile> [totalSegments] [maxReadCapacityPerSecond]");
+			System.exit(1);
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		File progressFile = new File(args[0]);
+		int totalSegments = args.length > 1 ? Integer.parseInt(args[1])
+				: 4 * processors;
+		double maxReadCapacityPerSecond = args.length > 2 ? Double
+				.parseDouble(args[2]) : 0;
+
+		PersistentStore store = PersistentStore
+				.getInstance(new TweetProcessorConfiguration()
+						.withStoreDynamoItemLayout(PersistentStore.ItemLayout.BLOB));
+		if (store == null) {
+			System.exit(1);
+		}
+		long count = store.migrateToBlobs(totalSegments,
+				Math.min(totalSegments, 2 * processors), progressFile,
+				maxReadCapacityPerSecond);
+		System.out.println("Rewrote " + count + " tweets in the "
+				+ PersistentStore.ItemLayout.BLOB + " layout");
+		System.exit(0);
+	}
+}
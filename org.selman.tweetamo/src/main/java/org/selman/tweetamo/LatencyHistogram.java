@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A latency histogram in the style of HdrHistogram: each power of two is
+ * split into 32 linear buckets, so any recorded value is known to within
+ * about 3% across the whole range of a long, with a fixed 15 KB of counts.
+ * Recording is a few shifts and an atomic increment, with no locking and no
+ * allocation, so it can sit on the path of every tweet.
+ * </p>
+ * <p>
+ * Values are recorded in nanoseconds. Percentiles are read from the live
+ * counts while other threads keep recording, so they are approximate in
+ * time as well as in value.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class LatencyHistogram implements Metrics.HistogramMXBean {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS)
+			* SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Records the time elapsed since a {@link System#nanoTime()} reading.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long lowest = (SUB_BUCKETS + subBucket) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the sum of the recorded values, in nanoseconds
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return the value below which the fraction of the recorded values
+	 *         falls, in nanoseconds, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		long total = count.get();
+		return total == 0 ? 0 : toMillis(sum.get() / (double) total);
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return toMillis(max.get());
+	}
+
+	@Override
+	public double get50thPercentileMillis() {
+		return toMillis(getValueAtPercentile(50));
+	}
+
+	@Override
+	public double get90thPercentileMillis() {
+		return toMillis(getValueAtPercentile(90));
+	}
+
+	@Override
+	public double get99thPercentileMillis() {
+		return toMillis(getValueAtPercentile(99));
+	}
+
+	@Override
+	public double get999thPercentileMillis() {
+		return toMillis(getValueAtPercentile(99.9));
+	}
+
+	private static double toMillis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"count=%d, mean=%.3f ms, p50=%.3f ms, p99=%.3f ms, max=%.3f ms",
+				getCount(), getMeanMillis(), get50thPercentileMillis(),
+				get99thPercentileMillis(), getMaxMillis());
+	}
+}
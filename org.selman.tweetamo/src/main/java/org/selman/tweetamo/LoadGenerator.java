@@ -0,0 +1,414 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import twitter4j.GeoLocation;
+import twitter4j.Status;
+import twitter4j.StatusListener;
+import twitter4j.User;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * <p>
+ * Load tests the client and the server end to end without Twitter or AWS.
+ * Synthetic tweets, or tweets replayed from a file, are fed to the client's
+ * status listener at a configured rate; the client's producer sends them to
+ * a {@link LocalKinesis} stream, whose shards are read by the server's record
+ * processors, which store the tweets in an {@link InMemoryTweetStore}.
+ * </p>
+ * <p>
+ * Synthetic tweets have text lengths drawn from a normal distribution,
+ * screen names drawn from a Zipf distribution and a configurable share of
+ * geo-tagged tweets (see {@link LoadGeneratorConfiguration}). Replayed tweets
+ * keep the gaps between them, divided by the replay speed.
+ * </p>
+ * <p>
+ * Progress is reported periodically: the throughput, the latency from the
+ * creation of a tweet to its write to the store, the backlog of the
+ * producer's queue, the stream and the pipelines, and the skew of the
+ * records over the shards (the busiest shard's records over the average,
+ * 1.0 when they are even) with the number of screen names the producer is
+ * spreading over the shards. The client and server
+ * settings are read from the same properties file, so their effect on the
+ * results can be compared.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class LoadGenerator {
+
+	private static final Log LOG = LogFactory.getLog(LoadGenerator.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// How long to wait for the tweets sent to be stored once the load stops
+	private static final long DRAIN_TIMEOUT_MILLIS = TimeUnit.MINUTES
+			.toMillis(2);
+	private static final String[] SOURCES = { "web",
+			"<a href=\"http://twitter.com/download/iphone\" rel=\"nofollow\">Twitter for iPhone</a>",
+			"<a href=\"http://twitter.com/download/android\" rel=\"nofollow\">Twitter for Android</a>" };
+	private static final String[] WORDS = { "the", "a", "rugby", "match",
+			"try", "what", "game", "today", "lol", "is", "on", "great", "win",
+			"http://t.co/x1y2z3", "#rugby", "@someone", "score", "!!",
+			"m\u00eal\u00e9e", "\ud83c\udfc9" };
+
+	private static final IRecordProcessorCheckpointer CHECKPOINTER = new IRecordProcessorCheckpointer() {
+		@Override
+		public void checkpoint() {
+		}
+	};
+
+	private final LoadGeneratorConfiguration configuration;
+	private final TweetProcessorConfiguration processorConfiguration;
+	private final LocalKinesis kinesis;
+	private final TweetProducer producer;
+	private final StatusListener listener;
+	private final LatencyHistogram endToEndLatency = Metrics
+			.histogram(Metrics.END_TO_END);
+	private final InMemoryTweetStore store = new InMemoryTweetStore(
+			endToEndLatency);
+	private final TweetamoRecordProcessorFactory processorFactory;
+	private final List<Thread> readers = new ArrayList<Thread>();
+	private final AtomicLong generatedCount = new AtomicLong();
+	private volatile boolean reading = true;
+	private volatile boolean generating = true;
+
+	private final Random random = new Random();
+	private User[] users;
+	private double[] zipfCdf;
+	private long nextId = 1;
+
+	LoadGenerator(LoadGeneratorConfiguration configuration,
+			TweetProducerConfiguration producerConfiguration,
+			TweetProcessorConfiguration processorConfiguration) {
+		this.configuration = configuration;
+		this.processorConfiguration = processorConfiguration;
+		this.kinesis = new LocalKinesis(TweetamoClient.STREAM_NAME,
+				configuration.getShards());
+		this.producer = new TweetProducer(kinesis.getClient(),
+				TweetamoClient.STREAM_NAME, producerConfiguration);
+		this.listener = TweetamoClient.newStatusListener(producer);
+		this.processorFactory = new TweetamoRecordProcessorFactory(
+				processorConfiguration, store);
+	}
+
+	/**
+	 * @param args
+	 *            an optional properties file with the load, client and
+	 *            server settings
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 1) {
+			System.err.println("Usage: java " + LoadGenerator.class.getName()
+					+ " <propertiesFile>");
+			System.exit(1);
+		}
+
+		Properties properties = new Properties();
+		if (args.length == 1) {
+			FileInputStream inputStream = new FileInputStream(args[0]);
+			try {
+				properties.load(inputStream);
+			} finally {
+				inputStream.close();
+			}
+		}
+		LoadGeneratorConfiguration configuration = LoadGeneratorConfiguration
+				.fromProperties(properties);
+		LOG.info("Using " + configuration);
+		MetricsHttpServer.startIfEnabled(TweetProducerConfiguration.getInt(
+				properties, ConfigKeys.METRICS_HTTP_PORT_KEY, 0));
+
+		new LoadGenerator(configuration,
+				TweetProducerConfiguration.fromProperties(properties),
+				TweetProcessorConfiguration.fromProperties(properties)).run();
+		System.exit(0);
+	}
+
+	/**
+	 * Sends the load, waits for it to be stored and prints the results.
+	 */
+	void run() throws Exception {
+		producer.start();
+		for (int shard = 0; shard < kinesis.getShardCount(); shard++) {
+			startReader(shard);
+		}
+
+		Thread generator = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (configuration.getReplayFile() != null) {
+						replay(new File(configuration.getReplayFile()));
+					} else {
+						generate();
+					}
+				} catch (IOException e) {
+					LOG.error("Failed to replay "
+							+ configuration.getReplayFile(), e);
+				} finally {
+					generating = false;
+				}
+			}
+		}, "tweetamo-load-generator");
+		long start = System.currentTimeMillis();
+		generator.start();
+
+		long reportInterval = TimeUnit.SECONDS.toMillis(configuration
+				.getReportIntervalSeconds());
+		long lastReport = start;
+		long lastStored = 0;
+		while (generator.isAlive()) {
+			generator.join(reportInterval);
+			long now = System.currentTimeMillis();
+			if (now - lastReport >= reportInterval) {
+				long stored = store.getStoredCount();
+				report(now - start, (stored - lastStored) * 1000.0
+						/ (now - lastReport));
+				lastReport = now;
+				lastStored = stored;
+			}
+		}
+
+		// let everything sent so far reach the store
+		producer.shutdown(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		long sent = producer.getSentCount();
+		if (!store.awaitStored(sent, DRAIN_TIMEOUT_MILLIS,
+				TimeUnit.MILLISECONDS)) {
+			LOG.warn("Only " + store.getStoredCount() + " of " + sent
+					+ " tweets sent were stored");
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		reading = false;
+		for (Thread reader : readers) {
+			reader.join(DRAIN_TIMEOUT_MILLIS);
+		}
+
+		System.out.println("Load test finished: " + configuration);
+		report(elapsed, store.getStoredCount() * 1000.0 / elapsed);
+	}
+
+	private void report(long elapsedMillis, double tweetsPerSecond) {
+		long stored = store.getStoredCount();
+		System.out.println(String.format(
+				"%6ds generated=%d sent=%d stored=%d dropped=%d failed=%d"
+						+ " | %.0f tweets/s"
+						+ " | end to end p50=%.1f ms p99=%.1f ms max=%.1f ms"
+						+ " | backlog: queue=%d spill=%d stream=%d records pipeline=%d"
+						+ " | shard skew=%.2f hot keys=%d",
+				TimeUnit.MILLISECONDS.toSeconds(elapsedMillis),
+				generatedCount.get(), producer.getSentCount(), stored,
+				producer.getDroppedCount(), producer.getFailedCount(),
+				tweetsPerSecond, endToEndLatency.get50thPercentileMillis(),
+				endToEndLatency.get99thPercentileMillis(),
+				endToEndLatency.getMaxMillis(), producer.getQueueSize(),
+				producer.getSpillBacklog(), kinesis.getBacklog(),
+				Math.max(0, producer.getSentCount() - stored), shardSkew(),
+				producer.getHotKeyCount()));
+	}
+
+	private double shardSkew() {
+		long[] counts = kinesis.getPutCounts();
+		long max = 0;
+		long total = 0;
+		for (long count : counts) {
+			max = Math.max(max, count);
+			total += count;
+		}
+		return total == 0 ? 1.0 : max * (double) counts.length / total;
+	}
+
+	/**
+	 * Reads a shard as the KCL would, handing each read to a processor,
+	 * empty or not.
+	 */
+	private void startReader(final int shard) {
+		final String shardId = kinesis.getShardId(shard);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				IRecordProcessor processor = processorFactory
+						.createProcessor();
+				processor.initialize(shardId);
+				while (reading) {
+					List<Record> records = kinesis.getRecords(shard,
+							processorConfiguration.getFetchMaxRecords());
+					try {
+						processor.processRecords(records, CHECKPOINTER);
+					} catch (RuntimeException e) {
+						LOG.error("Stopped reading shard " + shardId, e);
+						break;
+					}
+				}
+				processor.shutdown(CHECKPOINTER, ShutdownReason.TERMINATE);
+			}
+		}, "tweetamo-load-reader-" + shardId);
+		reader.setDaemon(true);
+		readers.add(reader);
+		reader.start();
+	}
+
+	/**
+	 * Feeds synthetic tweets to the listener at the configured rate, for the
+	 * configured duration.
+	 */
+	private void generate() {
+		users = new User[configuration.getScreenNames()];
+		zipfCdf = new double[users.length];
+		double total = 0;
+		for (int rank = 0; rank < users.length; rank++) {
+			users[rank] = SyntheticStatus.createUser(rank + 1, "User "
+					+ (rank + 1), "user" + (rank + 1));
+			total += 1 / Math.pow(rank + 1, configuration.getZipfExponent());
+			zipfCdf[rank] = total;
+		}
+		for (int rank = 0; rank < users.length; rank++) {
+			zipfCdf[rank] /= total;
+		}
+
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1)
+				/ Math.max(1, configuration.getRate());
+		long start = System.nanoTime();
+		long end = start
+				+ TimeUnit.SECONDS.toNanos(configuration.getDurationSeconds());
+		// tweets are sent when due, so a late wakeup is made up for at once
+		for (long i = 0;; i++) {
+			long due = start + i * intervalNanos;
+			if (due >= end) {
+				return;
+			}
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			listener.onStatus(nextStatus());
+			generatedCount.incrementAndGet();
+		}
+	}
+
+	private Status nextStatus() {
+		int index = Arrays.binarySearch(zipfCdf, random.nextDouble());
+		User user = users[Math.min(index < 0 ? -index - 1 : index,
+				users.length - 1)];
+		int length = (int) Math.round(configuration.getTextMeanLength()
+				+ random.nextGaussian() * configuration.getTextStdDevLength());
+		GeoLocation geoLocation = null;
+		if (random.nextDouble() < configuration.getGeoRatio()) {
+			geoLocation = new GeoLocation(random.nextDouble() * 180 - 90,
+					random.nextDouble() * 360 - 180);
+		}
+		return SyntheticStatus.create(nextId++, System.currentTimeMillis(),
+				text(Math.max(1, Math.min(140, length))), user, geoLocation,
+				SOURCES[random.nextInt(SOURCES.length)]);
+	}
+
+	private String text(int length) {
+		StringBuilder sb = new StringBuilder(length + 20);
+		while (sb.length() < length) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		sb.setLength(length);
+		// don't leave half of a surrogate pair at the end
+		if (Character.isHighSurrogate(sb.charAt(length - 1))) {
+			sb.setCharAt(length - 1, '.');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Feeds the tweets of a recording to the listener, keeping the gaps
+	 * between them divided by the replay speed, until the end of the file or
+	 * of the configured duration. The tweets are created anew as they are
+	 * sent, so the latencies are measured from when they were sent.
+	 */
+	private void replay(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8));
+		try {
+			long start = System.nanoTime();
+			long end = start
+					+ TimeUnit.SECONDS.toNanos(configuration
+							.getDurationSeconds());
+			long firstCreatedAt = -1;
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				String[] fields = line.split("\t");
+				if (line.isEmpty() || fields.length < 3) {
+					LOG.warn("Skipping line " + lineNumber + " of " + file);
+					continue;
+				}
+				long createdAt = Long.parseLong(fields[0]);
+				if (firstCreatedAt < 0) {
+					firstCreatedAt = createdAt;
+				}
+				long due = start
+						+ (long) (TimeUnit.MILLISECONDS.toNanos(createdAt
+								- firstCreatedAt) / configuration
+								.getReplaySpeed());
+				if (due >= end) {
+					return;
+				}
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+
+				GeoLocation geoLocation = null;
+				if (fields.length >= 5) {
+					geoLocation = new GeoLocation(
+							Double.parseDouble(fields[3]),
+							Double.parseDouble(fields[4]));
+				}
+				User user = SyntheticStatus.createUser(
+						fields[1].hashCode() & Integer.MAX_VALUE, fields[1],
+						fields[1]);
+				listener.onStatus(SyntheticStatus.create(nextId++,
+						System.currentTimeMillis(), fields[2], user,
+						geoLocation, SOURCES[0]));
+				generatedCount.incrementAndGet();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
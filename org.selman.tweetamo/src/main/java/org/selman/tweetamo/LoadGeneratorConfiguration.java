@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import static org.selman.tweetamo.TweetProducerConfiguration.getDouble;
+import static org.selman.tweetamo.TweetProducerConfiguration.getInt;
+
+import java.util.Properties;
+
+/**
+ * Settings for the {@link LoadGenerator}: the shape of the synthetic tweets,
+ * or the file of recorded tweets to replay, and how fast to send them. The
+ * defaults can be overridden using the load keys in {@link ConfigKeys}.
+ *
+ * @author dselman
+ *
+ */
+public class LoadGeneratorConfiguration {
+
+	public static final int DEFAULT_SHARDS = 2;
+	public static final int DEFAULT_RATE = 1000;
+	public static final int DEFAULT_DURATION_SECONDS = 60;
+	public static final int DEFAULT_TEXT_MEAN_LENGTH = 80;
+	public static final int DEFAULT_TEXT_STDDEV_LENGTH = 35;
+	public static final int DEFAULT_SCREEN_NAMES = 10000;
+	public static final double DEFAULT_ZIPF_EXPONENT = 1.0;
+	public static final double DEFAULT_GEO_RATIO = 0.02;
+	public static final double DEFAULT_REPLAY_SPEED = 1.0;
+	public static final int DEFAULT_REPORT_INTERVAL_SECONDS = 10;
+
+	private int shards = DEFAULT_SHARDS;
+	private int rate = DEFAULT_RATE;
+	private int durationSeconds = DEFAULT_DURATION_SECONDS;
+	private int textMeanLength = DEFAULT_TEXT_MEAN_LENGTH;
+	private int textStdDevLength = DEFAULT_TEXT_STDDEV_LENGTH;
+	private int screenNames = DEFAULT_SCREEN_NAMES;
+	private double zipfExponent = DEFAULT_ZIPF_EXPONENT;
+	private double geoRatio = DEFAULT_GEO_RATIO;
+	private String replayFile;
+	private double replaySpeed = DEFAULT_REPLAY_SPEED;
+	private int reportIntervalSeconds = DEFAULT_REPORT_INTERVAL_SECONDS;
+
+	/**
+	 * Creates a configuration with the default settings, overridden by any
+	 * load keys present in the properties.
+	 *
+	 * @param properties
+	 *            the load generator properties, may be null
+	 * @return the configuration
+	 */
+	public static LoadGeneratorConfiguration fromProperties(
+			Properties properties) {
+		LoadGeneratorConfiguration configuration = new LoadGeneratorConfiguration();
+		if (properties == null) {
+			return configuration;
+		}
+
+		configuration.shards = getInt(properties, ConfigKeys.LOAD_SHARDS_KEY,
+				configuration.shards);
+		configuration.rate = getInt(properties, ConfigKeys.LOAD_RATE_KEY,
+				configuration.rate);
+		configuration.durationSeconds = getInt(properties,
+				ConfigKeys.LOAD_DURATION_SECONDS_KEY,
+				configuration.durationSeconds);
+		configuration.textMeanLength = getInt(properties,
+				ConfigKeys.LOAD_TEXT_MEAN_LENGTH_KEY,
+				configuration.textMeanLength);
+		configuration.textStdDevLength = getInt(properties,
+				ConfigKeys.LOAD_TEXT_STDDEV_LENGTH_KEY,
+				configuration.textStdDevLength);
+		configuration.screenNames = getInt(properties,
+				ConfigKeys.LOAD_SCREEN_NAMES_KEY, configuration.screenNames);
+		configuration.zipfExponent = getDouble(properties,
+				ConfigKeys.LOAD_ZIPF_EXPONENT_KEY, configuration.zipfExponent);
+		configuration.geoRatio = getDouble(properties,
+				ConfigKeys.LOAD_GEO_RATIO_KEY, configuration.geoRatio);
+		String replayFile = properties
+				.getProperty(ConfigKeys.LOAD_REPLAY_FILE_KEY);
+		if (replayFile != null) {
+			configuration.replayFile = replayFile.trim();
+		}
+		configuration.replaySpeed = getDouble(properties,
+				ConfigKeys.LOAD_REPLAY_SPEED_KEY, configuration.replaySpeed);
+		configuration.reportIntervalSeconds = getInt(properties,
+				ConfigKeys.LOAD_REPORT_INTERVAL_SECONDS_KEY,
+				configuration.reportIntervalSeconds);
+		return configuration;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	public LoadGeneratorConfiguration withShards(int shards) {
+		this.shards = shards;
+		return this;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	public LoadGeneratorConfiguration withRate(int rate) {
+		this.rate = rate;
+		return this;
+	}
+
+	public int getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	public LoadGeneratorConfiguration withDurationSeconds(int durationSeconds) {
+		this.durationSeconds = durationSeconds;
+		return this;
+	}
+
+	public int getTextMeanLength() {
+		return textMeanLength;
+	}
+
+	public LoadGeneratorConfiguration withTextMeanLength(int textMeanLength) {
+		this.textMeanLength = textMeanLength;
+		return this;
+	}
+
+	public int getTextStdDevLength() {
+		return textStdDevLength;
+	}
+
+	public LoadGeneratorConfiguration withTextStdDevLength(
+			int textStdDevLength) {
+		this.textStdDevLength = textStdDevLength;
+		return this;
+	}
+
+	public int getScreenNames() {
+		return screenNames;
+	}
+
+	public LoadGeneratorConfiguration withScreenNames(int screenNames) {
+		this.screenNames = screenNames;
+		return this;
+	}
+
+	public double getZipfExponent() {
+		return zipfExponent;
+	}
+
+	public LoadGeneratorConfiguration withZipfExponent(double zipfExponent) {
+		this.zipfExponent = zipfExponent;
+		return this;
+	}
+
+	public double getGeoRatio() {
+		return geoRatio;
+	}
+
+	public LoadGeneratorConfiguration withGeoRatio(double geoRatio) {
+		this.geoRatio = geoRatio;
+		return this;
+	}
+
+	/**
+	 * @return the file of recorded tweets to replay, or null to generate
+	 *         tweets
+	 */
+	public String getReplayFile() {
+		return replayFile;
+	}
+
+	public LoadGeneratorConfiguration withReplayFile(String replayFile) {
+		this.replayFile = replayFile;
+		return this;
+	}
+
+	public double getReplaySpeed() {
+		return replaySpeed;
+	}
+
+	public LoadGeneratorConfiguration withReplaySpeed(double replaySpeed) {
+		this.replaySpeed = replaySpeed;
+		return this;
+	}
+
+	public int getReportIntervalSeconds() {
+		return reportIntervalSeconds;
+	}
+
+	public LoadGeneratorConfiguration withReportIntervalSeconds(
+			int reportIntervalSeconds) {
+		this.reportIntervalSeconds = reportIntervalSeconds;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "LoadGeneratorConfiguration [shards=" + shards + ", rate="
+				+ rate + ", durationSeconds=" + durationSeconds
+				+ ", textMeanLength=" + textMeanLength + ", textStdDevLength="
+				+ textStdDevLength + ", screenNames=" + screenNames
+				+ ", zipfExponent=" + zipfExponent + ", geoRatio=" + geoRatio
+				+ ", replayFile=" + replayFile + ", replaySpeed="
+				+ replaySpeed + ", reportIntervalSeconds="
+				+ reportIntervalSeconds + "]";
+	}
+}
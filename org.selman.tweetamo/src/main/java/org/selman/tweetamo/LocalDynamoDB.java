@@ -0,0 +1,497 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexUpdate;
+import com.amazonaws.services.dynamodbv2.model.IndexStatus;
+import com.amazonaws.services.dynamodbv2.model.LimitExceededException;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * <p>
+ * An in-memory stand-in for the provisioned capacity of DynamoDB tables, to
+ * try out how writes are paced and capacity is tuned without AWS.
+ * {@link #getClient()} returns an {@link AmazonDynamoDB} that accepts
+ * CreateTable, DescribeTable, UpdateTable, PutItem and BatchWriteItem and
+ * fails every other request. Items are counted, not kept.
+ * </p>
+ * <p>
+ * Each write consumes a unit per KB of the item from the table and from
+ * each of its global secondary indexes, and is throttled when the table or
+ * an index has used up its write capacity for the current second: PutItem
+ * fails with a ProvisionedThroughputExceededException, BatchWriteItem
+ * returns the items as unprocessed, or fails if none of them fit.
+ * UpdateTable follows the rules of DynamoDB: the table and its indexes are
+ * UPDATING for a while and can't be updated again until they are ACTIVE,
+ * an update can at most double the capacity, and the table and each index
+ * can only be decreased 4 times a day. The new capacity applies once the
+ * table is ACTIVE again.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+class LocalDynamoDB {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_DECREASES_PER_DAY = 4;
+	private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	private final long updateMillis;
+	private final Map<String, Table> tables = new HashMap<String, Table>();
+	private final AmazonDynamoDB client;
+	private long writeCount;
+	private long throttledCount;
+
+	/**
+	 * @param updateMillis
+	 *            how long a table stays UPDATING after an update
+	 */
+	LocalDynamoDB(long updateMillis) {
+		this.updateMillis = updateMillis;
+		this.client = (AmazonDynamoDB) Proxy.newProxyInstance(
+				LocalDynamoDB.class.getClassLoader(),
+				new Class<?>[] { AmazonDynamoDB.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if ("putItem".equals(method.getName())) {
+							return putItem((PutItemRequest) args[0]);
+						} else if ("batchWriteItem".equals(method.getName())) {
+							return batchWriteItem((BatchWriteItemRequest) args[0]);
+						} else if ("describeTable".equals(method.getName())) {
+							return describeTable((DescribeTableRequest) args[0]);
+						} else if ("updateTable".equals(method.getName())) {
+							return updateTable((UpdateTableRequest) args[0]);
+						} else if ("createTable".equals(method.getName())) {
+							return createTable((CreateTableRequest) args[0]);
+						} else if ("toString".equals(method.getName())) {
+							return LocalDynamoDB.this.toString();
+						} else if ("hashCode".equals(method.getName())) {
+							return System.identityHashCode(proxy);
+						} else if ("equals".equals(method.getName())) {
+							return proxy == args[0];
+						} else if ("shutdown".equals(method.getName())
+								|| "setRegion".equals(method.getName())
+								|| "setEndpoint".equals(method.getName())) {
+							return null;
+						}
+						throw new UnsupportedOperationException(method
+								.getName() + " is not supported by "
+								+ LocalDynamoDB.this);
+					}
+				});
+	}
+
+	/**
+	 * @return a client of the tables
+	 */
+	AmazonDynamoDB getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the number of items written
+	 */
+	synchronized long getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 * @return the number of items throttled
+	 */
+	synchronized long getThrottledCount() {
+		return throttledCount;
+	}
+
+	private synchronized CreateTableResult createTable(
+			CreateTableRequest request) {
+		if (tables.containsKey(request.getTableName())) {
+			throw error(new ResourceInUseException("Table already exists: "
+					+ request.getTableName()));
+		}
+		Table table = new Table(request.getTableName());
+		table.capacities.put(null,
+				new Capacity(request.getProvisionedThroughput()));
+		if (request.getGlobalSecondaryIndexes() != null) {
+			for (GlobalSecondaryIndex index : request
+					.getGlobalSecondaryIndexes()) {
+				table.capacities.put(index.getIndexName(), new Capacity(
+						index.getProvisionedThroughput()));
+			}
+		}
+		tables.put(table.name, table);
+		return new CreateTableResult().withTableDescription(table
+				.describe(System.currentTimeMillis()));
+	}
+
+	private synchronized DescribeTableResult describeTable(
+			DescribeTableRequest request) {
+		return new DescribeTableResult().withTable(tableOf(
+				request.getTableName()).describe(System.currentTimeMillis()));
+	}
+
+	private synchronized UpdateTableResult updateTable(
+			UpdateTableRequest request) {
+		long now = System.currentTimeMillis();
+		Table table = tableOf(request.getTableName());
+		if (table.isUpdating(now)) {
+			throw error(new ResourceInUseException("Table is being updated: "
+					+ table.name));
+		}
+		Map<String, ProvisionedThroughput> updates = new LinkedHashMap<String, ProvisionedThroughput>();
+		if (request.getProvisionedThroughput() != null) {
+			updates.put(null, request.getProvisionedThroughput());
+		}
+		if (request.getGlobalSecondaryIndexUpdates() != null) {
+			for (GlobalSecondaryIndexUpdate update : request
+					.getGlobalSecondaryIndexUpdates()) {
+				String indexName = update.getUpdate().getIndexName();
+				if (!table.capacities.containsKey(indexName)) {
+					throw error(new ResourceNotFoundException(
+							"Index not found: " + indexName));
+				}
+				updates.put(indexName, update.getUpdate()
+						.getProvisionedThroughput());
+			}
+		}
+		// check every update before applying any, as DynamoDB does
+		for (Map.Entry<String, ProvisionedThroughput> update : updates
+				.entrySet()) {
+			table.capacities.get(update.getKey()).check(update.getKey(),
+					update.getValue(), now);
+		}
+		for (Map.Entry<String, ProvisionedThroughput> update : updates
+				.entrySet()) {
+			table.capacities.get(update.getKey()).update(update.getValue(),
+					now + updateMillis, now);
+		}
+		table.activeAt = now + updateMillis;
+		return new UpdateTableResult().withTableDescription(table
+				.describe(now));
+	}
+
+	private synchronized PutItemResult putItem(PutItemRequest request) {
+		Table table = tableOf(request.getTableName());
+		long units = unitsOf(request.getItem());
+		if (!table.consume(units, System.currentTimeMillis())) {
+			throttledCount++;
+			throw error(new ProvisionedThroughputExceededException(
+					"The write capacity of " + table.name + " is used up"));
+		}
+		writeCount++;
+		PutItemResult result = new PutItemResult();
+		if (request.getReturnConsumedCapacity() != null
+				&& !"NONE".equals(request.getReturnConsumedCapacity())) {
+			result.setConsumedCapacity(new ConsumedCapacity().withTableName(
+					table.name).withCapacityUnits(
+					(double) (units * table.capacities.size())));
+		}
+		return result;
+	}
+
+	private synchronized BatchWriteItemResult batchWriteItem(
+			BatchWriteItemRequest request) {
+		long now = System.currentTimeMillis();
+		Map<String, List<WriteRequest>> unprocessed = new HashMap<String, List<WriteRequest>>();
+		List<ConsumedCapacity> consumed = new ArrayList<ConsumedCapacity>();
+		boolean processed = false;
+		for (Map.Entry<String, List<WriteRequest>> entry : request
+				.getRequestItems().entrySet()) {
+			Table table = tableOf(entry.getKey());
+			long tableUnits = 0;
+			for (WriteRequest write : entry.getValue()) {
+				long units = unitsOf(write.getPutRequest().getItem());
+				if (table.consume(units, now)) {
+					tableUnits += units;
+					writeCount++;
+					processed = true;
+				} else {
+					List<WriteRequest> writes = unprocessed.get(table.name);
+					if (writes == null) {
+						writes = new ArrayList<WriteRequest>();
+						unprocessed.put(table.name, writes);
+					}
+					writes.add(write);
+				}
+			}
+			consumed.add(new ConsumedCapacity().withTableName(table.name)
+					.withCapacityUnits(
+							(double) (tableUnits * table.capacities.size())));
+		}
+		for (List<WriteRequest> writes : unprocessed.values()) {
+			throttledCount += writes.size();
+		}
+		if (!processed && !unprocessed.isEmpty()) {
+			throw error(new ProvisionedThroughputExceededException(
+					"The write capacity is used up"));
+		}
+		BatchWriteItemResult result = new BatchWriteItemResult()
+				.withUnprocessedItems(unprocessed);
+		if (request.getReturnConsumedCapacity() != null
+				&& !"NONE".equals(request.getReturnConsumedCapacity())) {
+			result.setConsumedCapacity(consumed);
+		}
+		return result;
+	}
+
+	private Table tableOf(String tableName) {
+		Table table = tables.get(tableName);
+		if (table == null) {
+			throw error(new ResourceNotFoundException("Table not found: "
+					+ tableName));
+		}
+		return table;
+	}
+
+	/**
+	 * @return a unit per KB of the names and values of the attributes
+	 */
+	private static long unitsOf(Map<String, AttributeValue> item) {
+		long bytes = 0;
+		for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+			bytes += attribute.getKey().getBytes(UTF8).length;
+			AttributeValue value = attribute.getValue();
+			if (value.getS() != null) {
+				bytes += value.getS().getBytes(UTF8).length;
+			} else if (value.getN() != null) {
+				bytes += value.getN().length();
+			} else if (value.getB() != null) {
+				bytes += value.getB().remaining();
+			} else if (value.getSS() != null) {
+				for (String s : value.getSS()) {
+					bytes += s.getBytes(UTF8).length;
+				}
+			} else if (value.getNS() != null) {
+				for (String n : value.getNS()) {
+					bytes += n.length();
+				}
+			} else if (value.getBS() != null) {
+				for (ByteBuffer b : value.getBS()) {
+					bytes += b.remaining();
+				}
+			}
+		}
+		return Math.max(1L, (bytes + 1023) / 1024);
+	}
+
+	/**
+	 * Fills in the error code and status the SDK would have read from the
+	 * response.
+	 */
+	private static AmazonServiceException error(AmazonServiceException e) {
+		e.setErrorCode(e.getClass().getSimpleName());
+		e.setStatusCode(400);
+		e.setErrorType(AmazonServiceException.ErrorType.Client);
+		return e;
+	}
+
+	@Override
+	public String toString() {
+		return "LocalDynamoDB [tables=" + tables.keySet() + "]";
+	}
+
+	private static final class Table {
+		private final String name;
+		// the table under null, then its indexes by name
+		private final Map<String, Capacity> capacities = new LinkedHashMap<String, Capacity>();
+		private long activeAt;
+
+		Table(String name) {
+			this.name = name;
+		}
+
+		boolean isUpdating(long now) {
+			return now < activeAt;
+		}
+
+		/**
+		 * @return true if the table and every index had the units left this
+		 *         second, which they then consumed
+		 */
+		boolean consume(long units, long now) {
+			for (Capacity capacity : capacities.values()) {
+				if (!capacity.hasLeft(units, now)) {
+					return false;
+				}
+			}
+			for (Capacity capacity : capacities.values()) {
+				capacity.consume(units);
+			}
+			return true;
+		}
+
+		TableDescription describe(long now) {
+			String status = isUpdating(now) ? TableStatus.UPDATING.toString()
+					: TableStatus.ACTIVE.toString();
+			TableDescription description = new TableDescription()
+					.withTableName(name).withTableStatus(status);
+			List<GlobalSecondaryIndexDescription> indexes = new ArrayList<GlobalSecondaryIndexDescription>();
+			for (Map.Entry<String, Capacity> capacity : capacities.entrySet()) {
+				ProvisionedThroughputDescription throughput = capacity
+						.getValue().describe(now);
+				if (capacity.getKey() == null) {
+					description.setProvisionedThroughput(throughput);
+				} else {
+					indexes.add(new GlobalSecondaryIndexDescription()
+							.withIndexName(capacity.getKey())
+							.withIndexStatus(
+									isUpdating(now) ? IndexStatus.UPDATING
+											.toString() : IndexStatus.ACTIVE
+											.toString())
+							.withProvisionedThroughput(throughput));
+				}
+			}
+			if (!indexes.isEmpty()) {
+				description.setGlobalSecondaryIndexes(indexes);
+			}
+			return description;
+		}
+	}
+
+	/**
+	 * The capacity of a table or an index, and what it used this second.
+	 */
+	private static final class Capacity {
+		private long readUnits;
+		private long writeUnits;
+		private long pendingReadUnits;
+		private long pendingWriteUnits;
+		private long pendingAt;
+		private long decreaseDay;
+		private long decreasesToday;
+		private Date lastIncrease;
+		private Date lastDecrease;
+		private long second;
+		private long usedUnits;
+
+		Capacity(ProvisionedThroughput throughput) {
+			this.readUnits = throughput.getReadCapacityUnits();
+			this.writeUnits = throughput.getWriteCapacityUnits();
+			this.pendingReadUnits = readUnits;
+			this.pendingWriteUnits = writeUnits;
+		}
+
+		/**
+		 * Applies the last update once its table is ACTIVE.
+		 */
+		private void settle(long now) {
+			if (now >= pendingAt) {
+				readUnits = pendingReadUnits;
+				writeUnits = pendingWriteUnits;
+			}
+			if (now / DAY_MILLIS != decreaseDay) {
+				decreaseDay = now / DAY_MILLIS;
+				decreasesToday = 0;
+			}
+		}
+
+		void check(String indexName, ProvisionedThroughput throughput,
+				long now) {
+			settle(now);
+			String what = indexName == null ? "the table" : indexName;
+			long read = throughput.getReadCapacityUnits();
+			long write = throughput.getWriteCapacityUnits();
+			if (read > 2 * readUnits || write > 2 * writeUnits) {
+				throw error(new LimitExceededException(
+						"The capacity of " + what
+								+ " can at most double in an update"));
+			}
+			if ((read < readUnits || write < writeUnits)
+					&& decreasesToday >= MAX_DECREASES_PER_DAY) {
+				throw error(new LimitExceededException(what
+						+ " has been decreased " + MAX_DECREASES_PER_DAY
+						+ " times today"));
+			}
+		}
+
+		void update(ProvisionedThroughput throughput, long activeAt,
+				long now) {
+			long read = throughput.getReadCapacityUnits();
+			long write = throughput.getWriteCapacityUnits();
+			if (read < readUnits || write < writeUnits) {
+				decreasesToday++;
+				lastDecrease = new Date(now);
+			}
+			if (read > readUnits || write > writeUnits) {
+				lastIncrease = new Date(now);
+			}
+			pendingReadUnits = read;
+			pendingWriteUnits = write;
+			pendingAt = activeAt;
+		}
+
+		boolean hasLeft(long units, long now) {
+			settle(now);
+			if (now / 1000 != second) {
+				second = now / 1000;
+				usedUnits = 0;
+			}
+			return usedUnits + units <= writeUnits;
+		}
+
+		void consume(long units) {
+			usedUnits += units;
+		}
+
+		ProvisionedThroughputDescription describe(long now) {
+			settle(now);
+			return new ProvisionedThroughputDescription()
+					.withReadCapacityUnits(readUnits)
+					.withWriteCapacityUnits(writeUnits)
+					.withNumberOfDecreasesToday(decreasesToday)
+					.withLastIncreaseDateTime(lastIncrease)
+					.withLastDecreaseDateTime(lastDecrease);
+		}
+	}
+}
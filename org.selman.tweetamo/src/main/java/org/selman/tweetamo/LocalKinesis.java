@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+
+/**
+ * <p>
+ * An in-memory stand-in for a Kinesis stream, for load tests that shouldn't
+ * need AWS. {@link #getClient()} returns an {@link AmazonKinesis} that
+ * accepts PutRecord and DescribeStream and fails every other request. The
+ * stream is described in a single page of open shards. Records are routed to
+ * shards the way Kinesis routes them, by the MD5 hash of the partition key
+ * (or the explicit hash key) over hash ranges of equal size, and are read
+ * back with {@link #getRecords(int, int)}.
+ * </p>
+ * <p>
+ * The stream never drops records, so its backlog grows without bound when
+ * the readers fall behind; that backlog is what load tests watch.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+class LocalKinesis {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String streamName;
+	private final List<Shard> shards = new ArrayList<Shard>();
+	private final AmazonKinesis client;
+
+	/**
+	 * @param streamName
+	 *            the only stream the client accepts records for
+	 * @param shardCount
+	 *            the number of shards of the stream
+	 */
+	LocalKinesis(String streamName, int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("A stream needs a shard: "
+					+ shardCount);
+		}
+		this.streamName = streamName;
+		for (int i = 0; i < shardCount; i++) {
+			shards.add(new Shard(String.format("shardId-%012d", i)));
+		}
+		this.client = (AmazonKinesis) Proxy.newProxyInstance(
+				LocalKinesis.class.getClassLoader(),
+				new Class<?>[] { AmazonKinesis.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if ("putRecord".equals(method.getName())) {
+							return putRecord((PutRecordRequest) args[0]);
+						} else if ("describeStream".equals(method.getName())) {
+							return describeStream((DescribeStreamRequest) args[0]);
+						} else if ("toString".equals(method.getName())) {
+							return LocalKinesis.this.toString();
+						} else if ("hashCode".equals(method.getName())) {
+							return System.identityHashCode(proxy);
+						} else if ("equals".equals(method.getName())) {
+							return proxy == args[0];
+						} else if ("shutdown".equals(method.getName())) {
+							return null;
+						}
+						throw new UnsupportedOperationException(method
+								.getName() + " is not supported by "
+								+ LocalKinesis.this);
+					}
+				});
+	}
+
+	/**
+	 * @return a client that puts records on this stream
+	 */
+	AmazonKinesis getClient() {
+		return client;
+	}
+
+	int getShardCount() {
+		return shards.size();
+	}
+
+	String getShardId(int shard) {
+		return shards.get(shard).id;
+	}
+
+	/**
+	 * Takes up to max records from the start of a shard.
+	 *
+	 * @return the records, an empty list if there are none
+	 */
+	List<Record> getRecords(int shard, int max) {
+		List<Record> records = new ArrayList<Record>(Math.min(max, 1024));
+		shards.get(shard).records.drainTo(records, max);
+		return records;
+	}
+
+	/**
+	 * @return the number of records put on the stream and not read yet
+	 */
+	long getBacklog() {
+		long backlog = 0;
+		for (Shard shard : shards) {
+			backlog += shard.records.size();
+		}
+		return backlog;
+	}
+
+	/**
+	 * @return the number of records put on the stream
+	 */
+	long getPutCount() {
+		long count = 0;
+		for (Shard shard : shards) {
+			count += shard.sequenceNumber.get();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of records put on each shard, to show how evenly
+	 *         the producer spreads its records
+	 */
+	long[] getPutCounts() {
+		long[] counts = new long[shards.size()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = shards.get(i).sequenceNumber.get();
+		}
+		return counts;
+	}
+
+	private DescribeStreamResult describeStream(DescribeStreamRequest request) {
+		if (!streamName.equals(request.getStreamName())) {
+			throw new IllegalArgumentException("Stream " + streamName
+					+ " not found: " + request.getStreamName());
+		}
+		List<com.amazonaws.services.kinesis.model.Shard> described = new ArrayList<com.amazonaws.services.kinesis.model.Shard>();
+		for (int i = 0; i < shards.size(); i++) {
+			described.add(new com.amazonaws.services.kinesis.model.Shard()
+					.withShardId(shards.get(i).id)
+					.withHashKeyRange(
+							new HashKeyRange().withStartingHashKey(
+									startingHashKey(i).toString())
+									.withEndingHashKey(
+											startingHashKey(i + 1).subtract(
+													BigInteger.ONE)
+													.toString()))
+					.withSequenceNumberRange(
+							new SequenceNumberRange()
+									.withStartingSequenceNumber("1")));
+		}
+		return new DescribeStreamResult()
+				.withStreamDescription(new StreamDescription()
+						.withStreamName(streamName).withStreamStatus("ACTIVE")
+						.withShards(described).withHasMoreShards(false));
+	}
+
+	/**
+	 * @return the lowest hash key {@link #shardOf(PutRecordRequest)} maps
+	 *         to a shard, 2^128 past the last shard
+	 */
+	private BigInteger startingHashKey(int shard) {
+		// the smallest h with h * n >> 128 == shard, i.e. ceil(shard * 2^128 / n)
+		BigInteger n = BigInteger.valueOf(shards.size());
+		return BigInteger.valueOf(shard).shiftLeft(128).add(n)
+				.subtract(BigInteger.ONE).divide(n);
+	}
+
+	private PutRecordResult putRecord(PutRecordRequest request) {
+		if (!streamName.equals(request.getStreamName())) {
+			throw new IllegalArgumentException("Stream " + streamName
+					+ " not found: " + request.getStreamName());
+		}
+		Shard shard = shards.get(shardOf(request));
+		// records are read on other threads, so they get their own view of
+		// the data
+		ByteBuffer data = request.getData();
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data.duplicate()).flip();
+		String sequenceNumber;
+		synchronized (shard) {
+			sequenceNumber = Long.toString(shard.sequenceNumber
+					.incrementAndGet());
+			shard.records.add(new Record().withData(copy)
+					.withPartitionKey(request.getPartitionKey())
+					.withSequenceNumber(sequenceNumber));
+		}
+		return new PutRecordResult().withShardId(shard.id).withSequenceNumber(
+				sequenceNumber);
+	}
+
+	private int shardOf(PutRecordRequest request) {
+		BigInteger hashKey;
+		if (request.getExplicitHashKey() != null) {
+			hashKey = new BigInteger(request.getExplicitHashKey());
+		} else {
+			try {
+				MessageDigest md5 = MessageDigest.getInstance("MD5");
+				hashKey = new BigInteger(1, md5.digest(request
+						.getPartitionKey().getBytes(UTF8)));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 not available", e);
+			}
+		}
+		int shard = hashKey.multiply(BigInteger.valueOf(shards.size()))
+				.shiftRight(128).intValue();
+		return Math.min(shard, shards.size() - 1);
+	}
+
+	@Override
+	public String toString() {
+		return "LocalKinesis [streamName=" + streamName + ", shards="
+				+ shards.size() + "]";
+	}
+
+	private static class Shard {
+		private final String id;
+		private final LinkedBlockingQueue<Record> records = new LinkedBlockingQueue<Record>();
+		private final AtomicLong sequenceNumber = new AtomicLong();
+
+		Shard(String id) {
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,744 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Stores tweets in log files in a local directory, for edge nodes and
+ * benchmarks that should not depend on DynamoDB. Tweets are appended to the
+ * newest file in the compact {@link TweetProfile#STORE} format, each record
+ * framed by its length and a CRC32, and every batch is written with a single
+ * write and, unless sync is off, a single force to disk. A new file is
+ * started once the current one reaches the segment size.
+ * </p>
+ * <p>
+ * The indexes are kept in memory: the location of the latest record of each
+ * id, the ids of each screen name ordered by creation time and all ids
+ * ordered by creation time, the same keys as the DynamoDB table and its
+ * indexes. They are rebuilt by reading the files when the store is opened; a
+ * record cut short by a crash fails its check and is truncated away.
+ * </p>
+ * <p>
+ * Storing a tweet again leaves its old record in the log. When less than
+ * half of a full file is still current, its current records are copied to
+ * the newest file and it is deleted.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class LocalTweetStore implements TweetStore {
+
+	private static final Log LOG = LogFactory.getLog(LocalTweetStore.class);
+
+	static final String SEGMENT_PREFIX = "tweets-";
+	static final String SEGMENT_SUFFIX = ".log";
+	private static final String LOCK_FILE = "lock";
+
+	private static final int SEGMENT_MAGIC = 0x54574C31; // "TWL1"
+	private static final int SEGMENT_HEADER_SIZE = 4;
+	// record length and CRC32 of the record
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 64 * 1024;
+	// full segments with less live data than this are compacted
+	private static final double COMPACT_LIVE_RATIO = 0.5;
+
+	private final File directory;
+	private final long segmentBytes;
+	private final boolean sync;
+	private final FileChannel lockChannel;
+	private final FileLock directoryLock;
+
+	// Guards the indexes and the segments. Reads of the files hold the read
+	// lock so that compaction can't delete a segment under them.
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<Long, Location> byId = new HashMap<Long, Location>();
+	private final Map<String, NavigableSet<TimeKey>> byScreenName = new HashMap<String, NavigableSet<TimeKey>>();
+	private final NavigableSet<TimeKey> byCreatedAt = new TreeSet<TimeKey>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	// Serializes appends and compaction; taken before the lock.
+	private final Object appendLock = new Object();
+	private Segment active;
+	private boolean closed;
+
+	private final LatencyHistogram addLatency = Metrics
+			.histogram(Metrics.STORE_ADD);
+	private final LatencyHistogram queryLatency = Metrics
+			.histogram(Metrics.STORE_QUERY);
+
+	/**
+	 * Opens the store in a directory, creating the directory if need be and
+	 * reading any files already in it.
+	 *
+	 * @param directory
+	 *            where the log files are kept; only one store may use it at
+	 *            a time
+	 * @param segmentBytes
+	 *            the size at which a new log file is started
+	 * @param sync
+	 *            whether each write is forced to disk before it returns
+	 * @throws IOException
+	 *             if the directory can't be created or is in use
+	 */
+	public LocalTweetStore(File directory, long segmentBytes, boolean sync)
+			throws IOException {
+		if (segmentBytes <= SEGMENT_HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size too small: "
+					+ segmentBytes);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create store directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.sync = sync;
+		this.lockChannel = new RandomAccessFile(
+				new File(directory, LOCK_FILE), "rw").getChannel();
+		FileLock acquired;
+		try {
+			acquired = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// held by another store in this JVM
+			acquired = null;
+		}
+		this.directoryLock = acquired;
+		if (directoryLock == null) {
+			lockChannel.close();
+			throw new IOException("Store directory " + directory
+					+ " is in use");
+		}
+
+		try {
+			recover();
+		} catch (IOException e) {
+			closeFiles();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the log files in order, so that the last record of each id wins.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return segmentId(name) >= 0;
+			}
+		});
+		TreeMap<Integer, File> sorted = new TreeMap<Integer, File>();
+		for (File file : files) {
+			sorted.put(segmentId(file.getName()), file);
+		}
+
+		long start = System.currentTimeMillis();
+		for (Map.Entry<Integer, File> entry : sorted.entrySet()) {
+			Segment segment = new Segment(entry.getKey(), entry.getValue());
+			segments.put(segment.id, segment);
+			replay(segment);
+		}
+		if (segments.isEmpty()) {
+			active = newSegment(0);
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+		LOG.info("Opened store " + directory + " with " + byId.size()
+				+ " tweets in " + segments.size() + " files in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void replay(Segment segment) throws IOException {
+		long size = segment.channel.size();
+		if (size < SEGMENT_HEADER_SIZE) {
+			// created but never written
+			writeHeader(segment);
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.file), 64 * 1024));
+		try {
+			if (in.readInt() != SEGMENT_MAGIC) {
+				throw new IOException(segment.file + " is not a tweet log");
+			}
+			long offset = SEGMENT_HEADER_SIZE;
+			while (offset + RECORD_HEADER_SIZE <= size) {
+				int length = in.readInt();
+				int crc = in.readInt();
+				if (length <= 0 || length > MAX_RECORD_SIZE
+						|| offset + RECORD_HEADER_SIZE + length > size) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				if (crc(payload, 0, length) != crc) {
+					break;
+				}
+				Tweet tweet = decode(ByteBuffer.wrap(payload), segment);
+				index(tweet, new Location(segment.id, offset,
+						RECORD_HEADER_SIZE + length));
+				offset += RECORD_HEADER_SIZE + length;
+			}
+			if (offset < size) {
+				LOG.warn("Truncating " + segment.file + " from " + size
+						+ " to " + offset + " bytes, the rest is incomplete");
+				segment.channel.truncate(offset);
+			}
+			segment.size = offset;
+		} finally {
+			in.close();
+		}
+	}
+
+	private Segment newSegment(int id) throws IOException {
+		Segment segment = new Segment(id, new File(directory,
+				segmentName(id)));
+		writeHeader(segment);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private void writeHeader(Segment segment) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+		header.putInt(SEGMENT_MAGIC);
+		header.flip();
+		segment.channel.truncate(0);
+		write(segment.channel, header, 0);
+		segment.channel.force(true);
+		segment.size = SEGMENT_HEADER_SIZE;
+	}
+
+	static String segmentName(int id) {
+		return String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @return the id of the segment file, or -1 if the name isn't one
+	 */
+	static int segmentId(String name) {
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public void add(Tweet tweet) throws Exception {
+		List<Tweet> tweets = new ArrayList<Tweet>(1);
+		tweets.add(tweet);
+		WriteResult result = addAll(tweets);
+		if (!result.getRejected().isEmpty()) {
+			throw new IOException(result.getRejected().get(tweet));
+		}
+	}
+
+	/**
+	 * {@inheritDoc} Tweets that can't be encoded, or whose record would be
+	 * larger than 64 KB, are rejected; a failed write fails the whole call.
+	 */
+	@Override
+	public WriteResult addAll(Collection<? extends Tweet> tweets)
+			throws IOException {
+		long start = System.nanoTime();
+		Map<Long, Tweet> unique = new LinkedHashMap<Long, Tweet>();
+		for (Tweet tweet : tweets) {
+			unique.put(tweet.getId(), tweet);
+		}
+
+		WriteResult result = new WriteResult();
+		List<Tweet> encoded = new ArrayList<Tweet>(unique.size());
+		List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(unique.size());
+		for (Tweet tweet : unique.values()) {
+			try {
+				ByteBuffer payload = TweetSerializer.toBytes(tweet,
+						TweetProfile.STORE);
+				if (payload.remaining() > MAX_RECORD_SIZE) {
+					result.getRejected().put(tweet,
+							"Record of " + payload.remaining() + " bytes is too large");
+					continue;
+				}
+				encoded.add(tweet);
+				payloads.add(payload);
+			} catch (Exception e) {
+				result.getRejected().put(tweet, e.toString());
+			}
+		}
+
+		synchronized (appendLock) {
+			checkOpen();
+			append(encoded, payloads);
+			compactIfNeeded();
+		}
+		addLatency.recordSince(start);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Stored " + encoded.size() + " of " + unique.size()
+					+ " tweets in " + directory);
+		}
+		return result;
+	}
+
+	/**
+	 * Appends records to the active segment with one write, then points the
+	 * indexes at them. Called holding the append lock.
+	 */
+	private void append(List<Tweet> tweets, List<ByteBuffer> payloads)
+			throws IOException {
+		if (tweets.isEmpty()) {
+			return;
+		}
+		int bytes = 0;
+		for (ByteBuffer payload : payloads) {
+			bytes += RECORD_HEADER_SIZE + payload.remaining();
+		}
+		if (active.size > SEGMENT_HEADER_SIZE
+				&& active.size + bytes > segmentBytes) {
+			roll();
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(bytes);
+		for (ByteBuffer payload : payloads) {
+			out.putInt(payload.remaining());
+			out.putInt(crc(payload.array(), payload.arrayOffset()
+					+ payload.position(), payload.remaining()));
+			out.put(payload.duplicate());
+		}
+		out.flip();
+		long offset = active.size;
+		write(active.channel, out, offset);
+		if (sync) {
+			active.channel.force(false);
+		}
+
+		lock.writeLock().lock();
+		try {
+			for (int i = 0; i < tweets.size(); i++) {
+				int length = RECORD_HEADER_SIZE + payloads.get(i).remaining();
+				index(tweets.get(i), new Location(active.id, offset, length));
+				offset += length;
+			}
+			active.size = offset;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void roll() throws IOException {
+		if (sync) {
+			active.channel.force(true);
+		}
+		Segment next;
+		lock.writeLock().lock();
+		try {
+			next = newSegment(active.id + 1);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		LOG.info("Started " + next.file);
+		active = next;
+	}
+
+	/**
+	 * Points the indexes at a record, replacing the older record of the same
+	 * id. Called holding the write lock, or while recovering.
+	 */
+	private void index(Tweet tweet, Location location) {
+		Location old = byId.put(tweet.getId(), location);
+		if (old != null) {
+			segments.get(old.segment).liveBytes -= old.length;
+			TimeKey oldKey = new TimeKey(old.createdAt, tweet.getId());
+			byCreatedAt.remove(oldKey);
+			if (old.screenName != null) {
+				NavigableSet<TimeKey> keys = byScreenName.get(old.screenName);
+				keys.remove(oldKey);
+				if (keys.isEmpty()) {
+					byScreenName.remove(old.screenName);
+				}
+			}
+		}
+		segments.get(location.segment).liveBytes += location.length;
+
+		location.createdAt = tweet.getCreatedAt();
+		location.screenName = tweet.getScreenName();
+		TimeKey key = new TimeKey(location.createdAt, tweet.getId());
+		byCreatedAt.add(key);
+		if (location.screenName != null) {
+			NavigableSet<TimeKey> keys = byScreenName.get(location.screenName);
+			if (keys == null) {
+				keys = new TreeSet<TimeKey>();
+				byScreenName.put(location.screenName, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * Compacts the full segments that are mostly out of date. Called holding
+	 * the append lock.
+	 */
+	private void compactIfNeeded() throws IOException {
+		List<Segment> candidates = new ArrayList<Segment>();
+		lock.readLock().lock();
+		try {
+			for (Segment segment : segments.values()) {
+				if (segment != active
+						&& segment.liveBytes < (segment.size - SEGMENT_HEADER_SIZE)
+								* COMPACT_LIVE_RATIO) {
+					candidates.add(segment);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		for (Segment segment : candidates) {
+			compact(segment);
+		}
+	}
+
+	/**
+	 * Copies the current records of a segment to the active one and deletes
+	 * it. The appends happen before the delete, so a crash in between leaves
+	 * both copies, and the newer one wins when the store is opened again.
+	 */
+	private void compact(Segment segment) throws IOException {
+		long start = System.currentTimeMillis();
+		long size = segment.size;
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		List<ByteBuffer> payloads = new ArrayList<ByteBuffer>();
+		int copied = 0;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.file), 64 * 1024));
+		try {
+			in.readInt();
+			long offset = SEGMENT_HEADER_SIZE;
+			while (offset < size) {
+				int length = in.readInt();
+				in.readInt();
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				Tweet tweet = decode(ByteBuffer.wrap(payload), segment);
+				Location location;
+				lock.readLock().lock();
+				try {
+					location = byId.get(tweet.getId());
+				} finally {
+					lock.readLock().unlock();
+				}
+				if (location != null && location.segment == segment.id
+						&& location.offset == offset) {
+					tweets.add(tweet);
+					payloads.add(ByteBuffer.wrap(payload));
+					copied++;
+					if (payloads.size() >= 1000) {
+						append(tweets, payloads);
+						tweets.clear();
+						payloads.clear();
+					}
+				}
+				offset += RECORD_HEADER_SIZE + length;
+			}
+		} catch (EOFException e) {
+			throw new IOException(segment.file + " is shorter than expected", e);
+		} finally {
+			in.close();
+		}
+		append(tweets, payloads);
+		if (sync) {
+			active.channel.force(true);
+		}
+
+		lock.writeLock().lock();
+		try {
+			segments.remove(segment.id);
+			segment.channel.close();
+			if (!segment.file.delete()) {
+				LOG.warn("Couldn't delete " + segment.file);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		LOG.info("Compacted " + segment.file + ", copied " + copied
+				+ " tweets in " + (System.currentTimeMillis() - start)
+				+ " ms");
+	}
+
+	@Override
+	public Set<Long> getStoredIds(Collection<Long> ids) throws IOException {
+		Set<Long> stored = new HashSet<Long>();
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			for (Long id : ids) {
+				if (byId.containsKey(id)) {
+					stored.add(id);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return stored;
+	}
+
+	@Override
+	public List<Tweet> getLatestTweetsForScreenName(String screenName,
+			long timestamp) throws IOException {
+		long start = System.nanoTime();
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			NavigableSet<TimeKey> keys = byScreenName.get(screenName);
+			if (keys != null) {
+				for (TimeKey key : keys.tailSet(new TimeKey(timestamp,
+						Long.MIN_VALUE), true)) {
+					tweets.add(read(key.id));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		queryLatency.recordSince(start);
+		return tweets;
+	}
+
+	@Override
+	public List<Tweet> getSince(long timestamp, int limit) throws IOException {
+		long start = System.nanoTime();
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			for (TimeKey key : byCreatedAt.descendingSet().headSet(
+					new TimeKey(timestamp, Long.MAX_VALUE), false)) {
+				if (tweets.size() >= limit) {
+					break;
+				}
+				tweets.add(read(key.id));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		queryLatency.recordSince(start);
+		return tweets;
+	}
+
+	/**
+	 * Reads the current record of an id. Called holding the read lock.
+	 */
+	private Tweet read(long id) throws IOException {
+		Location location = byId.get(id);
+		Segment segment = segments.get(location.segment);
+		ByteBuffer record = ByteBuffer.allocate(location.length);
+		while (record.hasRemaining()) {
+			if (segment.channel.read(record, location.offset
+					+ record.position()) < 0) {
+				throw new EOFException(segment.file + " is shorter than expected");
+			}
+		}
+		record.flip();
+		int length = record.getInt();
+		int crc = record.getInt();
+		if (crc(record.array(), RECORD_HEADER_SIZE, length) != crc) {
+			throw new IOException("Corrupt record of tweet " + id + " in "
+					+ segment.file + " at " + location.offset);
+		}
+		return decode(record, segment);
+	}
+
+	private static Tweet decode(ByteBuffer payload, Segment segment)
+			throws IOException {
+		try {
+			return TweetSerializer.fromBytes(payload);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unexpected record in " + segment.file, e);
+		}
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static void write(FileChannel channel, ByteBuffer data,
+			long position) throws IOException {
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Store " + directory + " is closed");
+		}
+	}
+
+	/**
+	 * @return the number of tweets stored
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return byId.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of log files
+	 */
+	public int getSegmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (appendLock) {
+			lock.writeLock().lock();
+			try {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				closeFiles();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	private void closeFiles() throws IOException {
+		for (Segment segment : segments.values()) {
+			segment.channel.close();
+		}
+		directoryLock.release();
+		lockChannel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "LocalTweetStore [directory=" + directory + ", tweets="
+				+ size() + ", segments=" + getSegmentCount() + "]";
+	}
+
+	/**
+	 * A log file. Its size and live bytes change under the write lock.
+	 */
+	private static class Segment {
+		final int id;
+		final File file;
+		final FileChannel channel;
+		long size;
+		long liveBytes;
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+	}
+
+	/**
+	 * Where the current record of an id is, and the keys it is indexed
+	 * under.
+	 */
+	private static class Location {
+		final int segment;
+		final long offset;
+		final int length;
+		long createdAt;
+		String screenName;
+
+		Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * An id ordered by creation time, then by id.
+	 */
+	private static class TimeKey implements Comparable<TimeKey> {
+		final long createdAt;
+		final long id;
+
+		TimeKey(long createdAt, long id) {
+			this.createdAt = createdAt;
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(TimeKey other) {
+			if (createdAt != other.createdAt) {
+				return createdAt < other.createdAt ? -1 : 1;
+			}
+			return id < other.id ? -1 : (id == other.id ? 0 : 1);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof TimeKey && compareTo((TimeKey) obj) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (createdAt ^ (createdAt >>> 32) ^ id ^ (id >>> 32));
+		}
+	}
+}
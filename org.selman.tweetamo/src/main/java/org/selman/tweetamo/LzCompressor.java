@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A fast LZ77 compressor using the LZ4 block layout: each sequence is a
+ * token (literal length, match length), the literals, a 2 byte little endian
+ * offset and any extra match length bytes. The last sequence holds only
+ * literals.
+ * </p>
+ * <p>
+ * A dictionary acts as data that precedes the input: matches may refer back
+ * into it, which is what makes small records compress well. The same
+ * dictionary must be used to decompress.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+final class LzCompressor {
+
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_LOG = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+
+	private LzCompressor() {
+	}
+
+	/**
+	 * @return the hash table of the dictionary, to pass to
+	 *         {@link #compress(byte[], int, int, byte[], int[])}
+	 */
+	static int[] hashTable(byte[] dictionary) {
+		int[] table = new int[1 << HASH_LOG];
+		Arrays.fill(table, -1);
+		if (dictionary != null) {
+			for (int i = 0; i + MIN_MATCH <= dictionary.length; i++) {
+				table[hash(dictionary, i)] = i;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * @param dictionaryTable
+	 *            the result of {@link #hashTable(byte[])} for the dictionary;
+	 *            it is copied, not modified
+	 */
+	static byte[] compress(byte[] data, int offset, int length,
+			byte[] dictionary, int[] dictionaryTable) {
+		int dictionaryLength = dictionary == null ? 0 : dictionary.length;
+		byte[] in = new byte[dictionaryLength + length];
+		if (dictionaryLength > 0) {
+			System.arraycopy(dictionary, 0, in, 0, dictionaryLength);
+		}
+		System.arraycopy(data, offset, in, dictionaryLength, length);
+
+		int[] table = dictionaryTable.clone();
+
+		byte[] out = new byte[length + length / 255 + 16];
+		int op = 0;
+		int anchor = dictionaryLength;
+		int end = in.length;
+		int i = dictionaryLength;
+
+		while (i < end - MATCH_FIND_LIMIT) {
+			int h = hash(in, i);
+			int ref = table[h];
+			table[h] = i;
+			if (ref < 0 || i - ref > MAX_OFFSET
+					|| readInt(in, ref) != readInt(in, i)) {
+				i++;
+				continue;
+			}
+
+			int matchLength = MIN_MATCH;
+			while (i + matchLength < end - LAST_LITERALS
+					&& in[ref + matchLength] == in[i + matchLength]) {
+				matchLength++;
+			}
+
+			op = writeSequence(out, op, in, anchor, i - anchor, i - ref,
+					matchLength);
+			i += matchLength;
+			anchor = i;
+		}
+
+		op = writeSequence(out, op, in, anchor, end - anchor, 0, 0);
+		return Arrays.copyOf(out, op);
+	}
+
+	/**
+	 * Decompresses data written by
+	 * {@link #compress(byte[], int, int, byte[], int[])}, never reading
+	 * outside data[offset, offset + length).
+	 *
+	 * @throws IOException
+	 *             if the data is corrupt or doesn't decompress to exactly
+	 *             rawLength bytes
+	 */
+	static byte[] decompress(byte[] data, int offset, int length,
+			int rawLength, byte[] dictionary) throws IOException {
+		int dictionaryLength = dictionary == null ? 0 : dictionary.length;
+		byte[] out = new byte[rawLength];
+
+		int ip = offset;
+		int end = offset + length;
+		int op = 0;
+		while (ip < end) {
+			int token = data[ip++] & 0xFF;
+
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IOException("Truncated compressed data");
+					}
+					b = data[ip++] & 0xFF;
+					literalLength += b;
+				} while (b == 255);
+			}
+			if (ip + literalLength > end || op + literalLength > out.length) {
+				throw new IOException("Corrupt compressed data");
+			}
+			System.arraycopy(data, ip, out, op, literalLength);
+			ip += literalLength;
+			op += literalLength;
+
+			if (ip >= end) {
+				break;
+			}
+
+			if (ip + 2 > end) {
+				throw new IOException("Truncated compressed data");
+			}
+			int matchOffset = (data[ip] & 0xFF) | ((data[ip + 1] & 0xFF) << 8);
+			ip += 2;
+			int matchLength = token & 0x0F;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IOException("Truncated compressed data");
+					}
+					b = data[ip++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+
+			// offsets reaching before the output refer into the dictionary
+			int ref = op - matchOffset;
+			if (matchOffset == 0 || ref < -dictionaryLength
+					|| op + matchLength > out.length) {
+				throw new IOException("Corrupt compressed data");
+			}
+			for (int k = 0; k < matchLength; k++, ref++) {
+				out[op++] = ref < 0 ? dictionary[dictionaryLength + ref]
+						: out[ref];
+			}
+		}
+
+		if (op != out.length) {
+			throw new IOException("Compressed data has the wrong length");
+		}
+		return out;
+	}
+
+	private static int writeSequence(byte[] out, int op, byte[] in,
+			int literalOffset, int literalLength, int matchOffset,
+			int matchLength) {
+		int extraMatch = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+		out[op++] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(
+				extraMatch, 15));
+		op = writeLength(out, op, literalLength);
+		System.arraycopy(in, literalOffset, out, op, literalLength);
+		op += literalLength;
+
+		if (matchLength > 0) {
+			out[op++] = (byte) matchOffset;
+			out[op++] = (byte) (matchOffset >>> 8);
+			op = writeLength(out, op, extraMatch);
+		}
+		return op;
+	}
+
+	private static int writeLength(byte[] out, int op, int length) {
+		if (length >= 15) {
+			int remaining = length - 15;
+			while (remaining >= 255) {
+				out[op++] = (byte) 255;
+				remaining -= 255;
+			}
+			out[op++] = (byte) remaining;
+		}
+		return op;
+	}
+
+	private static int readInt(byte[] in, int i) {
+		return (in[i] & 0xFF) | ((in[i + 1] & 0xFF) << 8)
+				| ((in[i + 2] & 0xFF) << 16) | ((in[i + 3] & 0xFF) << 24);
+	}
+
+	private static int hash(byte[] in, int i) {
+		return (readInt(in, i) * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * The latency histograms, throughput counters and gauges of the client and
+ * the server. A metric is identified by a name and, for the metrics kept per
+ * Kinesis shard, the shard id; it is created the first time it is asked for
+ * and then lives until its shard is {@link #removeShard removed}.
+ * </p>
+ * <p>
+ * Every metric is registered with the platform MBean server under
+ * {@code org.selman.tweetamo:type=Histogram|Counter|Gauge,name=...,shard=...},
+ * and {@link #writePrometheus} writes them all in the Prometheus text
+ * format for {@link MetricsHttpServer}. Histograms are exported as
+ * summaries in seconds, counters with a {@code _total} suffix and gauges as
+ * they are.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class Metrics {
+
+	private static final Log LOG = LogFactory.getLog(Metrics.class);
+
+	// From onStatus queueing a tweet to Kinesis acknowledging it, per shard
+	public static final String PRODUCER_ACK = "producer_ack";
+	public static final String PRODUCER_SENT = "producer_sent";
+	public static final String PRODUCER_FAILED = "producer_failed";
+	public static final String PRODUCER_DROPPED = "producer_dropped";
+	public static final String PRODUCER_SPILLED = "producer_spilled";
+	public static final String PRODUCER_DRAINED = "producer_drained";
+	public static final String PRODUCER_SALTED = "producer_salted";
+	public static final String PRODUCER_THROTTLED = "producer_throttled";
+	public static final String PRODUCER_SHED = "producer_shed";
+
+	public static final String SERIALIZER_ENCODE = "serializer_encode";
+	public static final String SERIALIZER_DECODE = "serializer_decode";
+	public static final String STORE_ADD = "store_add";
+	public static final String STORE_QUERY = "store_query";
+	// Queries by screen name answered from the cache, and those that had to
+	// load their entry from the store
+	public static final String QUERY_CACHE_HITS = "query_cache_hits";
+	public static final String QUERY_CACHE_MISSES = "query_cache_misses";
+	public static final String QUERY_CACHE_LOAD_FAILURES = "query_cache_load_failures";
+	public static final String CHECKPOINT = "checkpoint";
+	// Checkpoints given up, mostly because the pipeline didn't store the
+	// records in time
+	public static final String CHECKPOINTS_SKIPPED = "checkpoints_skipped";
+	// From the creation of a tweet to its write, measured by the load generator
+	public static final String END_TO_END = "end_to_end";
+
+	// Kept per shard by the server
+	public static final String RECORDS_RECEIVED = "records_received";
+	public static final String TWEETS_STORED = "tweets_stored";
+	public static final String TWEETS_DUPLICATE = "tweets_duplicate";
+	public static final String DEAD_LETTERS = "dead_letters";
+	// 1 once the pipeline of a shard has lost records, until its processor
+	// shuts down
+	public static final String PIPELINE_FAILED = "pipeline_failed";
+	// The share of new tweet ids the duplicate filter of a shard mistook for
+	// duplicates, and the share its Bloom filter should mistake at its fill
+	public static final String DEDUPE_FALSE_POSITIVE_RATE = "dedupe_false_positive_rate";
+	public static final String DEDUPE_EXPECTED_FALSE_POSITIVE_RATE = "dedupe_expected_false_positive_rate";
+
+	// The DynamoDB writes in flight allowed, the write capacity units
+	// consumed a second and the writes throttled
+	public static final String STORE_WRITE_LIMIT = "store_write_limit";
+	public static final String STORE_WRITE_UNITS = "store_write_units";
+	public static final String STORE_THROTTLED = "store_throttled";
+
+	private static final String DOMAIN = "org.selman.tweetamo";
+	private static final String PREFIX = "tweetamo_";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static final ConcurrentMap<MetricKey, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<MetricKey, LatencyHistogram>();
+	private static final ConcurrentMap<MetricKey, Counter> COUNTERS = new ConcurrentHashMap<MetricKey, Counter>();
+	private static final ConcurrentMap<MetricKey, Gauge> GAUGES = new ConcurrentHashMap<MetricKey, Gauge>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * The attributes of a histogram as seen over JMX.
+	 */
+	public interface HistogramMXBean {
+		long getCount();
+
+		double getMeanMillis();
+
+		double getMaxMillis();
+
+		double get50thPercentileMillis();
+
+		double get90thPercentileMillis();
+
+		double get99thPercentileMillis();
+
+		double get999thPercentileMillis();
+	}
+
+	/**
+	 * The attributes of a counter as seen over JMX.
+	 */
+	public interface CounterMXBean {
+		long getCount();
+	}
+
+	/**
+	 * A count of events that only goes up.
+	 */
+	public static final class Counter implements CounterMXBean {
+		private final AtomicLong count = new AtomicLong();
+
+		public void increment() {
+			count.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			count.addAndGet(delta);
+		}
+
+		@Override
+		public long getCount() {
+			return count.get();
+		}
+
+		@Override
+		public String toString() {
+			return Long.toString(count.get());
+		}
+	}
+
+	/**
+	 * The attributes of a gauge as seen over JMX.
+	 */
+	public interface GaugeMXBean {
+		double getValue();
+	}
+
+	/**
+	 * A value that goes up and down, set by whatever it measures.
+	 */
+	public static final class Gauge implements GaugeMXBean {
+		private volatile double value;
+
+		public void set(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public double getValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return Double.toString(value);
+		}
+	}
+
+	/**
+	 * @return the histogram of a metric that isn't kept per shard
+	 */
+	public static LatencyHistogram histogram(String name) {
+		return histogram(name, null);
+	}
+
+	/**
+	 * @param shardId
+	 *            the shard the metric is kept for, or null
+	 * @return the histogram, created and registered if it doesn't exist yet
+	 */
+	public static LatencyHistogram histogram(String name, String shardId) {
+		MetricKey key = new MetricKey(name, shardId);
+		LatencyHistogram histogram = HISTOGRAMS.get(key);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = HISTOGRAMS.putIfAbsent(key, created);
+			if (histogram == null) {
+				histogram = created;
+				register(key.objectName("Histogram"), created,
+						HistogramMXBean.class);
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return the counter of a metric that isn't kept per shard
+	 */
+	public static Counter counter(String name) {
+		return counter(name, null);
+	}
+
+	/**
+	 * @param shardId
+	 *            the shard the metric is kept for, or null
+	 * @return the counter, created and registered if it doesn't exist yet
+	 */
+	public static Counter counter(String name, String shardId) {
+		MetricKey key = new MetricKey(name, shardId);
+		Counter counter = COUNTERS.get(key);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = COUNTERS.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+				register(key.objectName("Counter"), created,
+						CounterMXBean.class);
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the gauge of a metric that isn't kept per shard
+	 */
+	public static Gauge gauge(String name) {
+		return gauge(name, null);
+	}
+
+	/**
+	 * @param shardId
+	 *            the shard the metric is kept for, or null
+	 * @return the gauge, created and registered if it doesn't exist yet
+	 */
+	public static Gauge gauge(String name, String shardId) {
+		MetricKey key = new MetricKey(name, shardId);
+		Gauge gauge = GAUGES.get(key);
+		if (gauge == null) {
+			Gauge created = new Gauge();
+			gauge = GAUGES.putIfAbsent(key, created);
+			if (gauge == null) {
+				gauge = created;
+				register(key.objectName("Gauge"), created, GaugeMXBean.class);
+			}
+		}
+		return gauge;
+	}
+
+	/**
+	 * Forgets the metrics of a shard, once its processor has shut down.
+	 */
+	public static void removeShard(String shardId) {
+		for (MetricKey key : HISTOGRAMS.keySet()) {
+			if (shardId.equals(key.shardId)) {
+				HISTOGRAMS.remove(key);
+				unregister(key.objectName("Histogram"));
+			}
+		}
+		for (MetricKey key : COUNTERS.keySet()) {
+			if (shardId.equals(key.shardId)) {
+				COUNTERS.remove(key);
+				unregister(key.objectName("Counter"));
+			}
+		}
+		for (MetricKey key : GAUGES.keySet()) {
+			if (shardId.equals(key.shardId)) {
+				GAUGES.remove(key);
+				unregister(key.objectName("Gauge"));
+			}
+		}
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format.
+	 */
+	public static void writePrometheus(Appendable out) throws IOException {
+		SortedMap<MetricKey, LatencyHistogram> histograms = new TreeMap<MetricKey, LatencyHistogram>(
+				HISTOGRAMS);
+		String previous = null;
+		for (Map.Entry<MetricKey, LatencyHistogram> entry : histograms
+				.entrySet()) {
+			MetricKey key = entry.getKey();
+			LatencyHistogram histogram = entry.getValue();
+			String name = PREFIX + key.name + "_seconds";
+			if (!name.equals(previous)) {
+				out.append("# TYPE ").append(name).append(" summary\n");
+				previous = name;
+			}
+			for (double quantile : QUANTILES) {
+				out.append(name).append(key.labels("quantile=\"" + quantile + "\""))
+						.append(' ')
+						.append(seconds(histogram.getValueAtPercentile(quantile * 100)))
+						.append('\n');
+			}
+			out.append(name).append("_sum").append(key.labels(null))
+					.append(' ').append(seconds(histogram.getSum()))
+					.append('\n');
+			out.append(name).append("_count").append(key.labels(null))
+					.append(' ').append(Long.toString(histogram.getCount()))
+					.append('\n');
+		}
+
+		SortedMap<MetricKey, Counter> counters = new TreeMap<MetricKey, Counter>(
+				COUNTERS);
+		previous = null;
+		for (Map.Entry<MetricKey, Counter> entry : counters.entrySet()) {
+			MetricKey key = entry.getKey();
+			String name = PREFIX + key.name + "_total";
+			if (!name.equals(previous)) {
+				out.append("# TYPE ").append(name).append(" counter\n");
+				previous = name;
+			}
+			out.append(name).append(key.labels(null)).append(' ')
+					.append(Long.toString(entry.getValue().getCount()))
+					.append('\n');
+		}
+
+		SortedMap<MetricKey, Gauge> gauges = new TreeMap<MetricKey, Gauge>(
+				GAUGES);
+		previous = null;
+		for (Map.Entry<MetricKey, Gauge> entry : gauges.entrySet()) {
+			MetricKey key = entry.getKey();
+			String name = PREFIX + key.name;
+			if (!name.equals(previous)) {
+				out.append("# TYPE ").append(name).append(" gauge\n");
+				previous = name;
+			}
+			out.append(name).append(key.labels(null)).append(' ')
+					.append(Double.toString(entry.getValue().getValue()))
+					.append('\n');
+		}
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private static <T> void register(ObjectName name, T metric,
+			Class<T> mxbeanInterface) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new StandardMBean(metric,
+						mxbeanInterface, true), name);
+			}
+		} catch (JMException e) {
+			LOG.warn("Unable to register " + name + " with JMX", e);
+		}
+	}
+
+	private static void unregister(ObjectName name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			LOG.warn("Unable to unregister " + name + " from JMX", e);
+		}
+	}
+
+	private static final class MetricKey implements Comparable<MetricKey> {
+		private final String name;
+		private final String shardId;
+
+		MetricKey(String name, String shardId) {
+			this.name = name;
+			this.shardId = shardId;
+		}
+
+		ObjectName objectName(String type) {
+			StringBuilder sb = new StringBuilder(DOMAIN).append(":type=")
+					.append(type).append(",name=").append(name);
+			if (shardId != null) {
+				sb.append(",shard=").append(ObjectName.quote(shardId));
+			}
+			try {
+				return new ObjectName(sb.toString());
+			} catch (JMException e) {
+				throw new IllegalArgumentException("Invalid metric name: "
+						+ sb, e);
+			}
+		}
+
+		String labels(String extra) {
+			if (shardId == null && extra == null) {
+				return "";
+			}
+			StringBuilder sb = new StringBuilder("{");
+			if (shardId != null) {
+				sb.append("shard=\"").append(shardId.replace("\\", "\\\\")
+						.replace("\"", "\\\"")).append('"');
+			}
+			if (extra != null) {
+				if (shardId != null) {
+					sb.append(',');
+				}
+				sb.append(extra);
+			}
+			return sb.append('}').toString();
+		}
+
+		@Override
+		public int compareTo(MetricKey other) {
+			int result = name.compareTo(other.name);
+			if (result != 0) {
+				return result;
+			}
+			if (shardId == null) {
+				return other.shardId == null ? 0 : -1;
+			}
+			return other.shardId == null ? 1 : shardId
+					.compareTo(other.shardId);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof MetricKey)) {
+				return false;
+			}
+			MetricKey other = (MetricKey) obj;
+			return name.equals(other.name)
+					&& (shardId == null ? other.shardId == null : shardId
+							.equals(other.shardId));
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode() * 31
+					+ (shardId == null ? 0 : shardId.hashCode());
+		}
+	}
+}
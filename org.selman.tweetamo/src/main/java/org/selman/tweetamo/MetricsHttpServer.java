@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the {@link Metrics} in the Prometheus text format at
+ * {@code http://host:port/metrics}, using the HTTP server built into the
+ * JDK. Requests are handled on a single daemon thread, so the server never
+ * keeps the JVM alive.
+ *
+ * @author dselman
+ *
+ */
+public class MetricsHttpServer {
+
+	private static final Log LOG = LogFactory.getLog(MetricsHttpServer.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * @param port
+	 *            the port to listen on, on all interfaces
+	 * @throws IOException
+	 *             if the port can't be bound
+	 */
+	public MetricsHttpServer(int port) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tweetamo-metrics-http");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+	}
+
+	/**
+	 * Starts a server if the port is set.
+	 *
+	 * @param port
+	 *            the port to listen on, 0 or less for no server
+	 * @return the started server, or null
+	 */
+	public static MetricsHttpServer startIfEnabled(int port) {
+		if (port <= 0) {
+			return null;
+		}
+		try {
+			MetricsHttpServer server = new MetricsHttpServer(port);
+			server.start();
+			return server;
+		} catch (IOException e) {
+			LOG.error("Unable to serve metrics on port " + port, e);
+			return null;
+		}
+	}
+
+	public void start() {
+		server.start();
+		LOG.info("Serving metrics at http://localhost:"
+				+ server.getAddress().getPort() + "/metrics");
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private static void serve(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())
+					&& !"HEAD".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			StringBuilder sb = new StringBuilder(8192);
+			Metrics.writePrometheus(sb);
+			byte[] body = sb.toString().getBytes(UTF8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} finally {
+			exchange.close();
+		}
+	}
+}
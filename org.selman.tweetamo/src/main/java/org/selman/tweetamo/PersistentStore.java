@@ -16,9 +16,29 @@ package org.selman.tweetamo;
  * limitations under the License.
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,48 +50,145 @@ import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
 import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
 import com.amazonaws.services.dynamodbv2.model.Condition;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
 import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 import com.amazonaws.services.dynamodbv2.model.Projection;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.QueryRequest;
 import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
 import com.amazonaws.services.dynamodbv2.model.Select;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
 import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 
 /**
  * Stores Twitter status updates in a DynamoDB table. Provides some
  * simple query APIs to retrieve status updates.
+ * <p>
+ * Every write asks DynamoDB for the capacity it consumed and goes through a
+ * {@link WriteConcurrencyLimiter} shared by all the processors of the JVM,
+ * which keeps the writes just under the write capacity of the table and its
+ * indexes. Unless the tune interval is 0, a {@link CapacityTuner} sizes that
+ * capacity to the writes.
+ * </p>
+ * <p>
+ * Tweets are written in one of two {@link ItemLayout}s, and items in either
+ * are read back, so a table can be moved from one to the other while it is
+ * in use. In the blob layout a tweet is compressed into a single binary
+ * attribute, next to the attributes the table and its indexes are keyed
+ * on. A table created for that layout projects only the location into its
+ * indexes (and the screen name into the bucket index), so queries of an
+ * index read the rest of each tweet from the table, unless the caller asks
+ * for tweets without their text.
+ * </p>
  */
-public class PersistentStore {
-	private static AmazonDynamoDBClient dynamoDB;
+public class PersistentStore implements TweetStore {
 	private static final Log LOG = LogFactory.getLog(PersistentStore.class);
 
-	private static final String TABLE_NAME = "tweetamo_status";
+	static final String TABLE_NAME = "tweetamo_status";
 	public static final String COL_ID = "id";
 	public static final String COL_CREATEDAT = "createdAt";
 	public static final String COL_LAT = "lat";
 	public static final String COL_LONG = "long";
 	public static final String COL_SCREENNAME = "screenName";
 	public static final String COL_TEXT = "text";
+	public static final String COL_BUCKET = "bucket";
+	public static final String COL_TWEET = "tweet";
 
 	public static final String INDEX_SCREENNAME = "INDEX_screenName";
+	public static final String INDEX_BUCKET = "INDEX_bucket";
+
+	// tweets are bucketed by the hour they were created in
+	static final long BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+	// older than this it is cheaper to scan than to query every bucket
+	private static final long MAX_QUERIED_BUCKETS = 7 * 24;
+	// no dictionary, since dictionaries are only known to the JVM that
+	// registers them and blobs are read by every process
+	private static final TweetCodec BLOB_CODEC = TweetCodec.DEFLATE;
+
+	// BatchWriteItem accepts at most 25 items per request
+	private static final int BATCH_WRITE_MAX_ITEMS = 25;
+	private static final int BATCH_WRITE_THREADS = 8;
+	private static final int BATCH_WRITE_MAX_ATTEMPTS = 8;
+	private static final long BATCH_WRITE_BACKOFF_MILLIS = 50L;
+	private static final long BATCH_WRITE_MAX_BACKOFF_MILLIS = 5000L;
+	public static final double DEFAULT_WRITE_UTILIZATION = 0.9;
+	// BatchGetItem accepts at most 100 keys per request
+	private static final int BATCH_GET_MAX_KEYS = 100;
+
+	private static final int QUERY_CACHE_MAX_ENTRIES = 10000;
+	private static final long QUERY_CACHE_TTL_MILLIS = 30000L;
+	private static final long QUERY_CACHE_WINDOW_MILLIS = 10000L;
+
+	private final AmazonDynamoDB dynamoDB;
+	private final ExecutorService batchWriters;
+	private final WriteConcurrencyLimiter writeLimiter;
+	private final CapacityTuner capacityTuner;
+	private final TweetQueryCache queryCache = new TweetQueryCache(
+			QUERY_CACHE_MAX_ENTRIES, QUERY_CACHE_TTL_MILLIS,
+			QUERY_CACHE_WINDOW_MILLIS);
+	private final TweetQueryCache.Loader screenNameLoader = new TweetQueryCache.Loader() {
+		@Override
+		public List<Tweet> load(String screenName, long since)
+				throws InterruptedException {
+			return queryScreenName(screenName, since, true);
+		}
+	};
+	private boolean bucketIndexAvailable;
+	private final ItemLayout itemLayout;
+
+	// batches are timed per shard by the record pipeline
+	private final LatencyHistogram addLatency = Metrics
+			.histogram(Metrics.STORE_ADD);
+	private final LatencyHistogram queryLatency = Metrics
+			.histogram(Metrics.STORE_QUERY);
+
+	private static final Comparator<Tweet> NEWEST_FIRST = new Comparator<Tweet>() {
+		@Override
+		public int compare(Tweet a, Tweet b) {
+			return a.getCreatedAt() > b.getCreatedAt() ? -1 : (a
+					.getCreatedAt() == b.getCreatedAt() ? 0 : 1);
+		}
+	};
 
 	private static PersistentStore INSTANCE = null;
 
+	/**
+	 * How tweets are laid out in the items of the table.
+	 */
+	public enum ItemLayout {
+		/** Every field of a tweet in an attribute of its own */
+		ATTRIBUTES,
+		/**
+		 * A tweet compressed into the tweet attribute, next to its id,
+		 * creation time, bucket, screen name and location
+		 */
+		BLOB
+	}
+
 	/**
 	 * The only information needed to create a client are security credentials
 	 * consisting of the AWS Access Key ID and Secret Access Key. All other
@@ -83,32 +200,91 @@ public class PersistentStore {
 	 * @see com.amazonaws.auth.PropertiesCredentials
 	 * @see com.amazonaws.ClientConfiguration
 	 */
-	private PersistentStore(Region region, long readCapacity, long writeCapacity)
-			throws Exception {
+	private static AmazonDynamoDB newClient(Region region) {
 		/*
 		 * This credentials provider implementation loads your AWS credentials
 		 * from a properties file at the root of your classpath.
 		 */
-		dynamoDB = new AmazonDynamoDBClient(
+		AmazonDynamoDB client = new AmazonDynamoDBClient(
 				new ClasspathPropertiesFileCredentialsProvider());
-		dynamoDB.setRegion(region);
+		client.setRegion(region);
+		return client;
+	}
+
+	private PersistentStore(TweetProcessorConfiguration configuration)
+			throws Exception {
+		this(newClient(Region.getRegion(Regions.fromName(configuration
+				.getStoreDynamoRegion()))), configuration);
+	}
+
+	/**
+	 * Creates a store on a client, which may be a stand-in for DynamoDB.
+	 */
+	PersistentStore(AmazonDynamoDB client,
+			TweetProcessorConfiguration configuration) throws Exception {
+		this.dynamoDB = client;
+		itemLayout = configuration.getStoreDynamoItemLayout();
+		batchWriters = Executors.newFixedThreadPool(BATCH_WRITE_THREADS,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "tweetamo-batch-writer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 
 		try {
 			if (!tablesExist()) {
-				createTables(readCapacity, writeCapacity);
+				createTables(configuration.getStoreDynamoReadCapacity(),
+						configuration.getStoreDynamoWriteCapacity(),
+						configuration.getStoreDynamoIndexReadCapacity());
 			}
 			waitForTableToBecomeAvailable(TABLE_NAME);
+			bucketIndexAvailable = hasIndex(INDEX_BUCKET);
+			if (!bucketIndexAvailable) {
+				LOG.warn("Table " + TABLE_NAME + " has no " + INDEX_BUCKET
+						+ " index, recent tweets will be found by scanning it");
+			}
 		} catch (Exception e) {
 			handleException(e);
 		}
+		writeLimiter = new WriteConcurrencyLimiter(TABLE_NAME,
+				BATCH_WRITE_THREADS,
+				configuration.getStoreDynamoWriteUtilization(),
+				getProvisionedWriteUnits());
+		LOG.info("Pacing writes with " + writeLimiter + ", writing the "
+				+ itemLayout + " layout");
+		if (configuration.getStoreDynamoTuneIntervalMillis() > 0) {
+			capacityTuner = new CapacityTuner(dynamoDB, TABLE_NAME,
+					writeLimiter, configuration.getStoreDynamoWriteCapacity(),
+					Math.max(configuration.getStoreDynamoWriteCapacity(),
+							configuration.getStoreDynamoMaxWriteCapacity()));
+			capacityTuner.start(configuration
+					.getStoreDynamoTuneIntervalMillis());
+		} else {
+			capacityTuner = null;
+		}
 	}
 
 	public static PersistentStore getInstance() {
+		return getInstance(new TweetProcessorConfiguration());
+	}
+
+	/**
+	 * Returns the store, creating it and, if need be, its table the first
+	 * time. The configuration only matters the first time: its storeDynamo
+	 * settings give the region of the table, the capacity it is created
+	 * with, how its writes are paced and how its capacity is tuned.
+	 *
+	 * @return the store, or null if it could not be created
+	 */
+	public static PersistentStore getInstance(
+			TweetProcessorConfiguration configuration) {
 		synchronized (PersistentStore.class) {
 			if (INSTANCE == null) {
 				try {
-					INSTANCE = new PersistentStore(
-							Region.getRegion(Regions.US_EAST_1), 1L, 50L);
+					INSTANCE = new PersistentStore(configuration);
 				} catch (Exception e) {
 					LOG.error("Failed to create PersistentStore", e);
 				}
@@ -118,12 +294,32 @@ public class PersistentStore {
 		}
 	}
 
-	private void createTables(long readCapacity, long writeCapacity)
-			throws Exception {
+	/**
+	 * Creates the table. Every write to the table is also a write to each of
+	 * its indexes, so they get the table's write capacity. For the blob
+	 * layout the indexes project little besides their keys, since DynamoDB
+	 * stores and writes whatever they project a second time.
+	 */
+	private void createTables(long readCapacity, long writeCapacity,
+			long indexReadCapacity) throws Exception {
 		// ID | createdAt | lat | long | screen name | text |
 		// Primary index is by ID
 		// Global Secondary index is by screen name + createdAt
+		// Global Secondary index is by bucket (hour) + createdAt
 
+		Projection screenNameProjection;
+		Projection bucketProjection;
+		if (itemLayout == ItemLayout.BLOB) {
+			screenNameProjection = new Projection().withProjectionType(
+					"INCLUDE").withNonKeyAttributes(COL_LAT, COL_LONG);
+			bucketProjection = new Projection().withProjectionType("INCLUDE")
+					.withNonKeyAttributes(COL_LAT, COL_LONG, COL_SCREENNAME);
+		} else {
+			screenNameProjection = new Projection().withProjectionType("ALL");
+			bucketProjection = new Projection().withProjectionType("INCLUDE")
+					.withNonKeyAttributes(COL_LAT, COL_LONG, COL_SCREENNAME,
+							COL_TEXT);
+		}
 		try {
 			CreateTableRequest createTableRequest = new CreateTableRequest()
 					.withTableName(TABLE_NAME)
@@ -138,7 +334,10 @@ public class PersistentStore {
 									ScalarAttributeType.N),
 							new AttributeDefinition().withAttributeName(
 									COL_SCREENNAME).withAttributeType(
-									ScalarAttributeType.S))
+									ScalarAttributeType.S),
+							new AttributeDefinition().withAttributeName(
+									COL_BUCKET).withAttributeType(
+									ScalarAttributeType.N))
 					.withProvisionedThroughput(
 							new ProvisionedThroughput().withReadCapacityUnits(
 									readCapacity).withWriteCapacityUnits(
@@ -149,17 +348,33 @@ public class PersistentStore {
 									.withProvisionedThroughput(
 											new ProvisionedThroughput()
 													.withReadCapacityUnits(
-															(long) 10)
+															indexReadCapacity)
 													.withWriteCapacityUnits(
-															(long) 1))
-									.withProjection(
-											new Projection()
-													.withProjectionType("ALL"))
+															writeCapacity))
+									.withProjection(screenNameProjection)
 									.withKeySchema(
 											new KeySchemaElement()
 													.withAttributeName(
 															COL_SCREENNAME)
 													.withKeyType(KeyType.HASH),
+											new KeySchemaElement()
+													.withAttributeName(
+															COL_CREATEDAT)
+													.withKeyType(KeyType.RANGE)),
+							new GlobalSecondaryIndex()
+									.withIndexName(INDEX_BUCKET)
+									.withProvisionedThroughput(
+											new ProvisionedThroughput()
+													.withReadCapacityUnits(
+															indexReadCapacity)
+													.withWriteCapacityUnits(
+															writeCapacity))
+									.withProjection(bucketProjection)
+									.withKeySchema(
+											new KeySchemaElement()
+													.withAttributeName(
+															COL_BUCKET)
+													.withKeyType(KeyType.HASH),
 											new KeySchemaElement()
 													.withAttributeName(
 															COL_CREATEDAT)
@@ -184,48 +399,528 @@ public class PersistentStore {
 		}
 	}
 
+	private boolean hasIndex(String indexName) {
+		TableDescription table = dynamoDB.describeTable(
+				new DescribeTableRequest().withTableName(TABLE_NAME))
+				.getTable();
+		if (table.getGlobalSecondaryIndexes() != null) {
+			for (GlobalSecondaryIndexDescription index : table
+					.getGlobalSecondaryIndexes()) {
+				if (indexName.equals(index.getIndexName())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the write capacity units provisioned for the table and its
+	 *         global secondary indexes, which every write also writes to, or
+	 *         0 if the table can't be described
+	 */
+	private double getProvisionedWriteUnits() {
+		try {
+			TableDescription table = dynamoDB.describeTable(
+					new DescribeTableRequest().withTableName(TABLE_NAME))
+					.getTable();
+			double units = table.getProvisionedThroughput()
+					.getWriteCapacityUnits();
+			if (table.getGlobalSecondaryIndexes() != null) {
+				for (GlobalSecondaryIndexDescription index : table
+						.getGlobalSecondaryIndexes()) {
+					units += index.getProvisionedThroughput()
+							.getWriteCapacityUnits();
+				}
+			}
+			return units;
+		} catch (AmazonClientException e) {
+			LOG.warn("Failed to read the write capacity of " + TABLE_NAME
+					+ ", writes will only slow down when throttled", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the limiter the writes to the table go through
+	 */
+	public WriteConcurrencyLimiter getWriteLimiter() {
+		return writeLimiter;
+	}
+
+	/**
+	 * @return the layout tweets are written in
+	 */
+	public ItemLayout getItemLayout() {
+		return itemLayout;
+	}
+
 	public void add(Status status) throws Exception {
+		add(new StatusTweet(status));
+	}
+
+	@Override
+	public void add(Tweet tweet) throws Exception {
+		try {
+			long start = System.nanoTime();
+			Map<String, AttributeValue> item = newItem(tweet, itemLayout);
+			putItem(item);
+			addLatency.recordSince(start);
+			queryCache.onWrite(tweet);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Stored status in Dynamo: " + tweet.getId());
+			}
+		} catch (Exception e) {
+			handleException(e);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Stores many tweets using BatchWriteItem. The tweets are split into
+	 * chunks of 25, which are written concurrently. Items DynamoDB leaves
+	 * unprocessed, typically because the table is throttled, are resubmitted
+	 * with jittered exponential backoff. When DynamoDB rejects a chunk, its
+	 * tweets are written one at a time to find the ones it rejects.
+	 * </p>
+	 * <p>
+	 * A chunk may not hold the same key twice, so when several tweets have
+	 * the same id only the last one is written.
+	 * </p>
+	 *
+	 * @param tweets
+	 *            the tweets to store
+	 * @return the tweets that could not be stored
+	 * @throws Exception
+	 *             if the thread is interrupted while waiting for the writes
+	 */
+	@Override
+	public WriteResult addAll(Collection<? extends Tweet> tweets)
+			throws Exception {
+		Map<Long, Tweet> unique = new LinkedHashMap<Long, Tweet>();
+		for (Tweet tweet : tweets) {
+			unique.put(tweet.getId(), tweet);
+		}
+		List<Tweet> pending = new ArrayList<Tweet>(unique.values());
+
+		List<List<Tweet>> chunks = new ArrayList<List<Tweet>>();
+		List<Future<WriteResult>> futures = new ArrayList<Future<WriteResult>>();
+		for (int from = 0; from < pending.size(); from += BATCH_WRITE_MAX_ITEMS) {
+			final List<Tweet> chunk = pending.subList(from,
+					Math.min(from + BATCH_WRITE_MAX_ITEMS, pending.size()));
+			chunks.add(chunk);
+			futures.add(batchWriters.submit(new Callable<WriteResult>() {
+				@Override
+				public WriteResult call() throws Exception {
+					return writeChunk(chunk);
+				}
+			}));
+		}
+
+		WriteResult result = new WriteResult();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				result.addAll(futures.get(i).get());
+			} catch (ExecutionException e) {
+				LOG.error("Unexpected failure writing tweets", e.getCause());
+				result.getUnprocessed().addAll(chunks.get(i));
+			}
+		}
+
+		Set<Tweet> failed = Collections
+				.newSetFromMap(new IdentityHashMap<Tweet, Boolean>());
+		failed.addAll(result.getUnprocessed());
+		failed.addAll(result.getRejected().keySet());
+		for (Tweet tweet : pending) {
+			if (!failed.contains(tweet)) {
+				queryCache.onWrite(tweet);
+			}
+		}
+		LOG.debug("Stored " + (pending.size() - result.getFailedCount())
+				+ " of " + pending.size() + " tweets in Dynamo");
+		return result;
+	}
+
+	/**
+	 * Writes up to 25 tweets, resubmitting unprocessed items.
+	 */
+	private WriteResult writeChunk(List<Tweet> chunk) {
+		WriteResult result = new WriteResult();
+		Map<String, Tweet> tweetsById = new HashMap<String, Tweet>();
+		List<WriteRequest> writes = new ArrayList<WriteRequest>(chunk.size());
+		for (Tweet tweet : chunk) {
+			Map<String, AttributeValue> item = newItem(tweet, itemLayout);
+			tweetsById.put(item.get(COL_ID).getN(), tweet);
+			writes.add(new WriteRequest().withPutRequest(new PutRequest()
+					.withItem(item)));
+		}
+
+		Backoff backoff = new Backoff(BATCH_WRITE_BACKOFF_MILLIS,
+				BATCH_WRITE_MAX_BACKOFF_MILLIS);
+		for (int attempt = 1; attempt <= BATCH_WRITE_MAX_ATTEMPTS; attempt++) {
+			Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+			requestItems.put(TABLE_NAME, writes);
+			try {
+				writeLimiter.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			double consumedUnits = 0;
+			boolean throttled = false;
+			try {
+				BatchWriteItemResult batchResult = dynamoDB
+						.batchWriteItem(new BatchWriteItemRequest()
+								.withRequestItems(requestItems)
+								.withReturnConsumedCapacity(
+										ReturnConsumedCapacity.TOTAL));
+				consumedUnits = sum(batchResult.getConsumedCapacity());
+				Map<String, List<WriteRequest>> unprocessed = batchResult
+						.getUnprocessedItems();
+				if (unprocessed == null || unprocessed.get(TABLE_NAME) == null
+						|| unprocessed.get(TABLE_NAME).isEmpty()) {
+					return result;
+				}
+				// DynamoDB leaves items unprocessed when the table is
+				// throttled
+				throttled = true;
+				writes = unprocessed.get(TABLE_NAME);
+				LOG.debug(writes.size() + " of " + chunk.size()
+						+ " items unprocessed, attempt " + attempt);
+			} catch (AmazonClientException e) {
+				throttled = Failures.isThrottling(e);
+				if (!Failures.isTransient(e)) {
+					// something in the chunk was rejected, find out what
+					LOG.debug("Batch write of " + writes.size()
+							+ " items rejected, writing them one at a time", e);
+					for (WriteRequest write : writes) {
+						putItem(tweetsById.get(write.getPutRequest().getItem()
+								.get(COL_ID).getN()), write.getPutRequest()
+								.getItem(), result);
+					}
+					return result;
+				}
+				LOG.debug("Batch write of " + writes.size()
+						+ " items failed, attempt " + attempt, e);
+			} finally {
+				writeLimiter.release(consumedUnits, throttled);
+			}
+
+			if (attempt < BATCH_WRITE_MAX_ATTEMPTS) {
+				try {
+					backoff.sleep();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+		for (WriteRequest write : writes) {
+			result.getUnprocessed().add(tweetsById.get(write.getPutRequest()
+					.getItem().get(COL_ID).getN()));
+		}
+		return result;
+	}
+
+	private void putItem(Tweet tweet, Map<String, AttributeValue> item,
+			WriteResult result) {
+		try {
+			putItem(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.getUnprocessed().add(tweet);
+		} catch (AmazonClientException e) {
+			if (Failures.isTransient(e)) {
+				result.getUnprocessed().add(tweet);
+			} else {
+				result.getRejected().put(tweet, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes an item through the write limiter.
+	 */
+	private void putItem(Map<String, AttributeValue> item)
+			throws InterruptedException {
+		writeLimiter.acquire();
+		double consumedUnits = 0;
+		boolean throttled = false;
+		try {
+			PutItemResult putItemResult = dynamoDB.putItem(new PutItemRequest(
+					TABLE_NAME, item)
+					.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+			consumedUnits = sum(Collections.singletonList(putItemResult
+					.getConsumedCapacity()));
+		} catch (AmazonClientException e) {
+			throttled = Failures.isThrottling(e);
+			throw e;
+		} finally {
+			writeLimiter.release(consumedUnits, throttled);
+		}
+	}
+
+	private static double sum(List<ConsumedCapacity> consumedCapacity) {
+		double units = 0;
+		if (consumedCapacity != null) {
+			for (ConsumedCapacity capacity : consumedCapacity) {
+				if (capacity != null && capacity.getCapacityUnits() != null) {
+					units += capacity.getCapacityUnits();
+				}
+			}
+		}
+		return units;
+	}
+
+	/**
+	 * Finds which of the ids are stored, reading just the key of each item
+	 * with BatchGetItem. Reads cost less capacity than writes, so this is
+	 * the cheap way to find out whether a tweet needs writing. Keys left
+	 * unprocessed after a few attempts are treated as not stored.
+	 *
+	 * @param ids
+	 *            status ids
+	 * @return the ids that are stored
+	 */
+	@Override
+	public Set<Long> getStoredIds(Collection<Long> ids) throws Exception {
+		Set<Long> stored = new HashSet<Long>();
+		List<Map<String, AttributeValue>> keys = new ArrayList<Map<String, AttributeValue>>();
+		for (Long id : ids) {
+			Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+			key.put(COL_ID, new AttributeValue().withN(id.toString()));
+			keys.add(key);
+		}
 		try {
-			Map<String, AttributeValue> item = newItem(status);
-			PutItemRequest putItemRequest = new PutItemRequest(TABLE_NAME, item);
-			dynamoDB.putItem(putItemRequest);
-			LOG.info("Stored status in Dynamo: " + status.getId());
+			for (Map<String, AttributeValue> item : getItems(keys, COL_ID)) {
+				stored.add(Long.valueOf(item.get(COL_ID).getN()));
+			}
 		} catch (Exception e) {
 			handleException(e);
 		}
+		return stored;
 	}
 
-	public QueryResult getLatestTweetsForScreenName(String screenName,
+	/**
+	 * Reads items of the table with BatchGetItem, 100 keys at a time. Keys
+	 * left unprocessed after a few attempts are treated as not found.
+	 *
+	 * @param attributes
+	 *            the attributes to read, none for all of them
+	 * @return the items found, in no particular order
+	 */
+	private List<Map<String, AttributeValue>> getItems(
+			List<Map<String, AttributeValue>> keys, String... attributes)
+			throws InterruptedException {
+		List<Map<String, AttributeValue>> found = new ArrayList<Map<String, AttributeValue>>();
+		for (int from = 0; from < keys.size(); from += BATCH_GET_MAX_KEYS) {
+			KeysAndAttributes keysAndAttributes = new KeysAndAttributes()
+					.withKeys(keys.subList(from,
+							Math.min(from + BATCH_GET_MAX_KEYS, keys.size())));
+			if (attributes.length > 0) {
+				keysAndAttributes.setAttributesToGet(Arrays.asList(attributes));
+			}
+			Map<String, KeysAndAttributes> requestItems = new HashMap<String, KeysAndAttributes>();
+			requestItems.put(TABLE_NAME, keysAndAttributes);
+			getItems(requestItems, found);
+		}
+		return found;
+	}
+
+	private void getItems(Map<String, KeysAndAttributes> requestItems,
+			List<Map<String, AttributeValue>> found)
+			throws InterruptedException {
+		Backoff backoff = new Backoff(BATCH_WRITE_BACKOFF_MILLIS,
+				BATCH_WRITE_MAX_BACKOFF_MILLIS);
+		for (int attempt = 1; attempt <= BATCH_WRITE_MAX_ATTEMPTS; attempt++) {
+			BatchGetItemResult result = dynamoDB
+					.batchGetItem(new BatchGetItemRequest()
+							.withRequestItems(requestItems));
+			List<Map<String, AttributeValue>> items = result.getResponses()
+					.get(TABLE_NAME);
+			if (items != null) {
+				found.addAll(items);
+			}
+			requestItems = result.getUnprocessedKeys();
+			if (requestItems == null || requestItems.isEmpty()) {
+				return;
+			}
+			if (attempt < BATCH_WRITE_MAX_ATTEMPTS) {
+				backoff.sleep();
+			}
+		}
+	}
+
+	/**
+	 * Reads tweets from items of an index. Items the index only holds part
+	 * of, which is how the indexes of a table created for the blob layout
+	 * hold them, are read in full from the table if the text is wanted.
+	 */
+	private List<Tweet> toTweets(List<Map<String, AttributeValue>> items,
+			boolean withText) throws InterruptedException {
+		Map<String, Map<String, AttributeValue>> fullItems = new HashMap<String, Map<String, AttributeValue>>();
+		if (withText) {
+			List<Map<String, AttributeValue>> keys = new ArrayList<Map<String, AttributeValue>>();
+			for (Map<String, AttributeValue> item : items) {
+				if (!item.containsKey(COL_TWEET) && !item.containsKey(COL_TEXT)) {
+					keys.add(Collections.singletonMap(COL_ID, item.get(COL_ID)));
+				}
+			}
+			for (Map<String, AttributeValue> item : getItems(keys)) {
+				fullItems.put(item.get(COL_ID).getN(), item);
+			}
+		}
+		List<Tweet> tweets = new ArrayList<Tweet>(items.size());
+		for (Map<String, AttributeValue> item : items) {
+			Map<String, AttributeValue> fullItem = fullItems.get(item.get(
+					COL_ID).getN());
+			tweets.add(toTweet(fullItem != null ? fullItem : item));
+		}
+		return tweets;
+	}
+
+	/**
+	 * Returns the tweets of a screen name created at or after a time, oldest
+	 * first. Results are served from the {@link TweetQueryCache} when
+	 * possible.
+	 *
+	 * @param screenName
+	 *            the screen name
+	 * @param timestamp
+	 *            only tweets created at or after this time, in ms since the
+	 *            epoch, are returned
+	 * @return the tweets
+	 */
+	@Override
+	public List<Tweet> getLatestTweetsForScreenName(String screenName,
 			long timestamp) throws Exception {
 		try {
-			long startDateMilli = System.currentTimeMillis();
-
-			Map<String, Condition> keyConditions = new HashMap<String, Condition>();
-
-			keyConditions.put(
-					COL_SCREENNAME,
-					new Condition().withComparisonOperator(
-							ComparisonOperator.EQ).withAttributeValueList(
-							new AttributeValue().withS(screenName)));
-
-			keyConditions.put(
-					COL_CREATEDAT,
-					new Condition().withComparisonOperator(
-							ComparisonOperator.BETWEEN)
-							.withAttributeValueList(
-									new AttributeValue().withN(Long
-											.toString(timestamp)),
-									new AttributeValue().withN(Long
-											.toString(startDateMilli))));
+			return queryCache.get(screenName, timestamp, screenNameLoader);
+		} catch (Exception e) {
+			handleException(e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the tweets of a screen name created at or after a time, oldest
+	 * first, optionally without their text. Without it the tweets are read
+	 * from the screen name index alone, bypassing the cache, which costs
+	 * less when the index doesn't hold the whole tweet; their text is then
+	 * null, unless the index has it anyway.
+	 *
+	 * @param withText
+	 *            whether the text of the tweets is wanted
+	 */
+	public List<Tweet> getLatestTweetsForScreenName(String screenName,
+			long timestamp, boolean withText) throws Exception {
+		if (withText) {
+			return getLatestTweetsForScreenName(screenName, timestamp);
+		}
+		try {
+			return queryScreenName(screenName, timestamp, false);
+		} catch (Exception e) {
+			handleException(e);
+		}
+
+		return null;
+	}
 
+	/**
+	 * Queries the screen name index, reading every page.
+	 */
+	private List<Tweet> queryScreenName(String screenName, long timestamp,
+			boolean withText) throws InterruptedException {
+		long start = System.nanoTime();
+		Map<String, Condition> keyConditions = new HashMap<String, Condition>();
+
+		keyConditions.put(
+				COL_SCREENNAME,
+				new Condition().withComparisonOperator(ComparisonOperator.EQ)
+						.withAttributeValueList(
+								new AttributeValue().withS(screenName)));
+
+		keyConditions.put(
+				COL_CREATEDAT,
+				new Condition().withComparisonOperator(ComparisonOperator.GE)
+						.withAttributeValueList(
+								new AttributeValue().withN(Long
+										.toString(timestamp))));
+
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		Map<String, AttributeValue> startKey = null;
+		do {
+			// an index only returns all attributes if it projects them all
 			QueryRequest queryRequest = new QueryRequest()
 					.withTableName(TABLE_NAME).withIndexName(INDEX_SCREENNAME)
 					.withKeyConditions(keyConditions)
-					.withSelect(Select.ALL_ATTRIBUTES)
-					.withScanIndexForward(true);
-
+					.withSelect(Select.ALL_PROJECTED_ATTRIBUTES)
+					.withScanIndexForward(true)
+					.withExclusiveStartKey(startKey);
 			QueryResult result = dynamoDB.query(queryRequest);
-			return result;
+			tweets.addAll(toTweets(result.getItems(), withText));
+			startKey = result.getLastEvaluatedKey();
+		} while (startKey != null);
+		queryLatency.recordSince(start);
+		return tweets;
+	}
+
+	/**
+	 * @return the cache of {@link #getLatestTweetsForScreenName(String, long)}
+	 */
+	public TweetQueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Returns the tweets created after a time, newest first. The hour
+	 * buckets are queried from the current one back to the one holding the
+	 * timestamp, until enough tweets have been found, so the cost is in
+	 * proportion to the number of tweets returned rather than the size of the
+	 * table. Tables created before the bucket index existed, and timestamps
+	 * more than a week old, are handled with a scan instead.
+	 *
+	 * @param timestamp
+	 *            only tweets created after this time, in ms since the epoch,
+	 *            are returned
+	 * @param limit
+	 *            the maximum number of tweets returned
+	 * @return the tweets
+	 */
+	@Override
+	public List<Tweet> getSince(long timestamp, int limit) throws Exception {
+		return getSince(timestamp, limit, true);
+	}
+
+	/**
+	 * Returns the tweets created after a time, newest first, optionally
+	 * without their text, like
+	 * {@link #getLatestTweetsForScreenName(String, long, boolean)}.
+	 *
+	 * @param withText
+	 *            whether the text of the tweets is wanted
+	 */
+	public List<Tweet> getSince(long timestamp, int limit, boolean withText)
+			throws Exception {
+		long start = System.nanoTime();
+		try {
+			long newestBucket = bucketOf(System.currentTimeMillis());
+			long oldestBucket = bucketOf(timestamp);
+			List<Tweet> tweets;
+			if (!bucketIndexAvailable
+					|| newestBucket - oldestBucket >= MAX_QUERIED_BUCKETS) {
+				tweets = scanSince(timestamp, limit);
+			} else {
+				tweets = new ArrayList<Tweet>();
+				for (long bucket = newestBucket; bucket >= oldestBucket
+						&& tweets.size() < limit; bucket--) {
+					querySince(bucket, timestamp, limit, withText, tweets);
+				}
+			}
+			queryLatency.recordSince(start);
+			return tweets;
 		} catch (Exception e) {
 			handleException(e);
 		}
@@ -233,29 +928,160 @@ public class PersistentStore {
 		return null;
 	}
 
-	public ScanResult getSince(long timestamp, int limit) throws Exception {
-		try {
-			Condition scanFilterCondition = new Condition()
-					.withComparisonOperator(ComparisonOperator.GT.toString())
-					.withAttributeValueList(
-							new AttributeValue().withN(Long.toString(timestamp)));
-			Map<String, Condition> conditions = new HashMap<String, Condition>();
-			conditions.put(COL_CREATEDAT, scanFilterCondition);
+	/**
+	 * Adds the tweets of one bucket created after the timestamp, newest
+	 * first, until the list holds limit tweets.
+	 */
+	private void querySince(long bucket, long timestamp, int limit,
+			boolean withText, List<Tweet> tweets) throws InterruptedException {
+		Map<String, Condition> keyConditions = new HashMap<String, Condition>();
+		keyConditions.put(
+				COL_BUCKET,
+				new Condition().withComparisonOperator(ComparisonOperator.EQ)
+						.withAttributeValueList(
+								new AttributeValue().withN(Long
+										.toString(bucket))));
+		keyConditions.put(
+				COL_CREATEDAT,
+				new Condition().withComparisonOperator(ComparisonOperator.GT)
+						.withAttributeValueList(
+								new AttributeValue().withN(Long
+										.toString(timestamp))));
+
+		Map<String, AttributeValue> startKey = null;
+		do {
+			QueryRequest queryRequest = new QueryRequest()
+					.withTableName(TABLE_NAME).withIndexName(INDEX_BUCKET)
+					.withKeyConditions(keyConditions)
+					.withSelect(Select.ALL_PROJECTED_ATTRIBUTES)
+					.withScanIndexForward(false)
+					.withLimit(limit - tweets.size())
+					.withExclusiveStartKey(startKey);
+			QueryResult result = dynamoDB.query(queryRequest);
+			tweets.addAll(toTweets(result.getItems(), withText));
+			startKey = result.getLastEvaluatedKey();
+		} while (startKey != null && tweets.size() < limit);
+	}
+
+	/**
+	 * Finds tweets created after the timestamp by scanning the table. The
+	 * limit of a scan applies before its filter, so pages are read until
+	 * enough tweets have been found or the table has been read.
+	 */
+	private List<Tweet> scanSince(long timestamp, int limit) {
+		Condition scanFilterCondition = new Condition()
+				.withComparisonOperator(ComparisonOperator.GT.toString())
+				.withAttributeValueList(
+						new AttributeValue().withN(Long.toString(timestamp)));
+		Map<String, Condition> conditions = new HashMap<String, Condition>();
+		conditions.put(COL_CREATEDAT, scanFilterCondition);
 
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		Map<String, AttributeValue> startKey = null;
+		do {
 			ScanRequest scanRequest = new ScanRequest()
 					.withTableName(TABLE_NAME)
 					.withScanFilter(conditions)
-					.withLimit(limit)
 					.withAttributesToGet(
 							Arrays.asList(COL_ID, COL_CREATEDAT, COL_LAT,
-									COL_LONG, COL_SCREENNAME, COL_TEXT));
+									COL_LONG, COL_SCREENNAME, COL_TEXT,
+									COL_TWEET))
+					.withExclusiveStartKey(startKey);
+			ScanResult result = dynamoDB.scan(scanRequest);
+			for (Map<String, AttributeValue> item : result.getItems()) {
+				if (tweets.size() < limit) {
+					tweets.add(toTweet(item));
+				}
+			}
+			startKey = result.getLastEvaluatedKey();
+		} while (startKey != null && tweets.size() < limit);
 
-			return dynamoDB.scan(scanRequest);
-		} catch (Exception e) {
-			handleException(e);
+		Collections.sort(tweets, NEWEST_FIRST);
+		return tweets;
+	}
+
+	static long bucketOf(long createdAt) {
+		return createdAt / BUCKET_MILLIS;
+	}
+
+	/**
+	 * Creates an exporter that reads the whole table with a parallel scan.
+	 *
+	 * @see TableExporter
+	 */
+	public TableExporter newExporter(int totalSegments, int parallelism,
+			File progressFile, double maxReadCapacityPerSecond) {
+		return new TableExporter(dynamoDB, TABLE_NAME, totalSegments,
+				parallelism, progressFile, maxReadCapacityPerSecond);
+	}
+
+	/**
+	 * Rewrites the items of the table still in the attributes layout in the
+	 * blob layout, reading them with a parallel scan that can be resumed like
+	 * an export. The rewrites go through the write limiter like any other
+	 * write. Run it once every process writes the blob layout.
+	 *
+	 * @return the number of tweets rewritten
+	 * @throws IOException
+	 *             if the migration failed; it can be resumed
+	 * @see TableExporter
+	 */
+	public long migrateToBlobs(int totalSegments, int parallelism,
+			File progressFile, double maxReadCapacityPerSecond)
+			throws IOException {
+		if (itemLayout != ItemLayout.BLOB) {
+			throw new IllegalStateException("The store writes the "
+					+ itemLayout + " layout, it must write the "
+					+ ItemLayout.BLOB + " layout to migrate the table");
 		}
+		Map<String, Condition> legacyItems = new HashMap<String, Condition>();
+		legacyItems.put(COL_TWEET,
+				new Condition().withComparisonOperator(ComparisonOperator.NULL));
+		TableExporter exporter = newExporter(totalSegments, parallelism,
+				progressFile, maxReadCapacityPerSecond).withScanFilter(
+				legacyItems);
+		return exporter.export(new TweetExportSink() {
+			@Override
+			public void write(int segment, List<Tweet> tweets)
+					throws IOException {
+				WriteResult result;
+				try {
+					result = addAll(tweets);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Migration interrupted");
+				} catch (Exception e) {
+					throw new IOException("Failed to rewrite "
+							+ tweets.size() + " tweets", e);
+				}
+				if (result.getFailedCount() > 0) {
+					throw new IOException(result.getFailedCount() + " of "
+							+ tweets.size() + " tweets could not be rewritten");
+				}
+			}
 
-		return null;
+			@Override
+			public void close() {
+			}
+		});
+	}
+
+	/**
+	 * Stops the threads that write batches and tune the capacity; the next
+	 * {@link #getInstance()} creates a new store. The DynamoDB client is
+	 * shared with the exporters, so it is left open.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (PersistentStore.class) {
+			if (INSTANCE == this) {
+				INSTANCE = null;
+			}
+		}
+		if (capacityTuner != null) {
+			capacityTuner.close();
+		}
+		batchWriters.shutdown();
 	}
 
 	private void handleException(Exception e) throws Exception {
@@ -283,34 +1109,87 @@ public class PersistentStore {
 		throw e;
 	}
 
-	private static Map<String, AttributeValue> newItem(Status status) {
+	static Map<String, AttributeValue> newItem(Tweet tweet) {
+		return newItem(tweet, ItemLayout.ATTRIBUTES);
+	}
+
+	/**
+	 * Maps a tweet to an item of the table in a layout.
+	 */
+	static Map<String, AttributeValue> newItem(Tweet tweet, ItemLayout layout) {
 		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
 		item.put(COL_ID,
-				new AttributeValue().withN(Long.toString(status.getId())));
-		item.put(COL_CREATEDAT, new AttributeValue().withN(Long.toString(status
-				.getCreatedAt().getTime())));
-		if (status.getGeoLocation() != null) {
-			item.put(COL_LAT, new AttributeValue().withN(Double.toString(status
-					.getGeoLocation().getLatitude())));
+				new AttributeValue().withN(Long.toString(tweet.getId())));
+		item.put(COL_CREATEDAT, new AttributeValue().withN(Long.toString(tweet
+				.getCreatedAt())));
+		item.put(COL_BUCKET, new AttributeValue().withN(Long
+				.toString(bucketOf(tweet.getCreatedAt()))));
+		if (tweet.hasGeoLocation()) {
+			item.put(COL_LAT, new AttributeValue().withN(Double.toString(tweet
+					.getLatitude())));
 			item.put(COL_LONG, new AttributeValue().withN(Double
-					.toString(status.getGeoLocation().getLongitude())));
+					.toString(tweet.getLongitude())));
 		}
 		item.put(COL_SCREENNAME,
-				new AttributeValue().withS(status.getUser().getScreenName()));
-		item.put(COL_TEXT, new AttributeValue().withS(status.getText()));
+				new AttributeValue().withS(tweet.getScreenName()));
+		if (layout == ItemLayout.BLOB) {
+			item.put(COL_TWEET, new AttributeValue().withB(toBlob(tweet)));
+		} else {
+			item.put(COL_TEXT, new AttributeValue().withS(tweet.getText()));
+		}
 		return item;
 	}
 
-	private static void waitForTableToBecomeAvailable(String tableName) {
+	private static ByteBuffer toBlob(Tweet tweet) {
+		try {
+			return TweetSerializer.toBytes(tweet, TweetProfile.STORE,
+					BLOB_CODEC, null);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Tweet " + tweet.getId()
+					+ " can't be serialized", e);
+		}
+	}
+
+	/**
+	 * Reads a tweet from an item of the table or of one of its indexes, in
+	 * either layout. An index item without the text or the blob gives a
+	 * tweet without text.
+	 */
+	static Tweet toTweet(Map<String, AttributeValue> item) {
+		AttributeValue blob = item.get(COL_TWEET);
+		if (blob != null) {
+			try {
+				return TweetSerializer.fromBytes(blob.getB().duplicate());
+			} catch (IOException e) {
+				throw new IllegalStateException("Item "
+						+ item.get(COL_ID).getN() + " has a corrupt blob", e);
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException("Item "
+						+ item.get(COL_ID).getN() + " has a corrupt blob", e);
+			}
+		}
+		AttributeValue lat = item.get(COL_LAT);
+		AttributeValue lon = item.get(COL_LONG);
+		boolean geo = lat != null && lon != null;
+		return new CompactTweet(Long.parseLong(item.get(COL_ID).getN()),
+				Long.parseLong(item.get(COL_CREATEDAT).getN()),
+				getString(item, COL_SCREENNAME), getString(item, COL_TEXT),
+				geo, geo ? Double.parseDouble(lat.getN()) : 0,
+				geo ? Double.parseDouble(lon.getN()) : 0);
+	}
+
+	private static String getString(Map<String, AttributeValue> item,
+			String name) {
+		AttributeValue value = item.get(name);
+		return value == null ? null : value.getS();
+	}
+
+	private void waitForTableToBecomeAvailable(String tableName) {
 		LOG.info("Waiting for " + tableName + " to become ACTIVE...");
 
 		long startTime = System.currentTimeMillis();
 		long endTime = startTime + (10 * 60 * 1000);
 		while (System.currentTimeMillis() < endTime) {
-			try {
-				Thread.sleep(1000 * 20);
-			} catch (Exception e) {
-			}
 			try {
 				DescribeTableRequest request = new DescribeTableRequest()
 						.withTableName(tableName);
@@ -325,6 +1204,10 @@ public class PersistentStore {
 						"ResourceNotFoundException") == false)
 					throw ase;
 			}
+			try {
+				Thread.sleep(1000 * 20);
+			} catch (Exception e) {
+			}
 		}
 
 		throw new RuntimeException("Table " + tableName + " never went active");
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * The tweets processed recently by this worker, kept in memory so that
+ * questions like "what was tweeted in the last 30 minutes" don't have to
+ * read back from DynamoDB what the worker has just written to it. One buffer
+ * is shared by the processors of all shards.
+ * </p>
+ * <p>
+ * The buffer is a ring of time slots, each holding the tweets created during
+ * one interval, so a query only looks at the slots its time range covers.
+ * Each slot is itself a ring with a fixed capacity: in a burst the latest
+ * tweets of the interval replace the earliest, which bounds the memory used.
+ * The oldest slot is reused as time moves on.
+ * </p>
+ * <p>
+ * Only tweets processed since the worker started are in the buffer. A query
+ * reaching further back {@link #coldStart loads} the missing tweets from the
+ * store, once.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class RecentTweetsBuffer {
+
+	private static final Log LOG = LogFactory.getLog(RecentTweetsBuffer.class);
+
+	private static final Comparator<Tweet> NEWEST_FIRST = new Comparator<Tweet>() {
+		@Override
+		public int compare(Tweet a, Tweet b) {
+			return a.getCreatedAt() > b.getCreatedAt() ? -1 : (a
+					.getCreatedAt() == b.getCreatedAt() ? 0 : 1);
+		}
+	};
+
+	private final long slotMillis;
+	private final Slot[] slots;
+	private final int tweetsPerSlot;
+
+	// tweets created since this time are all in the buffer, unless dropped
+	// from a full slot
+	private long completeSince;
+	private boolean coldStarted;
+
+	/**
+	 * @param slotCount
+	 *            the number of time slots
+	 * @param slotMillis
+	 *            the interval each slot covers, so the buffer keeps tweets
+	 *            for slotCount * slotMillis
+	 * @param tweetsPerSlot
+	 *            the most tweets kept for each interval
+	 */
+	public RecentTweetsBuffer(int slotCount, long slotMillis, int tweetsPerSlot) {
+		this.slotMillis = slotMillis;
+		this.tweetsPerSlot = tweetsPerSlot;
+		this.slots = new Slot[slotCount];
+		for (int i = 0; i < slotCount; i++) {
+			slots[i] = new Slot(tweetsPerSlot);
+		}
+		this.completeSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Adds a processed tweet. Tweets older than the buffer keeps are ignored.
+	 */
+	public synchronized void add(Tweet tweet) {
+		long interval = tweet.getCreatedAt() / slotMillis;
+		Slot slot = slots[(int) (interval % slots.length)];
+		if (slot.interval != interval) {
+			if (slot.interval > interval) {
+				// created before the oldest interval kept
+				return;
+			}
+			slot.reset(interval);
+		}
+		slot.add(CompactTweet.copyOf(tweet));
+	}
+
+	public void addAll(Collection<? extends Tweet> tweets) {
+		for (Tweet tweet : tweets) {
+			add(tweet);
+		}
+	}
+
+	/**
+	 * Returns the tweets created after a time, newest first.
+	 *
+	 * @param timestamp
+	 *            only tweets created after this time, in ms since the epoch,
+	 *            are returned
+	 * @param limit
+	 *            the maximum number of tweets returned
+	 * @return the tweets
+	 */
+	public synchronized List<Tweet> getSince(long timestamp, int limit) {
+		long newest = System.currentTimeMillis() / slotMillis;
+		long oldest = Math.max(timestamp / slotMillis, newest - slots.length
+				+ 1);
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		Set<Long> ids = new HashSet<Long>();
+		for (long interval = newest; interval >= oldest; interval--) {
+			Slot slot = slots[(int) (interval % slots.length)];
+			if (slot.interval == interval) {
+				slot.collect(timestamp, ids, tweets);
+			}
+			// slots are whole intervals, so once there are enough tweets the
+			// older ones can't be among the newest
+			if (tweets.size() >= limit) {
+				break;
+			}
+		}
+		Collections.sort(tweets, NEWEST_FIRST);
+		return tweets.size() > limit ? new ArrayList<Tweet>(tweets.subList(0,
+				limit)) : tweets;
+	}
+
+	/**
+	 * @return true if all the tweets created after the time are in the
+	 *         buffer, as far as its capacity allows
+	 */
+	public synchronized boolean covers(long timestamp) {
+		return timestamp >= completeSince
+				&& timestamp / slotMillis > System.currentTimeMillis()
+						/ slotMillis - slots.length;
+	}
+
+	/**
+	 * Fills the buffer from the store the first time a query reaches back
+	 * before the worker started. Later calls do nothing, so only one of the
+	 * processors sharing the buffer reads from the store.
+	 *
+	 * @param store
+	 *            where the tweets are stored
+	 * @param timestamp
+	 *            the start of the time range that should be covered
+	 * @param limit
+	 *            the most tweets loaded
+	 */
+	public void coldStart(TweetStore store, long timestamp, int limit)
+			throws Exception {
+		synchronized (this) {
+			if (coldStarted || covers(timestamp)) {
+				return;
+			}
+			coldStarted = true;
+		}
+
+		List<Tweet> tweets = store.getSince(timestamp, limit);
+		if (tweets == null) {
+			return;
+		}
+		addAll(tweets);
+		synchronized (this) {
+			if (tweets.size() < limit) {
+				completeSince = Math.min(completeSince, timestamp);
+			} else if (!tweets.isEmpty()) {
+				// only the newest tweets were loaded
+				completeSince = Math.min(completeSince,
+						tweets.get(tweets.size() - 1).getCreatedAt());
+			}
+		}
+		LOG.info("Loaded " + tweets.size()
+				+ " recent tweets from the store into the buffer");
+	}
+
+	@Override
+	public synchronized String toString() {
+		int size = 0;
+		for (Slot slot : slots) {
+			size += slot.size;
+		}
+		return "RecentTweetsBuffer [size=" + size + ", capacity="
+				+ (slots.length * tweetsPerSlot) + ", slotMillis="
+				+ slotMillis + "]";
+	}
+
+	/**
+	 * The tweets created during one interval, in the order they were added.
+	 */
+	private static class Slot {
+		private final Tweet[] tweets;
+		private long interval = -1;
+		private int next;
+		private int size;
+
+		Slot(int capacity) {
+			this.tweets = new Tweet[capacity];
+		}
+
+		void reset(long interval) {
+			this.interval = interval;
+			Arrays.fill(tweets, null);
+			next = 0;
+			size = 0;
+		}
+
+		void add(Tweet tweet) {
+			tweets[next] = tweet;
+			next = (next + 1) % tweets.length;
+			size = Math.min(size + 1, tweets.length);
+		}
+
+		/**
+		 * Adds the tweets created after the time, skipping ids already seen:
+		 * a tweet may have been both loaded and processed, or processed
+		 * twice.
+		 */
+		void collect(long timestamp, Set<Long> ids, List<Tweet> result) {
+			for (int i = 0; i < size; i++) {
+				Tweet tweet = tweets[i];
+				if (tweet.getCreatedAt() > timestamp && ids.add(tweet.getId())) {
+					result.add(tweet);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,703 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * <p>
+ * Processes the records of one shard in three stages, each on its own thread
+ * and connected by bounded queues:
+ * </p>
+ * <ol>
+ * <li>decode: unpacks aggregated records and decodes their tweets</li>
+ * <li>batch: gathers the tweets of consecutive records into write batches</li>
+ * <li>persist: stores each batch, retrying the tweets that failed</li>
+ * </ol>
+ * <p>
+ * Failures are sorted into deterministic ones, which are sent straight to
+ * the {@link DeadLetterSink}, and transient ones, which are retried with
+ * jittered exponential backoff for as long as they last. Writes go through a
+ * {@link CircuitBreaker} shared by all shards, so an outage of DynamoDB
+ * pauses the shards instead of having each of them retry against it, and
+ * nothing is dead lettered just because the outage went on for a while.
+ * </p>
+ * <p>
+ * {@link #submit(List)} only blocks when the decode queue is full, so
+ * fetching the next records from Kinesis overlaps with writing the previous
+ * ones to DynamoDB. Records flow through the stages in order; a record
+ * becomes durable once every tweet it holds has been stored or dead
+ * lettered, and {@link #getDurableSequenceNumber()} is the sequence number
+ * of the last durable record.
+ * </p>
+ * <p>
+ * If a record can be neither stored nor dead lettered, or a stage fails
+ * unexpectedly while handling it, the pipeline fails: its stages keep
+ * storing the records that follow, but none of them becomes durable, so the
+ * shard is never checkpointed past the lost record. Nothing replays it while
+ * this worker holds the lease, so the processor stops once it sees
+ * {@link #getFailure()}; the record is only read again when the shard is
+ * leased anew from its last checkpoint.
+ * </p>
+ * <p>
+ * The pipeline keeps the {@link Metrics} of its shard: how long tweets take
+ * to decode and batches take to store, and how many records arrive and how
+ * many tweets are stored or dropped as duplicates, how many dead letters it
+ * writes, and whether it has failed. With a duplicate filter, it also keeps
+ * gauges of the measured and the expected false positive rates of the
+ * filter.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+class RecordPipeline {
+
+	private static final Log LOG = LogFactory.getLog(RecordPipeline.class);
+
+	/** Number of getRecords batches waiting to be decoded */
+	static final int DECODE_QUEUE_CAPACITY = 4;
+	/** Number of decoded records waiting to be batched */
+	static final int BATCH_QUEUE_CAPACITY = 2000;
+	/** Number of write batches waiting to be stored */
+	static final int PERSIST_QUEUE_CAPACITY = 4;
+	/** Tweets per write batch */
+	static final int WRITE_BATCH_SIZE = 500;
+	/** How long the batch stage waits for more records before writing */
+	static final long BATCH_LINGER_MILLIS = 20L;
+
+	private static final List<Record> END_OF_RECORDS = Collections
+			.emptyList();
+	private static final DecodedRecord END_OF_DECODED = new DecodedRecord(
+			null, Collections.<Tweet> emptyList(),
+			Collections.<Origin> emptyList());
+	private static final WriteBatch END_OF_BATCHES = new WriteBatch();
+
+	private final String shardId;
+	private final TweetStore persistentStore;
+	private final TweetProcessorConfiguration configuration;
+	private final CircuitBreaker storeBreaker;
+	private final DeadLetterSink deadLetterSink;
+	private final RecentTweetsBuffer recentTweets;
+	private final DuplicateFilter duplicateFilter;
+
+	private final BlockingQueue<List<Record>> decodeQueue = new ArrayBlockingQueue<List<Record>>(
+			DECODE_QUEUE_CAPACITY);
+	private final BlockingQueue<DecodedRecord> batchQueue = new ArrayBlockingQueue<DecodedRecord>(
+			BATCH_QUEUE_CAPACITY);
+	private final BlockingQueue<WriteBatch> persistQueue = new ArrayBlockingQueue<WriteBatch>(
+			PERSIST_QUEUE_CAPACITY);
+
+	private final Thread decoder;
+	private final Thread batcher;
+	private final Thread persister;
+
+	private final Object durableLock = new Object();
+	private String durableSequenceNumber;
+	private Throwable failure;
+
+	private volatile long lagMillis = -1;
+
+	private final LatencyHistogram decodeLatency;
+	private final LatencyHistogram storeLatency;
+	private final Metrics.Counter recordsReceived;
+	private final Metrics.Counter tweetsStored;
+	private final Metrics.Counter tweetsDuplicate;
+	private final Metrics.Counter deadLetters;
+	private final Metrics.Gauge failed;
+	private final Metrics.Gauge falsePositiveRate;
+	private final Metrics.Gauge expectedFalsePositiveRate;
+
+	/**
+	 * @param shardId
+	 *            the shard the records come from, used to name the threads
+	 * @param persistentStore
+	 *            where tweets are stored, or null to only decode them
+	 * @param configuration
+	 *            retry settings
+	 * @param storeBreaker
+	 *            guards the writes to the persistent store
+	 * @param deadLetterSink
+	 *            where records that can't be processed go
+	 * @param recentTweets
+	 *            where stored tweets are kept in memory, or null
+	 * @param duplicateFilter
+	 *            the ids of the tweets of the shard stored since the last
+	 *            checkpoint, or null to store every tweet
+	 */
+	RecordPipeline(String shardId, TweetStore persistentStore,
+			TweetProcessorConfiguration configuration,
+			CircuitBreaker storeBreaker, DeadLetterSink deadLetterSink,
+			RecentTweetsBuffer recentTweets, DuplicateFilter duplicateFilter) {
+		this.shardId = shardId;
+		this.persistentStore = persistentStore;
+		this.configuration = configuration;
+		this.storeBreaker = storeBreaker;
+		this.deadLetterSink = deadLetterSink;
+		this.recentTweets = recentTweets;
+		this.duplicateFilter = duplicateFilter;
+		this.decodeLatency = Metrics.histogram(Metrics.SERIALIZER_DECODE,
+				shardId);
+		this.storeLatency = Metrics.histogram(Metrics.STORE_ADD, shardId);
+		this.recordsReceived = Metrics.counter(Metrics.RECORDS_RECEIVED,
+				shardId);
+		this.tweetsStored = Metrics.counter(Metrics.TWEETS_STORED, shardId);
+		this.tweetsDuplicate = Metrics.counter(Metrics.TWEETS_DUPLICATE,
+				shardId);
+		this.deadLetters = Metrics.counter(
+				Metrics.DEAD_LETTERS, shardId);
+		this.failed = Metrics.gauge(Metrics.PIPELINE_FAILED, shardId);
+		if (duplicateFilter != null) {
+			this.falsePositiveRate = Metrics.gauge(
+					Metrics.DEDUPE_FALSE_POSITIVE_RATE, shardId);
+			this.expectedFalsePositiveRate = Metrics.gauge(
+					Metrics.DEDUPE_EXPECTED_FALSE_POSITIVE_RATE, shardId);
+		} else {
+			this.falsePositiveRate = null;
+			this.expectedFalsePositiveRate = null;
+		}
+		this.decoder = newStage("decode", new Runnable() {
+			@Override
+			public void run() {
+				decode();
+			}
+		});
+		this.batcher = newStage("batch", new Runnable() {
+			@Override
+			public void run() {
+				batch();
+			}
+		});
+		this.persister = newStage("persist", new Runnable() {
+			@Override
+			public void run() {
+				persist();
+			}
+		});
+	}
+
+	private Thread newStage(String name, Runnable stage) {
+		Thread thread = new Thread(stage, "tweetamo-" + name + "-" + shardId);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	void start() {
+		decoder.start();
+		batcher.start();
+		persister.start();
+	}
+
+	/**
+	 * Hands records to the decode stage, waiting if it is too far behind.
+	 */
+	void submit(List<Record> records) throws InterruptedException {
+		if (!records.isEmpty()) {
+			decodeQueue.put(records);
+		}
+	}
+
+	/**
+	 * @return how old the newest tweet of the last batch decoded was when it
+	 *         was decoded, or -1 if no tweet has been decoded yet; the
+	 *         closest the pipeline can get to how far behind the stream it
+	 *         is
+	 */
+	long getLagMillis() {
+		return lagMillis;
+	}
+
+	/**
+	 * @return the sequence number of the last record whose tweets have all
+	 *         been stored or dead lettered, or null if there is none yet
+	 */
+	String getDurableSequenceNumber() {
+		synchronized (durableLock) {
+			return durableSequenceNumber;
+		}
+	}
+
+	/**
+	 * @return why the pipeline failed, or null if it hasn't
+	 */
+	Throwable getFailure() {
+		synchronized (durableLock) {
+			return failure;
+		}
+	}
+
+	/**
+	 * Waits until the record with the sequence number is durable.
+	 *
+	 * @return true if it is durable, false if the timeout elapsed first or
+	 *         the pipeline failed before it became durable
+	 */
+	boolean awaitDurable(String sequenceNumber, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		BigInteger target = new BigInteger(sequenceNumber);
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (durableLock) {
+			while (durableSequenceNumber == null
+					|| new BigInteger(durableSequenceNumber).compareTo(target) < 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || failure != null) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(durableLock, remaining);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Stops the pipeline.
+	 *
+	 * @param drain
+	 *            true to finish storing the records already submitted, false
+	 *            to abandon them
+	 * @return true if the pipeline stopped within the timeout
+	 */
+	boolean shutdown(boolean drain, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		if (drain) {
+			decodeQueue.put(END_OF_RECORDS);
+		} else {
+			decoder.interrupt();
+			batcher.interrupt();
+			persister.interrupt();
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread stage : new Thread[] { decoder, batcher, persister }) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline
+					- System.nanoTime());
+			stage.join(Math.max(1L, remaining));
+			if (stage.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void decode() {
+		try {
+			while (true) {
+				List<Record> records = decodeQueue.take();
+				if (records == END_OF_RECORDS) {
+					batchQueue.put(END_OF_DECODED);
+					return;
+				}
+				recordsReceived.add(records.size());
+				long newestCreatedAt = -1;
+				for (Record record : records) {
+					DecodedRecord decoded;
+					try {
+						decoded = decode(record);
+					} catch (Throwable t) {
+						fail(record.getSequenceNumber(), t);
+						continue;
+					}
+					for (Tweet tweet : decoded.tweets) {
+						newestCreatedAt = Math.max(newestCreatedAt,
+								tweet.getCreatedAt());
+					}
+					batchQueue.put(decoded);
+				}
+				if (newestCreatedAt >= 0) {
+					lagMillis = Math.max(0, System.currentTimeMillis()
+							- newestCreatedAt);
+				}
+			}
+		} catch (InterruptedException e) {
+			LOG.debug("Decode stage interrupted for shard " + shardId);
+		}
+	}
+
+	/**
+	 * Decodes the tweets of a record. Tweets that can't be decoded are dead
+	 * lettered; retrying wouldn't help.
+	 *
+	 * @throws IOException
+	 *             if a dead letter couldn't be written
+	 */
+	private DecodedRecord decode(Record record) throws IOException {
+		ByteBuffer data = record.getData();
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		List<Origin> origins = new ArrayList<Origin>();
+		if (AggregatedRecord.isAggregated(data)) {
+			List<AggregatedRecord.Entry> entries;
+			try {
+				entries = AggregatedRecord.deaggregate(data);
+			} catch (IOException e) {
+				deadLetter(DeadLetter.of(shardId, record.getSequenceNumber(),
+						record.getPartitionKey(),
+						"Couldn't unpack aggregated record: " + e, data));
+				return new DecodedRecord(record, tweets, origins);
+			}
+			for (AggregatedRecord.Entry entry : entries) {
+				addTweet(tweets, origins, record, entry.getPartitionKey(),
+						entry.getData());
+			}
+		} else {
+			addTweet(tweets, origins, record, record.getPartitionKey(), data);
+		}
+		return new DecodedRecord(record, tweets, origins);
+	}
+
+	private void addTweet(List<Tweet> tweets, List<Origin> origins,
+			Record record, String partitionKey, ByteBuffer data)
+			throws IOException {
+		Tweet tweet;
+		try {
+			long start = System.nanoTime();
+			tweet = TweetSerializer.view(data);
+			decodeLatency.recordSince(start);
+		} catch (Throwable t) {
+			deadLetter(DeadLetter.of(shardId, record.getSequenceNumber(),
+					partitionKey, "Couldn't decode tweet: " + t, data));
+			return;
+		}
+		tweets.add(tweet);
+		origins.add(new Origin(record, partitionKey, data.duplicate()));
+	}
+
+	private void batch() {
+		WriteBatch batch = new WriteBatch();
+		try {
+			while (true) {
+				DecodedRecord record = batchQueue.poll(BATCH_LINGER_MILLIS,
+						TimeUnit.MILLISECONDS);
+				if (record == null || record == END_OF_DECODED
+						|| batch.tweets.size() >= WRITE_BATCH_SIZE) {
+					// the records of a batch are never split, so every
+					// record up to the last one is complete
+					if (batch.lastSequenceNumber != null) {
+						persistQueue.put(batch);
+						batch = new WriteBatch();
+					}
+					if (record == END_OF_DECODED) {
+						persistQueue.put(END_OF_BATCHES);
+						return;
+					}
+				}
+				if (record != null) {
+					try {
+						batch.add(record);
+					} catch (Throwable t) {
+						fail(record.record.getSequenceNumber(), t);
+						batch = new WriteBatch();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			LOG.debug("Batch stage interrupted for shard " + shardId);
+		}
+	}
+
+	private void persist() {
+		try {
+			while (true) {
+				WriteBatch batch = persistQueue.take();
+				if (batch == END_OF_BATCHES) {
+					return;
+				}
+				try {
+					dropDuplicates(batch);
+					store(batch);
+					remember(batch);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Throwable t) {
+					fail(batch.lastSequenceNumber, t);
+					continue;
+				}
+				synchronized (durableLock) {
+					if (failure == null) {
+						durableSequenceNumber = batch.lastSequenceNumber;
+						durableLock.notifyAll();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			LOG.debug("Persist stage interrupted for shard " + shardId);
+		}
+	}
+
+	/**
+	 * Fails the pipeline because records up to the sequence number could
+	 * be neither stored nor dead lettered, or a stage failed while handling
+	 * them. Nothing becomes durable after this.
+	 */
+	private void fail(String sequenceNumber, Throwable cause) {
+		synchronized (durableLock) {
+			if (failure == null) {
+				failure = cause;
+				failed.set(1);
+				LOG.error("Lost records of shard " + shardId + " up to "
+						+ sequenceNumber + ". Not checkpointing past "
+						+ durableSequenceNumber, cause);
+			} else {
+				LOG.error("Lost records of shard " + shardId + " up to "
+						+ sequenceNumber, cause);
+			}
+			durableLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Removes the tweets that have been stored already, typically because the
+	 * KCL is replaying records since the last checkpoint. Tweets the Bloom
+	 * filter has seen but the exact LRU hasn't are looked up in the store,
+	 * and kept if that fails.
+	 */
+	private void dropDuplicates(WriteBatch batch) {
+		if (duplicateFilter == null || persistentStore == null
+				|| batch.tweets.isEmpty()) {
+			return;
+		}
+
+		List<Tweet> unique = new ArrayList<Tweet>(batch.tweets.size());
+		List<Tweet> probable = new ArrayList<Tweet>();
+		for (Tweet tweet : batch.tweets) {
+			switch (duplicateFilter.check(tweet.getId())) {
+			case NEW:
+				unique.add(tweet);
+				break;
+			case PROBABLE_DUPLICATE:
+				probable.add(tweet);
+				break;
+			case DUPLICATE:
+				break;
+			}
+		}
+
+		if (!probable.isEmpty()) {
+			List<Long> ids = new ArrayList<Long>(probable.size());
+			for (Tweet tweet : probable) {
+				ids.add(tweet.getId());
+			}
+			try {
+				Set<Long> stored = persistentStore.getStoredIds(ids);
+				for (Tweet tweet : probable) {
+					boolean duplicate = stored.contains(tweet.getId());
+					duplicateFilter.confirm(tweet.getId(), duplicate);
+					if (!duplicate) {
+						unique.add(tweet);
+					}
+				}
+			} catch (Exception e) {
+				LOG.warn("Couldn't look up " + ids.size()
+						+ " probable duplicates for shard " + shardId
+						+ ", storing them again", e);
+				unique.addAll(probable);
+			}
+		}
+
+		if (unique.size() < batch.tweets.size()) {
+			tweetsDuplicate.add(batch.tweets.size() - unique.size());
+			LOG.debug("Dropped " + (batch.tweets.size() - unique.size())
+					+ " duplicate tweets for shard " + shardId);
+			batch.tweets.clear();
+			batch.tweets.addAll(unique);
+		}
+	}
+
+	/**
+	 * Remembers the tweets of a batch that weren't dead lettered, in the
+	 * duplicate filter and in the buffer of recent tweets, and updates the
+	 * gauges of the duplicate filter.
+	 */
+	private void remember(WriteBatch batch) {
+		for (Tweet tweet : batch.tweets) {
+			if (batch.deadLettered.contains(tweet)) {
+				continue;
+			}
+			if (persistentStore != null) {
+				tweetsStored.increment();
+			}
+			if (duplicateFilter != null) {
+				duplicateFilter.add(tweet.getId());
+			}
+			if (recentTweets != null) {
+				recentTweets.add(tweet);
+			}
+		}
+		if (duplicateFilter != null) {
+			falsePositiveRate.set(duplicateFilter.getFalsePositiveRate());
+			expectedFalsePositiveRate.set(duplicateFilter
+					.getExpectedFalsePositiveRate());
+		}
+	}
+
+	/**
+	 * Stores the tweets of a batch. Tweets the store rejects, and batches that
+	 * fail with an error that isn't transient, are dead lettered at once; the
+	 * others are retried behind the breaker until they are stored.
+	 *
+	 * @throws IOException
+	 *             if a dead letter couldn't be written
+	 */
+	private void store(WriteBatch batch) throws InterruptedException,
+			IOException {
+		if (persistentStore == null || batch.tweets.isEmpty()) {
+			return;
+		}
+
+		List<Tweet> pending = batch.tweets;
+		Backoff backoff = new Backoff(configuration.getRetryBaseMillis(),
+				configuration.getRetryMaxMillis());
+		for (int attempt = 1;; attempt++) {
+			storeBreaker.acquire();
+			WriteResult result = null;
+			try {
+				long start = System.nanoTime();
+				result = persistentStore.addAll(pending);
+				storeLatency.recordSince(start);
+				// partial progress means the service is up
+				if (result.getUnprocessed().size() < pending.size()) {
+					storeBreaker.recordSuccess();
+				} else {
+					storeBreaker.recordFailure();
+				}
+			} catch (InterruptedException e) {
+				storeBreaker.recordFailure();
+				throw e;
+			} catch (Throwable t) {
+				if (Failures.isTransient(t)) {
+					storeBreaker.recordFailure();
+					LOG.warn("Caught throwable while storing " + pending.size()
+							+ " tweets", t);
+				} else {
+					// the service answered, it just doesn't like these tweets
+					storeBreaker.recordSuccess();
+					for (Tweet tweet : pending) {
+						deadLetter(batch, tweet, "Couldn't store tweet: " + t);
+					}
+					return;
+				}
+			}
+			if (result != null) {
+				for (Map.Entry<Tweet, String> rejected : result.getRejected()
+						.entrySet()) {
+					deadLetter(batch, rejected.getKey(), "Rejected by the store: "
+							+ rejected.getValue());
+				}
+				pending = result.getUnprocessed();
+			}
+
+			if (pending.isEmpty()) {
+				return;
+			}
+			LOG.warn("Failed to store " + pending.size() + " of "
+					+ batch.tweets.size() + " tweets - attempt " + attempt
+					+ ", retrying");
+			backoff.sleep();
+		}
+	}
+
+	/**
+	 * Dead letters a tweet of a batch with the bytes it arrived in, so that
+	 * it is replayed exactly as it was put on the stream.
+	 */
+	private void deadLetter(WriteBatch batch, Tweet tweet, String reason)
+			throws IOException {
+		Origin origin = batch.origins.get(tweet);
+		deadLetter(DeadLetter.of(shardId, origin.record.getSequenceNumber(),
+				origin.partitionKey, reason, origin.data));
+		batch.deadLettered.add(tweet);
+	}
+
+	/**
+	 * Hands a dead letter to the sink.
+	 *
+	 * @throws IOException
+	 *             if the sink couldn't write it, in which case the record
+	 *             must not be checkpointed past
+	 */
+	private void deadLetter(DeadLetter deadLetter) throws IOException {
+		try {
+			deadLetterSink.write(deadLetter);
+		} catch (IOException e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IOException("Couldn't write " + deadLetter, t);
+		}
+		deadLetters.increment();
+	}
+
+	/**
+	 * Where a tweet came from: its record, and the partition key and bytes
+	 * it was put on the stream with, which for an aggregated record are
+	 * those of its entry.
+	 */
+	private static class Origin {
+		private final Record record;
+		private final String partitionKey;
+		private final ByteBuffer data;
+
+		Origin(Record record, String partitionKey, ByteBuffer data) {
+			this.record = record;
+			this.partitionKey = partitionKey;
+			this.data = data;
+		}
+	}
+
+	private static class DecodedRecord {
+		private final Record record;
+		private final List<Tweet> tweets;
+		// parallel to tweets
+		private final List<Origin> origins;
+
+		DecodedRecord(Record record, List<Tweet> tweets, List<Origin> origins) {
+			this.record = record;
+			this.tweets = tweets;
+			this.origins = origins;
+		}
+	}
+
+	private static class WriteBatch {
+		private final List<Tweet> tweets = new ArrayList<Tweet>();
+		// where each tweet came from, for dead lettering
+		private final Map<Tweet, Origin> origins = new IdentityHashMap<Tweet, Origin>();
+		private final Set<Tweet> deadLettered = Collections
+				.newSetFromMap(new IdentityHashMap<Tweet, Boolean>());
+		private String lastSequenceNumber;
+
+		void add(DecodedRecord decoded) {
+			for (int i = 0; i < decoded.tweets.size(); i++) {
+				Tweet tweet = decoded.tweets.get(i);
+				tweets.add(tweet);
+				origins.put(tweet, decoded.origins.get(i));
+			}
+			lastSequenceNumber = decoded.record.getSequenceNumber();
+		}
+	}
+}
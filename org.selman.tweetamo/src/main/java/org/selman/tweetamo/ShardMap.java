@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+
+/**
+ * The hash key ranges of the open shards of a stream, as reported by
+ * DescribeStream. Kinesis routes a record to the shard whose range holds the
+ * MD5 hash of its partition key, read as an unsigned 128 bit integer, or
+ * holds its explicit hash key if it has one; the map finds that shard, and
+ * picks an explicit hash key that lands a record on a given shard.
+ *
+ * @author dselman
+ *
+ */
+public final class ShardMap {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+
+	private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 not available", e);
+			}
+		}
+	};
+
+	private final String[] shardIds;
+	private final BigInteger[] startingHashKeys;
+	private final String[] explicitHashKeys;
+
+	private ShardMap(List<Shard> shards) {
+		int size = shards.size();
+		shardIds = new String[size];
+		startingHashKeys = new BigInteger[size];
+		explicitHashKeys = new String[size];
+		for (int i = 0; i < size; i++) {
+			Shard shard = shards.get(i);
+			BigInteger start = new BigInteger(shard.getHashKeyRange()
+					.getStartingHashKey());
+			BigInteger end = new BigInteger(shard.getHashKeyRange()
+					.getEndingHashKey());
+			shardIds[i] = shard.getShardId();
+			startingHashKeys[i] = start;
+			// the middle of the range, which stays inside it if the shard is
+			// split in two
+			explicitHashKeys[i] = start.add(end).divide(TWO).toString();
+		}
+	}
+
+	/**
+	 * Builds the map of the open shards of a stream, those without an ending
+	 * sequence number.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if no shard is open
+	 */
+	public static ShardMap of(List<Shard> shards) {
+		List<Shard> open = new ArrayList<Shard>();
+		for (Shard shard : shards) {
+			if (shard.getSequenceNumberRange() == null
+					|| shard.getSequenceNumberRange()
+							.getEndingSequenceNumber() == null) {
+				open.add(shard);
+			}
+		}
+		if (open.isEmpty()) {
+			throw new IllegalArgumentException("No open shards");
+		}
+		Collections.sort(open, new Comparator<Shard>() {
+			@Override
+			public int compare(Shard a, Shard b) {
+				return new BigInteger(a.getHashKeyRange().getStartingHashKey())
+						.compareTo(new BigInteger(b.getHashKeyRange()
+								.getStartingHashKey()));
+			}
+		});
+		return new ShardMap(open);
+	}
+
+	/**
+	 * Describes a stream, reading every page of its shards.
+	 */
+	public static ShardMap describe(AmazonKinesis kinesis, String streamName) {
+		List<Shard> shards = new ArrayList<Shard>();
+		String exclusiveStartShardId = null;
+		boolean hasMoreShards;
+		do {
+			StreamDescription description = kinesis.describeStream(
+					new DescribeStreamRequest().withStreamName(streamName)
+							.withExclusiveStartShardId(exclusiveStartShardId))
+					.getStreamDescription();
+			shards.addAll(description.getShards());
+			hasMoreShards = Boolean.TRUE.equals(description.getHasMoreShards())
+					&& !shards.isEmpty();
+			if (hasMoreShards) {
+				exclusiveStartShardId = shards.get(shards.size() - 1)
+						.getShardId();
+			}
+		} while (hasMoreShards);
+		return of(shards);
+	}
+
+	/**
+	 * @return the number of open shards
+	 */
+	public int size() {
+		return shardIds.length;
+	}
+
+	/**
+	 * @return the id of a shard, by its position in hash key order
+	 */
+	public String getShardId(int shard) {
+		return shardIds[shard];
+	}
+
+	/**
+	 * @return the position of the shard Kinesis routes a partition key to
+	 */
+	public int shardOf(String partitionKey) {
+		return shardOf(hashKeyOf(partitionKey));
+	}
+
+	int shardOf(BigInteger hashKey) {
+		int low = 0;
+		int high = startingHashKeys.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (startingHashKeys[middle].compareTo(hashKey) <= 0) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return an explicit hash key that routes a record to the shard
+	 */
+	public String getExplicitHashKey(int shard) {
+		return explicitHashKeys[shard];
+	}
+
+	/**
+	 * @return the hash key of a partition key: its MD5 hash as an unsigned
+	 *         integer
+	 */
+	static BigInteger hashKeyOf(String partitionKey) {
+		return new BigInteger(1, MD5.get().digest(
+				partitionKey.getBytes(UTF8)));
+	}
+
+	@Override
+	public String toString() {
+		return "ShardMap [shards=" + shardIds.length + "]";
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Chooses the shard each tweet of the {@link TweetProducer} goes to. A tweet
+ * normally goes to the shard of its partition key, the screen name, so the
+ * tweets of a user stay in order on one shard. The partitioner keeps the
+ * recent rate of each key in a {@link HeavyHitters} sketch, and when a key
+ * sends more than a share of what each shard would get if traffic were even
+ * (prolific accounts, bot storms), its tweets are spread over every shard in
+ * turn so that no shard is pinned by it.
+ * </p>
+ * <p>
+ * The tweets of a hot key are salted: the partition key becomes
+ * <code>screenName#n</code>, n being how many shards after the key's own
+ * shard the tweet was sent to, and the record is routed there with an
+ * explicit hash key. {@link #unsalt(String)} recovers the screen name;
+ * screen names can't hold a '#', so unsalting is unambiguous. The tweets of
+ * a hot key are then read by several processors, so where the order of a
+ * user's tweets matters it has to be restored from the tweet ids, which
+ * grow with time.
+ * </p>
+ * <p>
+ * Routing happens on the producer's batcher thread; the shard map may be
+ * replaced from another thread.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+class ShardPartitioner {
+
+	private static final Log LOG = LogFactory.getLog(ShardPartitioner.class);
+
+	static final char SALT_SEPARATOR = '#';
+
+	// how often the rates are halved
+	private static final long DECAY_INTERVAL_MILLIS = 10000L;
+	// keys aren't judged until enough tweets have been counted
+	private static final long MIN_SAMPLE = 1000L;
+
+	private final HeavyHitters sketch;
+	private final double hotKeyShare;
+	private volatile ShardMap shardMap;
+	// the next salt of each hot key
+	private final Map<String, Integer> hotKeys = new HashMap<String, Integer>();
+	private long nextDecayMillis = System.currentTimeMillis()
+			+ DECAY_INTERVAL_MILLIS;
+
+	/**
+	 * @param hotKeyCapacity
+	 *            the number of keys the sketch counts
+	 * @param hotKeyShare
+	 *            the share of a shard's even share of the tweets above which
+	 *            a key is spread
+	 */
+	ShardPartitioner(int hotKeyCapacity, double hotKeyShare) {
+		this.sketch = new HeavyHitters(hotKeyCapacity);
+		this.hotKeyShare = hotKeyShare;
+	}
+
+	void setShardMap(ShardMap shardMap) {
+		this.shardMap = shardMap;
+	}
+
+	/**
+	 * @return the shard map, null until the stream has been described
+	 */
+	ShardMap getShardMap() {
+		return shardMap;
+	}
+
+	/**
+	 * Chooses where a tweet goes.
+	 *
+	 * @param key
+	 *            the partition key of the tweet
+	 * @return the route; without a shard map the tweet is routed by its key
+	 */
+	Route route(String key) {
+		ShardMap map = shardMap;
+		if (map == null) {
+			return new Route(key, null, false);
+		}
+		long now = System.currentTimeMillis();
+		if (now >= nextDecayMillis) {
+			decay(map);
+			nextDecayMillis = now + DECAY_INTERVAL_MILLIS;
+		}
+
+		long count = sketch.add(key);
+		int shard = map.shardOf(key);
+		Integer salt = hotKeys.get(key);
+		if (salt == null && isHot(count, map)) {
+			LOG.info("Spreading hot key " + key + " over " + map.size()
+					+ " shards, " + count + " of the last "
+					+ sketch.getTotal() + " tweets");
+			salt = 0;
+		}
+		if (salt == null) {
+			return new Route(key, map.getExplicitHashKey(shard), false);
+		}
+		hotKeys.put(key, (salt + 1) % map.size());
+		return new Route(salt == 0 ? key : key + SALT_SEPARATOR + salt,
+				map.getExplicitHashKey((shard + salt) % map.size()), true);
+	}
+
+	private boolean isHot(long count, ShardMap map) {
+		long total = sketch.getTotal();
+		return map.size() > 1 && total >= MIN_SAMPLE
+				&& count > hotKeyShare * total / map.size();
+	}
+
+	/**
+	 * Halves the rates and stops spreading the keys that have cooled down.
+	 */
+	private void decay(ShardMap map) {
+		sketch.decay();
+		for (Iterator<String> i = hotKeys.keySet().iterator(); i.hasNext();) {
+			String key = i.next();
+			if (!isHot(sketch.getGuaranteedCount(key), map)) {
+				LOG.info("Key " + key + " is no longer hot");
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of keys being spread
+	 */
+	int getHotKeyCount() {
+		return hotKeys.size();
+	}
+
+	/**
+	 * @return the key a partition key was salted from, or the partition key
+	 *         itself if it wasn't salted
+	 */
+	static String unsalt(String partitionKey) {
+		int separator = partitionKey.lastIndexOf(SALT_SEPARATOR);
+		return separator < 0 ? partitionKey : partitionKey.substring(0,
+				separator);
+	}
+
+	/**
+	 * Where a tweet goes: the partition key it is sent with and, once the
+	 * shards are known, the explicit hash key of its shard.
+	 */
+	static final class Route {
+		final String partitionKey;
+		final String explicitHashKey;
+		final boolean salted;
+
+		Route(String partitionKey, String explicitHashKey, boolean salted) {
+			this.partitionKey = partitionKey;
+			this.explicitHashKey = explicitHashKey;
+			this.salted = salted;
+		}
+	}
+}
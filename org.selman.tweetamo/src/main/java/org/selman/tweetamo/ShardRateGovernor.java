@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Keeps the {@link TweetProducer} under the write limits of each shard,
+ * 1000 records and 1 MB a second, so that records wait on the client
+ * rather than being throttled by Kinesis and retried in storms. Each shard
+ * of the {@link ShardMap} has a {@link Bucket} of records and bytes that
+ * fills at the shard's rate, up to a second's worth. A record may be sent
+ * while both are not in debt, and takes one record and its size from them;
+ * a record bigger than what is left puts the bucket in debt, so aggregated
+ * records as big as the byte limit still go through.
+ * </p>
+ * <p>
+ * Throttling can still happen, because other clients write to the stream or
+ * Kinesis limits a shard below its nominal rate. The rate of a bucket is
+ * then halved (down to a twentieth of the limit) and grows again by a
+ * twentieth of the limit for every second without throttling: additive
+ * increase, multiplicative decrease.
+ * </p>
+ * <p>
+ * When the shard map is replaced after resharding, the buckets of the
+ * shards that are still open are kept with their rates and new shards start
+ * at the full rate.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class ShardRateGovernor {
+
+	private static final Log LOG = LogFactory.getLog(ShardRateGovernor.class);
+
+	/**
+	 * What to do with a record its shard can't take yet.
+	 */
+	public enum Policy {
+		/** Wait until the shard can take it */
+		BLOCK,
+		/** Append it to the spill journal, to be sent later */
+		SPILL,
+		/** Drop it */
+		DROP
+	}
+
+	private static final double MIN_SHARE = 0.05;
+	private static final double DECREASE_FACTOR = 0.5;
+	private static final double INCREASE_SHARE = 0.05;
+	private static final long INCREASE_INTERVAL_NANOS = TimeUnit.SECONDS
+			.toNanos(1);
+	// throttles reported by the records of one burst count once
+	private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	private final double recordsPerSecond;
+	private final double bytesPerSecond;
+	private volatile ShardMap shardMap;
+	private volatile Bucket[] buckets = new Bucket[0];
+
+	/**
+	 * @param recordsPerSecond
+	 *            the records a shard takes a second
+	 * @param bytesPerSecond
+	 *            the bytes a shard takes a second
+	 */
+	public ShardRateGovernor(double recordsPerSecond, double bytesPerSecond) {
+		if (recordsPerSecond <= 0 || bytesPerSecond <= 0) {
+			throw new IllegalArgumentException("Invalid shard rate "
+					+ recordsPerSecond + " records, " + bytesPerSecond
+					+ " bytes a second");
+		}
+		this.recordsPerSecond = recordsPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Replaces the shards records are governed for.
+	 */
+	public synchronized void setShardMap(ShardMap shardMap) {
+		Map<String, Bucket> previous = new HashMap<String, Bucket>();
+		for (Bucket bucket : buckets) {
+			previous.put(bucket.shardId, bucket);
+		}
+		Bucket[] next = new Bucket[shardMap.size()];
+		for (int i = 0; i < next.length; i++) {
+			String shardId = shardMap.getShardId(i);
+			next[i] = previous.containsKey(shardId) ? previous.get(shardId)
+					: new Bucket(shardId, recordsPerSecond, bytesPerSecond);
+		}
+		if (previous.size() != next.length) {
+			LOG.info("Governing " + next.length + " shards at "
+					+ recordsPerSecond + " records and " + bytesPerSecond
+					+ " bytes a second each");
+		}
+		this.buckets = next;
+		this.shardMap = shardMap;
+	}
+
+	/**
+	 * @param partitionKey
+	 *            the partition key of a record
+	 * @param explicitHashKey
+	 *            its explicit hash key, or null
+	 * @return the bucket of the shard the record goes to, null until the
+	 *         shard map is known
+	 */
+	public Bucket bucketOf(String partitionKey, String explicitHashKey) {
+		ShardMap map = shardMap;
+		Bucket[] current = buckets;
+		if (map == null || current.length != map.size()) {
+			return null;
+		}
+		int shard = explicitHashKey == null ? map.shardOf(partitionKey) : map
+				.shardOf(new BigInteger(explicitHashKey));
+		return current[shard];
+	}
+
+	/**
+	 * @return the lowest share of the full rate any shard is held to, 1.0
+	 *         when no shard has been throttled lately
+	 */
+	public double getMinShare() {
+		double min = 1.0;
+		for (Bucket bucket : buckets) {
+			min = Math.min(min, bucket.getShare());
+		}
+		return min;
+	}
+
+	@Override
+	public String toString() {
+		return "ShardRateGovernor [recordsPerSecond=" + recordsPerSecond
+				+ ", bytesPerSecond=" + bytesPerSecond + ", shards="
+				+ buckets.length + "]";
+	}
+
+	/**
+	 * The records and bytes a shard can take. Callers report the outcome of
+	 * each record they sent with {@link #succeeded()} or {@link #throttled()}.
+	 */
+	public static final class Bucket {
+		private final String shardId;
+		private final double maxRecordsPerSecond;
+		private final double maxBytesPerSecond;
+		private double share = 1.0;
+		private double records;
+		private double bytes;
+		private long refilledNanos = System.nanoTime();
+		private long changedNanos = refilledNanos;
+
+		Bucket(String shardId, double maxRecordsPerSecond,
+				double maxBytesPerSecond) {
+			this.shardId = shardId;
+			this.maxRecordsPerSecond = maxRecordsPerSecond;
+			this.maxBytesPerSecond = maxBytesPerSecond;
+			this.records = maxRecordsPerSecond;
+			this.bytes = maxBytesPerSecond;
+		}
+
+		/**
+		 * Takes a record of a size from the bucket if it is not in debt.
+		 *
+		 * @return 0 if the record may be sent, otherwise how many
+		 *         nanoseconds until the bucket is out of debt
+		 */
+		public synchronized long reserve(int size) {
+			refill(System.nanoTime());
+			if (records < 0 || bytes < 0) {
+				double seconds = Math.max(-records
+						/ (maxRecordsPerSecond * share), -bytes
+						/ (maxBytesPerSecond * share));
+				return Math.max(1L, (long) (seconds * 1e9));
+			}
+			records -= 1;
+			bytes -= size;
+			return 0L;
+		}
+
+		/**
+		 * Reports a record the shard took, which lets the rate grow back.
+		 */
+		public synchronized void succeeded() {
+			long now = System.nanoTime();
+			if (share < 1.0 && now - changedNanos >= INCREASE_INTERVAL_NANOS) {
+				refill(now);
+				share = Math.min(1.0, share + INCREASE_SHARE);
+				changedNanos = now;
+			}
+		}
+
+		/**
+		 * Reports a record Kinesis throttled, which cuts the rate.
+		 */
+		public synchronized void throttled() {
+			long now = System.nanoTime();
+			if (now - changedNanos < DECREASE_INTERVAL_NANOS
+					&& share < 1.0) {
+				return;
+			}
+			refill(now);
+			share = Math.max(MIN_SHARE, share * DECREASE_FACTOR);
+			changedNanos = now;
+			// what was saved up at the old rate isn't there any more
+			records = Math.min(records, 0);
+			bytes = Math.min(bytes, 0);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Shard " + shardId + " throttled, rate cut to "
+						+ share + " of the limit");
+			}
+		}
+
+		/**
+		 * @return the share of the full rate the shard is held to
+		 */
+		public synchronized double getShare() {
+			return share;
+		}
+
+		private void refill(long now) {
+			double seconds = (now - refilledNanos) / 1e9;
+			refilledNanos = now;
+			records = Math.min(maxRecordsPerSecond * share, records + seconds
+					* maxRecordsPerSecond * share);
+			bytes = Math.min(maxBytesPerSecond * share, bytes + seconds
+					* maxBytesPerSecond * share);
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Bucket [shardId=" + shardId + ", share=" + share + "]";
+		}
+	}
+}
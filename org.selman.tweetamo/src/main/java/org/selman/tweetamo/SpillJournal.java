@@ -0,0 +1,622 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A disk-backed queue of Kinesis records that the {@link TweetProducer}
+ * could not send, so that tweets survive throttling and outages of any
+ * length without growing the heap. Records are appended to memory-mapped
+ * segment files of a fixed size; a new segment is started when the current
+ * one is full, and a segment is deleted once every record in it has been
+ * acknowledged. At most two segments are mapped at a time, the one being
+ * written and the one being read. A segment is unmapped as soon as it is
+ * done with where the JVM allows it; elsewhere its mapping, and the disk
+ * space of a deleted segment, are only released once the garbage collector
+ * gets to it.
+ * </p>
+ * <p>
+ * Records are read back in the order they were appended with
+ * {@link #peek(int)} and acknowledged with {@link #ack(Entry)}. The position
+ * of the reader is kept in the header of its segment, so a record is sent
+ * again after a restart only if it was sent but not yet acknowledged.
+ * Writes land in the page cache, which survives the process but not the
+ * machine; segments are forced to disk when they are completed and when the
+ * journal is closed.
+ * </p>
+ * <p>
+ * Each record is framed by its length and a CRC32; the length is written
+ * last, so a record cut short by a crash reads as the end of the segment.
+ * A record keeps its partition key and, if it was routed to its shard by
+ * one, its explicit hash key. Segments written before explicit hash keys
+ * were kept are still read. Appends and reads may come from different
+ * threads.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class SpillJournal implements Closeable {
+
+	private static final Log LOG = LogFactory.getLog(SpillJournal.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final String SEGMENT_PREFIX = "spill-";
+	static final String SEGMENT_SUFFIX = ".jnl";
+	private static final String LOCK_FILE = "lock";
+
+	private static final int SEGMENT_MAGIC = 0x53504C32; // "SPL2"
+	// segments without explicit hash keys
+	private static final int SEGMENT_MAGIC_V1 = 0x53504C31; // "SPL1"
+	private static final int READ_OFFSET_POSITION = 4;
+	private static final int SEGMENT_HEADER_SIZE = 8;
+	// length and CRC32 of the body
+	private static final int ENTRY_HEADER_SIZE = 8;
+	// tweet count, partition key length and explicit hash key length
+	private static final int ENTRY_FIXED_BODY_SIZE = 8;
+	// tweet count and partition key length
+	private static final int ENTRY_FIXED_BODY_SIZE_V1 = 6;
+
+	private final File directory;
+	private final int segmentBytes;
+	private final int maxSegments;
+	private final FileChannel lockChannel;
+	private final FileLock directoryLock;
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment writeSegment;
+	private long pendingBytes;
+	private long pendingTweets;
+	private boolean closed;
+
+	/**
+	 * Opens the journal in a directory, creating the directory if need be
+	 * and picking up the records left in it.
+	 *
+	 * @param directory
+	 *            where the segments are kept; only one journal may use it at
+	 *            a time
+	 * @param segmentBytes
+	 *            the size of each segment file
+	 * @param maxBytes
+	 *            the most disk space the segments may take; appends fail
+	 *            beyond it
+	 * @throws IOException
+	 *             if the directory can't be created or is in use
+	 */
+	public SpillJournal(File directory, int segmentBytes, long maxBytes)
+			throws IOException {
+		if (segmentBytes <= SEGMENT_HEADER_SIZE + ENTRY_HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size too small: "
+					+ segmentBytes);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create spill directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = (int) Math.max(1,
+				Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+		this.lockChannel = new RandomAccessFile(
+				new File(directory, LOCK_FILE), "rw").getChannel();
+		FileLock acquired;
+		try {
+			acquired = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// held by another journal in this JVM
+			acquired = null;
+		}
+		this.directoryLock = acquired;
+		if (directoryLock == null) {
+			lockChannel.close();
+			throw new IOException("Spill directory " + directory
+					+ " is in use");
+		}
+
+		try {
+			recover();
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return segmentId(name) >= 0;
+			}
+		});
+		TreeMap<Integer, File> sorted = new TreeMap<Integer, File>();
+		for (File file : files) {
+			sorted.put(segmentId(file.getName()), file);
+		}
+		for (File file : sorted.values()) {
+			Segment segment = new Segment(segmentId(file.getName()), file);
+			segment.map(segmentBytes);
+			int magic = segment.buffer.getInt(0);
+			if (magic == SEGMENT_MAGIC_V1) {
+				segment.hashKeys = false;
+			} else if (magic != SEGMENT_MAGIC) {
+				throw new IOException(file + " is not a spill journal segment");
+			}
+			// a segment created just before a crash may not have its reader yet
+			segment.readOffset = Math.max(SEGMENT_HEADER_SIZE,
+					segment.buffer.getInt(READ_OFFSET_POSITION));
+			segment.writeOffset = Math.max(segment.readOffset, scan(segment));
+			segments.put(segment.id, segment);
+			pendingBytes += segment.writeOffset - segment.readOffset;
+		}
+
+		// only the last segment may still be written to, and only in the
+		// current format
+		for (Segment segment : new ArrayList<Segment>(segments.values())) {
+			if (segment != segments.lastEntry().getValue()
+					|| !segment.hashKeys) {
+				segment.full = true;
+				if (segment.readOffset >= segment.writeOffset) {
+					delete(segment);
+				} else if (segment != segments.firstEntry().getValue()) {
+					segment.unmap();
+				}
+			}
+		}
+		if (!segments.isEmpty() && !segments.lastEntry().getValue().full) {
+			writeSegment = segments.lastEntry().getValue();
+			LOG.info("Spill journal " + directory + " holds " + pendingBytes
+					+ " bytes in " + segments.size() + " segments");
+		}
+	}
+
+	/**
+	 * Finds the end of the records of a segment, counting the pending
+	 * tweets.
+	 */
+	private int scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int offset = SEGMENT_HEADER_SIZE;
+		while (offset + ENTRY_HEADER_SIZE <= segmentBytes) {
+			int length = buffer.getInt(offset);
+			if (length < segment.fixedBodySize()
+					|| offset + ENTRY_HEADER_SIZE + length > segmentBytes) {
+				break;
+			}
+			int crc = buffer.getInt(offset + 4);
+			if (crc(buffer, offset + ENTRY_HEADER_SIZE, length) != crc) {
+				LOG.warn("Ignoring the corrupt end of " + segment.file
+						+ " from " + offset);
+				break;
+			}
+			if (offset >= segment.readOffset) {
+				pendingTweets += buffer.getInt(offset + ENTRY_HEADER_SIZE);
+			}
+			offset += ENTRY_HEADER_SIZE + length;
+		}
+		return offset;
+	}
+
+	static String segmentName(int id) {
+		return String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @return the id of the segment file, or -1 if the name isn't one
+	 */
+	static int segmentId(String name) {
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Appends a record sent by its partition key alone.
+	 *
+	 * @see #append(String, String, ByteBuffer, int)
+	 */
+	public boolean append(String partitionKey, ByteBuffer data, int tweetCount)
+			throws IOException {
+		return append(partitionKey, null, data, tweetCount);
+	}
+
+	/**
+	 * Appends a record.
+	 *
+	 * @param partitionKey
+	 *            the partition key to send the record with
+	 * @param explicitHashKey
+	 *            the explicit hash key to send the record with, or null to
+	 *            route it by its partition key
+	 * @param data
+	 *            the record, a serialized tweet or an
+	 *            {@link AggregatedRecord}; its position is not changed
+	 * @param tweetCount
+	 *            the number of tweets in the record
+	 * @return false if the journal is full or closed, or the record is
+	 *         larger than a segment
+	 * @throws IOException
+	 *             if a new segment could not be created
+	 */
+	public synchronized boolean append(String partitionKey,
+			String explicitHashKey, ByteBuffer data, int tweetCount)
+			throws IOException {
+		if (closed) {
+			return false;
+		}
+		byte[] key = partitionKey.getBytes(UTF8);
+		byte[] hashKey = explicitHashKey == null ? new byte[0]
+				: explicitHashKey.getBytes(UTF8);
+		int length = ENTRY_FIXED_BODY_SIZE + key.length + hashKey.length
+				+ data.remaining();
+		int size = ENTRY_HEADER_SIZE + length;
+		if (SEGMENT_HEADER_SIZE + size > segmentBytes) {
+			LOG.error("Can't spill a record of " + size + " bytes");
+			return false;
+		}
+		if (writeSegment == null || writeSegment.writeOffset + size > segmentBytes) {
+			if (segments.size() >= maxSegments) {
+				return false;
+			}
+			startSegment();
+		}
+
+		ByteBuffer buffer = writeSegment.buffer;
+		int offset = writeSegment.writeOffset;
+		int body = offset + ENTRY_HEADER_SIZE;
+		buffer.putInt(body, tweetCount);
+		buffer.putShort(body + 4, (short) key.length);
+		buffer.putShort(body + 6, (short) hashKey.length);
+		ByteBuffer out = buffer.duplicate();
+		out.position(body + ENTRY_FIXED_BODY_SIZE);
+		out.put(key);
+		out.put(hashKey);
+		out.put(data.duplicate());
+		buffer.putInt(offset + 4, crc(buffer, body, length));
+		// the length last, so that a partly written record isn't read
+		buffer.putInt(offset, length);
+
+		writeSegment.writeOffset += size;
+		pendingBytes += size;
+		pendingTweets += tweetCount;
+		return true;
+	}
+
+	private void startSegment() throws IOException {
+		if (writeSegment != null) {
+			writeSegment.full = true;
+			writeSegment.buffer.force();
+			if (writeSegment != segments.firstEntry().getValue()) {
+				// mapped again when the reader gets to it
+				writeSegment.unmap();
+			}
+		}
+		int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, new File(directory,
+				segmentName(id)));
+		segment.map(segmentBytes);
+		segment.buffer.putInt(0, SEGMENT_MAGIC);
+		segment.buffer.putInt(READ_OFFSET_POSITION, SEGMENT_HEADER_SIZE);
+		segment.readOffset = SEGMENT_HEADER_SIZE;
+		segment.writeOffset = SEGMENT_HEADER_SIZE;
+		segments.put(id, segment);
+		writeSegment = segment;
+		LOG.info("Started spill segment " + segment.file);
+	}
+
+	/**
+	 * Reads the oldest records that have not been acknowledged, without
+	 * removing them. The records are copied off the journal, so only a
+	 * bounded number should be read at a time.
+	 *
+	 * @param max
+	 *            the most records returned
+	 * @return the records, oldest first; empty if there are none
+	 * @throws IOException
+	 *             if a segment could not be mapped
+	 */
+	public synchronized List<Entry> peek(int max) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		if (closed) {
+			return entries;
+		}
+		for (Segment segment : segments.values()) {
+			if (segment.buffer == null) {
+				segment.map(segmentBytes);
+			}
+			int offset = segment.readOffset;
+			while (offset < segment.writeOffset && entries.size() < max) {
+				Entry entry = read(segment, offset);
+				entries.add(entry);
+				offset = entry.end;
+			}
+			// records of a later segment are only read once this one is done
+			if (entries.size() >= max || offset < segment.writeOffset
+					|| !segment.full) {
+				break;
+			}
+		}
+		return entries;
+	}
+
+	private Entry read(Segment segment, int offset) {
+		ByteBuffer buffer = segment.buffer;
+		int length = buffer.getInt(offset);
+		int body = offset + ENTRY_HEADER_SIZE;
+		int tweetCount = buffer.getInt(body);
+		int keyLength = buffer.getShort(body + 4);
+		int hashKeyLength = segment.hashKeys ? buffer.getShort(body + 6) : 0;
+		byte[] key = new byte[keyLength];
+		byte[] hashKey = new byte[hashKeyLength];
+		byte[] data = new byte[length - segment.fixedBodySize() - keyLength
+				- hashKeyLength];
+		ByteBuffer in = buffer.duplicate();
+		in.position(body + segment.fixedBodySize());
+		in.get(key);
+		in.get(hashKey);
+		in.get(data);
+		return new Entry(segment.id, offset + ENTRY_HEADER_SIZE + length,
+				new String(key, UTF8), hashKeyLength == 0 ? null : new String(
+						hashKey, UTF8), ByteBuffer.wrap(data), tweetCount);
+	}
+
+	/**
+	 * Acknowledges a record and every record before it. Segments whose
+	 * records have all been acknowledged are deleted.
+	 */
+	public synchronized void ack(Entry entry) throws IOException {
+		if (closed) {
+			return;
+		}
+		for (Segment segment : new ArrayList<Segment>(segments.headMap(
+				entry.segment, true).values())) {
+			int end = segment.id == entry.segment ? entry.end
+					: segment.writeOffset;
+			if (end <= segment.readOffset) {
+				continue;
+			}
+			if (segment.buffer == null) {
+				segment.map(segmentBytes);
+			}
+			for (int offset = segment.readOffset; offset < end;) {
+				int length = segment.buffer.getInt(offset);
+				pendingTweets -= segment.buffer.getInt(offset
+						+ ENTRY_HEADER_SIZE);
+				offset += ENTRY_HEADER_SIZE + length;
+			}
+			pendingBytes -= end - segment.readOffset;
+			segment.readOffset = end;
+			segment.buffer.putInt(READ_OFFSET_POSITION, end);
+			if (segment.full && end >= segment.writeOffset) {
+				delete(segment);
+			}
+		}
+	}
+
+	private void delete(Segment segment) throws IOException {
+		segments.remove(segment.id);
+		segment.unmap();
+		if (!segment.file.delete()) {
+			throw new IOException("Can't delete spill segment "
+					+ segment.file);
+		}
+		LOG.info("Deleted spill segment " + segment.file);
+	}
+
+	/**
+	 * @return true if every record has been acknowledged
+	 */
+	public synchronized boolean isEmpty() {
+		return pendingBytes == 0;
+	}
+
+	/**
+	 * @return the bytes of the records not yet acknowledged
+	 */
+	public synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * @return the tweets in the records not yet acknowledged
+	 */
+	public synchronized long getPendingTweets() {
+		return pendingTweets;
+	}
+
+	/**
+	 * @return the number of segment files
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Forces the segments to disk and releases the directory. Records not
+	 * yet acknowledged are read again when the journal is next opened.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (Segment segment : segments.values()) {
+			if (segment.buffer != null) {
+				segment.buffer.force();
+			}
+			segment.unmap();
+		}
+		release();
+	}
+
+	private void release() throws IOException {
+		directoryLock.release();
+		lockChannel.close();
+	}
+
+	private static int crc(ByteBuffer buffer, int offset, int length) {
+		CRC32 crc = new CRC32();
+		ByteBuffer in = buffer.duplicate();
+		in.position(offset);
+		byte[] chunk = new byte[Math.min(length, 8192)];
+		for (int remaining = length; remaining > 0;) {
+			int n = Math.min(remaining, chunk.length);
+			in.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			remaining -= n;
+		}
+		return (int) crc.getValue();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SpillJournal [directory=" + directory + ", pendingBytes="
+				+ pendingBytes + ", pendingTweets=" + pendingTweets
+				+ ", segments=" + segments.size() + "]";
+	}
+
+	/**
+	 * A record read from the journal.
+	 */
+	public static final class Entry {
+		private final int segment;
+		private final int end;
+		private final String partitionKey;
+		private final String explicitHashKey;
+		private final ByteBuffer data;
+		private final int tweetCount;
+
+		Entry(int segment, int end, String partitionKey,
+				String explicitHashKey, ByteBuffer data, int tweetCount) {
+			this.segment = segment;
+			this.end = end;
+			this.partitionKey = partitionKey;
+			this.explicitHashKey = explicitHashKey;
+			this.data = data;
+			this.tweetCount = tweetCount;
+		}
+
+		public String getPartitionKey() {
+			return partitionKey;
+		}
+
+		/**
+		 * @return the explicit hash key the record was routed by, or null
+		 *         if it is routed by its partition key
+		 */
+		public String getExplicitHashKey() {
+			return explicitHashKey;
+		}
+
+		public ByteBuffer getData() {
+			return data.duplicate();
+		}
+
+		public int getTweetCount() {
+			return tweetCount;
+		}
+	}
+
+	/**
+	 * A segment file, mapped while it is written or read.
+	 */
+	private static class Segment {
+		final int id;
+		final File file;
+		MappedByteBuffer buffer;
+		int readOffset;
+		int writeOffset;
+		boolean full;
+		// false for a segment written before hash keys were kept
+		boolean hashKeys = true;
+
+		Segment(int id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+
+		void map(int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				// the mapping stays valid once the file is closed
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, size);
+			} finally {
+				raf.close();
+			}
+		}
+
+		int fixedBodySize() {
+			return hashKeys ? ENTRY_FIXED_BODY_SIZE : ENTRY_FIXED_BODY_SIZE_V1;
+		}
+
+		/**
+		 * Drops the mapping. The journal never hands out views of it, so
+		 * it is released at once if the JVM allows it, and otherwise when
+		 * the buffer is collected.
+		 */
+		void unmap() {
+			if (buffer != null) {
+				clean(buffer);
+				buffer = null;
+			}
+		}
+
+		/**
+		 * Releases a mapping through the cleaner of the buffer. Only some
+		 * JVMs let that be reached; on others this does nothing.
+		 */
+		private static void clean(MappedByteBuffer buffer) {
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (Exception e) {
+				LOG.debug("Can't unmap a spill segment, leaving it to the"
+						+ " garbage collector", e);
+			}
+		}
+	}
+}
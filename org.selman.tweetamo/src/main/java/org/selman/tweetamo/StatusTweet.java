@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import twitter4j.Status;
+import twitter4j.User;
+
+/**
+ * Adapts a twitter4j {@link Status} to the {@link Tweet} interface.
+ *
+ * @author dselman
+ *
+ */
+public class StatusTweet implements Tweet {
+
+	private final Status status;
+
+	public StatusTweet(Status status) {
+		this.status = status;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	@Override
+	public long getId() {
+		return status.getId();
+	}
+
+	@Override
+	public long getCreatedAt() {
+		return status.getCreatedAt().getTime();
+	}
+
+	@Override
+	public boolean hasGeoLocation() {
+		return status.getGeoLocation() != null;
+	}
+
+	@Override
+	public double getLatitude() {
+		return hasGeoLocation() ? status.getGeoLocation().getLatitude() : 0;
+	}
+
+	@Override
+	public double getLongitude() {
+		return hasGeoLocation() ? status.getGeoLocation().getLongitude() : 0;
+	}
+
+	@Override
+	public String getScreenName() {
+		User user = status.getUser();
+		return user == null ? null : user.getScreenName();
+	}
+
+	@Override
+	public String getText() {
+		return status.getText();
+	}
+
+	@Override
+	public long getUserId() {
+		User user = status.getUser();
+		return user == null ? -1L : user.getId();
+	}
+
+	@Override
+	public String getUserName() {
+		User user = status.getUser();
+		return user == null ? null : user.getName();
+	}
+
+	@Override
+	public String getSource() {
+		return status.getSource();
+	}
+
+	@Override
+	public long getInReplyToStatusId() {
+		return status.getInReplyToStatusId();
+	}
+
+	@Override
+	public long getRetweetedStatusId() {
+		Status retweeted = status.getRetweetedStatus();
+		return retweeted == null ? -1L : retweeted.getId();
+	}
+
+	@Override
+	public long getRetweetCount() {
+		return status.getRetweetCount();
+	}
+
+	@Override
+	public String toString() {
+		return "StatusTweet [id=" + getId() + ", screenName="
+				+ getScreenName() + "]";
+	}
+}
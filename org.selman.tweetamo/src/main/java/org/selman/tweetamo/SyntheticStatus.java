@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+
+import twitter4j.GeoLocation;
+import twitter4j.Status;
+import twitter4j.User;
+
+/**
+ * <p>
+ * Creates {@link Status} objects for tweets that never came from Twitter, so
+ * the client can be fed without a live stream. Status has far more methods
+ * than the client reads, so the statuses are dynamic proxies: the methods
+ * read by {@link StatusTweet} return the tweet's fields, and every other
+ * method returns null, zero or false.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+final class SyntheticStatus implements InvocationHandler {
+
+	private static final ClassLoader LOADER = SyntheticStatus.class
+			.getClassLoader();
+
+	private final long id;
+	private final Date createdAt;
+	private final String text;
+	private final User user;
+	private final GeoLocation geoLocation;
+	private final String source;
+
+	private SyntheticStatus(long id, long createdAt, String text, User user,
+			GeoLocation geoLocation, String source) {
+		this.id = id;
+		this.createdAt = new Date(createdAt);
+		this.text = text;
+		this.user = user;
+		this.geoLocation = geoLocation;
+		this.source = source;
+	}
+
+	/**
+	 * @param geoLocation
+	 *            where the tweet was sent from, or null
+	 * @return a status with the fields the client reads
+	 */
+	static Status create(long id, long createdAt, String text, User user,
+			GeoLocation geoLocation, String source) {
+		return (Status) Proxy.newProxyInstance(LOADER,
+				new Class<?>[] { Status.class }, new SyntheticStatus(id,
+						createdAt, text, user, geoLocation, source));
+	}
+
+	/**
+	 * @return a user with an id, a name and a screen name
+	 */
+	static User createUser(final long id, final String name,
+			final String screenName) {
+		return (User) Proxy.newProxyInstance(LOADER,
+				new Class<?>[] { User.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String methodName = method.getName();
+						if ("getId".equals(methodName)) {
+							return id;
+						} else if ("getName".equals(methodName)) {
+							return name;
+						} else if ("getScreenName".equals(methodName)) {
+							return screenName;
+						} else if ("toString".equals(methodName)) {
+							return "User [id=" + id + ", screenName="
+									+ screenName + "]";
+						}
+						return defaultValue(proxy, method, args);
+					}
+				});
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		String methodName = method.getName();
+		if ("getId".equals(methodName)) {
+			return id;
+		} else if ("getCreatedAt".equals(methodName)) {
+			return createdAt;
+		} else if ("getText".equals(methodName)) {
+			return text;
+		} else if ("getUser".equals(methodName)) {
+			return user;
+		} else if ("getGeoLocation".equals(methodName)) {
+			return geoLocation;
+		} else if ("getSource".equals(methodName)) {
+			return source;
+		} else if ("getInReplyToStatusId".equals(methodName)) {
+			return -1L;
+		} else if ("toString".equals(methodName)) {
+			return "Status [id=" + id + ", text=" + text + "]";
+		}
+		return defaultValue(proxy, method, args);
+	}
+
+	/**
+	 * @return what a method the client doesn't read returns: identity for
+	 *         equals and hashCode, zero, false or null otherwise
+	 */
+	private static Object defaultValue(Object proxy, Method method,
+			Object[] args) {
+		String methodName = method.getName();
+		if ("equals".equals(methodName) && args != null && args.length == 1) {
+			return proxy == args[0];
+		} else if ("hashCode".equals(methodName)) {
+			return System.identityHashCode(proxy);
+		}
+		Class<?> type = method.getReturnType();
+		if (!type.isPrimitive() || type == void.class) {
+			return null;
+		} else if (type == boolean.class) {
+			return false;
+		} else if (type == char.class) {
+			return '\0';
+		} else if (type == double.class) {
+			return 0d;
+		} else if (type == float.class) {
+			return 0f;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == byte.class) {
+			return (byte) 0;
+		} else if (type == short.class) {
+			return (short) 0;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+
+/**
+ * <p>
+ * Reads a whole table with a DynamoDB parallel scan. The table is split into
+ * segments that are scanned concurrently on a fork-join pool, each one
+ * following its <code>LastEvaluatedKey</code> until it is exhausted, and the
+ * tweets are handed to a {@link TweetExportSink} page by page.
+ * </p>
+ * <p>
+ * The position reached in each segment is saved to a progress file after
+ * every page, so an export that crashes can be resumed where it stopped by
+ * running it again with the same progress file and number of segments. The
+ * read rate can be capped so an export doesn't starve the live traffic of
+ * read capacity.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class TableExporter {
+
+	private static final Log LOG = LogFactory.getLog(TableExporter.class);
+
+	private static final String TOTAL_SEGMENTS_PROPERTY = "totalSegments";
+	private static final String DONE = "done";
+	private static final int MAX_ATTEMPTS = 10;
+
+	private final AmazonDynamoDB dynamoDB;
+	private final String tableName;
+	private final int totalSegments;
+	private final int parallelism;
+	private final File progressFile;
+	private final double maxReadCapacityPerSecond;
+	private Map<String, Condition> scanFilter;
+
+	private final Properties progress = new Properties();
+	private final AtomicLong exportedCount = new AtomicLong();
+	private double consumedCapacity;
+	private long startTimeMillis;
+
+	/**
+	 * @param dynamoDB
+	 *            the client
+	 * @param tableName
+	 *            the table to export
+	 * @param totalSegments
+	 *            the number of segments the table is split into
+	 * @param parallelism
+	 *            the number of segments scanned at once
+	 * @param progressFile
+	 *            where the progress of the export is kept
+	 * @param maxReadCapacityPerSecond
+	 *            the read capacity units the export may use per second, 0 for
+	 *            no limit
+	 */
+	public TableExporter(AmazonDynamoDB dynamoDB, String tableName,
+			int totalSegments, int parallelism, File progressFile,
+			double maxReadCapacityPerSecond) {
+		this.dynamoDB = dynamoDB;
+		this.tableName = tableName;
+		this.totalSegments = totalSegments;
+		this.parallelism = parallelism;
+		this.progressFile = progressFile;
+		this.maxReadCapacityPerSecond = maxReadCapacityPerSecond;
+	}
+
+	/**
+	 * Only exports the items that match a filter. The whole table is still
+	 * read, and paid for.
+	 *
+	 * @param scanFilter
+	 *            the conditions on the attributes of the items, or null to
+	 *            export every item
+	 * @return this exporter
+	 */
+	public TableExporter withScanFilter(Map<String, Condition> scanFilter) {
+		this.scanFilter = scanFilter;
+		return this;
+	}
+
+	/**
+	 * Exports the tweet table to JSON files.
+	 *
+	 * @param args
+	 *            the output directory, optionally followed by the number of
+	 *            segments and the maximum read capacity units per second
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println("Usage: java " + TableExporter.class.getName()
+					+ " <outputDirectory> [totalSegments] [maxReadCapacityPerSecond]");
+			System.exit(1);
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		File directory = new File(args[0]);
+		int totalSegments = args.length > 1 ? Integer.parseInt(args[1])
+				: 4 * processors;
+		double maxReadCapacityPerSecond = args.length > 2 ? Double
+				.parseDouble(args[2]) : 0;
+
+		PersistentStore store = PersistentStore.getInstance();
+		if (store == null) {
+			System.exit(1);
+		}
+		TableExporter exporter = store.newExporter(totalSegments,
+				Math.min(totalSegments, 2 * processors), new File(directory,
+						"export.progress"), maxReadCapacityPerSecond);
+		long count = exporter.export(new FileExportSink(directory));
+		System.out.println("Exported " + count + " tweets to " + directory);
+		System.exit(0);
+	}
+
+	/**
+	 * Exports the table, or what remains of it if the progress file shows an
+	 * earlier export got part of the way. The sink is closed when the export
+	 * ends.
+	 *
+	 * @return the number of tweets exported by this call
+	 * @throws IOException
+	 *             if the export failed; it can be resumed
+	 */
+	public long export(TweetExportSink sink) throws IOException {
+		loadProgress();
+		startTimeMillis = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<SegmentScan> scans = new ArrayList<SegmentScan>();
+			for (int segment = 0; segment < totalSegments; segment++) {
+				if (!DONE.equals(getProgress(segment))) {
+					scans.add(new SegmentScan(segment, sink));
+				}
+			}
+			LOG.info("Exporting " + scans.size() + " of " + totalSegments
+					+ " segments of " + tableName);
+			pool.invoke(new ExportAll(scans));
+
+			for (SegmentScan scan : scans) {
+				if (scan.failure != null) {
+					throw new IOException("Export of segment " + scan.segment
+							+ " failed, run the export again to resume",
+							scan.failure);
+				}
+			}
+			LOG.info("Exported " + exportedCount.get() + " tweets from "
+					+ tableName + " in "
+					+ (System.currentTimeMillis() - startTimeMillis) + " ms");
+			return exportedCount.get();
+		} finally {
+			pool.shutdown();
+			sink.close();
+		}
+	}
+
+	private void scan(int segment, TweetExportSink sink) throws Exception {
+		Map<String, AttributeValue> startKey = decodeKey(getProgress(segment));
+		do {
+			ScanRequest scanRequest = new ScanRequest()
+					.withTableName(tableName).withSegment(segment)
+					.withTotalSegments(totalSegments)
+					.withScanFilter(scanFilter)
+					.withExclusiveStartKey(startKey)
+					.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			ScanResult result = scanWithRetries(scanRequest);
+
+			List<Tweet> tweets = new ArrayList<Tweet>(result.getItems().size());
+			for (Map<String, AttributeValue> item : result.getItems()) {
+				tweets.add(PersistentStore.toTweet(item));
+			}
+			if (!tweets.isEmpty()) {
+				sink.write(segment, tweets);
+				exportedCount.addAndGet(tweets.size());
+			}
+
+			startKey = result.getLastEvaluatedKey();
+			saveProgress(segment, startKey == null ? DONE : encodeKey(startKey));
+			if (result.getConsumedCapacity() != null
+					&& result.getConsumedCapacity().getCapacityUnits() != null) {
+				throttle(result.getConsumedCapacity().getCapacityUnits());
+			}
+		} while (startKey != null);
+	}
+
+	private ScanResult scanWithRetries(ScanRequest scanRequest)
+			throws InterruptedException {
+		Backoff backoff = new Backoff(100L, 20000L);
+		while (true) {
+			try {
+				return dynamoDB.scan(scanRequest);
+			} catch (AmazonClientException e) {
+				if (!Failures.isTransient(e)
+						|| backoff.getAttempts() >= MAX_ATTEMPTS - 1) {
+					throw e;
+				}
+				LOG.debug("Retrying scan of segment " + scanRequest.getSegment(),
+						e);
+				backoff.sleep();
+			}
+		}
+	}
+
+	/**
+	 * Sleeps long enough to keep the average read rate of the export under
+	 * the limit.
+	 */
+	private void throttle(double capacityUnits) throws InterruptedException {
+		if (maxReadCapacityPerSecond <= 0) {
+			return;
+		}
+		long sleepMillis;
+		synchronized (this) {
+			consumedCapacity += capacityUnits;
+			long earliestMillis = startTimeMillis
+					+ (long) (consumedCapacity / maxReadCapacityPerSecond * 1000);
+			sleepMillis = earliestMillis - System.currentTimeMillis();
+		}
+		if (sleepMillis > 0) {
+			Thread.sleep(sleepMillis);
+		}
+	}
+
+	private void loadProgress() throws IOException {
+		if (!progressFile.exists()) {
+			progress.setProperty(TOTAL_SEGMENTS_PROPERTY,
+					Integer.toString(totalSegments));
+			return;
+		}
+		FileInputStream in = new FileInputStream(progressFile);
+		try {
+			progress.load(in);
+		} finally {
+			in.close();
+		}
+		String savedSegments = progress.getProperty(TOTAL_SEGMENTS_PROPERTY);
+		if (!Integer.toString(totalSegments).equals(savedSegments)) {
+			throw new IOException("The export in " + progressFile + " used "
+					+ savedSegments + " segments, it must be resumed with as many");
+		}
+		LOG.info("Resuming export from " + progressFile);
+	}
+
+	private synchronized String getProgress(int segment) {
+		return progress.getProperty("segment." + segment);
+	}
+
+	/**
+	 * Saves the progress of all the segments, replacing the progress file in
+	 * one step so a crash leaves either the old or the new one.
+	 */
+	private synchronized void saveProgress(int segment, String position)
+			throws IOException {
+		progress.setProperty("segment." + segment, position);
+		File temp = new File(progressFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			progress.store(out, "Progress of the export of " + tableName);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(progressFile)) {
+			// renameTo doesn't replace an existing file on every platform
+			if (!progressFile.delete() || !temp.renameTo(progressFile)) {
+				throw new IOException("Couldn't save export progress to "
+						+ progressFile);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a key as name=N:value or name=S:value pairs separated by
+	 * commas. The keys of this table are numbers, so no escaping is needed.
+	 */
+	static String encodeKey(Map<String, AttributeValue> key) {
+		StringBuilder encoded = new StringBuilder();
+		for (Map.Entry<String, AttributeValue> entry : key.entrySet()) {
+			if (encoded.length() > 0) {
+				encoded.append(',');
+			}
+			AttributeValue value = entry.getValue();
+			encoded.append(entry.getKey()).append('=');
+			if (value.getN() != null) {
+				encoded.append("N:").append(value.getN());
+			} else {
+				encoded.append("S:").append(value.getS());
+			}
+		}
+		return encoded.toString();
+	}
+
+	static Map<String, AttributeValue> decodeKey(String encoded) {
+		if (encoded == null || encoded.isEmpty()) {
+			return null;
+		}
+		Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+		for (String pair : encoded.split(",")) {
+			int equals = pair.indexOf('=');
+			String name = pair.substring(0, equals);
+			String value = pair.substring(equals + 3);
+			key.put(name, pair.charAt(equals + 1) == 'N' ? new AttributeValue()
+					.withN(value) : new AttributeValue().withS(value));
+		}
+		return key;
+	}
+
+	/**
+	 * Scans every segment.
+	 */
+	private static class ExportAll extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<SegmentScan> scans;
+
+		ExportAll(List<SegmentScan> scans) {
+			this.scans = scans;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(scans);
+		}
+	}
+
+	/**
+	 * Scans one segment to the end. A failure is kept rather than thrown so
+	 * that the other segments still finish.
+	 */
+	private class SegmentScan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int segment;
+		private final TweetExportSink sink;
+		private Exception failure;
+
+		SegmentScan(int segment, TweetExportSink sink) {
+			this.segment = segment;
+			this.sink = sink;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				scan(segment, sink);
+			} catch (Exception e) {
+				LOG.error("Export of segment " + segment + " failed", e);
+				failure = e;
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+/**
+ * The fields of a Twitter status update that Tweetamo publishes and stores.
+ * Fields that were not included in the {@link TweetProfile} a tweet was
+ * serialized with return -1 for ids, 0 for counts and null for strings.
+ *
+ * @author dselman
+ *
+ */
+public interface Tweet {
+
+	long getId();
+
+	/**
+	 * @return creation time in milliseconds since the epoch
+	 */
+	long getCreatedAt();
+
+	boolean hasGeoLocation();
+
+	double getLatitude();
+
+	double getLongitude();
+
+	String getScreenName();
+
+	String getText();
+
+	long getUserId();
+
+	String getUserName();
+
+	String getSource();
+
+	long getInReplyToStatusId();
+
+	/**
+	 * @return the id of the retweeted status, or -1 if this is not a retweet
+	 */
+	long getRetweetedStatusId();
+
+	long getRetweetCount();
+}
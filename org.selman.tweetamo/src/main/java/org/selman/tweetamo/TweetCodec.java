@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codecs for serialized tweets. The id of the codec is written
+ * in the header of compressed records.
+ *
+ * @author dselman
+ *
+ */
+public enum TweetCodec {
+
+	/**
+	 * No compression.
+	 */
+	NONE(0) {
+		@Override
+		byte[] compress(byte[] data, int offset, int length,
+				TweetDictionary dictionary) {
+			return Arrays.copyOfRange(data, offset, offset + length);
+		}
+
+		@Override
+		byte[] decompress(byte[] data, int offset, int length, int rawLength,
+				TweetDictionary dictionary) throws IOException {
+			if (length != rawLength) {
+				throw new IOException("Uncompressed data has the wrong length");
+			}
+			return Arrays.copyOfRange(data, offset, offset + length);
+		}
+	},
+
+	/**
+	 * Raw deflate, using the dictionary as a preset dictionary.
+	 */
+	DEFLATE(1) {
+		@Override
+		byte[] compress(byte[] data, int offset, int length,
+				TweetDictionary dictionary) {
+			Deflater deflater = DEFLATERS.get();
+			deflater.reset();
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary.getBytes());
+			}
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+
+			byte[] out = new byte[length + 64];
+			int size = 0;
+			while (!deflater.finished()) {
+				if (size == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				size += deflater.deflate(out, size, out.length - size);
+			}
+			return Arrays.copyOf(out, size);
+		}
+
+		@Override
+		byte[] decompress(byte[] data, int offset, int length, int rawLength,
+				TweetDictionary dictionary) throws IOException {
+			Inflater inflater = INFLATERS.get();
+			inflater.reset();
+			if (dictionary != null) {
+				inflater.setDictionary(dictionary.getBytes());
+			}
+			inflater.setInput(data, offset, length);
+
+			byte[] out = new byte[rawLength];
+			int size = 0;
+			try {
+				while (size < rawLength) {
+					int count = inflater.inflate(out, size, rawLength - size);
+					if (count == 0
+							&& (inflater.finished() || inflater.needsInput() || inflater
+									.needsDictionary())) {
+						break;
+					}
+					size += count;
+				}
+				// a stream cut short can still yield all of its output, only
+				// its end is missing
+				if (size == rawLength && !inflater.finished()
+						&& (inflater.inflate(new byte[1]) != 0 || !inflater
+								.finished())) {
+					throw new IOException("Truncated compressed data");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed data", e);
+			}
+			if (size != rawLength) {
+				throw new IOException("Compressed data has the wrong length");
+			}
+			return out;
+		}
+	},
+
+	/**
+	 * The LZ4 style {@link LzCompressor}: less compression than deflate but
+	 * much cheaper to encode and decode.
+	 */
+	LZ(2) {
+		@Override
+		byte[] compress(byte[] data, int offset, int length,
+				TweetDictionary dictionary) {
+			if (dictionary == null) {
+				return LzCompressor.compress(data, offset, length, null,
+						LzCompressor.hashTable(null));
+			}
+			return LzCompressor.compress(data, offset, length,
+					dictionary.getBytes(), dictionary.getLzHashTable());
+		}
+
+		@Override
+		byte[] decompress(byte[] data, int offset, int length, int rawLength,
+				TweetDictionary dictionary) throws IOException {
+			return LzCompressor.decompress(data, offset, length, rawLength,
+					dictionary == null ? null : dictionary.getBytes());
+		}
+	};
+
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private final int id;
+
+	private TweetCodec(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the codec with the id
+	 * @throws IOException
+	 *             if there is no such codec
+	 */
+	public static TweetCodec forId(int id) throws IOException {
+		for (TweetCodec codec : values()) {
+			if (codec.id == id) {
+				return codec;
+			}
+		}
+		throw new IOException("Unknown compression codec " + id);
+	}
+
+	abstract byte[] compress(byte[] data, int offset, int length,
+			TweetDictionary dictionary);
+
+	abstract byte[] decompress(byte[] data, int offset, int length,
+			int rawLength, TweetDictionary dictionary) throws IOException;
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * A compression dictionary trained from a sample of serialized tweets. Small
+ * records compress poorly on their own because there is nothing earlier in
+ * the record to refer back to; a dictionary of the byte sequences common to
+ * many tweets fills that gap.
+ * </p>
+ * <p>
+ * Each dictionary has an id from 1 to 255 that is written in the header of
+ * the records compressed with it. Readers look the dictionary up by that id,
+ * so every dictionary a client may use has to be {@link #register registered}
+ * on the server too. Id 0 means no dictionary.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class TweetDictionary {
+
+	public static final int DEFAULT_SIZE = 8 * 1024;
+
+	private static final int FILE_MAGIC = 0x54574443; // "TWDC"
+	private static final int KMER_LENGTH = 8;
+	private static final int SEGMENT_LENGTH = 32;
+
+	private static final ConcurrentMap<Integer, TweetDictionary> REGISTRY = new ConcurrentHashMap<Integer, TweetDictionary>();
+
+	private final int id;
+	private final byte[] bytes;
+	private volatile int[] lzHashTable;
+
+	public TweetDictionary(int id, byte[] bytes) {
+		if (id < 1 || id > 255) {
+			throw new IllegalArgumentException(
+					"Dictionary id must be between 1 and 255: " + id);
+		}
+		this.id = id;
+		this.bytes = bytes;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the hash table the LZ codec starts from, computed once
+	 */
+	int[] getLzHashTable() {
+		int[] table = lzHashTable;
+		if (table == null) {
+			table = LzCompressor.hashTable(bytes);
+			lzHashTable = table;
+		}
+		return table;
+	}
+
+	public int size() {
+		return bytes.length;
+	}
+
+	/**
+	 * Makes the dictionary available to readers of records compressed with
+	 * it.
+	 */
+	public static void register(TweetDictionary dictionary) {
+		REGISTRY.put(dictionary.id, dictionary);
+	}
+
+	/**
+	 * @return the registered dictionary with the id
+	 * @throws IOException
+	 *             if no dictionary with that id has been registered
+	 */
+	public static TweetDictionary get(int id) throws IOException {
+		TweetDictionary dictionary = REGISTRY.get(id);
+		if (dictionary == null) {
+			throw new IOException("Compression dictionary " + id
+					+ " has not been registered");
+		}
+		return dictionary;
+	}
+
+	/**
+	 * <p>
+	 * Builds a dictionary from sample records. The samples are split into
+	 * as many epochs as the dictionary has segments; from each epoch the
+	 * segment whose 8 byte sequences occur in the most samples is kept. The
+	 * best scoring segments are placed at the end of the dictionary, where
+	 * matches are cheapest to encode.
+	 * </p>
+	 *
+	 * @param id
+	 *            id of the dictionary
+	 * @param samples
+	 *            serialized tweets, uncompressed
+	 * @param size
+	 *            maximum size of the dictionary
+	 * @return the dictionary
+	 */
+	public static TweetDictionary train(int id, List<byte[]> samples, int size) {
+		Map<Long, Integer> frequencies = new HashMap<Long, Integer>();
+		Set<Long> seen = new HashSet<Long>();
+		long total = 0;
+		for (byte[] sample : samples) {
+			seen.clear();
+			for (int i = 0; i + KMER_LENGTH <= sample.length; i++) {
+				Long kmer = kmer(sample, i);
+				if (seen.add(kmer)) {
+					Integer count = frequencies.get(kmer);
+					frequencies.put(kmer, count == null ? 1 : count + 1);
+				}
+			}
+			total += sample.length;
+		}
+
+		int segments = Math.max(1, size / SEGMENT_LENGTH);
+		long epochLength = Math.max(SEGMENT_LENGTH, total / segments);
+		List<Segment> selected = new ArrayList<Segment>();
+
+		Segment best = null;
+		long position = 0;
+		long epochEnd = epochLength;
+		for (byte[] sample : samples) {
+			for (int start = 0; start + SEGMENT_LENGTH <= sample.length; start++) {
+				long score = 0;
+				for (int i = start; i + KMER_LENGTH <= start + SEGMENT_LENGTH; i++) {
+					Integer count = frequencies.get(kmer(sample, i));
+					if (count != null && count > 1) {
+						score += count;
+					}
+				}
+				if (best == null || score > best.score) {
+					best = new Segment(sample, start, score);
+				}
+			}
+
+			position += sample.length;
+			if (position >= epochEnd && best != null) {
+				if (best.score > 0) {
+					selected.add(best);
+					// don't pick the same sequences again
+					for (int i = best.start; i + KMER_LENGTH <= best.start
+							+ SEGMENT_LENGTH; i++) {
+						frequencies.remove(kmer(best.sample, i));
+					}
+				}
+				best = null;
+				epochEnd += epochLength;
+			}
+		}
+
+		Collections.sort(selected, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment a, Segment b) {
+				return a.score < b.score ? -1 : (a.score == b.score ? 0 : 1);
+			}
+		});
+		while (selected.size() * SEGMENT_LENGTH > size) {
+			selected.remove(0);
+		}
+
+		byte[] bytes = new byte[selected.size() * SEGMENT_LENGTH];
+		int offset = 0;
+		for (Segment segment : selected) {
+			System.arraycopy(segment.sample, segment.start, bytes, offset,
+					SEGMENT_LENGTH);
+			offset += SEGMENT_LENGTH;
+		}
+		return new TweetDictionary(id, bytes);
+	}
+
+	private static Long kmer(byte[] data, int offset) {
+		long value = 0;
+		for (int i = 0; i < KMER_LENGTH; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads a dictionary written by {@link #save(File)}.
+	 */
+	public static TweetDictionary load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != FILE_MAGIC) {
+				throw new IOException(file + " is not a tweet dictionary");
+			}
+			int id = in.readUnsignedByte();
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new TweetDictionary(id, bytes);
+		} finally {
+			in.close();
+		}
+	}
+
+	public void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeByte(id);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "TweetDictionary [id=" + id + ", size=" + bytes.length + "]";
+	}
+
+	private static class Segment {
+		private final byte[] sample;
+		private final int start;
+		private final long score;
+
+		Segment(byte[] sample, int start, long score) {
+			this.sample = sample;
+			this.start = start;
+			this.score = score;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the tweets read by a {@link TableExporter}.
+ *
+ * @author dselman
+ *
+ */
+public interface TweetExportSink {
+
+	/**
+	 * Receives a page of tweets read from one segment of the table. Pages of
+	 * the same segment arrive in order, from a single thread at a time;
+	 * pages of different segments arrive concurrently.
+	 * <p>
+	 * An export resumed after a crash may deliver the pages read just before
+	 * the crash again.
+	 * </p>
+	 */
+	void write(int segment, List<Tweet> tweets) throws IOException;
+
+	/**
+	 * Called once the export has finished, successfully or not.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+/**
+ * Fields of the compact tweet format, in the order they are written. Fixed
+ * width fields come first so they can be located without reading the ones
+ * before them; strings follow, each prefixed with its length.
+ *
+ * @author dselman
+ *
+ */
+public enum TweetField {
+
+	ID(8),
+	CREATED_AT(8),
+	/** latitude and longitude */
+	GEO(16),
+	USER_ID(8),
+	IN_REPLY_TO_STATUS_ID(8),
+	RETWEETED_STATUS_ID(8),
+	RETWEET_COUNT(8),
+	SCREEN_NAME(0),
+	TEXT(0),
+	USER_NAME(0),
+	SOURCE(0);
+
+	private final int width;
+
+	private TweetField(int width) {
+		this.width = width;
+	}
+
+	/**
+	 * @return the bit of this field in the field mask of a record
+	 */
+	public int getBit() {
+		return 1 << ordinal();
+	}
+
+	/**
+	 * @return true if the field is a length prefixed string
+	 */
+	public boolean isVariable() {
+		return width == 0;
+	}
+
+	/**
+	 * @return the size in bytes of a fixed width field
+	 */
+	public int getWidth() {
+		return width;
+	}
+}
@@ -0,0 +1,634 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import static org.selman.tweetamo.TweetProducerConfiguration.getBoolean;
+import static org.selman.tweetamo.TweetProducerConfiguration.getDouble;
+import static org.selman.tweetamo.TweetProducerConfiguration.getInt;
+import static org.selman.tweetamo.TweetProducerConfiguration.getLong;
+
+import java.util.Properties;
+
+/**
+ * Settings for the {@link TweetamoRecordProcessor}. The defaults can be
+ * overridden from the server properties file using the processor keys in
+ * {@link ConfigKeys}.
+ *
+ * @author dselman
+ *
+ */
+public class TweetProcessorConfiguration {
+
+	public static final String DEFAULT_DEAD_LETTER_DIRECTORY = "deadletters";
+	public static final long DEFAULT_RETRY_BASE_MILLIS = 100L;
+	public static final long DEFAULT_RETRY_MAX_MILLIS = 30000L;
+	public static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_BREAKER_OPEN_MILLIS = 5000L;
+	public static final long DEFAULT_BREAKER_MAX_OPEN_MILLIS = 60000L;
+	public static final int DEFAULT_RECENT_TWEETS_MINUTES = 60;
+	public static final int DEFAULT_RECENT_TWEETS_PER_MINUTE = 1000;
+	public static final int DEFAULT_DEDUPE_EXPECTED_IDS = 200000;
+	public static final int DEFAULT_DEDUPE_RECENT_IDS = 10000;
+	public static final CheckpointStrategy.Type DEFAULT_CHECKPOINT_STRATEGY = CheckpointStrategy.Type.TIME;
+	public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 60000L;
+	public static final long DEFAULT_CHECKPOINT_MIN_INTERVAL_MILLIS = 10000L;
+	public static final long DEFAULT_CHECKPOINT_RECORDS = 50000L;
+	public static final long DEFAULT_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+	public static final int DEFAULT_FETCH_MAX_RECORDS = 10000;
+	public static final long DEFAULT_FETCH_IDLE_TIME_BETWEEN_READS_MILLIS = 200L;
+	public static final long DEFAULT_FETCH_MAX_IDLE_MILLIS = 2000L;
+	public static final long DEFAULT_FETCH_BEHIND_THRESHOLD_MILLIS = 10000L;
+	public static final boolean DEFAULT_FETCH_DELIVER_EMPTY_BATCHES = true;
+	public static final TweetStores.Backend DEFAULT_STORE_BACKEND = TweetStores.Backend.DYNAMODB;
+	public static final String DEFAULT_STORE_DIRECTORY = "tweets";
+	public static final long DEFAULT_STORE_SEGMENT_BYTES = 64L * 1024 * 1024;
+	public static final boolean DEFAULT_STORE_SYNC = true;
+	public static final String DEFAULT_STORE_DYNAMO_REGION = "us-east-1";
+	public static final long DEFAULT_STORE_DYNAMO_READ_CAPACITY = 1L;
+	public static final long DEFAULT_STORE_DYNAMO_WRITE_CAPACITY = 50L;
+	public static final double DEFAULT_STORE_DYNAMO_WRITE_UTILIZATION = PersistentStore.DEFAULT_WRITE_UTILIZATION;
+	public static final long DEFAULT_STORE_DYNAMO_INDEX_READ_CAPACITY = 10L;
+	public static final long DEFAULT_STORE_DYNAMO_MAX_WRITE_CAPACITY = 1000L;
+	public static final long DEFAULT_STORE_DYNAMO_TUNE_INTERVAL_MILLIS = 0L;
+	public static final PersistentStore.ItemLayout DEFAULT_STORE_DYNAMO_ITEM_LAYOUT = PersistentStore.ItemLayout.ATTRIBUTES;
+
+	private String deadLetterDirectory = DEFAULT_DEAD_LETTER_DIRECTORY;
+	private long retryBaseMillis = DEFAULT_RETRY_BASE_MILLIS;
+	private long retryMaxMillis = DEFAULT_RETRY_MAX_MILLIS;
+	private int breakerFailureThreshold = DEFAULT_BREAKER_FAILURE_THRESHOLD;
+	private long breakerOpenMillis = DEFAULT_BREAKER_OPEN_MILLIS;
+	private long breakerMaxOpenMillis = DEFAULT_BREAKER_MAX_OPEN_MILLIS;
+	private int recentTweetsMinutes = DEFAULT_RECENT_TWEETS_MINUTES;
+	private int recentTweetsPerMinute = DEFAULT_RECENT_TWEETS_PER_MINUTE;
+	private int dedupeExpectedIds = DEFAULT_DEDUPE_EXPECTED_IDS;
+	private int dedupeRecentIds = DEFAULT_DEDUPE_RECENT_IDS;
+	private CheckpointStrategy.Type checkpointStrategy = DEFAULT_CHECKPOINT_STRATEGY;
+	private long checkpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+	private long checkpointMinIntervalMillis = DEFAULT_CHECKPOINT_MIN_INTERVAL_MILLIS;
+	private long checkpointRecords = DEFAULT_CHECKPOINT_RECORDS;
+	private long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
+	private int fetchMaxRecords = DEFAULT_FETCH_MAX_RECORDS;
+	private long fetchIdleTimeBetweenReadsMillis = DEFAULT_FETCH_IDLE_TIME_BETWEEN_READS_MILLIS;
+	private long fetchMaxIdleMillis = DEFAULT_FETCH_MAX_IDLE_MILLIS;
+	private long fetchBehindThresholdMillis = DEFAULT_FETCH_BEHIND_THRESHOLD_MILLIS;
+	private boolean fetchDeliverEmptyBatches = DEFAULT_FETCH_DELIVER_EMPTY_BATCHES;
+	private TweetStores.Backend storeBackend = DEFAULT_STORE_BACKEND;
+	private String storeDirectory = DEFAULT_STORE_DIRECTORY;
+	private long storeSegmentBytes = DEFAULT_STORE_SEGMENT_BYTES;
+	private boolean storeSync = DEFAULT_STORE_SYNC;
+	private String storeDynamoRegion = DEFAULT_STORE_DYNAMO_REGION;
+	private long storeDynamoReadCapacity = DEFAULT_STORE_DYNAMO_READ_CAPACITY;
+	private long storeDynamoWriteCapacity = DEFAULT_STORE_DYNAMO_WRITE_CAPACITY;
+	private double storeDynamoWriteUtilization = DEFAULT_STORE_DYNAMO_WRITE_UTILIZATION;
+	private long storeDynamoIndexReadCapacity = DEFAULT_STORE_DYNAMO_INDEX_READ_CAPACITY;
+	private long storeDynamoMaxWriteCapacity = DEFAULT_STORE_DYNAMO_MAX_WRITE_CAPACITY;
+	private long storeDynamoTuneIntervalMillis = DEFAULT_STORE_DYNAMO_TUNE_INTERVAL_MILLIS;
+	private PersistentStore.ItemLayout storeDynamoItemLayout = DEFAULT_STORE_DYNAMO_ITEM_LAYOUT;
+
+	/**
+	 * Creates a configuration with the default settings, overridden by any
+	 * processor keys present in the properties.
+	 *
+	 * @param properties
+	 *            the server properties, may be null
+	 * @return the configuration
+	 */
+	public static TweetProcessorConfiguration fromProperties(
+			Properties properties) {
+		TweetProcessorConfiguration configuration = new TweetProcessorConfiguration();
+		if (properties == null) {
+			return configuration;
+		}
+
+		configuration.deadLetterDirectory = properties.getProperty(
+				ConfigKeys.PROCESSOR_DEAD_LETTER_DIRECTORY_KEY,
+				configuration.deadLetterDirectory).trim();
+		configuration.retryBaseMillis = getLong(properties,
+				ConfigKeys.PROCESSOR_RETRY_BASE_MILLIS_KEY,
+				configuration.retryBaseMillis);
+		configuration.retryMaxMillis = getLong(properties,
+				ConfigKeys.PROCESSOR_RETRY_MAX_MILLIS_KEY,
+				configuration.retryMaxMillis);
+		configuration.breakerFailureThreshold = getInt(properties,
+				ConfigKeys.PROCESSOR_BREAKER_FAILURE_THRESHOLD_KEY,
+				configuration.breakerFailureThreshold);
+		configuration.breakerOpenMillis = getLong(properties,
+				ConfigKeys.PROCESSOR_BREAKER_OPEN_MILLIS_KEY,
+				configuration.breakerOpenMillis);
+		configuration.breakerMaxOpenMillis = getLong(properties,
+				ConfigKeys.PROCESSOR_BREAKER_MAX_OPEN_MILLIS_KEY,
+				configuration.breakerMaxOpenMillis);
+		configuration.recentTweetsMinutes = getInt(properties,
+				ConfigKeys.PROCESSOR_RECENT_TWEETS_MINUTES_KEY,
+				configuration.recentTweetsMinutes);
+		configuration.recentTweetsPerMinute = getInt(properties,
+				ConfigKeys.PROCESSOR_RECENT_TWEETS_PER_MINUTE_KEY,
+				configuration.recentTweetsPerMinute);
+		configuration.dedupeExpectedIds = getInt(properties,
+				ConfigKeys.PROCESSOR_DEDUPE_EXPECTED_IDS_KEY,
+				configuration.dedupeExpectedIds);
+		configuration.dedupeRecentIds = getInt(properties,
+				ConfigKeys.PROCESSOR_DEDUPE_RECENT_IDS_KEY,
+				configuration.dedupeRecentIds);
+		String strategy = properties
+				.getProperty(ConfigKeys.PROCESSOR_CHECKPOINT_STRATEGY_KEY);
+		if (strategy != null) {
+			configuration.checkpointStrategy = CheckpointStrategy.Type
+					.valueOf(strategy.trim().toUpperCase());
+		}
+		configuration.checkpointIntervalMillis = getLong(properties,
+				ConfigKeys.PROCESSOR_CHECKPOINT_INTERVAL_MILLIS_KEY,
+				configuration.checkpointIntervalMillis);
+		configuration.checkpointMinIntervalMillis = getLong(properties,
+				ConfigKeys.PROCESSOR_CHECKPOINT_MIN_INTERVAL_MILLIS_KEY,
+				configuration.checkpointMinIntervalMillis);
+		configuration.checkpointRecords = getLong(properties,
+				ConfigKeys.PROCESSOR_CHECKPOINT_RECORDS_KEY,
+				configuration.checkpointRecords);
+		configuration.checkpointBytes = getLong(properties,
+				ConfigKeys.PROCESSOR_CHECKPOINT_BYTES_KEY,
+				configuration.checkpointBytes);
+		configuration.fetchMaxRecords = getInt(properties,
+				ConfigKeys.FETCH_MAX_RECORDS_KEY, configuration.fetchMaxRecords);
+		configuration.fetchIdleTimeBetweenReadsMillis = getLong(properties,
+				ConfigKeys.FETCH_IDLE_TIME_BETWEEN_READS_MILLIS_KEY,
+				configuration.fetchIdleTimeBetweenReadsMillis);
+		configuration.fetchMaxIdleMillis = getLong(properties,
+				ConfigKeys.FETCH_MAX_IDLE_MILLIS_KEY,
+				configuration.fetchMaxIdleMillis);
+		configuration.fetchBehindThresholdMillis = getLong(properties,
+				ConfigKeys.FETCH_BEHIND_THRESHOLD_MILLIS_KEY,
+				configuration.fetchBehindThresholdMillis);
+		configuration.fetchDeliverEmptyBatches = getBoolean(properties,
+				ConfigKeys.FETCH_DELIVER_EMPTY_BATCHES_KEY,
+				configuration.fetchDeliverEmptyBatches);
+		String backend = properties.getProperty(ConfigKeys.STORE_BACKEND_KEY);
+		if (backend != null) {
+			configuration.storeBackend = TweetStores.Backend.valueOf(backend
+					.trim().toUpperCase());
+		}
+		configuration.storeDirectory = properties.getProperty(
+				ConfigKeys.STORE_DIRECTORY_KEY, configuration.storeDirectory)
+				.trim();
+		configuration.storeSegmentBytes = getLong(properties,
+				ConfigKeys.STORE_SEGMENT_BYTES_KEY,
+				configuration.storeSegmentBytes);
+		configuration.storeSync = getBoolean(properties,
+				ConfigKeys.STORE_SYNC_KEY, configuration.storeSync);
+		configuration.storeDynamoRegion = properties.getProperty(
+				ConfigKeys.STORE_DYNAMO_REGION_KEY,
+				configuration.storeDynamoRegion).trim();
+		configuration.storeDynamoReadCapacity = getLong(properties,
+				ConfigKeys.STORE_DYNAMO_READ_CAPACITY_KEY,
+				configuration.storeDynamoReadCapacity);
+		configuration.storeDynamoWriteCapacity = getLong(properties,
+				ConfigKeys.STORE_DYNAMO_WRITE_CAPACITY_KEY,
+				configuration.storeDynamoWriteCapacity);
+		configuration.storeDynamoWriteUtilization = getDouble(properties,
+				ConfigKeys.STORE_DYNAMO_WRITE_UTILIZATION_KEY,
+				configuration.storeDynamoWriteUtilization);
+		configuration.storeDynamoIndexReadCapacity = getLong(properties,
+				ConfigKeys.STORE_DYNAMO_INDEX_READ_CAPACITY_KEY,
+				configuration.storeDynamoIndexReadCapacity);
+		configuration.storeDynamoMaxWriteCapacity = getLong(properties,
+				ConfigKeys.STORE_DYNAMO_MAX_WRITE_CAPACITY_KEY,
+				configuration.storeDynamoMaxWriteCapacity);
+		configuration.storeDynamoTuneIntervalMillis = getLong(properties,
+				ConfigKeys.STORE_DYNAMO_TUNE_INTERVAL_MILLIS_KEY,
+				configuration.storeDynamoTuneIntervalMillis);
+		String itemLayout = properties
+				.getProperty(ConfigKeys.STORE_DYNAMO_ITEM_LAYOUT_KEY);
+		if (itemLayout != null) {
+			configuration.storeDynamoItemLayout = PersistentStore.ItemLayout
+					.valueOf(itemLayout.trim().toUpperCase());
+		}
+		return configuration;
+	}
+
+	public String getDeadLetterDirectory() {
+		return deadLetterDirectory;
+	}
+
+	public TweetProcessorConfiguration withDeadLetterDirectory(
+			String deadLetterDirectory) {
+		this.deadLetterDirectory = deadLetterDirectory;
+		return this;
+	}
+
+	public long getRetryBaseMillis() {
+		return retryBaseMillis;
+	}
+
+	public TweetProcessorConfiguration withRetryBaseMillis(long retryBaseMillis) {
+		this.retryBaseMillis = retryBaseMillis;
+		return this;
+	}
+
+	public long getRetryMaxMillis() {
+		return retryMaxMillis;
+	}
+
+	public TweetProcessorConfiguration withRetryMaxMillis(long retryMaxMillis) {
+		this.retryMaxMillis = retryMaxMillis;
+		return this;
+	}
+
+	public int getBreakerFailureThreshold() {
+		return breakerFailureThreshold;
+	}
+
+	public TweetProcessorConfiguration withBreakerFailureThreshold(
+			int breakerFailureThreshold) {
+		this.breakerFailureThreshold = breakerFailureThreshold;
+		return this;
+	}
+
+	public long getBreakerOpenMillis() {
+		return breakerOpenMillis;
+	}
+
+	public TweetProcessorConfiguration withBreakerOpenMillis(
+			long breakerOpenMillis) {
+		this.breakerOpenMillis = breakerOpenMillis;
+		return this;
+	}
+
+	public long getBreakerMaxOpenMillis() {
+		return breakerMaxOpenMillis;
+	}
+
+	public TweetProcessorConfiguration withBreakerMaxOpenMillis(
+			long breakerMaxOpenMillis) {
+		this.breakerMaxOpenMillis = breakerMaxOpenMillis;
+		return this;
+	}
+
+	/**
+	 * @return how many minutes of processed tweets are kept in memory
+	 */
+	public int getRecentTweetsMinutes() {
+		return recentTweetsMinutes;
+	}
+
+	public TweetProcessorConfiguration withRecentTweetsMinutes(
+			int recentTweetsMinutes) {
+		this.recentTweetsMinutes = recentTweetsMinutes;
+		return this;
+	}
+
+	/**
+	 * @return the most processed tweets kept in memory for each minute
+	 */
+	public int getRecentTweetsPerMinute() {
+		return recentTweetsPerMinute;
+	}
+
+	public TweetProcessorConfiguration withRecentTweetsPerMinute(
+			int recentTweetsPerMinute) {
+		this.recentTweetsPerMinute = recentTweetsPerMinute;
+		return this;
+	}
+
+	/**
+	 * @return the number of tweets a shard is expected to store between
+	 *         checkpoints, which sizes its duplicate filter; 0 turns
+	 *         duplicate suppression off
+	 */
+	public int getDedupeExpectedIds() {
+		return dedupeExpectedIds;
+	}
+
+	public TweetProcessorConfiguration withDedupeExpectedIds(
+			int dedupeExpectedIds) {
+		this.dedupeExpectedIds = dedupeExpectedIds;
+		return this;
+	}
+
+	/**
+	 * @return the number of stored ids each shard remembers exactly
+	 */
+	public int getDedupeRecentIds() {
+		return dedupeRecentIds;
+	}
+
+	public TweetProcessorConfiguration withDedupeRecentIds(int dedupeRecentIds) {
+		this.dedupeRecentIds = dedupeRecentIds;
+		return this;
+	}
+
+	public CheckpointStrategy.Type getCheckpointStrategy() {
+		return checkpointStrategy;
+	}
+
+	public TweetProcessorConfiguration withCheckpointStrategy(
+			CheckpointStrategy.Type checkpointStrategy) {
+		this.checkpointStrategy = checkpointStrategy;
+		return this;
+	}
+
+	/**
+	 * @return the checkpoint interval of the time strategy, and the longest
+	 *         interval of the adaptive one
+	 */
+	public long getCheckpointIntervalMillis() {
+		return checkpointIntervalMillis;
+	}
+
+	public TweetProcessorConfiguration withCheckpointIntervalMillis(
+			long checkpointIntervalMillis) {
+		this.checkpointIntervalMillis = checkpointIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * @return the shortest interval of the adaptive checkpoint strategy
+	 */
+	public long getCheckpointMinIntervalMillis() {
+		return checkpointMinIntervalMillis;
+	}
+
+	public TweetProcessorConfiguration withCheckpointMinIntervalMillis(
+			long checkpointMinIntervalMillis) {
+		this.checkpointMinIntervalMillis = checkpointMinIntervalMillis;
+		return this;
+	}
+
+	public long getCheckpointRecords() {
+		return checkpointRecords;
+	}
+
+	public TweetProcessorConfiguration withCheckpointRecords(
+			long checkpointRecords) {
+		this.checkpointRecords = checkpointRecords;
+		return this;
+	}
+
+	public long getCheckpointBytes() {
+		return checkpointBytes;
+	}
+
+	public TweetProcessorConfiguration withCheckpointBytes(long checkpointBytes) {
+		this.checkpointBytes = checkpointBytes;
+		return this;
+	}
+
+	/**
+	 * @return the most records the KCL reads from a shard at once
+	 */
+	public int getFetchMaxRecords() {
+		return fetchMaxRecords;
+	}
+
+	public TweetProcessorConfiguration withFetchMaxRecords(int fetchMaxRecords) {
+		this.fetchMaxRecords = fetchMaxRecords;
+		return this;
+	}
+
+	/**
+	 * @return the KCL's pause between reads of a shard, and the first pause
+	 *         after an empty read
+	 */
+	public long getFetchIdleTimeBetweenReadsMillis() {
+		return fetchIdleTimeBetweenReadsMillis;
+	}
+
+	public TweetProcessorConfiguration withFetchIdleTimeBetweenReadsMillis(
+			long fetchIdleTimeBetweenReadsMillis) {
+		this.fetchIdleTimeBetweenReadsMillis = fetchIdleTimeBetweenReadsMillis;
+		return this;
+	}
+
+	/**
+	 * @return the longest pause between reads of a quiet shard
+	 */
+	public long getFetchMaxIdleMillis() {
+		return fetchMaxIdleMillis;
+	}
+
+	public TweetProcessorConfiguration withFetchMaxIdleMillis(
+			long fetchMaxIdleMillis) {
+		this.fetchMaxIdleMillis = fetchMaxIdleMillis;
+		return this;
+	}
+
+	/**
+	 * @return how old the newest tweet read may be for a shard to count as
+	 *         caught up
+	 */
+	public long getFetchBehindThresholdMillis() {
+		return fetchBehindThresholdMillis;
+	}
+
+	public TweetProcessorConfiguration withFetchBehindThresholdMillis(
+			long fetchBehindThresholdMillis) {
+		this.fetchBehindThresholdMillis = fetchBehindThresholdMillis;
+		return this;
+	}
+
+	/**
+	 * @return whether processRecords is called for empty reads, which lets
+	 *         the processors pace the reads of quiet shards
+	 */
+	public boolean isFetchDeliverEmptyBatches() {
+		return fetchDeliverEmptyBatches;
+	}
+
+	public TweetProcessorConfiguration withFetchDeliverEmptyBatches(
+			boolean fetchDeliverEmptyBatches) {
+		this.fetchDeliverEmptyBatches = fetchDeliverEmptyBatches;
+		return this;
+	}
+
+	public TweetStores.Backend getStoreBackend() {
+		return storeBackend;
+	}
+
+	public TweetProcessorConfiguration withStoreBackend(
+			TweetStores.Backend storeBackend) {
+		this.storeBackend = storeBackend;
+		return this;
+	}
+
+	/**
+	 * @return the directory of the log files of the local store
+	 */
+	public String getStoreDirectory() {
+		return storeDirectory;
+	}
+
+	public TweetProcessorConfiguration withStoreDirectory(String storeDirectory) {
+		this.storeDirectory = storeDirectory;
+		return this;
+	}
+
+	/**
+	 * @return the size at which the local store starts a new log file
+	 */
+	public long getStoreSegmentBytes() {
+		return storeSegmentBytes;
+	}
+
+	public TweetProcessorConfiguration withStoreSegmentBytes(
+			long storeSegmentBytes) {
+		this.storeSegmentBytes = storeSegmentBytes;
+		return this;
+	}
+
+	/**
+	 * @return whether the local store forces each write to disk
+	 */
+	public boolean isStoreSync() {
+		return storeSync;
+	}
+
+	public TweetProcessorConfiguration withStoreSync(boolean storeSync) {
+		this.storeSync = storeSync;
+		return this;
+	}
+
+	public String getStoreDynamoRegion() {
+		return storeDynamoRegion;
+	}
+
+	public TweetProcessorConfiguration withStoreDynamoRegion(
+			String storeDynamoRegion) {
+		this.storeDynamoRegion = storeDynamoRegion;
+		return this;
+	}
+
+	public long getStoreDynamoReadCapacity() {
+		return storeDynamoReadCapacity;
+	}
+
+	public TweetProcessorConfiguration withStoreDynamoReadCapacity(
+			long storeDynamoReadCapacity) {
+		this.storeDynamoReadCapacity = storeDynamoReadCapacity;
+		return this;
+	}
+
+	public long getStoreDynamoWriteCapacity() {
+		return storeDynamoWriteCapacity;
+	}
+
+	public TweetProcessorConfiguration withStoreDynamoWriteCapacity(
+			long storeDynamoWriteCapacity) {
+		this.storeDynamoWriteCapacity = storeDynamoWriteCapacity;
+		return this;
+	}
+
+	/**
+	 * @return the share of the table's write capacity the writes are paced
+	 *         to
+	 */
+	public double getStoreDynamoWriteUtilization() {
+		return storeDynamoWriteUtilization;
+	}
+
+	public TweetProcessorConfiguration withStoreDynamoWriteUtilization(
+			double storeDynamoWriteUtilization) {
+		this.storeDynamoWriteUtilization = storeDynamoWriteUtilization;
+		return this;
+	}
+
+	public long getStoreDynamoIndexReadCapacity() {
+		return storeDynamoIndexReadCapacity;
+	}
+
+	public TweetProcessorConfiguration withStoreDynamoIndexReadCapacity(
+			long storeDynamoIndexReadCapacity) {
+		this.storeDynamoIndexReadCapacity = storeDynamoIndexReadCapacity;
+		return this;
+	}
+
+	/**
+	 * @return the most write capacity the tuner gives the table or an index
+	 */
+	public long getStoreDynamoMaxWriteCapacity() {
+		return storeDynamoMaxWriteCapacity;
+	}
+
+	public TweetProcessorConfiguration withStoreDynamoMaxWriteCapacity(
+			long storeDynamoMaxWriteCapacity) {
+		this.storeDynamoMaxWriteCapacity = storeDynamoMaxWriteCapacity;
+		return this;
+	}
+
+	/**
+	 * @return the milliseconds between two runs of the capacity tuner, 0 for
+	 *         no tuning; only one JVM writing to the table may tune it
+	 */
+	public long getStoreDynamoTuneIntervalMillis() {
+		return storeDynamoTuneIntervalMillis;
+	}
+
+	public TweetProcessorConfiguration withStoreDynamoTuneIntervalMillis(
+			long storeDynamoTuneIntervalMillis) {
+		this.storeDynamoTuneIntervalMillis = storeDynamoTuneIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * @return the layout of the tweets written to the table
+	 */
+	public PersistentStore.ItemLayout getStoreDynamoItemLayout() {
+		return storeDynamoItemLayout;
+	}
+
+	public TweetProcessorConfiguration withStoreDynamoItemLayout(
+			PersistentStore.ItemLayout storeDynamoItemLayout) {
+		this.storeDynamoItemLayout = storeDynamoItemLayout;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "TweetProcessorConfiguration [deadLetterDirectory="
+				+ deadLetterDirectory + ", retryBaseMillis=" + retryBaseMillis
+				+ ", retryMaxMillis=" + retryMaxMillis
+				+ ", breakerFailureThreshold=" + breakerFailureThreshold
+				+ ", breakerOpenMillis="
+				+ breakerOpenMillis + ", breakerMaxOpenMillis="
+				+ breakerMaxOpenMillis + ", recentTweetsMinutes="
+				+ recentTweetsMinutes + ", recentTweetsPerMinute="
+				+ recentTweetsPerMinute + ", dedupeExpectedIds="
+				+ dedupeExpectedIds + ", dedupeRecentIds=" + dedupeRecentIds
+				+ ", checkpointStrategy=" + checkpointStrategy
+				+ ", checkpointIntervalMillis=" + checkpointIntervalMillis
+				+ ", checkpointMinIntervalMillis="
+				+ checkpointMinIntervalMillis + ", checkpointRecords="
+				+ checkpointRecords + ", checkpointBytes=" + checkpointBytes
+				+ ", fetchMaxRecords=" + fetchMaxRecords
+				+ ", fetchIdleTimeBetweenReadsMillis="
+				+ fetchIdleTimeBetweenReadsMillis + ", fetchMaxIdleMillis="
+				+ fetchMaxIdleMillis + ", fetchBehindThresholdMillis="
+				+ fetchBehindThresholdMillis + ", fetchDeliverEmptyBatches="
+				+ fetchDeliverEmptyBatches + ", storeBackend=" + storeBackend
+				+ ", storeDirectory=" + storeDirectory + ", storeSegmentBytes="
+				+ storeSegmentBytes + ", storeSync=" + storeSync
+				+ ", storeDynamoRegion=" + storeDynamoRegion
+				+ ", storeDynamoReadCapacity=" + storeDynamoReadCapacity
+				+ ", storeDynamoWriteCapacity=" + storeDynamoWriteCapacity
+				+ ", storeDynamoWriteUtilization="
+				+ storeDynamoWriteUtilization
+				+ ", storeDynamoIndexReadCapacity="
+				+ storeDynamoIndexReadCapacity
+				+ ", storeDynamoMaxWriteCapacity="
+				+ storeDynamoMaxWriteCapacity
+				+ ", storeDynamoTuneIntervalMillis="
+				+ storeDynamoTuneIntervalMillis
+				+ ", storeDynamoItemLayout=" + storeDynamoItemLayout + "]";
+	}
+}
@@ -0,0 +1,959 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import twitter4j.Status;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+
+/**
+ * <p>
+ * Publishes tweets to a Kinesis stream in the background. Tweets are handed
+ * over with {@link #offer(Status)}, which never blocks the caller (typically
+ * the twitter4j dispatch thread), and are buffered in a bounded queue.
+ * </p>
+ * <p>
+ * When the queue is full, or a record can't be sent after the retries, the
+ * tweets are appended to a {@link SpillJournal} on disk instead, so an
+ * outage or a long spell of throttling costs disk space rather than heap. A
+ * drainer thread sends the spilled tweets in the order they were spilled
+ * once Kinesis accepts records again, and the journal reclaims its segments
+ * as they are sent. Tweets are only dropped, and counted, if there is no
+ * journal or it is full.
+ * </p>
+ * <p>
+ * A batcher thread drains the queue into batches that are sent once they
+ * reach the configured number of records or bytes, or once the oldest tweet
+ * in the batch has waited for the linger time. Several batches can be in
+ * flight at once. Records of a batch that fail to send are retried on their
+ * own, with jittered backoff, without resending the records that succeeded.
+ * </p>
+ * <p>
+ * Unless aggregation is disabled, the tweets of a batch are packed into as
+ * few Kinesis records as possible using {@link AggregatedRecord}, so a
+ * batch of hundreds of tweets is usually sent as a handful of records.
+ * </p>
+ * <p>
+ * Unless the shard map refresh interval is 0, the producer describes the
+ * stream and routes tweets with a {@link ShardPartitioner}: each tweet goes
+ * to the shard of its screen name, except that the tweets of screen names
+ * sending far more than their share are spread over all shards. Tweets are
+ * aggregated per shard and each record is sent with the explicit hash key of
+ * its shard.
+ * </p>
+ * <p>
+ * With the shard map, a {@link ShardRateGovernor} also holds the records
+ * sent to each shard under its write limits, adapting to the throttling
+ * Kinesis still reports. A record its shard can't take yet is waited for,
+ * spilled or dropped, according to the throttle policy. Spilled tweets are
+ * always waited for when they are sent again.
+ * </p>
+ * <p>
+ * The time from {@link #offer(Status)} to Kinesis acknowledging the record
+ * holding the tweet is recorded in the {@link Metrics#PRODUCER_ACK}
+ * histogram of the shard the record landed on.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class TweetProducer {
+
+	private static final Log LOG = LogFactory.getLog(TweetProducer.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long STATISTICS_INTERVAL_MILLIS = TimeUnit.MINUTES
+			.toMillis(1);
+	// how often the drainer looks for spilled tweets when there are none
+	private static final long DRAIN_IDLE_MILLIS = 100L;
+	private static final long[] NO_TIMES = new long[0];
+
+	private final AmazonKinesis kinesis;
+	private final String streamName;
+	private final TweetProducerConfiguration configuration;
+
+	private final BlockingQueue<QueuedStatus> queue;
+	private final Semaphore inFlight;
+	private final ExecutorService senders;
+	private final Thread batcher;
+	private volatile boolean running;
+	private final SpillJournal journal;
+	private final ShardPartitioner partitioner;
+	private final ShardRateGovernor governor;
+	private long nextShardMapRefreshTime;
+	private final Thread drainer;
+	private volatile boolean draining;
+
+	private final AtomicLong enqueuedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong retriedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong spilledCount = new AtomicLong();
+	private final AtomicLong drainedCount = new AtomicLong();
+	private final AtomicLong throttledCount = new AtomicLong();
+	private final AtomicLong shedCount = new AtomicLong();
+
+	private final LatencyHistogram encodeLatency = Metrics
+			.histogram(Metrics.SERIALIZER_ENCODE);
+	private final Metrics.Counter sentCounter = Metrics
+			.counter(Metrics.PRODUCER_SENT);
+	private final Metrics.Counter failedCounter = Metrics
+			.counter(Metrics.PRODUCER_FAILED);
+	private final Metrics.Counter droppedCounter = Metrics
+			.counter(Metrics.PRODUCER_DROPPED);
+	private final Metrics.Counter spilledCounter = Metrics
+			.counter(Metrics.PRODUCER_SPILLED);
+	private final Metrics.Counter drainedCounter = Metrics
+			.counter(Metrics.PRODUCER_DRAINED);
+	private final Metrics.Counter saltedCounter = Metrics
+			.counter(Metrics.PRODUCER_SALTED);
+	private final Metrics.Counter throttledCounter = Metrics
+			.counter(Metrics.PRODUCER_THROTTLED);
+	private final Metrics.Counter shedCounter = Metrics
+			.counter(Metrics.PRODUCER_SHED);
+
+	public TweetProducer(AmazonKinesis kinesis, String streamName,
+			TweetProducerConfiguration configuration) {
+		this.kinesis = kinesis;
+		this.streamName = streamName;
+		this.configuration = configuration;
+		this.queue = new ArrayBlockingQueue<QueuedStatus>(
+				configuration.getQueueCapacity());
+		this.inFlight = new Semaphore(configuration.getMaxInFlight());
+		this.senders = Executors.newFixedThreadPool(configuration
+				.getMaxInFlight());
+		this.batcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runBatcher();
+			}
+		}, "tweetamo-producer-batcher");
+		this.journal = openJournal(configuration);
+		this.drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runDrainer();
+			}
+		}, "tweetamo-producer-drainer");
+		this.partitioner = configuration.getShardMapRefreshMillis() > 0 ? new ShardPartitioner(
+				configuration.getHotKeyCapacity(),
+				configuration.getHotKeyShare()) : null;
+		this.governor = partitioner != null
+				&& configuration.getShardRecordsPerSecond() > 0 ? new ShardRateGovernor(
+				configuration.getShardRecordsPerSecond(),
+				configuration.getShardBytesPerSecond()) : null;
+	}
+
+	/**
+	 * @return the spill journal of the configuration, or null if there is
+	 *         none or it can't be opened
+	 */
+	private static SpillJournal openJournal(
+			TweetProducerConfiguration configuration) {
+		String directory = configuration.getSpillDirectory();
+		if (directory == null || directory.isEmpty()) {
+			return null;
+		}
+		try {
+			return new SpillJournal(new File(directory),
+					configuration.getSpillSegmentBytes(),
+					configuration.getSpillMaxBytes());
+		} catch (IOException e) {
+			LOG.error("Failed to open spill journal " + directory
+					+ ", tweets that can't be sent will be dropped", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Starts the batcher thread.
+	 */
+	public void start() {
+		LOG.info("Starting producer for stream " + streamName + " with "
+				+ configuration);
+		running = true;
+		if (partitioner != null) {
+			refreshShardMap();
+		}
+		batcher.start();
+		if (journal != null) {
+			draining = true;
+			drainer.start();
+		}
+	}
+
+	/**
+	 * Queues a tweet for publishing, or spills it to the journal if the
+	 * queue is full. Never blocks.
+	 *
+	 * @param status
+	 *            the tweet
+	 * @return false if the producer is stopped, or its queue is full and the
+	 *         tweet could not be spilled, in which case the tweet is dropped
+	 */
+	public boolean offer(Status status) {
+		if (running && queue.offer(new QueuedStatus(status, System.nanoTime()))) {
+			enqueuedCount.incrementAndGet();
+			return true;
+		}
+		if (running && journal != null && spill(status)) {
+			enqueuedCount.incrementAndGet();
+			return true;
+		}
+
+		droppedCount.incrementAndGet();
+		droppedCounter.increment();
+		return false;
+	}
+
+	/**
+	 * Stops accepting tweets, sends everything still queued and waits for the
+	 * batches in flight to complete. Spilled tweets that have not been sent
+	 * yet stay in the journal and are sent after the next start.
+	 *
+	 * @param timeout
+	 *            maximum time to wait
+	 * @param unit
+	 *            unit of the timeout
+	 * @throws InterruptedException
+	 */
+	public void shutdown(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		running = false;
+		batcher.join(unit.toMillis(timeout));
+		senders.shutdown();
+		senders.awaitTermination(
+				Math.max(0, deadline - System.currentTimeMillis()),
+				TimeUnit.MILLISECONDS);
+		if (journal != null) {
+			draining = false;
+			drainer.interrupt();
+			drainer.join(Math.max(1, deadline - System.currentTimeMillis()));
+			try {
+				journal.close();
+			} catch (IOException e) {
+				LOG.error("Failed to close spill journal", e);
+			}
+		}
+		logStatistics();
+	}
+
+	public long getEnqueuedCount() {
+		return enqueuedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of tweets written to the spill journal
+	 */
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	/**
+	 * @return the number of spilled tweets sent since the producer started
+	 */
+	public long getDrainedCount() {
+		return drainedCount.get();
+	}
+
+	/**
+	 * @return the number of tweets in the spill journal waiting to be sent
+	 */
+	public long getSpillBacklog() {
+		return journal == null ? 0 : journal.getPendingTweets();
+	}
+
+	private void runBatcher() {
+		Batch batch = new Batch();
+		long nextStatisticsTime = System.currentTimeMillis()
+				+ STATISTICS_INTERVAL_MILLIS;
+
+		while (running || !queue.isEmpty()) {
+			try {
+				long wait = batch.isEmpty() ? configuration.getLingerMillis()
+						: batch.getRemainingLinger();
+				QueuedStatus queued = queue.poll(Math.max(0, wait),
+						TimeUnit.MILLISECONDS);
+
+				if (queued != null) {
+					PendingRecord record = toRecord(queued);
+					if (record != null) {
+						if (!batch.canAdd(record)) {
+							dispatch(batch);
+							batch = new Batch();
+						}
+						batch.add(record);
+					}
+				}
+
+				if (!batch.isEmpty()
+						&& (batch.isFull() || batch.getRemainingLinger() <= 0)) {
+					dispatch(batch);
+					batch = new Batch();
+				}
+			} catch (InterruptedException e) {
+				LOG.debug("Interrupted batcher", e);
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+			if (partitioner != null
+					&& System.currentTimeMillis() > nextShardMapRefreshTime) {
+				refreshShardMap();
+			}
+			if (System.currentTimeMillis() > nextStatisticsTime) {
+				logStatistics();
+				nextStatisticsTime = System.currentTimeMillis()
+						+ STATISTICS_INTERVAL_MILLIS;
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			try {
+				dispatch(batch);
+			} catch (InterruptedException e) {
+				LOG.error("Interrupted while sending the last batch of "
+						+ batch.records.size() + " records", e);
+			}
+		}
+	}
+
+	private PendingRecord toRecord(QueuedStatus queued) {
+		Status status = queued.status;
+		try {
+			long start = System.nanoTime();
+			ByteBuffer data = TweetSerializer.toBytes(status);
+			encodeLatency.recordSince(start);
+			String partitionKey = status.getUser().getScreenName();
+			if (partitioner == null) {
+				return new PendingRecord(partitionKey, data,
+						new long[] { queued.enqueuedNanos });
+			}
+			ShardPartitioner.Route route = partitioner.route(partitionKey);
+			if (route.salted) {
+				saltedCounter.increment();
+			}
+			return new PendingRecord(route.partitionKey, route.explicitHashKey,
+					data, new long[] { queued.enqueuedNanos });
+		} catch (Exception e) {
+			LOG.error("Failed to serialize status " + status.getId(), e);
+			failedCount.incrementAndGet();
+			failedCounter.increment();
+			return null;
+		}
+	}
+
+	private void dispatch(final Batch batch) throws InterruptedException {
+		inFlight.acquire();
+		try {
+			senders.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						List<PendingRecord> records = batch.records;
+						if (configuration.isAggregationEnabled()) {
+							records = aggregate(records);
+						}
+						send(records);
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Describes the stream so tweets follow the current shards. If that
+	 * fails the previous map, if any, is kept until the next attempt.
+	 */
+	private void refreshShardMap() {
+		nextShardMapRefreshTime = System.currentTimeMillis()
+				+ configuration.getShardMapRefreshMillis();
+		try {
+			ShardMap shardMap = ShardMap.describe(kinesis, streamName);
+			ShardMap previous = partitioner.getShardMap();
+			if (previous == null || previous.size() != shardMap.size()) {
+				LOG.info("Stream " + streamName + " has " + shardMap.size()
+						+ " open shards");
+			}
+			partitioner.setShardMap(shardMap);
+			if (governor != null) {
+				governor.setShardMap(shardMap);
+			}
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to describe stream " + streamName
+					+ (partitioner.getShardMap() == null ? ", routing tweets by partition key"
+							: ", keeping the previous shard map"), e);
+		}
+	}
+
+	/**
+	 * Packs the tweets of a batch into aggregated records. Tweets bound for
+	 * different shards are packed separately, so each record can be routed
+	 * to its shard.
+	 */
+	private List<PendingRecord> aggregate(List<PendingRecord> records) {
+		Map<String, List<PendingRecord>> byShard = new LinkedHashMap<String, List<PendingRecord>>();
+		for (PendingRecord record : records) {
+			List<PendingRecord> shardRecords = byShard
+					.get(record.explicitHashKey);
+			if (shardRecords == null) {
+				shardRecords = new ArrayList<PendingRecord>();
+				byShard.put(record.explicitHashKey, shardRecords);
+			}
+			shardRecords.add(record);
+		}
+		List<PendingRecord> aggregated = new ArrayList<PendingRecord>();
+		for (Map.Entry<String, List<PendingRecord>> shard : byShard
+				.entrySet()) {
+			aggregate(shard.getValue(), shard.getKey(), aggregated);
+		}
+		return aggregated;
+	}
+
+	private void aggregate(List<PendingRecord> records,
+			String explicitHashKey, List<PendingRecord> aggregated) {
+		AggregatedRecord.Builder builder = new AggregatedRecord.Builder(
+				configuration.getMaxAggregatedRecordBytes());
+		List<PendingRecord> packed = new ArrayList<PendingRecord>();
+		for (PendingRecord record : records) {
+			if (!builder.add(record.partitionKey, record.data)) {
+				aggregated.add(new PendingRecord(builder.getPartitionKey(),
+						explicitHashKey, builder.build(),
+						enqueuedNanos(packed)));
+				builder = new AggregatedRecord.Builder(
+						configuration.getMaxAggregatedRecordBytes());
+				builder.add(record.partitionKey, record.data);
+				packed.clear();
+			}
+			packed.add(record);
+		}
+		if (!builder.isEmpty()) {
+			aggregated.add(new PendingRecord(builder.getPartitionKey(),
+					explicitHashKey, builder.build(), enqueuedNanos(packed)));
+		}
+	}
+
+	private static long[] enqueuedNanos(List<PendingRecord> records) {
+		long[] enqueuedNanos = new long[countTweets(records)];
+		int i = 0;
+		for (PendingRecord record : records) {
+			for (long nanos : record.enqueuedNanos) {
+				enqueuedNanos[i++] = nanos;
+			}
+		}
+		return enqueuedNanos;
+	}
+
+	/**
+	 * Sends the records of a batch, retrying only the records that failed.
+	 */
+	private void send(List<PendingRecord> records) {
+		List<PendingRecord> pending = records;
+		Backoff backoff = new Backoff(configuration.getRetryBackoffMillis(),
+				configuration.getRetryBackoffMillis() << 10);
+
+		for (int attempt = 0; attempt <= configuration.getMaxRetries(); attempt++) {
+			if (attempt > 0) {
+				retriedCount.addAndGet(countTweets(pending));
+				try {
+					backoff.sleep();
+				} catch (InterruptedException e) {
+					LOG.debug("Interrupted sleep", e);
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			List<PendingRecord> failed = new ArrayList<PendingRecord>();
+			for (PendingRecord record : pending) {
+				ShardRateGovernor.Bucket bucket = governor == null ? null
+						: governor.bucketOf(record.partitionKey,
+								record.explicitHashKey);
+				try {
+					if (bucket != null
+							&& !admit(bucket, record,
+									configuration.getThrottlePolicy())) {
+						shed(record);
+						continue;
+					}
+				} catch (InterruptedException e) {
+					LOG.debug("Interrupted while waiting for shard capacity", e);
+					Thread.currentThread().interrupt();
+					failed.add(record);
+					continue;
+				}
+				try {
+					putRecord(record);
+					if (bucket != null) {
+						bucket.succeeded();
+					}
+					sentCount.addAndGet(record.tweetCount);
+					sentCounter.add(record.tweetCount);
+				} catch (AmazonClientException e) {
+					LOG.debug("Failed to putrecord, partition key : "
+							+ record.partitionKey, e);
+					throttled(bucket, e);
+					failed.add(record);
+				}
+			}
+
+			if (failed.isEmpty()) {
+				return;
+			}
+			pending = failed;
+		}
+
+		List<PendingRecord> dropped = new ArrayList<PendingRecord>();
+		for (PendingRecord record : pending) {
+			if (!spill(record)) {
+				dropped.add(record);
+			}
+		}
+		if (dropped.size() < pending.size()) {
+			LOG.warn("Failed to putrecord for " + pending.size()
+					+ " records after " + configuration.getMaxRetries()
+					+ " retries. Spilled "
+					+ (countTweets(pending) - countTweets(dropped))
+					+ " tweets to the journal.");
+		}
+		if (dropped.isEmpty()) {
+			return;
+		}
+		int tweetCount = countTweets(dropped);
+		failedCount.addAndGet(tweetCount);
+		failedCounter.add(tweetCount);
+		LOG.error("Failed to putrecord for " + dropped.size() + " records ("
+				+ tweetCount + " tweets) after "
+				+ configuration.getMaxRetries()
+				+ " retries. Dropping the records.");
+	}
+
+	/**
+	 * Takes room for a record from its shard's bucket, waiting for it if the
+	 * policy is to block.
+	 *
+	 * @return false if the shard can't take the record yet and the policy
+	 *         is not to wait
+	 */
+	private boolean admit(ShardRateGovernor.Bucket bucket,
+			PendingRecord record, ShardRateGovernor.Policy policy)
+			throws InterruptedException {
+		while (true) {
+			long wait = bucket.reserve(record.size);
+			if (wait == 0) {
+				return true;
+			}
+			if (policy != ShardRateGovernor.Policy.BLOCK) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Spills or drops a record its shard couldn't take, as the policy says.
+	 */
+	private void shed(PendingRecord record) {
+		shedCount.addAndGet(record.tweetCount);
+		shedCounter.add(record.tweetCount);
+		if (configuration.getThrottlePolicy() == ShardRateGovernor.Policy.SPILL
+				&& spill(record)) {
+			return;
+		}
+		droppedCount.addAndGet(record.tweetCount);
+		droppedCounter.add(record.tweetCount);
+	}
+
+	/**
+	 * Counts a put Kinesis throttled despite the governor and slows its
+	 * shard down.
+	 */
+	private void throttled(ShardRateGovernor.Bucket bucket,
+			AmazonClientException e) {
+		if (!Failures.isThrottling(e)) {
+			return;
+		}
+		throttledCount.incrementAndGet();
+		throttledCounter.increment();
+		if (bucket != null) {
+			bucket.throttled();
+		}
+	}
+
+	private boolean spill(Status status) {
+		try {
+			long start = System.nanoTime();
+			ByteBuffer data = TweetSerializer.toBytes(status);
+			encodeLatency.recordSince(start);
+			String partitionKey = status.getUser().getScreenName();
+			if (partitioner == null) {
+				return spill(partitionKey, null, data, 1);
+			}
+			ShardPartitioner.Route route = partitioner.route(partitionKey);
+			if (route.salted) {
+				saltedCounter.increment();
+			}
+			return spill(route.partitionKey, route.explicitHashKey, data, 1);
+		} catch (Exception e) {
+			LOG.error("Failed to serialize status " + status.getId(), e);
+			return false;
+		}
+	}
+
+	private boolean spill(PendingRecord record) {
+		return spill(record.partitionKey, record.explicitHashKey, record.data,
+				record.tweetCount);
+	}
+
+	/**
+	 * Appends a record to the journal, with the keys it is routed by.
+	 *
+	 * @return false if there is no journal or the record could not be
+	 *         appended
+	 */
+	private boolean spill(String partitionKey, String explicitHashKey,
+			ByteBuffer data, int tweetCount) {
+		if (journal == null) {
+			return false;
+		}
+		try {
+			if (!journal.append(partitionKey, explicitHashKey, data,
+					tweetCount)) {
+				return false;
+			}
+		} catch (IOException e) {
+			LOG.error("Failed to spill " + tweetCount + " tweets", e);
+			return false;
+		}
+		spilledCount.addAndGet(tweetCount);
+		spilledCounter.add(tweetCount);
+		return true;
+	}
+
+	/**
+	 * Sends the spilled tweets, oldest first. While sending fails it tries
+	 * again after a backoff that grows to the longest backoff of the retries.
+	 */
+	private void runDrainer() {
+		Backoff backoff = new Backoff(configuration.getRetryBackoffMillis(),
+				configuration.getRetryBackoffMillis() << 10);
+		while (draining) {
+			try {
+				List<SpillJournal.Entry> entries = journal.peek(configuration
+						.getMaxBatchRecords());
+				if (entries.isEmpty()) {
+					Thread.sleep(DRAIN_IDLE_MILLIS);
+				} else if (drain(entries)) {
+					backoff.reset();
+				} else {
+					backoff.sleep();
+				}
+			} catch (InterruptedException e) {
+				LOG.debug("Interrupted drainer", e);
+				Thread.currentThread().interrupt();
+				break;
+			} catch (IOException e) {
+				LOG.error("Failed to read spill journal", e);
+				try {
+					backoff.sleep();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends records of the journal in order, acknowledging each as soon as
+	 * Kinesis has it. Tweets spilled one at a time are aggregated again with
+	 * the tweets next to them that were routed to the same shard.
+	 *
+	 * @return false if a record could not be sent
+	 */
+	private boolean drain(List<SpillJournal.Entry> entries) throws IOException,
+			InterruptedException {
+		int from = 0;
+		while (from < entries.size() && draining) {
+			SpillJournal.Entry first = entries.get(from);
+			int to = from + 1;
+			PendingRecord record;
+			if (configuration.isAggregationEnabled()
+					&& !AggregatedRecord.isAggregated(first.getData())) {
+				AggregatedRecord.Builder builder = new AggregatedRecord.Builder(
+						configuration.getMaxAggregatedRecordBytes());
+				builder.add(first.getPartitionKey(), first.getData());
+				while (to < entries.size()
+						&& !AggregatedRecord.isAggregated(entries.get(to)
+								.getData())
+						&& sameKey(first.getExplicitHashKey(), entries.get(to)
+								.getExplicitHashKey())
+						&& builder.add(entries.get(to).getPartitionKey(),
+								entries.get(to).getData())) {
+					to++;
+				}
+				record = new PendingRecord(builder.getPartitionKey(),
+						first.getExplicitHashKey(), builder.build(),
+						builder.size());
+			} else {
+				record = new PendingRecord(first.getPartitionKey(),
+						first.getExplicitHashKey(), first.getData(),
+						first.getTweetCount());
+			}
+
+			ShardRateGovernor.Bucket bucket = governor == null ? null
+					: governor.bucketOf(record.partitionKey,
+							record.explicitHashKey);
+			if (bucket != null) {
+				admit(bucket, record, ShardRateGovernor.Policy.BLOCK);
+			}
+			try {
+				putRecord(record);
+				if (bucket != null) {
+					bucket.succeeded();
+				}
+			} catch (AmazonClientException e) {
+				LOG.debug("Failed to putrecord spilled tweets, partition key : "
+						+ record.partitionKey, e);
+				throttled(bucket, e);
+				return false;
+			}
+			journal.ack(entries.get(to - 1));
+			sentCount.addAndGet(record.tweetCount);
+			sentCounter.add(record.tweetCount);
+			drainedCount.addAndGet(record.tweetCount);
+			drainedCounter.add(record.tweetCount);
+			from = to;
+		}
+		return true;
+	}
+
+	private static boolean sameKey(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static int countTweets(List<PendingRecord> records) {
+		int count = 0;
+		for (PendingRecord record : records) {
+			count += record.tweetCount;
+		}
+		return count;
+	}
+
+	private void putRecord(PendingRecord record) {
+		PutRecordRequest putRecordRequest = new PutRecordRequest();
+		putRecordRequest.setStreamName(streamName);
+		putRecordRequest.setData(record.data.duplicate());
+		putRecordRequest.setPartitionKey(record.partitionKey);
+		if (record.explicitHashKey != null) {
+			putRecordRequest.setExplicitHashKey(record.explicitHashKey);
+		}
+		PutRecordResult putRecordResult = kinesis.putRecord(putRecordRequest);
+		long acked = System.nanoTime();
+		LatencyHistogram ackLatency = Metrics.histogram(Metrics.PRODUCER_ACK,
+				putRecordResult.getShardId());
+		for (long enqueued : record.enqueuedNanos) {
+			ackLatency.record(acked - enqueued);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Successfully putrecord, partition key : "
+					+ record.partitionKey + ", ShardID : "
+					+ putRecordResult.getShardId());
+		}
+	}
+
+	private void logStatistics() {
+		LOG.info("Producer statistics: enqueued=" + enqueuedCount.get()
+				+ ", sent=" + sentCount.get() + ", retried="
+				+ retriedCount.get() + ", failed=" + failedCount.get()
+				+ ", dropped=" + droppedCount.get() + ", spilled="
+				+ spilledCount.get() + ", drained=" + drainedCount.get()
+				+ ", queued=" + queue.size() + ", spillBacklog="
+				+ getSpillBacklog() + ", hotKeys=" + getHotKeyCount()
+				+ ", throttled=" + throttledCount.get() + ", shed="
+				+ shedCount.get()
+				+ (governor == null ? "" : ", minShardRate="
+						+ governor.getMinShare()));
+	}
+
+	/**
+	 * @return the number of records Kinesis throttled
+	 */
+	public long getThrottledCount() {
+		return throttledCount.get();
+	}
+
+	/**
+	 * @return the number of tweets spilled or dropped because their shard
+	 *         couldn't take them yet
+	 */
+	public long getShedCount() {
+		return shedCount.get();
+	}
+
+	/**
+	 * @return the number of screen names whose tweets are currently spread
+	 *         over all shards
+	 */
+	public int getHotKeyCount() {
+		return partitioner == null ? 0 : partitioner.getHotKeyCount();
+	}
+
+	/**
+	 * A tweet in the queue, with the {@link System#nanoTime()} it was
+	 * offered at.
+	 */
+	private static class QueuedStatus {
+		private final Status status;
+		private final long enqueuedNanos;
+
+		QueuedStatus(Status status, long enqueuedNanos) {
+			this.status = status;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+	}
+
+	/**
+	 * A record waiting to be sent: a single serialized tweet or an
+	 * aggregated record holding several, with the times its tweets were
+	 * offered at.
+	 */
+	private static class PendingRecord {
+		private final String partitionKey;
+		private final String explicitHashKey;
+		private final ByteBuffer data;
+		private final int size;
+		private final int tweetCount;
+		private final long[] enqueuedNanos;
+
+		PendingRecord(String partitionKey, ByteBuffer data,
+				long[] enqueuedNanos) {
+			this(partitionKey, null, data, enqueuedNanos);
+		}
+
+		/**
+		 * A record routed to a shard by its explicit hash key rather than
+		 * by the hash of its partition key, or null to use the latter.
+		 */
+		PendingRecord(String partitionKey, String explicitHashKey,
+				ByteBuffer data, long[] enqueuedNanos) {
+			this(partitionKey, explicitHashKey, data, enqueuedNanos,
+					enqueuedNanos.length);
+		}
+
+		/**
+		 * A record read back from the spill journal, whose tweets were
+		 * offered too long ago for their acknowledgement to be timed.
+		 */
+		PendingRecord(String partitionKey, String explicitHashKey,
+				ByteBuffer data, int tweetCount) {
+			this(partitionKey, explicitHashKey, data, NO_TIMES, tweetCount);
+		}
+
+		private PendingRecord(String partitionKey, String explicitHashKey,
+				ByteBuffer data, long[] enqueuedNanos, int tweetCount) {
+			this.partitionKey = partitionKey;
+			this.explicitHashKey = explicitHashKey;
+			this.data = data;
+			this.size = data.remaining()
+					+ partitionKey.getBytes(UTF8).length;
+			this.tweetCount = tweetCount;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+	}
+
+	/**
+	 * Records accumulated by the batcher, with the time the first one
+	 * arrived so the batch can be flushed after the linger time.
+	 */
+	private class Batch {
+		private final List<PendingRecord> records = new ArrayList<PendingRecord>();
+		private long bytes;
+		private long createdTime;
+
+		boolean isEmpty() {
+			return records.isEmpty();
+		}
+
+		boolean isFull() {
+			return records.size() >= configuration.getMaxBatchRecords()
+					|| bytes >= configuration.getMaxBatchBytes();
+		}
+
+		boolean canAdd(PendingRecord record) {
+			return records.isEmpty()
+					|| (records.size() < configuration.getMaxBatchRecords() && bytes
+							+ record.size <= configuration.getMaxBatchBytes());
+		}
+
+		void add(PendingRecord record) {
+			if (records.isEmpty()) {
+				createdTime = System.currentTimeMillis();
+			}
+			records.add(record);
+			bytes += record.size;
+		}
+
+		long getRemainingLinger() {
+			return createdTime + configuration.getLingerMillis()
+					- System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.Properties;
+
+/**
+ * Settings for the {@link TweetProducer}. The defaults match the limits of a
+ * Kinesis batch (500 records, 5 MB) and can be overridden from the client
+ * properties file using the producer keys in {@link ConfigKeys}.
+ *
+ * @author dselman
+ *
+ */
+public class TweetProducerConfiguration {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	public static final int DEFAULT_MAX_BATCH_RECORDS = 500;
+	public static final int DEFAULT_MAX_BATCH_BYTES = 5 * 1024 * 1024;
+	public static final long DEFAULT_LINGER_MILLIS = 100L;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 100L;
+	public static final boolean DEFAULT_AGGREGATION_ENABLED = true;
+	public static final int DEFAULT_MAX_AGGREGATED_RECORD_BYTES = 1000 * 1024;
+	public static final String DEFAULT_SPILL_DIRECTORY = "spill";
+	public static final int DEFAULT_SPILL_SEGMENT_BYTES = 64 * 1024 * 1024;
+	public static final long DEFAULT_SPILL_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+	public static final long DEFAULT_SHARD_MAP_REFRESH_MILLIS = 60000L;
+	public static final double DEFAULT_HOT_KEY_SHARE = 0.5;
+	public static final int DEFAULT_HOT_KEY_CAPACITY = 100;
+	// the write limits of a Kinesis shard
+	public static final int DEFAULT_SHARD_RECORDS_PER_SECOND = 1000;
+	public static final int DEFAULT_SHARD_BYTES_PER_SECOND = 1024 * 1024;
+	public static final ShardRateGovernor.Policy DEFAULT_THROTTLE_POLICY = ShardRateGovernor.Policy.BLOCK;
+
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private int maxBatchRecords = DEFAULT_MAX_BATCH_RECORDS;
+	private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+	private long lingerMillis = DEFAULT_LINGER_MILLIS;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+	private boolean aggregationEnabled = DEFAULT_AGGREGATION_ENABLED;
+	private int maxAggregatedRecordBytes = DEFAULT_MAX_AGGREGATED_RECORD_BYTES;
+	private String spillDirectory = DEFAULT_SPILL_DIRECTORY;
+	private int spillSegmentBytes = DEFAULT_SPILL_SEGMENT_BYTES;
+	private long spillMaxBytes = DEFAULT_SPILL_MAX_BYTES;
+	private long shardMapRefreshMillis = DEFAULT_SHARD_MAP_REFRESH_MILLIS;
+	private double hotKeyShare = DEFAULT_HOT_KEY_SHARE;
+	private int hotKeyCapacity = DEFAULT_HOT_KEY_CAPACITY;
+	private int shardRecordsPerSecond = DEFAULT_SHARD_RECORDS_PER_SECOND;
+	private int shardBytesPerSecond = DEFAULT_SHARD_BYTES_PER_SECOND;
+	private ShardRateGovernor.Policy throttlePolicy = DEFAULT_THROTTLE_POLICY;
+
+	/**
+	 * Creates a configuration with the default settings, overridden by any
+	 * producer keys present in the properties.
+	 *
+	 * @param properties
+	 *            the client properties, may be null
+	 * @return the configuration
+	 */
+	public static TweetProducerConfiguration fromProperties(
+			Properties properties) {
+		TweetProducerConfiguration configuration = new TweetProducerConfiguration();
+		if (properties == null) {
+			return configuration;
+		}
+
+		configuration.queueCapacity = getInt(properties,
+				ConfigKeys.PRODUCER_QUEUE_CAPACITY_KEY,
+				configuration.queueCapacity);
+		configuration.maxBatchRecords = getInt(properties,
+				ConfigKeys.PRODUCER_MAX_BATCH_RECORDS_KEY,
+				configuration.maxBatchRecords);
+		configuration.maxBatchBytes = getInt(properties,
+				ConfigKeys.PRODUCER_MAX_BATCH_BYTES_KEY,
+				configuration.maxBatchBytes);
+		configuration.lingerMillis = getLong(properties,
+				ConfigKeys.PRODUCER_LINGER_MILLIS_KEY,
+				configuration.lingerMillis);
+		configuration.maxInFlight = getInt(properties,
+				ConfigKeys.PRODUCER_MAX_IN_FLIGHT_KEY,
+				configuration.maxInFlight);
+		configuration.maxRetries = getInt(properties,
+				ConfigKeys.PRODUCER_MAX_RETRIES_KEY, configuration.maxRetries);
+		configuration.retryBackoffMillis = getLong(properties,
+				ConfigKeys.PRODUCER_RETRY_BACKOFF_MILLIS_KEY,
+				configuration.retryBackoffMillis);
+		configuration.aggregationEnabled = getBoolean(properties,
+				ConfigKeys.PRODUCER_AGGREGATION_ENABLED_KEY,
+				configuration.aggregationEnabled);
+		configuration.maxAggregatedRecordBytes = getInt(properties,
+				ConfigKeys.PRODUCER_MAX_AGGREGATED_RECORD_BYTES_KEY,
+				configuration.maxAggregatedRecordBytes);
+		configuration.spillDirectory = properties.getProperty(
+				ConfigKeys.PRODUCER_SPILL_DIRECTORY_KEY,
+				configuration.spillDirectory).trim();
+		configuration.spillSegmentBytes = getInt(properties,
+				ConfigKeys.PRODUCER_SPILL_SEGMENT_BYTES_KEY,
+				configuration.spillSegmentBytes);
+		configuration.spillMaxBytes = getLong(properties,
+				ConfigKeys.PRODUCER_SPILL_MAX_BYTES_KEY,
+				configuration.spillMaxBytes);
+		configuration.shardMapRefreshMillis = getLong(properties,
+				ConfigKeys.PRODUCER_SHARD_MAP_REFRESH_MILLIS_KEY,
+				configuration.shardMapRefreshMillis);
+		configuration.hotKeyShare = getDouble(properties,
+				ConfigKeys.PRODUCER_HOT_KEY_SHARE_KEY,
+				configuration.hotKeyShare);
+		configuration.hotKeyCapacity = getInt(properties,
+				ConfigKeys.PRODUCER_HOT_KEY_CAPACITY_KEY,
+				configuration.hotKeyCapacity);
+		configuration.shardRecordsPerSecond = getInt(properties,
+				ConfigKeys.PRODUCER_SHARD_RECORDS_PER_SECOND_KEY,
+				configuration.shardRecordsPerSecond);
+		configuration.shardBytesPerSecond = getInt(properties,
+				ConfigKeys.PRODUCER_SHARD_BYTES_PER_SECOND_KEY,
+				configuration.shardBytesPerSecond);
+		String policy = properties
+				.getProperty(ConfigKeys.PRODUCER_THROTTLE_POLICY_KEY);
+		if (policy != null) {
+			configuration.throttlePolicy = ShardRateGovernor.Policy
+					.valueOf(policy.trim().toUpperCase());
+		}
+		return configuration;
+	}
+
+	static int getInt(Properties properties, String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	static long getLong(Properties properties, String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Long.parseLong(value.trim());
+	}
+
+	static double getDouble(Properties properties, String key,
+			double defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Double.parseDouble(value.trim());
+	}
+
+	static boolean getBoolean(Properties properties, String key,
+			boolean defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Boolean.parseBoolean(value
+				.trim());
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public TweetProducerConfiguration withQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	public int getMaxBatchRecords() {
+		return maxBatchRecords;
+	}
+
+	public TweetProducerConfiguration withMaxBatchRecords(int maxBatchRecords) {
+		this.maxBatchRecords = maxBatchRecords;
+		return this;
+	}
+
+	public int getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	public TweetProducerConfiguration withMaxBatchBytes(int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		return this;
+	}
+
+	public long getLingerMillis() {
+		return lingerMillis;
+	}
+
+	public TweetProducerConfiguration withLingerMillis(long lingerMillis) {
+		this.lingerMillis = lingerMillis;
+		return this;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public TweetProducerConfiguration withMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public TweetProducerConfiguration withMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	public long getRetryBackoffMillis() {
+		return retryBackoffMillis;
+	}
+
+	public TweetProducerConfiguration withRetryBackoffMillis(
+			long retryBackoffMillis) {
+		this.retryBackoffMillis = retryBackoffMillis;
+		return this;
+	}
+
+	public boolean isAggregationEnabled() {
+		return aggregationEnabled;
+	}
+
+	public TweetProducerConfiguration withAggregationEnabled(
+			boolean aggregationEnabled) {
+		this.aggregationEnabled = aggregationEnabled;
+		return this;
+	}
+
+	public int getMaxAggregatedRecordBytes() {
+		return maxAggregatedRecordBytes;
+	}
+
+	public TweetProducerConfiguration withMaxAggregatedRecordBytes(
+			int maxAggregatedRecordBytes) {
+		this.maxAggregatedRecordBytes = maxAggregatedRecordBytes;
+		return this;
+	}
+
+	/**
+	 * @return the directory of the spill journal, or null or empty for none
+	 */
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public TweetProducerConfiguration withSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+		return this;
+	}
+
+	public int getSpillSegmentBytes() {
+		return spillSegmentBytes;
+	}
+
+	public TweetProducerConfiguration withSpillSegmentBytes(
+			int spillSegmentBytes) {
+		this.spillSegmentBytes = spillSegmentBytes;
+		return this;
+	}
+
+	public long getSpillMaxBytes() {
+		return spillMaxBytes;
+	}
+
+	public TweetProducerConfiguration withSpillMaxBytes(long spillMaxBytes) {
+		this.spillMaxBytes = spillMaxBytes;
+		return this;
+	}
+
+	/**
+	 * @return how often the stream is described, 0 if tweets are routed by
+	 *         partition key only
+	 */
+	public long getShardMapRefreshMillis() {
+		return shardMapRefreshMillis;
+	}
+
+	public TweetProducerConfiguration withShardMapRefreshMillis(
+			long shardMapRefreshMillis) {
+		this.shardMapRefreshMillis = shardMapRefreshMillis;
+		return this;
+	}
+
+	public double getHotKeyShare() {
+		return hotKeyShare;
+	}
+
+	public TweetProducerConfiguration withHotKeyShare(double hotKeyShare) {
+		this.hotKeyShare = hotKeyShare;
+		return this;
+	}
+
+	public int getHotKeyCapacity() {
+		return hotKeyCapacity;
+	}
+
+	public TweetProducerConfiguration withHotKeyCapacity(int hotKeyCapacity) {
+		this.hotKeyCapacity = hotKeyCapacity;
+		return this;
+	}
+
+	/**
+	 * @return the records a second sent to each shard, 0 if the rate isn't
+	 *         governed
+	 */
+	public int getShardRecordsPerSecond() {
+		return shardRecordsPerSecond;
+	}
+
+	public TweetProducerConfiguration withShardRecordsPerSecond(
+			int shardRecordsPerSecond) {
+		this.shardRecordsPerSecond = shardRecordsPerSecond;
+		return this;
+	}
+
+	public int getShardBytesPerSecond() {
+		return shardBytesPerSecond;
+	}
+
+	public TweetProducerConfiguration withShardBytesPerSecond(
+			int shardBytesPerSecond) {
+		this.shardBytesPerSecond = shardBytesPerSecond;
+		return this;
+	}
+
+	public ShardRateGovernor.Policy getThrottlePolicy() {
+		return throttlePolicy;
+	}
+
+	public TweetProducerConfiguration withThrottlePolicy(
+			ShardRateGovernor.Policy throttlePolicy) {
+		this.throttlePolicy = throttlePolicy;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "TweetProducerConfiguration [queueCapacity=" + queueCapacity
+				+ ", maxBatchRecords=" + maxBatchRecords + ", maxBatchBytes="
+				+ maxBatchBytes + ", lingerMillis=" + lingerMillis
+				+ ", maxInFlight=" + maxInFlight + ", maxRetries=" + maxRetries
+				+ ", aggregationEnabled=" + aggregationEnabled
+				+ ", maxAggregatedRecordBytes=" + maxAggregatedRecordBytes
+				+ ", spillDirectory=" + spillDirectory + ", spillSegmentBytes="
+				+ spillSegmentBytes + ", spillMaxBytes=" + spillMaxBytes
+				+ ", shardMapRefreshMillis=" + shardMapRefreshMillis
+				+ ", hotKeyShare=" + hotKeyShare + ", hotKeyCapacity="
+				+ hotKeyCapacity + ", shardRecordsPerSecond="
+				+ shardRecordsPerSecond + ", shardBytesPerSecond="
+				+ shardBytesPerSecond + ", throttlePolicy=" + throttlePolicy
+				+ "]";
+	}
+}
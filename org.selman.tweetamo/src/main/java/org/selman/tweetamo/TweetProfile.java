@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The set of fields written when a tweet is serialized. The id, creation time
+ * and screen name are always included since they are the keys of the
+ * DynamoDB table and its index.
+ *
+ * @author dselman
+ *
+ */
+public final class TweetProfile {
+
+	private static final Set<TweetField> REQUIRED = EnumSet.of(TweetField.ID,
+			TweetField.CREATED_AT, TweetField.SCREEN_NAME);
+
+	/**
+	 * Every field of the compact format.
+	 */
+	public static final TweetProfile FULL = new TweetProfile("FULL",
+			EnumSet.allOf(TweetField.class));
+
+	/**
+	 * Only the fields stored by {@link PersistentStore}.
+	 */
+	public static final TweetProfile STORE = new TweetProfile("STORE",
+			EnumSet.of(TweetField.ID, TweetField.CREATED_AT, TweetField.GEO,
+					TweetField.SCREEN_NAME, TweetField.TEXT));
+
+	private final String name;
+	private final int mask;
+
+	private TweetProfile(String name, Set<TweetField> fields) {
+		this.name = name;
+		int m = 0;
+		for (TweetField field : fields) {
+			m |= field.getBit();
+		}
+		for (TweetField field : REQUIRED) {
+			m |= field.getBit();
+		}
+		this.mask = m;
+	}
+
+	/**
+	 * Parses a profile from configuration: either FULL, STORE or a comma
+	 * separated list of {@link TweetField} names.
+	 *
+	 * @param spec
+	 *            the profile
+	 * @return the profile
+	 * @throws IllegalArgumentException
+	 *             if a field name is unknown
+	 */
+	public static TweetProfile valueOf(String spec) {
+		String trimmed = spec.trim();
+		if (FULL.name.equalsIgnoreCase(trimmed)) {
+			return FULL;
+		}
+		if (STORE.name.equalsIgnoreCase(trimmed)) {
+			return STORE;
+		}
+
+		Set<TweetField> fields = EnumSet.noneOf(TweetField.class);
+		for (String field : trimmed.split(",")) {
+			fields.add(TweetField.valueOf(field.trim().toUpperCase()));
+		}
+		return new TweetProfile(trimmed, fields);
+	}
+
+	/**
+	 * @return the field mask of the profile
+	 */
+	public int getMask() {
+		return mask;
+	}
+
+	public boolean includes(TweetField field) {
+		return (mask & field.getBit()) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A bounded read-through cache of the tweets of a screen name created since
+ * a time. Entries are keyed on the screen name and the start of the time
+ * window, rounded down to a granularity so that callers asking for "the last
+ * N minutes" over and over share an entry. The cached tweets are filtered
+ * down to the window each caller asked for.
+ * </p>
+ * <p>
+ * Entries expire after a time to live and the least recently used entries are
+ * evicted when the cache is full. Concurrent misses on the same key wait for
+ * a single load instead of each querying DynamoDB. Tweets written through the
+ * store are added to the entries of their screen name, so the cache doesn't
+ * hide them until it expires; tweets written by other processes only appear
+ * once their entry expires.
+ * </p>
+ * <p>
+ * Besides the counts of each cache, the hits, the misses, each of which
+ * loads its entry, and the loads that fail are counted in the
+ * {@link Metrics} of the process.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class TweetQueryCache {
+
+	/**
+	 * Loads the tweets of a screen name created since a time, oldest first.
+	 */
+	public interface Loader {
+		List<Tweet> load(String screenName, long since) throws Exception;
+	}
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final long windowGranularityMillis;
+
+	private final Object lock = new Object();
+	private final LinkedHashMap<Key, CachedQuery> entries;
+	private final Map<String, Set<Key>> keysByScreenName = new HashMap<String, Set<Key>>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong expirationCount = new AtomicLong();
+	private final AtomicLong updateCount = new AtomicLong();
+
+	private final Metrics.Counter hits = Metrics
+			.counter(Metrics.QUERY_CACHE_HITS);
+	private final Metrics.Counter misses = Metrics
+			.counter(Metrics.QUERY_CACHE_MISSES);
+	private final Metrics.Counter loadFailures = Metrics
+			.counter(Metrics.QUERY_CACHE_LOAD_FAILURES);
+
+	/**
+	 * @param maxEntries
+	 *            the most entries kept
+	 * @param ttlMillis
+	 *            how long an entry is kept after it was loaded
+	 * @param windowGranularityMillis
+	 *            window starts are rounded down to a multiple of this
+	 */
+	public TweetQueryCache(final int maxEntries, long ttlMillis,
+			long windowGranularityMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.windowGranularityMillis = windowGranularityMillis;
+		this.entries = new LinkedHashMap<Key, CachedQuery>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, CachedQuery> eldest) {
+				if (size() > TweetQueryCache.this.maxEntries) {
+					unindex(eldest.getKey());
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the tweets of the screen name created at or after the time,
+	 *         oldest first, from the cache or from the loader
+	 */
+	public List<Tweet> get(final String screenName, long since,
+			final Loader loader) throws Exception {
+		final Key key = new Key(screenName, since - since
+				% windowGranularityMillis);
+		CachedQuery entry;
+		boolean load = false;
+		synchronized (lock) {
+			entry = entries.get(key);
+			if (entry != null && entry.isExpired()) {
+				remove(key);
+				expirationCount.incrementAndGet();
+				entry = null;
+			}
+			if (entry == null) {
+				entry = new CachedQuery(new FutureTask<List<Tweet>>(
+						new Callable<List<Tweet>>() {
+							@Override
+							public List<Tweet> call() throws Exception {
+								return copy(loader.load(screenName,
+										key.windowStart));
+							}
+						}));
+				entries.put(key, entry);
+				index(key);
+				load = true;
+				missCount.incrementAndGet();
+				misses.increment();
+			} else {
+				hitCount.incrementAndGet();
+				hits.increment();
+			}
+		}
+
+		if (load) {
+			entry.load.run();
+		}
+		List<Tweet> tweets;
+		try {
+			tweets = entry.getTweets();
+		} catch (ExecutionException e) {
+			synchronized (lock) {
+				if (entries.get(key) == entry) {
+					remove(key);
+				}
+			}
+			if (load) {
+				loadFailures.increment();
+			}
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+		return since(tweets, since);
+	}
+
+	/**
+	 * Adds a tweet that has just been stored to the cached entries of its
+	 * screen name. Entries still loading are dropped instead, since their
+	 * query may or may not see the tweet.
+	 */
+	public void onWrite(Tweet tweet) {
+		String screenName = tweet.getScreenName();
+		Tweet copy = null;
+		synchronized (lock) {
+			Set<Key> keys = keysByScreenName.get(screenName);
+			if (keys == null) {
+				return;
+			}
+			for (Key key : new ArrayList<Key>(keys)) {
+				CachedQuery entry = entries.get(key);
+				if (entry == null || tweet.getCreatedAt() < key.windowStart) {
+					continue;
+				}
+				if (!entry.isLoaded()) {
+					remove(key);
+					continue;
+				}
+				if (copy == null) {
+					copy = CompactTweet.copyOf(tweet);
+				}
+				entry.add(copy);
+				updateCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached entries of a screen name.
+	 */
+	public void invalidate(String screenName) {
+		synchronized (lock) {
+			Set<Key> keys = keysByScreenName.get(screenName);
+			if (keys != null) {
+				for (Key key : new ArrayList<Key>(keys)) {
+					remove(key);
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (lock) {
+			entries.clear();
+			keysByScreenName.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (lock) {
+			return entries.size();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public long getExpirationCount() {
+		return expirationCount.get();
+	}
+
+	/**
+	 * @return the number of times a write was added to a cached entry
+	 */
+	public long getUpdateCount() {
+		return updateCount.get();
+	}
+
+	private void remove(Key key) {
+		entries.remove(key);
+		unindex(key);
+	}
+
+	private void index(Key key) {
+		Set<Key> keys = keysByScreenName.get(key.screenName);
+		if (keys == null) {
+			keys = new HashSet<Key>();
+			keysByScreenName.put(key.screenName, keys);
+		}
+		keys.add(key);
+	}
+
+	private void unindex(Key key) {
+		Set<Key> keys = keysByScreenName.get(key.screenName);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				keysByScreenName.remove(key.screenName);
+			}
+		}
+	}
+
+	/**
+	 * Copies the loaded tweets so the cache doesn't hold on to buffers they
+	 * may be views of.
+	 */
+	private static List<Tweet> copy(List<Tweet> tweets) {
+		List<Tweet> copies = new ArrayList<Tweet>(tweets.size());
+		for (Tweet tweet : tweets) {
+			copies.add(tweet instanceof CompactTweet ? tweet : CompactTweet
+					.copyOf(tweet));
+		}
+		return Collections.unmodifiableList(copies);
+	}
+
+	private static List<Tweet> since(List<Tweet> tweets, long since) {
+		int first = 0;
+		while (first < tweets.size()
+				&& tweets.get(first).getCreatedAt() < since) {
+			first++;
+		}
+		return first == 0 ? tweets : tweets.subList(first, tweets.size());
+	}
+
+	@Override
+	public String toString() {
+		return "TweetQueryCache [size=" + size() + ", hits=" + hitCount.get()
+				+ ", misses=" + missCount.get() + ", evictions="
+				+ evictionCount.get() + ", expirations="
+				+ expirationCount.get() + ", updates=" + updateCount.get()
+				+ "]";
+	}
+
+	private static final class Key {
+		private final String screenName;
+		private final long windowStart;
+
+		Key(String screenName, long windowStart) {
+			this.screenName = screenName;
+			this.windowStart = windowStart;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * screenName.hashCode()
+					+ (int) (windowStart ^ (windowStart >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return windowStart == other.windowStart
+					&& screenName.equals(other.screenName);
+		}
+	}
+
+	private final class CachedQuery {
+		private final FutureTask<List<Tweet>> load;
+		private final long expiresAt = System.currentTimeMillis() + ttlMillis;
+		// the loaded tweets plus those written since, once loaded
+		private volatile List<Tweet> tweets;
+
+		CachedQuery(FutureTask<List<Tweet>> load) {
+			this.load = load;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+
+		boolean isLoaded() {
+			if (!load.isDone()) {
+				return false;
+			}
+			try {
+				getTweets();
+				return true;
+			} catch (Exception e) {
+				return false;
+			}
+		}
+
+		List<Tweet> getTweets() throws InterruptedException,
+				ExecutionException {
+			List<Tweet> current = tweets;
+			return current != null ? current : load.get();
+		}
+
+		/**
+		 * Adds a tweet, keeping the tweets ordered by creation time.
+		 */
+		void add(Tweet tweet) {
+			List<Tweet> current;
+			try {
+				current = getTweets();
+			} catch (Exception e) {
+				return;
+			}
+			List<Tweet> updated = new ArrayList<Tweet>(current.size() + 1);
+			int i = 0;
+			while (i < current.size()
+					&& current.get(i).getCreatedAt() <= tweet.getCreatedAt()) {
+				if (current.get(i).getId() == tweet.getId()) {
+					// already there, e.g. a retried write
+					return;
+				}
+				updated.add(current.get(i++));
+			}
+			updated.add(tweet);
+			while (i < current.size()) {
+				updated.add(current.get(i++));
+			}
+			tweets = Collections.unmodifiableList(updated);
+		}
+	}
+}
@@ -1,10 +1,10 @@
 /*
  * Copyright 2013 Daniel Selman
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
  *
  * Unless required by applicable law or agreed to in writing, software
@@ -17,49 +17,426 @@
 package org.selman.tweetamo;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import twitter4j.Status;
 
 /**
+ * <p>
  * Serializes a Twitter Status update to a ByteBuffer. Deserializes a
- * ByteBuffer to a Status update.
+ * ByteBuffer to a Tweet.
+ * </p>
+ * <p>
+ * Tweets are written in a compact binary format: a format byte, a 16 bit
+ * mask of the {@link TweetField}s present, the fixed width fields and then
+ * the length prefixed UTF-8 strings. Which fields are written is chosen by a
+ * {@link TweetProfile}. The first byte of a record tells the reader which
+ * format it was written in, so records written with Java serialization by
+ * older clients are still read.
+ * </p>
+ * <p>
+ * A compact record can additionally be compressed with a {@link TweetCodec}
+ * and an optional {@link TweetDictionary}. Compressed records start with
+ * their own format byte, followed by the codec id, the dictionary id (0 for
+ * none) and the uncompressed length. A record is only written compressed
+ * when that makes it smaller.
+ * </p>
  * @author dselman
  *
  */
 public class TweetSerializer {
 
+	/**
+	 * First byte of records written with Java serialization.
+	 */
+	public static final byte FORMAT_JAVA = (byte) 0xAC;
+
+	/**
+	 * First byte of records written in version 1 of the compact format.
+	 */
+	public static final byte FORMAT_COMPACT = 0x01;
+
+	/**
+	 * First byte of compressed compact records.
+	 */
+	public static final byte FORMAT_COMPRESSED = 0x02;
+
+	static final int COMPACT_HEADER_SIZE = 3;
+	/**
+	 * Largest length a compressed record may claim for its compact record,
+	 * far above any tweet, so that a corrupt header can't make the reader
+	 * allocate gigabytes.
+	 */
+	static final int MAX_UNCOMPRESSED_LENGTH = 1024 * 1024;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static volatile TweetProfile defaultProfile = TweetProfile.FULL;
+	private static volatile TweetCodec defaultCodec = TweetCodec.NONE;
+	private static volatile TweetDictionary defaultDictionary;
+
+	/**
+	 * @return the profile used by {@link #toBytes(Status)}
+	 */
+	public static TweetProfile getDefaultProfile() {
+		return defaultProfile;
+	}
+
+	public static void setDefaultProfile(TweetProfile profile) {
+		defaultProfile = profile;
+	}
+
+	/**
+	 * @return the codec used by {@link #toBytes(Status)}
+	 */
+	public static TweetCodec getDefaultCodec() {
+		return defaultCodec;
+	}
+
+	public static void setDefaultCodec(TweetCodec codec) {
+		defaultCodec = codec;
+	}
+
+	/**
+	 * @return the dictionary used by {@link #toBytes(Status)}, or null
+	 */
+	public static TweetDictionary getDefaultDictionary() {
+		return defaultDictionary;
+	}
+
+	/**
+	 * Sets the dictionary used by {@link #toBytes(Status)}, and registers it
+	 * so records written with it can be read back in this JVM.
+	 */
+	public static void setDefaultDictionary(TweetDictionary dictionary) {
+		if (dictionary != null) {
+			TweetDictionary.register(dictionary);
+		}
+		defaultDictionary = dictionary;
+	}
+
 	public static ByteBuffer toBytes(Status status) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		ObjectOutput out = null;
+		return toBytes(new StatusTweet(status), defaultProfile, defaultCodec,
+				defaultDictionary);
+	}
+
+	/**
+	 * Writes the fields of the profile that are set on the tweet in the
+	 * compact format, then compresses the record with the codec.
+	 *
+	 * @param dictionary
+	 *            the dictionary to compress with, may be null
+	 */
+	public static ByteBuffer toBytes(Tweet tweet, TweetProfile profile,
+			TweetCodec codec, TweetDictionary dictionary) throws IOException {
+		ByteBuffer compact = toBytes(tweet, profile);
+		if (codec == TweetCodec.NONE) {
+			return compact;
+		}
+		return compress(compact, codec, dictionary);
+	}
+
+	/**
+	 * Compresses a compact record.
+	 *
+	 * @return the compressed record, or the compact record itself if
+	 *         compression would not make it smaller
+	 */
+	static ByteBuffer compress(ByteBuffer compact, TweetCodec codec,
+			TweetDictionary dictionary) {
+		int rawLength = compact.remaining();
+		byte[] compressed = codec.compress(compact.array(),
+				compact.arrayOffset() + compact.position(), rawLength,
+				dictionary);
+
+		int headerSize = 3 + VarInts.sizeOf(rawLength);
+		if (headerSize + compressed.length >= rawLength) {
+			return compact;
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(headerSize + compressed.length);
+		out.put(FORMAT_COMPRESSED);
+		out.put((byte) codec.getId());
+		out.put((byte) (dictionary == null ? 0 : dictionary.getId()));
+		VarInts.write(out, rawLength);
+		out.put(compressed);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Decompresses a compressed record, advancing the position of the data.
+	 *
+	 * @return the compact record
+	 */
+	static ByteBuffer decompress(ByteBuffer data) throws IOException {
 		try {
-			out = new ObjectOutputStream(bos);
-			out.writeObject(status);
-			return ByteBuffer.wrap(bos.toByteArray());
+			data.get();
+			TweetCodec codec = TweetCodec.forId(data.get() & 0xFF);
+			int dictionaryId = data.get() & 0xFF;
+			TweetDictionary dictionary = dictionaryId == 0 ? null
+					: TweetDictionary.get(dictionaryId);
+			int rawLength = VarInts.readInt(data);
+			if (rawLength > MAX_UNCOMPRESSED_LENGTH) {
+				throw new IOException("Compressed tweet record too large: "
+						+ rawLength);
+			}
 
-		} finally {
-			try {
-				if (out != null) {
-					out.close();
+			byte[] raw;
+			if (data.hasArray()) {
+				raw = codec.decompress(data.array(), data.arrayOffset()
+						+ data.position(), data.remaining(), rawLength,
+						dictionary);
+			} else {
+				byte[] compressed = new byte[data.remaining()];
+				data.duplicate().get(compressed);
+				raw = codec.decompress(compressed, 0, compressed.length,
+						rawLength, dictionary);
+			}
+			data.position(data.limit());
+			return ByteBuffer.wrap(raw);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated compressed tweet record");
+		}
+	}
+
+	/**
+	 * Writes the fields of the profile that are set on the tweet in the
+	 * compact format.
+	 */
+	public static ByteBuffer toBytes(Tweet tweet, TweetProfile profile)
+			throws IOException {
+		int mask = profile.getMask() & presentFields(tweet);
+
+		byte[][] strings = new byte[TweetField.values().length][];
+		int size = COMPACT_HEADER_SIZE;
+		for (TweetField field : TweetField.values()) {
+			if ((mask & field.getBit()) == 0) {
+				continue;
+			}
+			if (field.isVariable()) {
+				byte[] bytes = getString(tweet, field).getBytes(UTF8);
+				strings[field.ordinal()] = bytes;
+				size += VarInts.sizeOf(bytes.length) + bytes.length;
+			} else {
+				size += field.getWidth();
+			}
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(size);
+		out.put(FORMAT_COMPACT);
+		out.putShort((short) mask);
+		for (TweetField field : TweetField.values()) {
+			if ((mask & field.getBit()) == 0) {
+				continue;
+			}
+			switch (field) {
+			case ID:
+				out.putLong(tweet.getId());
+				break;
+			case CREATED_AT:
+				out.putLong(tweet.getCreatedAt());
+				break;
+			case GEO:
+				out.putDouble(tweet.getLatitude());
+				out.putDouble(tweet.getLongitude());
+				break;
+			case USER_ID:
+				out.putLong(tweet.getUserId());
+				break;
+			case IN_REPLY_TO_STATUS_ID:
+				out.putLong(tweet.getInReplyToStatusId());
+				break;
+			case RETWEETED_STATUS_ID:
+				out.putLong(tweet.getRetweetedStatusId());
+				break;
+			case RETWEET_COUNT:
+				out.putLong(tweet.getRetweetCount());
+				break;
+			default:
+				byte[] bytes = strings[field.ordinal()];
+				VarInts.write(out, bytes.length);
+				out.put(bytes);
+			}
+		}
+
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Reads a tweet written in any of the supported formats.
+	 */
+	public static Tweet fromBytes(ByteBuffer data)
+			throws ClassNotFoundException, IOException {
+		if (!data.hasRemaining()) {
+			throw new IOException("Empty tweet record");
+		}
+
+		byte format = data.get(data.position());
+		switch (format) {
+		case FORMAT_COMPACT:
+			return readCompact(data);
+		case FORMAT_COMPRESSED:
+			return readCompact(decompress(data));
+		case FORMAT_JAVA:
+			return new StatusTweet(readJava(data));
+		default:
+			throw new IOException("Unknown tweet record format " + format);
+		}
+	}
+
+	/**
+	 * Reads a tweet without copying it when possible: compact records are
+	 * returned as a {@link TweetView} over the data, which must then not be
+	 * modified while the tweet is in use. Compressed records are viewed over
+	 * their decompressed bytes. Other formats are decoded as by
+	 * {@link #fromBytes(ByteBuffer)}. The position of the buffer is not
+	 * changed.
+	 */
+	public static Tweet view(ByteBuffer data) throws ClassNotFoundException,
+			IOException {
+		if (TweetView.canView(data)) {
+			return new TweetView().wrap(data);
+		}
+		if (data.hasRemaining()
+				&& data.get(data.position()) == FORMAT_COMPRESSED) {
+			return new TweetView().wrap(decompress(data.duplicate()));
+		}
+		return fromBytes(data.duplicate());
+	}
+
+	private static Tweet readCompact(ByteBuffer data) throws IOException {
+		try {
+			data.get();
+			int mask = data.getShort() & 0xFFFF;
+			checkMask(mask);
+
+			long id = -1L;
+			long createdAt = 0L;
+			boolean geoLocation = false;
+			double latitude = 0;
+			double longitude = 0;
+			long userId = -1L;
+			long inReplyToStatusId = -1L;
+			long retweetedStatusId = -1L;
+			long retweetCount = 0L;
+			String[] strings = new String[TweetField.values().length];
+
+			for (TweetField field : TweetField.values()) {
+				if ((mask & field.getBit()) == 0) {
+					continue;
+				}
+				switch (field) {
+				case ID:
+					id = data.getLong();
+					break;
+				case CREATED_AT:
+					createdAt = data.getLong();
+					break;
+				case GEO:
+					geoLocation = true;
+					latitude = data.getDouble();
+					longitude = data.getDouble();
+					break;
+				case USER_ID:
+					userId = data.getLong();
+					break;
+				case IN_REPLY_TO_STATUS_ID:
+					inReplyToStatusId = data.getLong();
+					break;
+				case RETWEETED_STATUS_ID:
+					retweetedStatusId = data.getLong();
+					break;
+				case RETWEET_COUNT:
+					retweetCount = data.getLong();
+					break;
+				default:
+					int length = VarInts.readInt(data);
+					strings[field.ordinal()] = readString(data, length);
 				}
-			} catch (IOException ex) {
-				// ignore close exception
 			}
-			try {
-				bos.close();
-			} catch (IOException ex) {
-				// ignore close exception
+
+			return new CompactTweet(id, createdAt, geoLocation, latitude,
+					longitude, strings[TweetField.SCREEN_NAME.ordinal()],
+					strings[TweetField.TEXT.ordinal()], userId,
+					strings[TweetField.USER_NAME.ordinal()],
+					strings[TweetField.SOURCE.ordinal()], inReplyToStatusId,
+					retweetedStatusId, retweetCount);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated tweet record");
+		}
+	}
+
+	static void checkMask(int mask) throws IOException {
+		if ((mask >>> TweetField.values().length) != 0) {
+			throw new IOException("Tweet record has unknown fields: "
+					+ Integer.toHexString(mask));
+		}
+	}
+
+	static String readString(ByteBuffer data, int length) throws IOException {
+		if (length > data.remaining()) {
+			throw new IOException("Truncated tweet record");
+		}
+		String value;
+		if (data.hasArray()) {
+			value = new String(data.array(), data.arrayOffset()
+					+ data.position(), length, UTF8);
+		} else {
+			byte[] bytes = new byte[length];
+			data.duplicate().get(bytes);
+			value = new String(bytes, UTF8);
+		}
+		data.position(data.position() + length);
+		return value;
+	}
+
+	private static int presentFields(Tweet tweet) {
+		int mask = TweetField.ID.getBit() | TweetField.CREATED_AT.getBit();
+		if (tweet.hasGeoLocation()) {
+			mask |= TweetField.GEO.getBit();
+		}
+		if (tweet.getUserId() != -1L) {
+			mask |= TweetField.USER_ID.getBit();
+		}
+		if (tweet.getInReplyToStatusId() != -1L) {
+			mask |= TweetField.IN_REPLY_TO_STATUS_ID.getBit();
+		}
+		if (tweet.getRetweetedStatusId() != -1L) {
+			mask |= TweetField.RETWEETED_STATUS_ID.getBit();
+		}
+		if (tweet.getRetweetCount() != 0L) {
+			mask |= TweetField.RETWEET_COUNT.getBit();
+		}
+		for (TweetField field : TweetField.values()) {
+			if (field.isVariable() && getString(tweet, field) != null) {
+				mask |= field.getBit();
 			}
 		}
+		return mask;
+	}
+
+	private static String getString(Tweet tweet, TweetField field) {
+		switch (field) {
+		case SCREEN_NAME:
+			return tweet.getScreenName();
+		case TEXT:
+			return tweet.getText();
+		case USER_NAME:
+			return tweet.getUserName();
+		case SOURCE:
+			return tweet.getSource();
+		default:
+			throw new IllegalArgumentException(field + " is not a string");
+		}
 	}
 
-	public static Status fromBytes(ByteBuffer data)
+	private static Status readJava(ByteBuffer data)
 			throws ClassNotFoundException, IOException {
 		byte[] b = new byte[data.remaining()];
 		data.get(b, 0, b.length);
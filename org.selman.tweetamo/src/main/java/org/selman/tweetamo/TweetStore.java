@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * Where the server stores tweets and finds them again. A store keeps each
+ * tweet under its id and can find tweets by screen name and creation time,
+ * and by creation time alone.
+ * </p>
+ * <p>
+ * {@link PersistentStore} keeps the tweets in DynamoDB and
+ * {@link LocalTweetStore} in log files on local disk;
+ * {@link TweetStores#create(TweetProcessorConfiguration)} opens the one the
+ * configuration names. Implementations are safe for use by several threads.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public interface TweetStore extends Closeable {
+
+	/**
+	 * Stores a tweet, replacing any tweet with the same id.
+	 */
+	void add(Tweet tweet) throws Exception;
+
+	/**
+	 * Stores many tweets, replacing any tweets with the same ids. When
+	 * several of the tweets have the same id only the last one is stored.
+	 *
+	 * @return the tweets that could not be stored
+	 * @throws Exception
+	 *             if the thread is interrupted while waiting for the writes
+	 */
+	WriteResult addAll(Collection<? extends Tweet> tweets) throws Exception;
+
+	/**
+	 * @param ids
+	 *            status ids
+	 * @return the ids that are stored
+	 */
+	Set<Long> getStoredIds(Collection<Long> ids) throws Exception;
+
+	/**
+	 * @return the tweets of a screen name created at or after a time, oldest
+	 *         first
+	 */
+	List<Tweet> getLatestTweetsForScreenName(String screenName, long timestamp)
+			throws Exception;
+
+	/**
+	 * @param timestamp
+	 *            only tweets created after this time, in ms since the epoch,
+	 *            are returned
+	 * @param limit
+	 *            the maximum number of tweets returned
+	 * @return the tweets created after a time, newest first
+	 */
+	List<Tweet> getSince(long timestamp, int limit) throws Exception;
+}
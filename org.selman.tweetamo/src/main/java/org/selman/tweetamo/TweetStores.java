@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Opens the {@link TweetStore} named by the configuration.
+ *
+ * @author dselman
+ *
+ */
+public final class TweetStores {
+
+	/**
+	 * Where tweets are stored.
+	 */
+	public enum Backend {
+		/** The DynamoDB table of {@link PersistentStore} */
+		DYNAMODB,
+		/** The log files of a {@link LocalTweetStore} */
+		LOCAL
+	}
+
+	private TweetStores() {
+	}
+
+	/**
+	 * @return the store, or null if the DynamoDB store could not be created
+	 * @throws IOException
+	 *             if the local store could not be opened
+	 */
+	public static TweetStore create(TweetProcessorConfiguration configuration)
+			throws IOException {
+		switch (configuration.getStoreBackend()) {
+		case LOCAL:
+			return new LocalTweetStore(new File(
+					configuration.getStoreDirectory()),
+					configuration.getStoreSegmentBytes(),
+					configuration.isStoreSync());
+		default:
+			return PersistentStore.getInstance(configuration);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * A read-only {@link Tweet} that reads its fields on demand from a buffer
+ * holding a tweet in the compact format, typically the data of a Kinesis
+ * record. Nothing is copied: numbers are read straight from the buffer and
+ * strings are only decoded when asked for.
+ * </p>
+ * <p>
+ * A view can be pointed at another buffer with {@link #wrap(ByteBuffer)} so
+ * a single instance can be reused for many records. The buffer must not be
+ * modified while it is being viewed.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public final class TweetView implements Tweet {
+
+	private static final TweetField[] FIELDS = TweetField.values();
+
+	private final int[] offsets = new int[FIELDS.length];
+	private ByteBuffer buffer;
+	private int mask;
+
+	/**
+	 * @return true if the data can be viewed, i.e. it holds a tweet in the
+	 *         compact format
+	 */
+	public static boolean canView(ByteBuffer data) {
+		return data.hasRemaining()
+				&& data.get(data.position()) == TweetSerializer.FORMAT_COMPACT;
+	}
+
+	/**
+	 * Points the view at a tweet starting at the current position of the
+	 * buffer. The position of the buffer is not changed.
+	 *
+	 * @return this view
+	 * @throws IOException
+	 *             if the data is not a well formed compact tweet
+	 */
+	public TweetView wrap(ByteBuffer data) throws IOException {
+		int position = data.position();
+		int limit = data.limit();
+		if (!canView(data)
+				|| limit - position < TweetSerializer.COMPACT_HEADER_SIZE) {
+			throw new IOException("Not a compact tweet record");
+		}
+
+		int fieldMask = data.getShort(position + 1) & 0xFFFF;
+		TweetSerializer.checkMask(fieldMask);
+
+		int offset = position + TweetSerializer.COMPACT_HEADER_SIZE;
+		for (TweetField field : FIELDS) {
+			if ((fieldMask & field.getBit()) == 0) {
+				continue;
+			}
+			offsets[field.ordinal()] = offset;
+			if (field.isVariable()) {
+				long length = VarInts.read(data, offset);
+				if (length < 0) {
+					throw new IOException("Negative string length in tweet record");
+				}
+				if (length > limit - offset) {
+					throw new IOException("Truncated tweet record");
+				}
+				offset += VarInts.sizeOf(length) + (int) length;
+			} else {
+				offset += field.getWidth();
+			}
+			if (offset > limit) {
+				throw new IOException("Truncated tweet record");
+			}
+		}
+
+		this.buffer = data;
+		this.mask = fieldMask;
+		return this;
+	}
+
+	private boolean has(TweetField field) {
+		return (mask & field.getBit()) != 0;
+	}
+
+	private long getLong(TweetField field, long defaultValue) {
+		return has(field) ? buffer.getLong(offsets[field.ordinal()])
+				: defaultValue;
+	}
+
+	private String getString(TweetField field) {
+		if (!has(field)) {
+			return null;
+		}
+		int offset = offsets[field.ordinal()];
+		try {
+			int length = (int) VarInts.read(buffer, offset);
+			offset += VarInts.sizeOf(length);
+			if (buffer.hasArray()) {
+				return new String(buffer.array(), buffer.arrayOffset() + offset,
+						length, TweetSerializer.UTF8);
+			}
+			byte[] bytes = new byte[length];
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(offset);
+			slice.get(bytes);
+			return new String(bytes, TweetSerializer.UTF8);
+		} catch (IOException e) {
+			// the lengths were validated by wrap
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public long getId() {
+		return getLong(TweetField.ID, -1L);
+	}
+
+	@Override
+	public long getCreatedAt() {
+		return getLong(TweetField.CREATED_AT, 0L);
+	}
+
+	@Override
+	public boolean hasGeoLocation() {
+		return has(TweetField.GEO);
+	}
+
+	@Override
+	public double getLatitude() {
+		return has(TweetField.GEO) ? buffer.getDouble(offsets[TweetField.GEO
+				.ordinal()]) : 0;
+	}
+
+	@Override
+	public double getLongitude() {
+		return has(TweetField.GEO) ? buffer.getDouble(offsets[TweetField.GEO
+				.ordinal()] + 8) : 0;
+	}
+
+	@Override
+	public String getScreenName() {
+		return getString(TweetField.SCREEN_NAME);
+	}
+
+	@Override
+	public String getText() {
+		return getString(TweetField.TEXT);
+	}
+
+	@Override
+	public long getUserId() {
+		return getLong(TweetField.USER_ID, -1L);
+	}
+
+	@Override
+	public String getUserName() {
+		return getString(TweetField.USER_NAME);
+	}
+
+	@Override
+	public String getSource() {
+		return getString(TweetField.SOURCE);
+	}
+
+	@Override
+	public long getInReplyToStatusId() {
+		return getLong(TweetField.IN_REPLY_TO_STATUS_ID, -1L);
+	}
+
+	@Override
+	public long getRetweetedStatusId() {
+		return getLong(TweetField.RETWEETED_STATUS_ID, -1L);
+	}
+
+	@Override
+	public long getRetweetCount() {
+		return getLong(TweetField.RETWEET_COUNT, 0L);
+	}
+
+	@Override
+	public String toString() {
+		return "TweetView [id=" + getId() + ", createdAt=" + getCreatedAt()
+				+ "]";
+	}
+}
@@ -15,6 +15,10 @@
  */
 package org.selman.tweetamo;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -33,8 +37,6 @@ import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
 import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
 import com.amazonaws.services.kinesis.model.DescribeStreamResult;
-import com.amazonaws.services.kinesis.model.PutRecordRequest;
-import com.amazonaws.services.kinesis.model.PutRecordResult;
 
 /**
  * <p>
@@ -47,7 +49,9 @@ import com.amazonaws.services.kinesis.model.PutRecordResult;
  * </p>
  * <p>
  * The client publishes tweets to the AWS Kinesis Stream with
- * the name tweetamo. The stream must exist.
+ * the name tweetamo. The stream must exist. Tweets are published in
+ * the background by a {@link TweetProducer}, which can be tuned through
+ * an optional properties file (see {@link ConfigKeys}).
  * </p>
  * 
  * @author dselman
@@ -63,44 +67,65 @@ public class TweetamoClient {
 	static AmazonKinesisClient kinesisClient;
 	private static final Log LOG = LogFactory.getLog(TweetamoClient.class);
 
+	/**
+	 * The least time between two warnings about statuses the producer dropped,
+	 * so that a full queue doesn't flood the log
+	 */
+	private static final long DROP_WARNING_INTERVAL_NANOS = TimeUnit.SECONDS
+			.toNanos(10);
+
 	public static void main(String[] args) throws Exception {
 		
-		if( args.length != 2 ) {
-			System.out.println( "Usage: [language] [search topic]");
+		if( args.length < 2 || args.length > 3 ) {
+			System.out.println( "Usage: [language] [search topic] <propertiesFile>");
+			System.exit(1);
 		}
 		
+		Properties properties = null;
+		if( args.length == 3 ) {
+			properties = loadProperties(args[2]);
+			String profile = properties.getProperty(ConfigKeys.SERIALIZER_PROFILE_KEY);
+			if( profile != null ) {
+				TweetSerializer.setDefaultProfile(TweetProfile.valueOf(profile));
+			}
+			String codec = properties.getProperty(ConfigKeys.SERIALIZER_CODEC_KEY);
+			if( codec != null ) {
+				TweetSerializer.setDefaultCodec(TweetCodec.valueOf(codec.trim().toUpperCase()));
+			}
+			String dictionaries = properties.getProperty(ConfigKeys.SERIALIZER_DICTIONARY_KEY);
+			if( dictionaries != null ) {
+				String dictionary = dictionaries.split(",")[0].trim();
+				TweetSerializer.setDefaultDictionary(TweetDictionary.load(new File(dictionary)));
+			}
+		}
+		LOG.info("Serializing tweets with profile " + TweetSerializer.getDefaultProfile()
+				+ ", codec " + TweetSerializer.getDefaultCodec()
+				+ ", dictionary " + TweetSerializer.getDefaultDictionary());
+		
 		kinesisClient = new AmazonKinesisClient(
 				new ClasspathPropertiesFileCredentialsProvider());
 		waitForStreamToBecomeAvailable(STREAM_NAME);
 
-		LOG.info("Publishing tweets to stream : " + STREAM_NAME);
-	    StatusListener listener = new StatusListener(){
-	        public void onStatus(Status status) {	            
-				try {
-					PutRecordRequest putRecordRequest = new PutRecordRequest();
-					putRecordRequest.setStreamName(STREAM_NAME);
-					putRecordRequest.setData( TweetSerializer.toBytes(status) );
-					putRecordRequest.setPartitionKey( status.getUser().getScreenName() );
-					PutRecordResult putRecordResult = kinesisClient
-							.putRecord(putRecordRequest);
-					LOG.info("Successfully putrecord, partition key : "
-							+ putRecordRequest.getPartitionKey() + ", ShardID : "
-							+ putRecordResult.getShardId());
-
-				} catch (Exception e) {
-					LOG.error( "Failed to putrecord", e );
-				}	            
-	        }
-	        public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice) {}
-	        public void onTrackLimitationNotice(int numberOfLimitedStatuses) {}
-	        public void onException(Exception ex) {
-	            ex.printStackTrace();
-	        }
-			@Override
-			public void onScrubGeo(long arg0, long arg1) {}
+		final TweetProducer producer = new TweetProducer(kinesisClient,
+				STREAM_NAME, TweetProducerConfiguration.fromProperties(properties));
+		producer.start();
+		if( properties != null ) {
+			MetricsHttpServer.startIfEnabled(TweetProducerConfiguration.getInt(
+					properties, ConfigKeys.METRICS_HTTP_PORT_KEY, 0));
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
-			public void onStallWarning(StallWarning arg0) {}
-	    };
+			public void run() {
+				try {
+					producer.shutdown(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					LOG.debug("Interrupted producer shutdown", e);
+				}
+			}
+		});
+
+		LOG.info("Publishing tweets to stream : " + STREAM_NAME);
+	    StatusListener listener = newStatusListener(producer);
 	    
 	    ClasspathTwitterCredentialsProvider provider = new ClasspathTwitterCredentialsProvider();
 	    TwitterCredentials credentials = provider.getTwitterCredentials();
@@ -119,6 +144,52 @@ public class TweetamoClient {
 	    twitterStream.filter(filterQuery);
 	}
 
+	/**
+	 * @return the listener that hands the statuses of the stream to the producer
+	 */
+	static StatusListener newStatusListener(final TweetProducer producer) {
+	    return new StatusListener(){
+	        private long lastDropWarningNanos = System.nanoTime()
+	                - DROP_WARNING_INTERVAL_NANOS;
+	        private long droppedAtLastWarning;
+
+	        public void onStatus(Status status) {
+				if (!producer.offer(status)) {
+					long now = System.nanoTime();
+					if (now - lastDropWarningNanos >= DROP_WARNING_INTERVAL_NANOS) {
+						long dropped = producer.getDroppedCount();
+						LOG.warn("Producer can't keep up, dropped "
+								+ (dropped - droppedAtLastWarning)
+								+ " statuses since the last warning, including "
+								+ status.getId());
+						lastDropWarningNanos = now;
+						droppedAtLastWarning = dropped;
+					}
+				}
+	        }
+	        public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice) {}
+	        public void onTrackLimitationNotice(int numberOfLimitedStatuses) {}
+	        public void onException(Exception ex) {
+	            LOG.error("Twitter stream failed", ex);
+	        }
+			@Override
+			public void onScrubGeo(long arg0, long arg1) {}
+			@Override
+			public void onStallWarning(StallWarning arg0) {}
+	    };
+	}
+
+	private static Properties loadProperties(String propertiesFile) throws IOException {
+		FileInputStream inputStream = new FileInputStream(propertiesFile);
+		Properties properties = new Properties();
+		try {
+			properties.load(inputStream);
+		} finally {
+			inputStream.close();
+		}
+		return properties;
+	}
+
 	private static void waitForStreamToBecomeAvailable(String myStreamName) throws InterruptedException {
 		LOG.info("Waiting for " + myStreamName + " to become ACTIVE...");
 
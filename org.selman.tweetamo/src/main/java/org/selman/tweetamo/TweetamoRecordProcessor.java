@@ -15,20 +15,13 @@
  */
 package org.selman.tweetamo;
 
+import java.util.Date;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import twitter4j.Status;
-
-import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.ScanResult;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
@@ -44,21 +37,64 @@ public class TweetamoRecordProcessor implements IRecordProcessor {
 
     // Backoff and retry settings
     private static final long BACKOFF_TIME_IN_MILLIS = 3000L;
+    private static final long BACKOFF_BASE_MILLIS = 100L;
     private static final int NUM_RETRIES = 10;
 
-    // Checkpoint about once a minute
-    private static final long CHECKPOINT_INTERVAL_MILLIS = 60000L;
-    private long nextCheckpointTimeInMillis;
+    // Report the recent tweets about once a minute
+    private static final long REPORT_INTERVAL_MILLIS = 60000L;
+    private long nextReportTimeInMillis;
+
+    // How long a checkpoint waits for submitted records to be stored before it is given up, holding back
+    // processRecords meanwhile
+    private static final long CHECKPOINT_DRAIN_TIMEOUT_MILLIS = 30000L;
+    // How long to wait for the pipeline to finish when shutting down
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 60000L;
     
-    private PersistentStore persistentStore;
+    private TweetStore persistentStore;
+    private final TweetProcessorConfiguration configuration;
+    private final CircuitBreaker storeBreaker;
+    private final DeadLetterSink deadLetterSink;
+    private final RecentTweetsBuffer recentTweets;
+    private final TweetamoRecordProcessorFactory factory;
+    private DuplicateFilter duplicateFilter;
+    private RecordPipeline pipeline;
+    private CheckpointStrategy checkpointStrategy;
+    private AsyncCheckpointer asyncCheckpointer;
+    private FetchController fetchController;
+    private boolean failureReported;
     
     /**
      * Constructor.
-     * @param persistentStore 
+     * @param configuration retry settings
+     * @param storeBreaker guards the writes to the persistent store, shared by the processors of all shards
+     * @param deadLetterSink where records that can't be processed go
+     * @param recentTweets where stored tweets are kept for the report, shared by the processors of all shards
+     * @param factory the factory that created the processor, which keeps the duplicate filter of each shard
+     */
+    public TweetamoRecordProcessor(TweetProcessorConfiguration configuration, CircuitBreaker storeBreaker,
+            DeadLetterSink deadLetterSink, RecentTweetsBuffer recentTweets, TweetamoRecordProcessorFactory factory) {
+        this(PersistentStore.getInstance(), configuration, storeBreaker, deadLetterSink, recentTweets, factory);
+    }
+
+    /**
+     * Constructor.
+     * @param persistentStore where the tweets are stored
+     * @param configuration retry settings
+     * @param storeBreaker guards the writes to the persistent store, shared by the processors of all shards
+     * @param deadLetterSink where records that can't be processed go
+     * @param recentTweets where stored tweets are kept for the report, shared by the processors of all shards
+     * @param factory the factory that created the processor, which keeps the duplicate filter of each shard
      */
-    public TweetamoRecordProcessor() {
+    public TweetamoRecordProcessor(TweetStore persistentStore, TweetProcessorConfiguration configuration,
+            CircuitBreaker storeBreaker, DeadLetterSink deadLetterSink, RecentTweetsBuffer recentTweets,
+            TweetamoRecordProcessorFactory factory) {
         super();
-        this.persistentStore = PersistentStore.getInstance();
+        this.persistentStore = persistentStore;
+        this.configuration = configuration;
+        this.storeBreaker = storeBreaker;
+        this.deadLetterSink = deadLetterSink;
+        this.recentTweets = recentTweets;
+        this.factory = factory;
     }
     
     /**
@@ -68,6 +104,17 @@ public class TweetamoRecordProcessor implements IRecordProcessor {
     public void initialize(String shardId) {
         LOG.info("Initializing record processor for shard: " + shardId);
         this.kinesisShardId = shardId;
+        this.duplicateFilter = factory.getDuplicateFilter(shardId);
+        this.pipeline = new RecordPipeline(shardId, persistentStore, configuration, storeBreaker, deadLetterSink,
+                recentTweets, duplicateFilter);
+        this.pipeline.start();
+        this.checkpointStrategy = CheckpointStrategy.create(configuration);
+        this.asyncCheckpointer = new AsyncCheckpointer(shardId, pipeline, checkpointStrategy, duplicateFilter,
+                CHECKPOINT_DRAIN_TIMEOUT_MILLIS, BACKOFF_BASE_MILLIS, BACKOFF_TIME_IN_MILLIS, NUM_RETRIES);
+        LOG.info("Checkpointing shard " + shardId + " " + checkpointStrategy);
+        this.fetchController = new FetchController(configuration.getFetchMaxRecords(),
+                configuration.getFetchIdleTimeBetweenReadsMillis(), configuration.getFetchMaxIdleMillis(),
+                configuration.getFetchBehindThresholdMillis());
     }
 
     /**
@@ -75,136 +122,131 @@ public class TweetamoRecordProcessor implements IRecordProcessor {
      */
     @Override
     public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Processing " + records.size() + " records for kinesisShardId " + kinesisShardId);
-        
-        // Process records and perform all exception handling.
-        processRecordsWithRetries(records);
-        
-        // Checkpoint once every checkpoint interval.
-        if (System.currentTimeMillis() > nextCheckpointTimeInMillis) {
-            checkpoint(checkpointer);
-            nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
-            
-        	// get the last minutes tweets, max of 30
-        	long start = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(30);
-        	
-        	try {
-        		if(persistentStore !=null) {
-                	ScanResult scanResult = persistentStore.getSince(start, 30);
-                	
-                	if(scanResult!=null) {
-                		System.out.println( "++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++" );
-                		System.out.println( "Last 30 mins of Tweets, max of 30" );
-                		System.out.println( "++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++" );
-                		for (Map<String, AttributeValue> item : scanResult.getItems()) {
-                            printItem(item);
-                        }    
-                		System.out.println( "++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++" );
-                	}        			
-        		}
-        	}
-        	catch(Exception e) {
-        		LOG.error("Error retrieving tweets.",e);
-        	}
+        long startTimeInMillis = System.currentTimeMillis();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Processing " + records.size() + " records for kinesisShardId " + kinesisShardId);
         }
         
-    }
+        // Nothing submitted after a failure can be checkpointed, so stop instead of reading the shard any further.
+        Throwable failure = pipeline.getFailure();
+        if (failure != null) {
+            if (!failureReported) {
+                failureReported = true;
+                factory.pipelineFailed(kinesisShardId, failure);
+            }
+            throw new IllegalStateException("Records of shard " + kinesisShardId
+                    + " were lost, not processing any more of them", failure);
+        }
 
-    /** Process records performing retries as needed. Skip "poison pill" records.
-     * @param records
-     */
-    private void processRecordsWithRetries(List<Record> records) {
-        for (Record record : records) {
-            boolean processedSuccessfully = false;
-            for (int i = 0; i < NUM_RETRIES; i++) {
-                try {
-                	Status status = TweetSerializer.fromBytes(record.getData());
-                	
-                    if(persistentStore!=null) {
-                    	persistentStore.add(status);                    	
-                    }
-                    
-                    processedSuccessfully = true;
-                    break;
-                } catch (Throwable t) {
-                    LOG.warn("Caught throwable while processing record " + record, t);
-                }
-                
-                // backoff if we encounter an exception.
+        String lastSequenceNumber = records.isEmpty() ? null : records.get(records.size() - 1).getSequenceNumber();
+        asyncCheckpointer.delivered(lastSequenceNumber, checkpointer);
+        long checkpointWaitMillis = 0;
+        try {
+            // Hand the records to the pipeline, which decodes and stores them in the background.
+            try {
+                pipeline.submit(records);
+            } catch (InterruptedException e) {
+                LOG.info("Interrupted while submitting records for shard " + kinesisShardId);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long bytes = 0;
+            for (Record record : records) {
+                bytes += record.getData().remaining();
+            }
+            checkpointStrategy.recordsProcessed(records.size(), bytes);
+
+            // Checkpointing waits for the pipeline to store the records, so it happens on another thread,
+            // but only while this call is in progress.
+            long now = System.currentTimeMillis();
+            if (checkpointStrategy.isDue(now)) {
+                asyncCheckpointer.request();
+            }
+            if (now > nextReportTimeInMillis) {
+                nextReportTimeInMillis = now + REPORT_INTERVAL_MILLIS;
+                report();
+            }
+
+            // The KCL reads the shard again once this returns, so pausing here paces the reads.
+            long pause = fetchController.pauseMillis(records.size(), pipeline.getLagMillis(),
+                    System.currentTimeMillis() - startTimeInMillis);
+            if (pause > 0) {
                 try {
-                    Thread.sleep(BACKOFF_TIME_IN_MILLIS);
+                    Thread.sleep(pause);
                 } catch (InterruptedException e) {
-                    LOG.debug("Interrupted sleep", e);
+                    Thread.currentThread().interrupt();
                 }
             }
+            // Hold on to the records until a waiting checkpoint is written, so it doesn't chase the next ones.
+            checkpointWaitMillis = CHECKPOINT_DRAIN_TIMEOUT_MILLIS;
+        } finally {
+            asyncCheckpointer.returned(checkpointWaitMillis);
+        }
+    }
+
+    /**
+     * Prints the last 30 minutes of tweets, max of 30, from memory rather than from the store.
+     */
+    private void report() {
+        long start = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(30);
+
+        try {
+            if (!recentTweets.covers(start) && persistentStore != null) {
+                recentTweets.coldStart(persistentStore, start, 30);
+            }
+            List<Tweet> tweets = recentTweets.getSince(start, 30);
 
-            if (!processedSuccessfully) {
-                LOG.error("Couldn't process record " + record + ". Skipping the record.");
+            System.out.println( "++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++" );
+            System.out.println( "Last 30 mins of Tweets, max of 30" );
+            System.out.println( "++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++" );
+            for (Tweet tweet : tweets) {
+                printTweet(tweet);
             }
+            System.out.println( "++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++" );
         }
-    }
-    
-    private static void printItem(Map<String, AttributeValue> attributeList) {
-        for (Map.Entry<String, AttributeValue> item : attributeList.entrySet()) {
-            String attributeName = item.getKey();
-            AttributeValue value = item.getValue();
-            System.out.println(attributeName + " "
-                    + (value.getS() == null ? "" : "S=[" + value.getS() + "]")
-                    + (value.getN() == null ? "" : "N=[" + value.getN() + "]")
-                    + (value.getB() == null ? "" : "B=[" + value.getB() + "]")
-                    + (value.getSS() == null ? "" : "SS=[" + value.getSS() + "]")
-                    + (value.getNS() == null ? "" : "NS=[" + value.getNS() + "]")
-                    + (value.getBS() == null ? "" : "BS=[" + value.getBS() + "] \n"));
+        catch(Exception e) {
+            LOG.error("Error retrieving tweets.",e);
         }
     }
 
+    private static void printTweet(Tweet tweet) {
+        System.out.println(tweet.getId() + " " + new Date(tweet.getCreatedAt()) + " @" + tweet.getScreenName()
+                + (tweet.hasGeoLocation() ? " (" + tweet.getLatitude() + "," + tweet.getLongitude() + ")" : "")
+                + ": " + tweet.getText());
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
         LOG.info("Shutting down record processor for shard: " + kinesisShardId);
+        // Another worker owns the shard after a ZOMBIE shutdown, so only finish storing on TERMINATE.
+        boolean drained = false;
+        try {
+            asyncCheckpointer.shutdown(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            drained = pipeline.shutdown(reason == ShutdownReason.TERMINATE, SHUTDOWN_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         // Important to checkpoint after reaching end of shard, so we can start processing data from child shards.
         if (reason == ShutdownReason.TERMINATE) {
-            checkpoint(checkpointer);
-        }
-    }
-    
- 
-
-    /** Checkpoint with retries.
-     * @param checkpointer
-     */
-    private void checkpoint(IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Checkpointing shard " + kinesisShardId);
-        for (int i = 0; i < NUM_RETRIES; i++) {
-            try {
-                checkpointer.checkpoint();
-                break;
-            } catch (ShutdownException se) {
-                // Ignore checkpoint if the processor instance has been shutdown (fail over).
-                LOG.info("Caught shutdown exception, skipping checkpoint.", se);
-                break;
-            } catch (ThrottlingException e) {
-                // Backoff and re-attempt checkpoint upon transient failures
-                if (i >= (NUM_RETRIES - 1)) {
-                    LOG.error("Checkpoint failed after " + (i + 1) + "attempts.", e);
-                    break;
-                } else {
-                    LOG.info("Transient issue when checkpointing - attempt " + (i + 1) + " of "
-                            + NUM_RETRIES, e);
+            factory.removeDuplicateFilter(kinesisShardId);
+            if (drained) {
+                asyncCheckpointer.delivered(null, checkpointer);
+                try {
+                    asyncCheckpointer.checkpoint();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    asyncCheckpointer.returned();
                 }
-            } catch (InvalidStateException e) {
-                // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
-                LOG.error("Cannot save checkpoint to the DynamoDB table used by the KinesisClientLibrary.", e);
-                break;
-            }
-            try {
-                Thread.sleep(BACKOFF_TIME_IN_MILLIS);
-            } catch (InterruptedException e) {
-                LOG.debug("Interrupted sleep", e);
+            } else {
+                LOG.error("Records for shard " + kinesisShardId + " not stored in time, not checkpointing");
             }
         }
+        Metrics.removeShard(kinesisShardId);
     }
 
 }
@@ -15,6 +15,15 @@
  */
 package org.selman.tweetamo;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
 
@@ -22,12 +31,137 @@ import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorF
  * Used to create new record processors.
  */
 public class TweetamoRecordProcessorFactory implements IRecordProcessorFactory {
+
+    private static final Log LOG = LogFactory.getLog(TweetamoRecordProcessorFactory.class);
+
+    // false positives are looked up in the store, so this only trades memory for reads
+    private static final double DEDUPE_FALSE_POSITIVE_RATE = 0.01;
+
+    private final TweetProcessorConfiguration configuration;
+    private final CircuitBreaker storeBreaker;
+    private final DeadLetterSink deadLetterSink;
+    private final RecentTweetsBuffer recentTweets;
+    private TweetStore store;
+    private boolean storeOpened;
+    private final ConcurrentMap<String, DuplicateFilter> duplicateFilters = new ConcurrentHashMap<String, DuplicateFilter>();
+    private Runnable failureHandler;
+    private boolean failed;
     
     /**
      * Constructor.
      */
     public TweetamoRecordProcessorFactory() {
+        this(new TweetProcessorConfiguration());
+    }
+
+    /**
+     * Constructor. The processors share the store named by the configuration, a circuit breaker for it, a dead
+     * letter sink and the buffer of recent tweets.
+     * @param configuration settings of the processors
+     */
+    public TweetamoRecordProcessorFactory(TweetProcessorConfiguration configuration) {
+        this(configuration, null);
+    }
+
+    /**
+     * Constructor.
+     * @param configuration settings of the processors
+     * @param store where the processors store tweets, or null to open the one named by the configuration
+     */
+    public TweetamoRecordProcessorFactory(TweetProcessorConfiguration configuration, TweetStore store) {
         super();
+        this.configuration = configuration;
+        this.store = store;
+        this.storeOpened = store != null;
+        this.storeBreaker = new CircuitBreaker(configuration.getStoreBackend().toString(), configuration.getBreakerFailureThreshold(),
+                configuration.getBreakerOpenMillis(), configuration.getBreakerMaxOpenMillis());
+        this.deadLetterSink = new FileDeadLetterSink(new File(configuration.getDeadLetterDirectory()));
+        this.recentTweets = new RecentTweetsBuffer(configuration.getRecentTweetsMinutes(),
+                TimeUnit.MINUTES.toMillis(1), configuration.getRecentTweetsPerMinute());
+    }
+
+    /**
+     * @return the tweets recently processed by the processors of this factory
+     */
+    public RecentTweetsBuffer getRecentTweets() {
+        return recentTweets;
+    }
+
+    /**
+     * Opens the store the first time a processor is created, so a worker that never gets a shard doesn't touch it.
+     * @return where the processors store tweets, or null if the store couldn't be opened
+     */
+    synchronized TweetStore getStore() {
+        if (!storeOpened) {
+            storeOpened = true;
+            try {
+                store = TweetStores.create(configuration);
+            } catch (IOException e) {
+                LOG.error("Failed to open the " + configuration.getStoreBackend() + " store", e);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return the duplicate filter of the shard, created on first use; null if duplicate suppression is off
+     */
+    DuplicateFilter getDuplicateFilter(String shardId) {
+        if (configuration.getDedupeExpectedIds() <= 0) {
+            return null;
+        }
+        DuplicateFilter filter = duplicateFilters.get(shardId);
+        if (filter == null) {
+            DuplicateFilter created = new DuplicateFilter(configuration.getDedupeExpectedIds(),
+                    DEDUPE_FALSE_POSITIVE_RATE, configuration.getDedupeRecentIds());
+            filter = duplicateFilters.putIfAbsent(shardId, created);
+            if (filter == null) {
+                filter = created;
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Forgets the duplicate filter of a shard that has ended.
+     */
+    void removeDuplicateFilter(String shardId) {
+        duplicateFilters.remove(shardId);
+    }
+
+    /**
+     * Sets what to do once the pipeline of a shard has lost records, typically shutting the worker down: the shard
+     * can't be checkpointed past them, and the worker holding its lease never reads them again, so the lease has to
+     * expire for the shard to be processed again from its last checkpoint.
+     * @param failureHandler run once, when the first pipeline fails
+     */
+    public synchronized void setFailureHandler(Runnable failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * @return true if the pipeline of a shard has lost records
+     */
+    public synchronized boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Called by a processor whose pipeline has lost records.
+     */
+    void pipelineFailed(String shardId, Throwable failure) {
+        Runnable handler;
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            handler = failureHandler;
+        }
+        LOG.error("Records of shard " + shardId + " were lost, shutting down so the shard is processed again", failure);
+        if (handler != null) {
+            handler.run();
+        }
     }
 
     /**
@@ -35,6 +169,7 @@ public class TweetamoRecordProcessorFactory implements IRecordProcessorFactory {
      */
     @Override
     public IRecordProcessor createProcessor() {
-        return new TweetamoRecordProcessor();
+        return new TweetamoRecordProcessor(getStore(), configuration, storeBreaker, deadLetterSink, recentTweets,
+                this);
     }
 }
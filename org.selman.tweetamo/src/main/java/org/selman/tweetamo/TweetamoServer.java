@@ -15,6 +15,7 @@
  */
 package org.selman.tweetamo;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -28,7 +29,6 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
@@ -51,6 +51,8 @@ public final class TweetamoServer {
     private static String streamName = DEFAULT_STREAM_NAME;
     private static String kinesisEndpoint = DEFAULT_KINESIS_ENDPOINT;
     private static InitialPositionInStream initialPositionInStream = DEFAULT_INITIAL_POSITION;
+    private static TweetProcessorConfiguration processorConfiguration = new TweetProcessorConfiguration();
+    private static int metricsHttpPort;
     
     private static KinesisClientLibConfiguration kinesisClientLibConfiguration;
     
@@ -81,10 +83,18 @@ public final class TweetamoServer {
         
         System.out.println("Starting " + applicationName);
         LOG.info("Running " + applicationName + " to process stream " + streamName);
+        MetricsHttpServer.startIfEnabled(metricsHttpPort);
         
         
-        IRecordProcessorFactory recordProcessorFactory = new TweetamoRecordProcessorFactory();
-         Worker worker = new Worker(recordProcessorFactory, kinesisClientLibConfiguration);
+        TweetamoRecordProcessorFactory recordProcessorFactory = new TweetamoRecordProcessorFactory(processorConfiguration);
+        final Worker worker = new Worker(recordProcessorFactory, kinesisClientLibConfiguration);
+        // Another worker takes over the lease of a shard whose records were lost and reads them again.
+        recordProcessorFactory.setFailureHandler(new Runnable() {
+            @Override
+            public void run() {
+                worker.shutdown();
+            }
+        });
 
         int exitCode = 0;
         try {
@@ -93,6 +103,9 @@ public final class TweetamoServer {
             LOG.error("Caught throwable while processing data.", t);
             exitCode = 1;
         }
+        if (recordProcessorFactory.hasFailed()) {
+            exitCode = 1;
+        }
         System.exit(exitCode);
     }
     
@@ -125,7 +138,12 @@ public final class TweetamoServer {
         }
         
         LOG.info("Using credentials with access key id: " + credentialsProvider.getCredentials().getAWSAccessKeyId());
-        kinesisClientLibConfiguration = new KinesisClientLibConfiguration(applicationName, streamName, credentialsProvider, workerId ); 
+        kinesisClientLibConfiguration = new KinesisClientLibConfiguration(applicationName, streamName, credentialsProvider, workerId )
+                .withKinesisEndpoint(kinesisEndpoint)
+                .withInitialPositionInStream(initialPositionInStream)
+                .withMaxRecords(processorConfiguration.getFetchMaxRecords())
+                .withIdleTimeBetweenReadsInMillis(processorConfiguration.getFetchIdleTimeBetweenReadsMillis())
+                .withCallProcessRecordsEvenForEmptyRecordList(processorConfiguration.isFetchDeliverEmptyBatches());
     }
 
     /**
@@ -157,11 +175,26 @@ public final class TweetamoServer {
         if (kinesisEndpointOverride != null) {
             kinesisEndpoint = kinesisEndpointOverride;
         }
+        LOG.info("Using Kinesis endpoint " + kinesisEndpoint);
         String initialPositionOverride = properties.getProperty(ConfigKeys.INITIAL_POSITION_IN_STREAM_KEY);
         if (initialPositionOverride != null) {
              initialPositionInStream = InitialPositionInStream.valueOf(initialPositionOverride);
         }
          LOG.info("Using initial position " + initialPositionInStream.toString() + " (if a checkpoint is not found).");
+
+        String dictionaries = properties.getProperty(ConfigKeys.SERIALIZER_DICTIONARY_KEY);
+        if (dictionaries != null) {
+            for (String dictionaryFile : dictionaries.split(",")) {
+                TweetDictionary dictionary = TweetDictionary.load(new File(dictionaryFile.trim()));
+                TweetDictionary.register(dictionary);
+                LOG.info("Registered compression dictionary " + dictionary);
+            }
+        }
+
+        processorConfiguration = TweetProcessorConfiguration.fromProperties(properties);
+        LOG.info("Using " + processorConfiguration);
+
+        metricsHttpPort = TweetProducerConfiguration.getInt(properties, ConfigKeys.METRICS_HTTP_PORT_KEY, 0);
     }
 
 }
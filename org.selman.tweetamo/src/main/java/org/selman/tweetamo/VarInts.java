@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes unsigned variable length integers (7 bits per byte, least
+ * significant group first) used by the binary record formats.
+ *
+ * @author dselman
+ *
+ */
+final class VarInts {
+
+	private VarInts() {
+	}
+
+	/**
+	 * @return the number of bytes needed to encode the value
+	 */
+	static int sizeOf(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static void write(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static void write(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Reads a value at the current position of the buffer, advancing it.
+	 */
+	static long read(ByteBuffer in) throws IOException {
+		long value = 0;
+		try {
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = in.get();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated variable length integer");
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	/**
+	 * Reads a value at an absolute index of the buffer without changing its
+	 * position. Use {@link #sizeOf(long)} to find where the value ends.
+	 */
+	static long read(ByteBuffer in, int index) throws IOException {
+		long value = 0;
+		int limit = in.limit();
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (index >= limit) {
+				throw new IOException("Truncated variable length integer");
+			}
+			byte b = in.get(index++);
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	/**
+	 * Reads a value that must fit in a non-negative int.
+	 */
+	static int readInt(ByteBuffer in) throws IOException {
+		long value = read(in);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IOException("Variable length integer out of range: "
+					+ value);
+		}
+		return (int) value;
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Paces the writes to a DynamoDB table so they stay just under its
+ * provisioned write capacity, rather than running into throttling and
+ * backing off. Writers call {@link #acquire()} before each request and
+ * {@link #release(double, boolean)} after it with the capacity units
+ * DynamoDB reports the request consumed and whether it was throttled.
+ * </p>
+ * <p>
+ * The limiter bounds the number of requests in flight, and adapts that
+ * bound: it grows by one for every bound's worth of requests that went
+ * through, is halved when a request is throttled, and shrinks by a tenth
+ * when the units consumed in the current second go past the target share of
+ * the provisioned capacity. Requests also wait for the next second when the
+ * units consumed in this one, with what the requests in flight will
+ * consume on average, would go past that share. A limiter is meant to be
+ * shared by everything in the JVM that writes to the table.
+ * </p>
+ * <p>
+ * The bound and the units consumed a second are published as the
+ * {@link Metrics#STORE_WRITE_LIMIT} and {@link Metrics#STORE_WRITE_UNITS}
+ * gauges, and throttled requests are counted in
+ * {@link Metrics#STORE_THROTTLED}.
+ * </p>
+ *
+ * @author dselman
+ *
+ */
+public class WriteConcurrencyLimiter {
+
+	private static final Log LOG = LogFactory
+			.getLog(WriteConcurrencyLimiter.class);
+
+	private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final double THROTTLED_FACTOR = 0.5;
+	private static final double OVER_TARGET_FACTOR = 0.9;
+	// requests throttled together cut the bound once
+	private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(200);
+	// weight of the latest request in the average units a request consumes
+	private static final double UNITS_WEIGHT = 0.2;
+
+	private final String name;
+	private final int maxLimit;
+	private final double targetUtilization;
+	private double provisionedUnits;
+
+	private double limit;
+	private int inFlight;
+	private long windowStartNanos = System.nanoTime();
+	private double windowUnits;
+	private double unitsPerSecond;
+	private double unitsPerRequest;
+	private double consumedUnits;
+	private long throttledCount;
+	private long decreasedNanos;
+
+	private final Metrics.Gauge limitGauge = Metrics
+			.gauge(Metrics.STORE_WRITE_LIMIT);
+	private final Metrics.Gauge unitsGauge = Metrics
+			.gauge(Metrics.STORE_WRITE_UNITS);
+	private final Metrics.Counter throttledCounter = Metrics
+			.counter(Metrics.STORE_THROTTLED);
+
+	/**
+	 * @param name
+	 *            name of the table, for logging
+	 * @param maxLimit
+	 *            the most requests in flight, which is where the bound
+	 *            starts
+	 * @param targetUtilization
+	 *            the share of the provisioned capacity writes may consume
+	 * @param provisionedUnits
+	 *            the write capacity units provisioned a second, 0 if unknown
+	 *            in which case only throttling slows the writes down
+	 */
+	public WriteConcurrencyLimiter(String name, int maxLimit,
+			double targetUtilization, double provisionedUnits) {
+		if (maxLimit < 1 || targetUtilization <= 0 || targetUtilization > 1) {
+			throw new IllegalArgumentException("Invalid write limit "
+					+ maxLimit + " at " + targetUtilization);
+		}
+		this.name = name;
+		this.maxLimit = maxLimit;
+		this.targetUtilization = targetUtilization;
+		this.provisionedUnits = provisionedUnits;
+		this.limit = maxLimit;
+		limitGauge.set(limit);
+	}
+
+	/**
+	 * Waits until a request may be made.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (true) {
+			long now = System.nanoTime();
+			roll(now);
+			if (inFlight >= (int) limit) {
+				wait();
+			} else if (isBudgetSpent()) {
+				TimeUnit.NANOSECONDS.timedWait(this,
+						Math.max(TimeUnit.MILLISECONDS.toNanos(1),
+								windowStartNanos + WINDOW_NANOS - now));
+			} else {
+				inFlight++;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reports the outcome of a request let through by {@link #acquire()}.
+	 *
+	 * @param consumedUnits
+	 *            the write capacity units the request consumed
+	 * @param throttled
+	 *            whether the request, or part of it, was throttled
+	 */
+	public synchronized void release(double consumedUnits, boolean throttled) {
+		long now = System.nanoTime();
+		inFlight--;
+		roll(now);
+		windowUnits += consumedUnits;
+		this.consumedUnits += consumedUnits;
+		if (consumedUnits > 0) {
+			unitsPerRequest += UNITS_WEIGHT * (consumedUnits - unitsPerRequest);
+		}
+		if (throttled) {
+			throttledCount++;
+			throttledCounter.increment();
+			if (now - decreasedNanos >= DECREASE_INTERVAL_NANOS) {
+				decrease(now, THROTTLED_FACTOR);
+			}
+		} else if (provisionedUnits > 0
+				&& windowUnits > targetUtilization * provisionedUnits) {
+			if (now - decreasedNanos >= WINDOW_NANOS) {
+				decrease(now, OVER_TARGET_FACTOR);
+			}
+		} else if (limit < maxLimit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+			limitGauge.set(limit);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Changes the capacity the writes are paced to, e.g. after the table was
+	 * updated.
+	 */
+	public synchronized void setProvisionedUnits(double provisionedUnits) {
+		this.provisionedUnits = provisionedUnits;
+		notifyAll();
+	}
+
+	public synchronized double getProvisionedUnits() {
+		return provisionedUnits;
+	}
+
+	/**
+	 * @return the number of requests that may be in flight
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * @return the write capacity units consumed in the last second
+	 */
+	public synchronized double getUnitsPerSecond() {
+		roll(System.nanoTime());
+		return unitsPerSecond;
+	}
+
+	/**
+	 * @return the write capacity units consumed since the limiter was
+	 *         created
+	 */
+	public synchronized double getConsumedUnits() {
+		return consumedUnits;
+	}
+
+	/**
+	 * @return the number of requests throttled since the limiter was created
+	 */
+	public synchronized long getThrottledCount() {
+		return throttledCount;
+	}
+
+	/**
+	 * @return true if one more request would consume more than the target
+	 *         share of this second's capacity; a lone request always goes
+	 */
+	private boolean isBudgetSpent() {
+		if (provisionedUnits <= 0 || (inFlight == 0 && windowUnits == 0)) {
+			return false;
+		}
+		return windowUnits + (inFlight + 1) * unitsPerRequest > targetUtilization
+				* provisionedUnits;
+	}
+
+	private void decrease(long now, double factor) {
+		limit = Math.max(1, limit * factor);
+		decreasedNanos = now;
+		limitGauge.set(limit);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Writes to " + name + " limited to " + (int) limit
+					+ " in flight");
+		}
+	}
+
+	private void roll(long now) {
+		long elapsed = now - windowStartNanos;
+		if (elapsed >= WINDOW_NANOS) {
+			unitsPerSecond = windowUnits * WINDOW_NANOS / elapsed;
+			unitsGauge.set(unitsPerSecond);
+			windowUnits = 0;
+			windowStartNanos = now;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "WriteConcurrencyLimiter [name=" + name + ", limit="
+				+ (int) limit + ", inFlight=" + inFlight
+				+ ", provisionedUnits=" + provisionedUnits
+				+ ", unitsPerSecond=" + unitsPerSecond + "]";
+	}
+}
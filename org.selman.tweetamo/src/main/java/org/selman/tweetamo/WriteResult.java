@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tweets {@link TweetStore#addAll(java.util.Collection)} could not
+ * store.
+ *
+ * @author dselman
+ *
+ */
+public class WriteResult {
+	private final List<Tweet> unprocessed = new ArrayList<Tweet>();
+	private final Map<Tweet, String> rejected = new LinkedHashMap<Tweet, String>();
+
+	void addAll(WriteResult other) {
+		unprocessed.addAll(other.unprocessed);
+		rejected.putAll(other.rejected);
+	}
+
+	/**
+	 * @return the tweets that were not written, for example because the
+	 *         store is throttled; they may succeed if retried
+	 */
+	public List<Tweet> getUnprocessed() {
+		return unprocessed;
+	}
+
+	/**
+	 * @return the tweets the store rejected and the reason; they will be
+	 *         rejected again if retried
+	 */
+	public Map<Tweet, String> getRejected() {
+		return rejected;
+	}
+
+	public int getFailedCount() {
+		return unprocessed.size() + rejected.size();
+	}
+
+	public boolean isEmpty() {
+		return getFailedCount() == 0;
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+/**
+ * Round trips tweets through {@link AggregatedRecord} and checks that
+ * corrupt records are rejected with an IOException.
+ *
+ * @author dselman
+ *
+ */
+public class AggregatedRecordTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void roundTrip() throws IOException {
+		AggregatedRecord.Builder builder = new AggregatedRecord.Builder(1024);
+		String[] keys = { "alice", "bob", "alice", "z\u00fcrich", "" };
+		for (int i = 0; i < keys.length; i++) {
+			assertTrue(builder.add(keys[i], bytes("tweet " + i)));
+		}
+		ByteBuffer record = builder.build();
+		assertEquals(builder.getSizeInBytes(), record.remaining());
+		assertEquals("alice", builder.getPartitionKey());
+		assertTrue(AggregatedRecord.isAggregated(record));
+
+		List<AggregatedRecord.Entry> entries = AggregatedRecord
+				.deaggregate(record);
+		assertEquals(keys.length, entries.size());
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(keys[i], entries.get(i).getPartitionKey());
+			assertEquals(bytes("tweet " + i), entries.get(i).getData());
+		}
+		assertEquals(0, record.position());
+	}
+
+	@Test
+	public void roundTripAtOffset() throws IOException {
+		AggregatedRecord.Builder builder = new AggregatedRecord.Builder(1024);
+		builder.add("key", bytes("only tweet"));
+		ByteBuffer record = builder.build();
+
+		ByteBuffer padded = ByteBuffer.allocate(record.remaining() + 7);
+		padded.position(7);
+		padded.put(record.duplicate());
+		padded.position(7);
+		List<AggregatedRecord.Entry> entries = AggregatedRecord
+				.deaggregate(padded);
+		assertEquals(1, entries.size());
+		assertEquals(bytes("only tweet"), entries.get(0).getData());
+	}
+
+	@Test
+	public void stopsWhenFull() {
+		AggregatedRecord.Builder builder = new AggregatedRecord.Builder(64);
+		// the first tweet is accepted even if it is too large on its own
+		assertTrue(builder.add("key", ByteBuffer.allocate(100)));
+		assertFalse(builder.add("key", bytes("x")));
+		assertEquals(1, builder.size());
+	}
+
+	@Test
+	public void legacyRecordIsNotAggregated() {
+		ByteBuffer java = ByteBuffer.wrap(new byte[] {
+				TweetSerializer.FORMAT_JAVA, (byte) 0xED, 0, 5 });
+		assertFalse(AggregatedRecord.isAggregated(java));
+		assertFalse(AggregatedRecord.isAggregated(ByteBuffer.allocate(0)));
+	}
+
+	@Test
+	public void rejectsFlippedByte() {
+		ByteBuffer record = twoTweets();
+		for (int i = 0; i < record.remaining(); i++) {
+			byte[] corrupt = toArray(record);
+			corrupt[i] ^= 0x10;
+			assertRejected(ByteBuffer.wrap(corrupt));
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedRecord() {
+		byte[] record = toArray(twoTweets());
+		for (int length = 0; length < record.length; length++) {
+			assertRejected(ByteBuffer.wrap(record, 0, length));
+		}
+	}
+
+	@Test
+	public void rejectsUnknownVersion() {
+		assertRejected(withChecksum(AggregatedRecord.MAGIC, (byte) 2, 0, 0));
+	}
+
+	@Test
+	public void rejectsEntryLongerThanRecord() {
+		// one key "k", one entry of key 0 claiming 50 bytes but holding 1
+		assertRejected(withChecksum(AggregatedRecord.MAGIC,
+				AggregatedRecord.VERSION, 1, 1, 'k', 1, 0, 50, 'x'));
+	}
+
+	@Test
+	public void rejectsUnknownKeyIndex() {
+		assertRejected(withChecksum(AggregatedRecord.MAGIC,
+				AggregatedRecord.VERSION, 1, 1, 'k', 1, 3, 1, 'x'));
+	}
+
+	@Test
+	public void rejectsOversizedCount() {
+		// a key count of 2^35, which doesn't fit in an int
+		assertRejected(withChecksum(AggregatedRecord.MAGIC,
+				AggregatedRecord.VERSION, 0x80, 0x80, 0x80, 0x80, 0x7F));
+	}
+
+	private static ByteBuffer twoTweets() {
+		AggregatedRecord.Builder builder = new AggregatedRecord.Builder(1024);
+		builder.add("alice", bytes("first tweet"));
+		builder.add("bob", bytes("second tweet"));
+		return builder.build();
+	}
+
+	private static void assertRejected(ByteBuffer record) {
+		try {
+			AggregatedRecord.deaggregate(record);
+			fail("Corrupt record accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @return the bytes followed by their CRC32, so that the record gets
+	 *         past the checksum
+	 */
+	private static ByteBuffer withChecksum(int... values) {
+		byte[] body = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			body[i] = (byte) values[i];
+		}
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer record = ByteBuffer.allocate(body.length + 4);
+		record.put(body).putInt((int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static byte[] toArray(ByteBuffer data) {
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static ByteBuffer bytes(String value) {
+		return ByteBuffer.wrap(value.getBytes(UTF8));
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Round trips tweets through the compressed format with every codec, with
+ * and without a dictionary, and checks that corrupt compressed records are
+ * rejected with an IOException.
+ *
+ * @author dselman
+ *
+ */
+public class CompressedTweetTest {
+
+	private static final Tweet LONG_TWEET = new CompactTweet(402934820938L,
+			1386547200123L, false, 0, 0, "dselman",
+			"streaming tweets with #kinesis and #dynamodb, streaming tweets "
+					+ "with #kinesis and #dynamodb http://t.co/abcdef",
+			12345L, "Daniel Selman", "web", -1L, -1L, 0L);
+
+	private static TweetDictionary dictionary;
+
+	@BeforeClass
+	public static void trainDictionary() throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		for (int i = 0; i < 200; i++) {
+			Tweet tweet = new CompactTweet(i, 1386547200000L + i, false, 0,
+					0, "user" + (i % 7), "streaming tweets with #kinesis "
+							+ i, i, "User " + (i % 7), "web", -1L, -1L, 0L);
+			samples.add(TweetSerializerTest.toArray(TweetSerializer.toBytes(
+					tweet, TweetProfile.FULL)));
+		}
+		dictionary = TweetDictionary.train(201, samples, 1024);
+		TweetDictionary.register(dictionary);
+	}
+
+	@Test
+	public void roundTripsEveryCodec() throws Exception {
+		for (TweetCodec codec : new TweetCodec[] { TweetCodec.DEFLATE,
+				TweetCodec.LZ }) {
+			for (TweetDictionary withDictionary : new TweetDictionary[] {
+					null, dictionary }) {
+				ByteBuffer data = TweetSerializer.toBytes(LONG_TWEET,
+						TweetProfile.FULL, codec, withDictionary);
+				assertEquals(TweetSerializer.FORMAT_COMPRESSED, data.get(0));
+				assertEquals(codec.getId(), data.get(1));
+				assertEquals(withDictionary == null ? 0 : withDictionary
+						.getId(), data.get(2) & 0xFF);
+				TweetSerializerTest.assertSameTweet(LONG_TWEET,
+						TweetSerializer.fromBytes(data.duplicate()));
+				TweetSerializerTest.assertSameTweet(LONG_TWEET,
+						TweetSerializer.view(data));
+				assertEquals(0, data.position());
+			}
+		}
+	}
+
+	@Test
+	public void keepsCompactWhenNotSmaller() throws IOException {
+		ByteBuffer compact = TweetSerializer.toBytes(
+				TweetSerializerTest.SHORT_TWEET, TweetProfile.FULL);
+		assertSame(compact, TweetSerializer.compress(compact, TweetCodec.LZ,
+				null));
+		assertEquals(TweetSerializer.FORMAT_COMPACT, TweetSerializer.toBytes(
+				TweetSerializerTest.SHORT_TWEET, TweetProfile.FULL,
+				TweetCodec.NONE, null).get(0));
+	}
+
+	@Test
+	public void rejectsEveryTruncation() throws IOException {
+		for (TweetCodec codec : new TweetCodec[] { TweetCodec.DEFLATE,
+				TweetCodec.LZ }) {
+			byte[] record = TweetSerializerTest.toArray(TweetSerializer
+					.toBytes(LONG_TWEET, TweetProfile.FULL, codec, dictionary));
+			for (int length = 0; length < record.length; length++) {
+				TweetSerializerTest.assertRejected(ByteBuffer.wrap(record, 0,
+						length));
+			}
+		}
+	}
+
+	@Test
+	public void rejectsUnknownCodec() throws IOException {
+		byte[] record = compressed();
+		record[1] = 9;
+		TweetSerializerTest.assertRejected(ByteBuffer.wrap(record));
+	}
+
+	@Test
+	public void rejectsUnknownDictionary() throws IOException {
+		byte[] record = compressed();
+		record[2] = (byte) 250;
+		TweetSerializerTest.assertRejected(ByteBuffer.wrap(record));
+	}
+
+	@Test
+	public void rejectsHugeLength() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(TweetSerializer.FORMAT_COMPRESSED);
+		out.write(TweetCodec.LZ.getId());
+		out.write(0);
+		VarInts.write(out, Integer.MAX_VALUE);
+		out.write(new byte[] { 0x10, 'a' });
+		TweetSerializerTest.assertRejected(ByteBuffer.wrap(out.toByteArray()));
+	}
+
+	@Test
+	public void rejectsCorruptCompactRecord() throws IOException {
+		// compresses fine, but holds a compact record with unknown fields
+		ByteBuffer compact = ByteBuffer.allocate(64);
+		compact.put(TweetSerializer.FORMAT_COMPACT).putShort((short) 0xFFFF);
+		compact.rewind();
+		ByteBuffer record = TweetSerializer.compress(compact,
+				TweetCodec.DEFLATE, null);
+		assertEquals(TweetSerializer.FORMAT_COMPRESSED, record.get(0));
+		TweetSerializerTest.assertRejected(record);
+	}
+
+	private static byte[] compressed() throws IOException {
+		return TweetSerializerTest.toArray(TweetSerializer.toBytes(LONG_TWEET,
+				TweetProfile.FULL, TweetCodec.LZ, dictionary));
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips data through {@link LzCompressor}, with and without a
+ * dictionary, and checks that corrupt data is rejected with an IOException
+ * without reading past the end of the compressed bytes.
+ *
+ * @author dselman
+ *
+ */
+public class LzCompressorTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] DICTIONARY = ("{\"screenName\":\"dselman\","
+			+ "\"text\":\"RT @dselman: streaming tweets with #kinesis "
+			+ "and #dynamodb http://t.co/\"}").getBytes(UTF8);
+
+	@Test
+	public void roundTripsSizes() throws IOException {
+		Random random = new Random(42);
+		for (int size : new int[] { 0, 1, 4, 12, 13, 17, 100, 1000, 70000 }) {
+			byte[] noise = new byte[size];
+			random.nextBytes(noise);
+			assertRoundTrip(noise, null);
+			assertRoundTrip(repetitive(size), null);
+			assertRoundTrip(repetitive(size), DICTIONARY);
+		}
+	}
+
+	@Test
+	public void roundTripsAtOffset() throws IOException {
+		byte[] data = repetitive(500);
+		byte[] padded = new byte[data.length + 20];
+		System.arraycopy(data, 0, padded, 10, data.length);
+		byte[] compressed = LzCompressor.compress(padded, 10, data.length,
+				null, LzCompressor.hashTable(null));
+		byte[] framed = new byte[compressed.length + 6];
+		System.arraycopy(compressed, 0, framed, 3, compressed.length);
+		assertArrayEquals(data, LzCompressor.decompress(framed, 3,
+				compressed.length, data.length, null));
+	}
+
+	@Test
+	public void compressesRepetitiveData() {
+		byte[] data = repetitive(1000);
+		assertTrue(compress(data, null).length < data.length / 4);
+	}
+
+	@Test
+	public void dictionaryShrinksSmallRecords() {
+		byte[] data = ("{\"screenName\":\"dselman\",\"text\":\"streaming "
+				+ "tweets with #kinesis and #dynamodb http://t.co/abc\"}")
+				.getBytes(UTF8);
+		assertTrue(compress(data, DICTIONARY).length < compress(data, null).length);
+	}
+
+	@Test
+	public void rejectsEveryTruncation() throws IOException {
+		byte[] data = repetitive(300);
+		byte[] compressed = compress(data, null);
+		for (int length = 0; length < compressed.length; length++) {
+			assertRejected(compressed, length, data.length, null);
+		}
+	}
+
+	@Test
+	public void neverReadsPastEnd() {
+		// each stops in the middle of a field that the zero bytes after it
+		// in the array would complete
+		byte[][] cases = {
+				// literal length 15 needs an extra length byte
+				{ (byte) 0xF0 },
+				// an extra literal length byte of 255 needs another one
+				{ (byte) 0xF0, (byte) 0xFF },
+				// a match needs both bytes of its offset
+				{ 0x10, 'a', 1 },
+				// match length 15 needs an extra length byte
+				{ 0x1F, 'a', 1, 0 } };
+		for (byte[] bytes : cases) {
+			byte[] padded = Arrays.copyOf(bytes, bytes.length + 300);
+			for (int rawLength = 0; rawLength < 300; rawLength++) {
+				assertRejected(padded, bytes.length, rawLength, null);
+			}
+		}
+	}
+
+	@Test
+	public void survivesFlippedBytes() {
+		byte[] data = repetitive(300);
+		byte[] compressed = compress(data, DICTIONARY);
+		for (int i = 0; i < compressed.length; i++) {
+			for (int bit = 0; bit < 8; bit++) {
+				byte[] corrupt = compressed.clone();
+				corrupt[i] ^= 1 << bit;
+				try {
+					byte[] out = LzCompressor.decompress(corrupt, 0,
+							corrupt.length, data.length, DICTIONARY);
+					// a flipped literal still decompresses
+					assertEquals(data.length, out.length);
+				} catch (IOException e) {
+					// expected
+				}
+			}
+		}
+	}
+
+	@Test
+	public void rejectsWrongLength() throws IOException {
+		byte[] data = repetitive(300);
+		byte[] compressed = compress(data, null);
+		assertRejected(compressed, compressed.length, data.length - 1, null);
+		assertRejected(compressed, compressed.length, data.length + 1, null);
+	}
+
+	@Test
+	public void rejectsMissingDictionary() {
+		byte[] data = repetitive(300);
+		byte[] compressed = compress(data, DICTIONARY);
+		assertRejected(compressed, compressed.length, data.length, null);
+	}
+
+	private static void assertRoundTrip(byte[] data, byte[] dictionary)
+			throws IOException {
+		byte[] compressed = compress(data, dictionary);
+		assertArrayEquals(data, LzCompressor.decompress(compressed, 0,
+				compressed.length, data.length, dictionary));
+	}
+
+	private static void assertRejected(byte[] compressed, int length,
+			int rawLength, byte[] dictionary) {
+		try {
+			LzCompressor.decompress(compressed, 0, length, rawLength,
+					dictionary);
+			fail("Corrupt data decompressed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static byte[] compress(byte[] data, byte[] dictionary) {
+		return LzCompressor.compress(data, 0, data.length, dictionary,
+				LzCompressor.hashTable(dictionary));
+	}
+
+	private static byte[] repetitive(int size) {
+		byte[] pattern = "streaming tweets with #kinesis and #dynamodb "
+				.getBytes(UTF8);
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = pattern[(i * 7 / 5) % pattern.length];
+		}
+		return data;
+	}
+}
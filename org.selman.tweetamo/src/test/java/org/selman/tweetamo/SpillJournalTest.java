@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a {@link SpillJournal} gives back its records in order, and
+ * that reopening it picks up where it left off: after partial
+ * acknowledgements, after a record torn by a crash, and with segments
+ * written before explicit hash keys were kept.
+ *
+ * @author dselman
+ *
+ */
+public class SpillJournalTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int SEGMENT_BYTES = 256;
+	private static final long MAX_BYTES = 64 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsRecordsInOrderAcrossSegments() throws IOException {
+		SpillJournal journal = open();
+		try {
+			append(journal, 0, 20);
+			assertTrue(journal.getSegmentCount() > 1);
+			assertEquals(sum(0, 20), journal.getPendingTweets());
+
+			List<SpillJournal.Entry> entries = journal.peek(100);
+			assertRecords(entries, 0, 20);
+			journal.ack(entries.get(entries.size() - 1));
+			assertTrue(journal.isEmpty());
+			assertEquals(0, journal.getPendingTweets());
+			assertEquals(1, journal.getSegmentCount());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void reopensAfterPartialAcks() throws IOException {
+		SpillJournal journal = open();
+		append(journal, 0, 10);
+		List<SpillJournal.Entry> entries = journal.peek(6);
+		assertRecords(entries, 0, 6);
+		journal.ack(entries.get(5));
+		journal.close();
+
+		journal = open();
+		try {
+			assertEquals(sum(6, 10), journal.getPendingTweets());
+			assertRecords(journal.peek(100), 6, 10);
+
+			// new records go after the ones left
+			append(journal, 10, 14);
+			entries = journal.peek(100);
+			assertRecords(entries, 6, 14);
+			journal.ack(entries.get(1));
+			assertRecords(journal.peek(100), 8, 14);
+		} finally {
+			journal.close();
+		}
+
+		journal = open();
+		try {
+			assertRecords(journal.peek(100), 8, 14);
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void recoversFromTornLastRecord() throws IOException {
+		SpillJournal journal = open();
+		append(journal, 0, 3);
+		journal.close();
+
+		// flip the last byte of the third record, as if the crash came
+		// after its length was written but before its data reached disk
+		int end = 8;
+		for (int i = 0; i < 3; i++) {
+			end += size(i);
+		}
+		File segment = new File(folder.getRoot(), SpillJournal.segmentName(0));
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(end - 1);
+			int last = file.read();
+			file.seek(end - 1);
+			file.write(last ^ 0xFF);
+		} finally {
+			file.close();
+		}
+
+		journal = open();
+		try {
+			assertRecords(journal.peek(100), 0, 2);
+			assertEquals(sum(0, 2), journal.getPendingTweets());
+			// the torn record is written over
+			append(journal, 3, 4);
+			List<SpillJournal.Entry> entries = journal.peek(100);
+			assertEquals(3, entries.size());
+			assertRecords(entries.subList(0, 2), 0, 2);
+			assertRecord(entries.get(2), 3);
+		} finally {
+			journal.close();
+		}
+
+		journal = open();
+		try {
+			assertEquals(3, journal.peek(100).size());
+			assertEquals(sum(0, 2) + sum(3, 4), journal.getPendingTweets());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void readsVersion1Segments() throws IOException {
+		writeVersion1Segment(5, "alice", "first", "bob", "second");
+
+		SpillJournal journal = open();
+		try {
+			assertEquals(2, journal.getPendingTweets());
+			List<SpillJournal.Entry> entries = journal.peek(100);
+			assertEquals(2, entries.size());
+			assertEquals("alice", entries.get(0).getPartitionKey());
+			assertNull(entries.get(0).getExplicitHashKey());
+			assertEquals(bytes("first"), entries.get(0).getData());
+			assertEquals("bob", entries.get(1).getPartitionKey());
+			assertEquals(bytes("second"), entries.get(1).getData());
+
+			// the old segment is read to the end, new records go to a new one
+			append(journal, 0, 1);
+			assertEquals(2, journal.getSegmentCount());
+			entries = journal.peek(100);
+			assertEquals(3, entries.size());
+			assertRecord(entries.get(2), 0);
+
+			journal.ack(entries.get(1));
+			assertFalse(new File(folder.getRoot(),
+					SpillJournal.segmentName(5)).exists());
+			assertRecords(journal.peek(100), 0, 1);
+		} finally {
+			journal.close();
+		}
+	}
+
+	private SpillJournal open() throws IOException {
+		return new SpillJournal(folder.getRoot(), SEGMENT_BYTES, MAX_BYTES);
+	}
+
+	/**
+	 * Appends records start to end - 1; every other one has an explicit
+	 * hash key.
+	 */
+	private static void append(SpillJournal journal, int start, int end)
+			throws IOException {
+		for (int i = start; i < end; i++) {
+			assertTrue(journal.append("key" + i, hashKey(i), bytes("tweet "
+					+ i), count(i)));
+		}
+	}
+
+	private static void assertRecords(List<SpillJournal.Entry> entries,
+			int start, int end) {
+		assertEquals(end - start, entries.size());
+		for (int i = start; i < end; i++) {
+			assertRecord(entries.get(i - start), i);
+		}
+	}
+
+	private static void assertRecord(SpillJournal.Entry entry, int i) {
+		assertEquals("key" + i, entry.getPartitionKey());
+		assertEquals(hashKey(i), entry.getExplicitHashKey());
+		assertEquals(bytes("tweet " + i), entry.getData());
+		assertEquals(count(i), entry.getTweetCount());
+	}
+
+	private static String hashKey(int i) {
+		return i % 2 == 0 ? null : String.valueOf(1000000L * i);
+	}
+
+	private static int count(int i) {
+		return i + 1;
+	}
+
+	private static long sum(int start, int end) {
+		long sum = 0;
+		for (int i = start; i < end; i++) {
+			sum += count(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the bytes record i takes in a segment
+	 */
+	private static int size(int i) {
+		String hashKey = hashKey(i);
+		return 16 + ("key" + i).length()
+				+ (hashKey == null ? 0 : hashKey.length())
+				+ ("tweet " + i).length();
+	}
+
+	/**
+	 * Writes a segment in the format without explicit hash keys: each
+	 * record is its length, its CRC32, the tweet count (1 here), the
+	 * partition key length, the partition key and the data.
+	 */
+	private void writeVersion1Segment(int id, String... keysAndData)
+			throws IOException {
+		ByteBuffer segment = ByteBuffer.allocate(SEGMENT_BYTES);
+		segment.putInt(0x53504C31);
+		segment.putInt(8);
+		for (int i = 0; i < keysAndData.length; i += 2) {
+			byte[] key = keysAndData[i].getBytes(UTF8);
+			byte[] data = keysAndData[i + 1].getBytes(UTF8);
+			ByteBuffer body = ByteBuffer.allocate(6 + key.length
+					+ data.length);
+			body.putInt(1).putShort((short) key.length).put(key).put(data);
+			CRC32 crc = new CRC32();
+			crc.update(body.array(), 0, body.capacity());
+			segment.putInt(body.capacity()).putInt((int) crc.getValue())
+					.put(body.array());
+		}
+		RandomAccessFile file = new RandomAccessFile(new File(
+				folder.getRoot(), SpillJournal.segmentName(id)), "rw");
+		try {
+			file.write(segment.array());
+		} finally {
+			file.close();
+		}
+	}
+
+	private static ByteBuffer bytes(String value) {
+		return ByteBuffer.wrap(value.getBytes(UTF8));
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 Daniel Selman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.selman.tweetamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Round trips tweets through the compact format, both decoded by
+ * {@link TweetSerializer#fromBytes} and viewed in place by
+ * {@link TweetView}, and checks that corrupt records are rejected with an
+ * IOException.
+ *
+ * @author dselman
+ *
+ */
+public class TweetSerializerTest {
+
+	static final Tweet FULL_TWEET = new CompactTweet(402934820938L,
+			1386547200123L, true, 51.5072, -0.1275, "dselman",
+			"Caf\u00e9 au lait \u2615 with #kinesis http://t.co/x",
+			12345L, "Daniel Selman", "<a href=\"http://x\">web</a>",
+			402934820001L, 402934820002L, 17L);
+
+	static final Tweet SHORT_TWEET = new CompactTweet(7L, 1386547200000L,
+			"a", "", false, 0, 0);
+
+	@Test
+	public void roundTripAllFields() throws Exception {
+		ByteBuffer data = TweetSerializer.toBytes(FULL_TWEET,
+				TweetProfile.FULL);
+		assertEquals(TweetSerializer.FORMAT_COMPACT, data.get(0));
+		assertSameTweet(FULL_TWEET, TweetSerializer.fromBytes(data.duplicate()));
+		assertSameTweet(FULL_TWEET, TweetSerializer.view(data));
+		assertEquals(0, data.position());
+	}
+
+	@Test
+	public void roundTripMissingFields() throws Exception {
+		ByteBuffer data = TweetSerializer.toBytes(SHORT_TWEET,
+				TweetProfile.FULL);
+		assertSameTweet(SHORT_TWEET, TweetSerializer.fromBytes(data.duplicate()));
+		assertSameTweet(SHORT_TWEET, TweetSerializer.view(data));
+	}
+
+	@Test
+	public void storeProfileDropsFields() throws Exception {
+		Tweet tweet = TweetSerializer.fromBytes(TweetSerializer.toBytes(
+				FULL_TWEET, TweetProfile.STORE));
+		assertSameTweet(new CompactTweet(FULL_TWEET.getId(),
+				FULL_TWEET.getCreatedAt(), FULL_TWEET.getScreenName(),
+				FULL_TWEET.getText(), true, FULL_TWEET.getLatitude(),
+				FULL_TWEET.getLongitude()), tweet);
+	}
+
+	@Test
+	public void viewsAtOffset() throws Exception {
+		ByteBuffer data = TweetSerializer.toBytes(FULL_TWEET,
+				TweetProfile.FULL);
+		ByteBuffer padded = ByteBuffer.allocate(data.remaining() + 11);
+		padded.position(11);
+		padded.put(data);
+		padded.position(11);
+		assertSameTweet(FULL_TWEET, new TweetView().wrap(padded));
+	}
+
+	@Test
+	public void rejectsEveryTruncation() throws Exception {
+		byte[] record = toArray(TweetSerializer.toBytes(FULL_TWEET,
+				TweetProfile.FULL));
+		for (int length = 0; length < record.length; length++) {
+			assertRejected(ByteBuffer.wrap(record, 0, length));
+		}
+	}
+
+	@Test
+	public void rejectsUnknownFields() {
+		assertRejected(ByteBuffer.wrap(new byte[] {
+				TweetSerializer.FORMAT_COMPACT, (byte) 0x80, 0 }));
+	}
+
+	@Test
+	public void rejectsUnknownFormat() {
+		assertRejected(ByteBuffer.wrap(new byte[] { 0x7E, 0, 0 }));
+		assertRejected(ByteBuffer.allocate(0));
+	}
+
+	@Test
+	public void rejectsNegativeLength() throws IOException {
+		// a screen name whose 10 byte length decodes to a negative long
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(TweetSerializer.FORMAT_COMPACT);
+		out.write(0);
+		out.write(TweetField.SCREEN_NAME.getBit());
+		VarInts.write(out, -3L);
+		out.write(new byte[] { 'a', 'b', 'c' });
+		ByteBuffer data = ByteBuffer.wrap(out.toByteArray());
+		assertRejected(data);
+	}
+
+	@Test
+	public void rejectsLengthPastEnd() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(TweetSerializer.FORMAT_COMPACT);
+		out.write(0);
+		out.write(TweetField.SCREEN_NAME.getBit());
+		VarInts.write(out, 4);
+		out.write(new byte[] { 'a', 'b', 'c' });
+		// the missing byte is there in the array, just not in the record
+		byte[] bytes = out.toByteArray();
+		byte[] padded = new byte[bytes.length + 1];
+		System.arraycopy(bytes, 0, padded, 0, bytes.length);
+		assertRejected(ByteBuffer.wrap(padded, 0, bytes.length));
+	}
+
+	@Test
+	public void tellsFormatsApart() throws Exception {
+		ByteBuffer data = TweetSerializer.toBytes(FULL_TWEET,
+				TweetProfile.FULL);
+		assertTrue(TweetView.canView(data));
+		assertFalse(AggregatedRecord.isAggregated(data));
+		assertFalse(TweetView.canView(ByteBuffer
+				.wrap(new byte[] { TweetSerializer.FORMAT_JAVA })));
+	}
+
+	static void assertSameTweet(Tweet expected, Tweet actual) {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+		assertEquals(expected.hasGeoLocation(), actual.hasGeoLocation());
+		assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+		assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+		assertEquals(expected.getScreenName(), actual.getScreenName());
+		assertEquals(expected.getText(), actual.getText());
+		assertEquals(expected.getUserId(), actual.getUserId());
+		assertEquals(expected.getUserName(), actual.getUserName());
+		assertEquals(expected.getSource(), actual.getSource());
+		assertEquals(expected.getInReplyToStatusId(),
+				actual.getInReplyToStatusId());
+		assertEquals(expected.getRetweetedStatusId(),
+				actual.getRetweetedStatusId());
+		assertEquals(expected.getRetweetCount(), actual.getRetweetCount());
+	}
+
+	/**
+	 * Asserts that both the decoder and the view reject the record.
+	 */
+	static void assertRejected(ByteBuffer record) {
+		try {
+			TweetSerializer.fromBytes(record.duplicate());
+			fail("Corrupt record decoded");
+		} catch (IOException e) {
+			// expected
+		} catch (ClassNotFoundException e) {
+			throw new AssertionError(e);
+		}
+		try {
+			TweetSerializer.view(record.duplicate());
+			fail("Corrupt record viewed");
+		} catch (IOException e) {
+			// expected
+		} catch (ClassNotFoundException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	static byte[] toArray(ByteBuffer data) {
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return bytes;
+	}
+}